@@ -30,14 +30,21 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.Math.round;
 import static java.nio.channels.SelectionKey.OP_WRITE;
@@ -58,8 +65,17 @@ abstract class AbstractChannelReplicator implements Closeable {
     final Selector selector;
     final Set<Closeable> closeables = Collections.synchronizedSet(new LinkedHashSet<Closeable>());
     private final Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<Runnable>();
-    @Nullable
-    private final Throttler throttler;
+
+    private final long throttleBucketInterval;
+    private final int maxEntrySizeBytes;
+    private final long bitsPerDay;
+    // the throttle weights of the remote nodes, by their identifiers
+    private final int[] throttleWeights = new int[Byte.MAX_VALUE + 1];
+
+    // the metrics of the current connection with each remote node, by its identifier
+    private final ConcurrentMap<Byte, VanillaPeerReplicationMetrics> peerMetrics =
+            new ConcurrentHashMap<Byte, VanillaPeerReplicationMetrics>();
+    private final boolean jmxMetrics;
 
     AbstractChannelReplicator(String name, AbstractReplicationBuilder<?> replicationBuilder,
                               int maxEntrySizeBytes)
@@ -69,10 +85,53 @@ abstract class AbstractChannelReplicator implements Closeable {
         selector = Selector.open();
         closeables.add(selector);
 
-        throttler = replicationBuilder.throttle(DAYS) > 0 ?
-                new Throttler(selector,
-                        replicationBuilder.throttleBucketInterval(MILLISECONDS),
-                        maxEntrySizeBytes, replicationBuilder.throttle(DAYS)) : null;
+        throttleBucketInterval = replicationBuilder.throttleBucketInterval(MILLISECONDS);
+        this.maxEntrySizeBytes = maxEntrySizeBytes;
+        bitsPerDay = replicationBuilder.throttle(DAYS);
+        jmxMetrics = replicationBuilder.jmxMetrics();
+        for (int i = 1; i < throttleWeights.length; i++)
+            throttleWeights[i] = replicationBuilder.throttleWeight((byte) i);
+    }
+
+    /**
+     * @return the share of the throttled bandwidth of the connection with the remote node
+     * @see AbstractReplicationBuilder#throttleWeight(byte, int)
+     */
+    int throttleWeight(byte remoteIdentifier) {
+        return remoteIdentifier > 0 ? throttleWeights[remoteIdentifier] : 1;
+    }
+
+    /**
+     * publishes the metrics of a new connection, in place of the metrics of the previous connection with the
+     * same remote node
+     *
+     * @param remoteIdentifier the identifier of the remote node, or {@link Byte#MIN_VALUE} if not known
+     */
+    void peerMetrics(byte remoteIdentifier, @NotNull VanillaPeerReplicationMetrics metrics) {
+        final VanillaPeerReplicationMetrics previous = peerMetrics.put(remoteIdentifier, metrics);
+        if (previous != null)
+            previous.unregisterMBean();
+        if (jmxMetrics)
+            metrics.registerMBean();
+    }
+
+    /**
+     * @return the metrics of the current connections
+     */
+    Collection<PeerReplicationMetrics> peerMetrics() {
+        return Collections.<PeerReplicationMetrics>unmodifiableCollection(
+                new ArrayList<VanillaPeerReplicationMetrics>(peerMetrics.values()));
+    }
+
+    /**
+     * @return the throttler of the channels of this replicator, or {@code null} if the replication is not
+     * throttled
+     */
+    @Nullable
+    final Throttler newThrottler() {
+        return bitsPerDay > 0 ?
+                new Throttler(throttleBucketInterval, maxEntrySizeBytes, bitsPerDay) :
+                null;
     }
 
     void addPendingRegistration(Runnable registration) {
@@ -123,13 +182,13 @@ abstract class AbstractChannelReplicator implements Closeable {
             }
             closeables.clear();
         }
+        for (VanillaPeerReplicationMetrics metrics : peerMetrics.values())
+            metrics.unregisterMBean();
         executorService.shutdownNow();
     }
 
     void closeEarlyAndQuietly(SelectableChannel channel) {
         try {
-            if (throttler != null)
-                throttler.remove(channel);
             closeables.remove(channel);
             channel.close();
         } catch (IOException ex) {
@@ -143,100 +202,225 @@ abstract class AbstractChannelReplicator implements Closeable {
      */
     public abstract void forceBootstrap();
 
-    void checkThrottleInterval() throws ClosedChannelException {
-        if (throttler != null)
-            throttler.checkThrottleInterval();
-    }
-
-    void contemplateThrottleWrites(int bytesJustWritten) throws ClosedChannelException {
-        if (throttler != null)
-            throttler.contemplateThrottleWrites(bytesJustWritten);
-    }
-
-    void throttle(SelectableChannel channel) {
-        if (throttler != null)
-            throttler.add(channel);
-    }
-
     /**
      * throttles 'writes' to ensure the network is not swamped, this is achieved by periodically
-     * de-registering the write selector during periods of high volume.
+     * de-registering the write selector during periods of high volume. <p/> <p>The bytes of an interval are
+     * shared between the channels by their weights, each channel has a bucket of its share, refilled at the
+     * start of every interval. A channel out of its share may carry on writing, while the bytes left in the
+     * interval exceed the shares the other channels haven't used yet, so a channel busy with a bootstrap
+     * doesn't hold back the others. The channels which didn't write in the previous interval are given a
+     * share of a single entry only, so most of the bytes go to the channels which are busy.</p> <p>A
+     * throttler may be shared by the channels of several selectors, each run by its own thread. The interest
+     * ops of a channel are only changed on the thread of its selector, so the channels of the other selectors
+     * are held back by {@link #canWrite(SelectableChannel)}, and get their 'write' back when their thread
+     * next calls {@link #checkThrottleInterval(Selector)}.</p>
      */
     static class Throttler {
 
-        private final Selector selector;
-        private final Set<SelectableChannel> channels = new CopyOnWriteArraySet<SelectableChannel>();
+        private final Map<SelectableChannel, Bucket> buckets =
+                new ConcurrentHashMap<SelectableChannel, Bucket>();
         private final long throttleInterval;
+        private final long serializedEntrySize;
         private final long maxBytesInInterval;
 
-        private long lastTime = System.currentTimeMillis();
-        private long bytesWritten;
+        private volatile long lastTime = System.currentTimeMillis();
+        // the bytes left in this interval, for all the channels
+        private final AtomicLong bytesLeft;
+        // the number of channels, which 'write' has yet to be restored by the thread of their selector
+        private final AtomicInteger pendingRestores = new AtomicInteger();
 
-        Throttler(@NotNull Selector selector,
-                  long throttleIntervalInMillis,
+        Throttler(long throttleIntervalInMillis,
                   long serializedEntrySize,
                   long bitsPerDay) {
 
-            this.selector = selector;
             this.throttleInterval = throttleIntervalInMillis;
+            this.serializedEntrySize = serializedEntrySize;
             double bytesPerMs = ((double) bitsPerDay) / DAYS.toMillis(1) / BITS_IN_A_BYTE;
             this.maxBytesInInterval = round(bytesPerMs * throttleInterval) - serializedEntrySize;
+            this.bytesLeft = new AtomicLong(maxBytesInInterval);
         }
 
-        public void add(SelectableChannel selectableChannel) {
-            channels.add(selectableChannel);
+        /**
+         * @param channel  the channel to throttle
+         * @param selector the selector the channel is registered with
+         */
+        public synchronized void add(@NotNull SelectableChannel channel, @NotNull Selector selector) {
+            buckets.put(channel, new Bucket(selector));
+        }
+
+        public synchronized void remove(SelectableChannel channel) {
+            final Bucket bucket = buckets.remove(channel);
+            if (bucket != null && bucket.restore.compareAndSet(true, false))
+                pendingRestores.decrementAndGet();
         }
 
-        public void remove(SelectableChannel socketChannel) {
-            channels.remove(socketChannel);
+        /**
+         * @param channel the channel
+         * @param weight  the share of the bytes of the channel, relative to the other channels, from the next
+         *                interval
+         */
+        public void weight(SelectableChannel channel, int weight) {
+            final Bucket bucket = buckets.get(channel);
+            if (bucket != null)
+                bucket.weight = weight;
         }
 
         /**
-         * re register the 'write' on the selector if the throttleInterval has passed
+         * starts the next interval if the throttleInterval has passed, and re registers the 'write' on the
+         * channels of the {@code selector}, if an interval has started since
          *
-         * @throws java.nio.channels.ClosedChannelException
+         * @param selector the selector run by the calling thread
          */
-        public void checkThrottleInterval() throws ClosedChannelException {
+        public void checkThrottleInterval(@NotNull Selector selector) {
             final long time = System.currentTimeMillis();
 
-            if (lastTime + throttleInterval >= time)
-                return;
+            if (lastTime + throttleInterval < time) {
+                synchronized (this) {
+                    if (lastTime + throttleInterval < time) {
+                        lastTime = time;
+                        nextInterval();
+                    }
+                }
+            }
 
-            lastTime = time;
-            bytesWritten = 0;
+            if (pendingRestores.get() > 0)
+                restoreWrites(selector);
+        }
 
+        /**
+         * refills the buckets, the 'write' is restored on each channel by the thread of its selector
+         */
+        synchronized void nextInterval() {
+            long busyWeight = 0;
+            int idle = 0;
+            for (Bucket bucket : buckets.values()) {
+                if (bucket.busy)
+                    busyWeight += bucket.weight;
+                else
+                    idle++;
+            }
 
+            // the idle channels are given enough to write an entry without delay, when they become busy
+            final long idleShare = idle == 0 ? 0 :
+                    Math.max(0, Math.min(serializedEntrySize, maxBytesInInterval / (2 * idle)));
+            final long busyBytes = maxBytesInInterval - idle * idleShare;
+            for (Bucket bucket : buckets.values()) {
+                bucket.bytesLeft.set(bucket.busy ? busyBytes * bucket.weight / busyWeight : idleShare);
+                bucket.busy = false;
+                bucket.throttled = false;
+                if (bucket.restore.compareAndSet(false, true))
+                    pendingRestores.incrementAndGet();
+            }
+            bytesLeft.set(maxBytesInInterval);
+        }
+
+        /**
+         * restores the 'write' on the channels of the {@code selector}, which were throttled in the previous
+         * interval
+         *
+         * @param selector the selector run by the calling thread
+         */
+        void restoreWrites(@NotNull Selector selector) {
             if (LOG.isDebugEnabled())
-                LOG.debug("Restoring OP_WRITE on all channels");
+                LOG.debug("Restoring OP_WRITE on the channels of a selector");
 
-            for (SelectableChannel selectableChannel : channels) {
+            for (Map.Entry<SelectableChannel, Bucket> entry : buckets.entrySet()) {
+                final Bucket bucket = entry.getValue();
+                if (bucket.selector != selector || !bucket.restore.compareAndSet(true, false))
+                    continue;
+                pendingRestores.decrementAndGet();
 
-                final SelectionKey selectionKey = selectableChannel.keyFor(selector);
-                if (selectionKey != null)
+                final SelectionKey selectionKey = entry.getKey().keyFor(selector);
+                if (selectionKey != null && selectionKey.isValid())
                     selectionKey.interestOps(selectionKey.interestOps() | OP_WRITE);
-
             }
         }
 
+        /**
+         * @param channel the channel to write to
+         * @return {@code false} if the channel is throttled until the next interval, so its 'write' should
+         * not be registered on its selector
+         */
+        public boolean canWrite(@NotNull SelectableChannel channel) {
+            if (bytesLeft.get() <= 0)
+                return false;
+            final Bucket bucket = buckets.get(channel);
+            return bucket == null || !bucket.throttled;
+        }
 
         /**
-         * checks the number of bytes written in this interval, if this number of bytes exceeds a threshold,
-         * the selected will de-register the socket that is being written to, until the interval is finished.
+         * checks the number of bytes written in this interval, if the channel is out of its share, the
+         * selector will de-register the channel that is being written to, and if all the channels are out of
+         * the bytes of the interval, all the channels of its selector, until the interval is finished. This
+         * is called on the thread of the selector of the channel.
          *
-         * @throws ClosedChannelException
+         * @param channel          the channel just written to
+         * @param bytesJustWritten the number of bytes just written
          */
-        public void contemplateThrottleWrites(int bytesJustWritten)
-                throws ClosedChannelException {
-            bytesWritten += bytesJustWritten;
-            if (bytesWritten > maxBytesInInterval) {
-                for (SelectableChannel channel : channels) {
-                    final SelectionKey selectionKey = channel.keyFor(selector);
-                    if (selectionKey != null)
-                        selectionKey.interestOps(selectionKey.interestOps() & ~OP_WRITE);
-
-                    if (LOG.isDebugEnabled())
-                        LOG.debug("Throttling UDP writes");
+        public void contemplateThrottleWrites(@NotNull SelectableChannel channel, int bytesJustWritten) {
+            final Bucket bucket = buckets.get(channel);
+            if (bucket != null)
+                bucket.busy = true;
+            final long bucketBytesLeft = bucket == null ? 0 :
+                    bucket.bytesLeft.addAndGet(-bytesJustWritten);
+
+            final long bytesLeft = this.bytesLeft.addAndGet(-bytesJustWritten);
+            if (bucket == null)
+                return;
+
+            if (bytesLeft <= 0) {
+                // the channels of the other selectors are held back by canWrite()
+                for (Map.Entry<SelectableChannel, Bucket> entry : buckets.entrySet()) {
+                    if (entry.getValue().selector == bucket.selector)
+                        disableWrite(entry.getKey(), entry.getValue());
                 }
+
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Throttling writes on all channels");
+                return;
+            }
+
+            if (bucketBytesLeft > 0)
+                return;
+
+            // out of its share, the channel may use the bytes not kept for the other channels
+            long kept = 0;
+            for (Bucket other : buckets.values()) {
+                final long otherBytesLeft = other.bytesLeft.get();
+                if (other != bucket && otherBytesLeft > 0)
+                    kept += otherBytesLeft;
+            }
+            if (bytesLeft <= kept) {
+                bucket.throttled = true;
+                disableWrite(channel, bucket);
+
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Throttling writes on a channel out of its share");
+            }
+        }
+
+        private void disableWrite(@NotNull SelectableChannel channel, @NotNull Bucket bucket) {
+            final SelectionKey selectionKey = channel.keyFor(bucket.selector);
+            if (selectionKey != null && selectionKey.isValid())
+                selectionKey.interestOps(selectionKey.interestOps() & ~OP_WRITE);
+        }
+
+        /**
+         * the share of a channel, in the current interval
+         */
+        private static class Bucket {
+            final Selector selector;
+            volatile int weight = 1;
+            final AtomicLong bytesLeft = new AtomicLong();
+            // true if the channel wrote in the current interval, it is taken as busy when first added
+            volatile boolean busy = true;
+            // true if the channel is out of its share, until the next interval
+            volatile boolean throttled;
+            // true if the 'write' of the channel is yet to be restored, at the start of an interval
+            final AtomicBoolean restore = new AtomicBoolean();
+
+            Bucket(@NotNull Selector selector) {
+                this.selector = selector;
             }
         }
     }
@@ -275,6 +459,8 @@ abstract class AbstractChannelReplicator implements Closeable {
 
         private final Replica.EntryExternalizable externalizable;
         private final ByteBufferBytes in;
+        // true if the remote node accepts deltas of the entries
+        private boolean deltas;
 
         EntryCallback(@NotNull final Replica.EntryExternalizable externalizable,
                       @NotNull final ByteBufferBytes in) {
@@ -282,11 +468,15 @@ abstract class AbstractChannelReplicator implements Closeable {
             this.in = in;
         }
 
+        void deltas(boolean deltas) {
+            this.deltas = deltas;
+        }
+
         @Override
         public boolean onEntry(final AbstractBytes entry, final int chronicleId) {
             in.skip(SIZE_OF_SHORT);
             final long start = in.position();
-            externalizable.writeExternalEntry(entry, in, chronicleId);
+            externalizable.writeExternalEntry(entry, in, chronicleId, deltas && !fullEntryRequired);
 
             if (in.position() == start) {
                 in.position(in.position() - SIZE_OF_SHORT);
@@ -27,6 +27,9 @@ abstract class AbstractReplicationBuilder<T extends AbstractReplicationBuilder<T
     private TimeUnit throttlePerUnit = MILLISECONDS;
     private long throttleBucketInterval = 100;
     private TimeUnit throttleBucketIntervalUnit = MILLISECONDS;
+    private boolean jmxMetrics = false;
+    // the throttle weights of the remote nodes by their identifiers, 0 for the default weight of 1
+    private int[] throttleWeights = new int[Byte.MAX_VALUE + 1];
 
     abstract T thisBuilder();
 
@@ -81,11 +84,65 @@ abstract class AbstractReplicationBuilder<T extends AbstractReplicationBuilder<T
         return thisBuilder();
     }
 
+    /**
+     * Default is {@code false}, the metrics are available from {@link ReplicationMetrics#peers(SharedHashMap)}
+     * only.
+     *
+     * @return {@code true} if the metrics of the connections are registered with the platform MBean server
+     */
+    public boolean jmxMetrics() {
+        return jmxMetrics;
+    }
+
+    /**
+     * @param jmxMetrics {@code true} to register the {@link PeerReplicationMetrics} of each connection with
+     *                   the platform MBean server, as {@code net.openhft.collections:type=PeerReplicationMetrics}
+     * @return this builder back
+     */
+    public T jmxMetrics(boolean jmxMetrics) {
+        this.jmxMetrics = jmxMetrics;
+        return thisBuilder();
+    }
+
+    /**
+     * Default weight is {@code 1} for every remote node.
+     *
+     * @param remoteIdentifier the identifier of the remote node
+     * @return the share of the throttled bandwidth of the connection with the remote node, relative to the
+     * other connections
+     */
+    public int throttleWeight(byte remoteIdentifier) {
+        final int weight = remoteIdentifier > 0 ? throttleWeights[remoteIdentifier] : 0;
+        return weight == 0 ? 1 : weight;
+    }
+
+    /**
+     * If the replication is {@link #throttle(long, TimeUnit) throttled}, the bandwidth is shared between the
+     * connections, which are busy, by their weights.
+     *
+     * @param remoteIdentifier the identifier of the remote node
+     * @param weight           the share of the throttled bandwidth of the connection with the remote node,
+     *                         relative to the other connections
+     * @return this builder back
+     * @throws IllegalArgumentException if {@code remoteIdentifier} or {@code weight} is not positive
+     */
+    public T throttleWeight(byte remoteIdentifier, int weight) {
+        if (remoteIdentifier <= 0)
+            throw new IllegalArgumentException("remoteIdentifier should be positive, " + remoteIdentifier +
+                    " given");
+        if (weight < 1)
+            throw new IllegalArgumentException("weight should be positive, " + weight + " given");
+        throttleWeights[remoteIdentifier] = weight;
+        return thisBuilder();
+    }
+
     @SuppressWarnings("CloneDoesntDeclareCloneNotSupportedException")
     @Override
     public T clone() {
         try {
-            return (T) super.clone();
+            final T result = (T) super.clone();
+            ((AbstractReplicationBuilder<?>) result).throttleWeights = throttleWeights.clone();
+            return result;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError(e);
         }
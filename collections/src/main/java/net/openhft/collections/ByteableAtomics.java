@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.model.Byteable;
+
+/**
+ * Lock-free operations on the fields of a {@link Byteable} value, typically a flyweight obtained with
+ * {@link SharedHashMap#acquireUsing(Object, Object)}. The operations work directly on the memory the
+ * flyweight is bound to, so concurrent writers (in this or other processes) don't need to take the
+ * segment lock of the key. <p/> <p>Generated {@code $$Native} values already expose {@code
+ * addAtomicXxx()}, {@code compareAndSwapXxx()} and {@code getVolatileXxx()} for each field; this class
+ * provides the same operations addressed by field offset, for hand-written {@code Byteable}s, and checks
+ * that the field is naturally aligned. A misaligned field may cross a cache line, in which case the
+ * hardware doesn't guarantee atomicity. To make 8-byte fields of values aligned, build the map with
+ * {@code entryAndValueAlignment(Alignment.OF_8_BYTES)}.
+ *
+ * @see SharedHashMapBuilder#entryAndValueAlignment(Alignment)
+ */
+public final class ByteableAtomics {
+
+    private ByteableAtomics() {
+    }
+
+    public static int getVolatileInt(Byteable value, long fieldOffset) {
+        return bytes(value, fieldOffset, 4).readVolatileInt(value.offset() + fieldOffset);
+    }
+
+    public static void setOrderedInt(Byteable value, long fieldOffset, int newValue) {
+        bytes(value, fieldOffset, 4).writeOrderedInt(value.offset() + fieldOffset, newValue);
+    }
+
+    /**
+     * @return the value of the field after the addition
+     */
+    public static int addAndGetInt(Byteable value, long fieldOffset, int delta) {
+        return bytes(value, fieldOffset, 4).addAtomicInt(value.offset() + fieldOffset, delta);
+    }
+
+    public static boolean compareAndSwapInt(Byteable value, long fieldOffset, int expected, int x) {
+        return bytes(value, fieldOffset, 4).compareAndSwapInt(value.offset() + fieldOffset, expected, x);
+    }
+
+    public static long getVolatileLong(Byteable value, long fieldOffset) {
+        return bytes(value, fieldOffset, 8).readVolatileLong(value.offset() + fieldOffset);
+    }
+
+    public static void setOrderedLong(Byteable value, long fieldOffset, long newValue) {
+        bytes(value, fieldOffset, 8).writeOrderedLong(value.offset() + fieldOffset, newValue);
+    }
+
+    /**
+     * @return the value of the field after the addition
+     */
+    public static long addAndGetLong(Byteable value, long fieldOffset, long delta) {
+        return bytes(value, fieldOffset, 8).addAtomicLong(value.offset() + fieldOffset, delta);
+    }
+
+    public static boolean compareAndSwapLong(Byteable value, long fieldOffset, long expected, long x) {
+        return bytes(value, fieldOffset, 8).compareAndSwapLong(value.offset() + fieldOffset, expected, x);
+    }
+
+    /**
+     * @return {@code true} if a field of the given size at the given offset within the value can be
+     * accessed atomically
+     */
+    public static boolean isAligned(Byteable value, long fieldOffset, int fieldSize) {
+        Bytes bytes = value.bytes();
+        return bytes != null && ((bytes.address() + value.offset() + fieldOffset) & (fieldSize - 1)) == 0;
+    }
+
+    private static Bytes bytes(Byteable value, long fieldOffset, int fieldSize) {
+        Bytes bytes = value.bytes();
+        if (bytes == null)
+            throw new IllegalStateException("Value is not bound to any bytes, " +
+                    "use SharedHashMap.acquireUsing() first");
+        if (fieldOffset < 0 || fieldOffset + fieldSize > value.maxSize())
+            throw new IllegalArgumentException("Field at offset " + fieldOffset + " of size " + fieldSize +
+                    " is out of the value of size " + value.maxSize());
+        if (((bytes.address() + value.offset() + fieldOffset) & (fieldSize - 1)) != 0)
+            throw new IllegalArgumentException("Field at offset " + fieldOffset + " is not aligned to " +
+                    fieldSize + " bytes, build the map with an entryAndValueAlignment() of at least " +
+                    (fieldSize == 8 ? Alignment.OF_8_BYTES : Alignment.OF_4_BYTES));
+        return bytes;
+    }
+}
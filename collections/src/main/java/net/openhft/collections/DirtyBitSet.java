@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.collection.ATSDirectBitSet;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+import static net.openhft.lang.collection.DirectBitSet.NOT_FOUND;
+
+/**
+ * Bit set of the entries changed since they were last replicated to a remote node, split into the ranges of
+ * the segments of the map. <p/> <p>Above the bits there are two summary levels: a bit per group of up to 64
+ * words of the bits, and a bit per segment, so {@link #nextSetBit(long)} skips the clean segments and groups,
+ * in time proportional to the number of changes, rather than the size of the map. <p/> <p>A summary bit is
+ * set after the bit it summarises, and is only cleared lazily, by {@link #nextSetBit(long)} finding the bits
+ * under it clear, which then checks them again, so a bit set concurrently is never lost. The summary levels
+ * aren't persisted, they are rebuilt from the bits on construction.
+ */
+final class DirtyBitSet {
+
+    // a summary bit of the groups covers at most 64 words of the bits
+    private static final int MAX_GROUP_SHIFT = 12;
+
+    private final Bytes bytes;
+    private final ATSDirectBitSet bits;
+    // the summaries are allocated off heap, unlike the bits
+    private final DirectStore groupsStore;
+    private final DirectStore segmentsStore;
+    private final ATSDirectBitSet groups;
+    private final ATSDirectBitSet segments;
+    private final int groupShift;
+    private final int segmentShift;
+
+    /**
+     * @param bytes        the bits, possibly already holding bits set by a previous process
+     * @param segmentShift the log2 of the number of bits of a segment, at least 6
+     */
+    DirtyBitSet(Bytes bytes, int segmentShift) {
+        this.bytes = bytes;
+        this.segmentShift = segmentShift;
+        groupShift = Math.min(MAX_GROUP_SHIFT, segmentShift);
+        bits = new ATSDirectBitSet(bytes);
+        final long size = bytes.capacity() * 8;
+        groupsStore = newStore(size >>> groupShift);
+        groups = new ATSDirectBitSet(groupsStore.bytes());
+        segmentsStore = newStore(size >>> segmentShift);
+        segments = new ATSDirectBitSet(segmentsStore.bytes());
+
+        for (long index = bits.nextSetBit(0); index != NOT_FOUND; ) {
+            summarise(index);
+            final long nextGroup = ((index >>> groupShift) + 1) << groupShift;
+            index = nextGroup < size ? bits.nextSetBit(nextGroup) : NOT_FOUND;
+        }
+    }
+
+    private static DirectStore newStore(long bits) {
+        final long words = Math.max(1, (bits + 63) >>> 6);
+        return DirectStore.allocateLazy(words * 8);
+    }
+
+    /**
+     * frees the summaries, the bits are left to their owner
+     */
+    void free() {
+        groupsStore.free();
+        segmentsStore.free();
+    }
+
+    private void summarise(long index) {
+        groups.set(index >>> groupShift);
+        segments.set(index >>> segmentShift);
+    }
+
+    void set(long index) {
+        bits.set(index);
+        summarise(index);
+    }
+
+    void clear(long index) {
+        bits.clear(index);
+    }
+
+    boolean clearIfSet(long index) {
+        return bits.clearIfSet(index);
+    }
+
+    /**
+     * Counts the bits of the summarised groups of the summarised segments only, skipping the clean ones as
+     * {@link #nextSetBit(long)} does, in time proportional to the number of changes, rather than the size of
+     * the map. Bits set concurrently may or may not be counted.
+     *
+     * @return the number of set bits
+     */
+    long cardinality() {
+        final long groupsPerSegment = 1L << (segmentShift - groupShift);
+        long count = 0;
+        for (long segment = segments.nextSetBit(0); segment != NOT_FOUND;
+             segment = segments.nextSetBit(segment + 1)) {
+            final long endGroup = (segment + 1) * groupsPerSegment;
+            for (long group = groups.nextSetBit(segment * groupsPerSegment);
+                 group != NOT_FOUND && group < endGroup; group = groups.nextSetBit(group + 1))
+                count += cardinalityInRange(group << groupShift, (group + 1) << groupShift);
+        }
+        return count;
+    }
+
+    private long cardinalityInRange(long fromIndex, long toIndex) {
+        final long endWord = Math.min(toIndex >>> 6, bytes.capacity() >>> 3);
+        long count = 0;
+        for (long word = fromIndex >>> 6; word < endWord; word++)
+            count += Long.bitCount(bytes.readVolatileLong(word << 3));
+        return count;
+    }
+
+    /**
+     * @param fromIndex the index to start from, inclusive
+     * @return the index of the next set bit, or {@link net.openhft.lang.collection.DirectBitSet#NOT_FOUND}
+     * if there are no set bits from {@code fromIndex}
+     */
+    long nextSetBit(long fromIndex) {
+        if (fromIndex < 0)
+            return NOT_FOUND;
+        final long fromSegment = fromIndex >>> segmentShift;
+        for (long segment = segments.nextSetBit(fromSegment); segment != NOT_FOUND;
+             segment = segments.nextSetBit(segment + 1)) {
+            final long start = segment == fromSegment ? fromIndex : segment << segmentShift;
+            final long index = nextSetBitInSegment(segment, start);
+            if (index != NOT_FOUND)
+                return index;
+
+            // the segment is clean, unless a group of it was summarised meanwhile
+            segments.clear(segment);
+            final long firstGroup = segment << (segmentShift - groupShift);
+            final long group = groups.nextSetBit(firstGroup);
+            if (group != NOT_FOUND && group < firstGroup + (1L << (segmentShift - groupShift)))
+                segments.set(segment);
+        }
+        return NOT_FOUND;
+    }
+
+    private long nextSetBitInSegment(long segment, long fromIndex) {
+        final long endGroup = (segment + 1) << (segmentShift - groupShift);
+        final long fromGroup = fromIndex >>> groupShift;
+        for (long group = groups.nextSetBit(fromGroup); group != NOT_FOUND && group < endGroup;
+             group = groups.nextSetBit(group + 1)) {
+            final long groupStart = group << groupShift;
+            final long groupEnd = groupStart + (1L << groupShift);
+            long index = nextSetBitInRange(group == fromGroup ? fromIndex : groupStart, groupEnd);
+            if (index != NOT_FOUND)
+                return index;
+
+            // the group is clean, unless a bit of it was set meanwhile
+            groups.clear(group);
+            index = nextSetBitInRange(groupStart, groupEnd);
+            if (index != NOT_FOUND) {
+                groups.set(group);
+                if (index >= fromIndex)
+                    return index;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private long nextSetBitInRange(long fromIndex, long toIndex) {
+        long word = fromIndex >>> 6;
+        long bits = bytes.readVolatileLong(word << 3) & (-1L << fromIndex);
+        final long endWord = (toIndex + 63) >>> 6;
+        for (; ; ) {
+            if (bits != 0)
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            if (++word >= endWord)
+                return NOT_FOUND;
+            bits = bytes.readVolatileLong(word << 3);
+        }
+    }
+}
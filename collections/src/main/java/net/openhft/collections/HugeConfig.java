@@ -18,6 +18,8 @@ package net.openhft.collections;
 
 import net.openhft.lang.Maths;
 
+import java.io.File;
+
 /**
  * User: plawrey Date: 07/12/13 Time: 10:39
  */
@@ -51,6 +53,7 @@ public class HugeConfig implements Cloneable {
     private int segments;
     private int smallEntrySize;
     private int capacity;
+    private File persistenceDirectory;
 
     @SuppressWarnings("CloneDoesntDeclareCloneNotSupportedException")
     public HugeConfig clone() {
@@ -91,4 +94,25 @@ public class HugeConfig implements Cloneable {
         this.capacity = Maths.nextPower2(capacity, segments);
         return this;
     }
+
+    public File getPersistenceDirectory() {
+        return persistenceDirectory;
+    }
+
+    /**
+     * Maps the entries of each segment from files in the directory, rather than allocating them off
+     * heap, so a map created with the same config finds them again without reloading. The map must be
+     * reopened with the same number of segments and small entry size, which are recorded in the directory
+     * and checked when the map is created. The directory should be used by one map at a time, and the map
+     * should be closed before it is reopened.
+     * <p>Entries are found by the hashes of their keys, so the {@code hashCode()} of keys must be stable
+     * across JVMs, as for strings, boxed primitives or {@code LongHashable} keys. Key classes inheriting
+     * the identity hash code of {@code Object} or {@code Enum} are rejected.
+     *
+     * @param persistenceDirectory the directory, or {@code null} for a map living only in memory (default)
+     */
+    public HugeConfig setPersistenceDirectory(File persistenceDirectory) {
+        this.persistenceDirectory = persistenceDirectory;
+        return this;
+    }
 }
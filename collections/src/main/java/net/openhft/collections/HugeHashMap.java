@@ -18,14 +18,27 @@ package net.openhft.collections;
 
 import net.openhft.lang.LongHashable;
 import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.BytesStore;
 import net.openhft.lang.io.DirectBytes;
 import net.openhft.lang.io.DirectStore;
+import net.openhft.lang.io.MappedStore;
 import net.openhft.lang.io.MultiStoreBytes;
 import net.openhft.lang.io.NativeBytes;
 import net.openhft.lang.io.serialization.BytesMarshallable;
+import net.openhft.lang.io.serialization.BytesMarshallableSerializer;
+import net.openhft.lang.io.serialization.JDKObjectSerializer;
+import net.openhft.lang.io.serialization.ObjectSerializer;
 import net.openhft.lang.io.serialization.impl.VanillaBytesMarshallerFactory;
 import net.openhft.lang.model.constraints.NotNull;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -33,8 +46,20 @@ import java.util.*;
  */
 @SuppressWarnings("ALL")
 public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V> {
-    private final Segment<K, V>[] segments;
-    private final Hasher hasher;
+    // the version of the layout of the persisted areas, bumped on incompatible changes
+    static final int FORMAT_VERSION = 1;
+    static final String META_DATA_FILE = "huge-map.meta";
+
+    final Segment<K, V>[] segments;
+    final Hasher hasher;
+    // Long keys are stored as 8 bytes rather than serialized
+    final boolean inlineLongKey;
+    final ThreadLocal<SegmentReader> readers = new ThreadLocal<SegmentReader>() {
+        @Override
+        protected SegmentReader initialValue() {
+            return new SegmentReader();
+        }
+    };
     //    private final Class<K> kClass;
 //    private final Class<V> vClass;
 
@@ -49,12 +74,86 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
 //        this.kClass = kClass;
 //        this.vClass = vClass;
         final int segmentCount = config.getSegments();
+        File directory = config.getPersistenceDirectory();
+        if (directory != null) {
+            checkStableHashCode(kClass);
+            directory.mkdirs();
+            checkMetaData(new File(directory, META_DATA_FILE), segmentCount,
+                    (config.getSmallEntrySize() + 7) & ~7);
+        }
         hasher = new Hasher(kClass, segmentCount);
+        inlineLongKey = kClass == Long.class;
         boolean bytesMarshallable = BytesMarshallable.class.isAssignableFrom(vClass);
         //noinspection unchecked
         segments = (Segment<K, V>[]) new Segment[segmentCount];
         for (int i = 0; i < segmentCount; i++)
-            segments[i] = new Segment<K, V>(config, hasher, CharSequence.class.isAssignableFrom(kClass), bytesMarshallable, vClass);
+            segments[i] = new Segment<K, V>(config, i, hasher, CharSequence.class.isAssignableFrom(kClass),
+                    inlineLongKey, bytesMarshallable, vClass);
+    }
+
+    /**
+     * Persisted entries are found by the hashes of their keys, so the hash codes must be the same when
+     * the map is reopened, which identity hash codes are not.
+     */
+    static void checkStableHashCode(Class kClass) {
+        if (kClass.isInterface() || kClass == Object.class || CharSequence.class.isAssignableFrom(kClass) ||
+                LongHashable.class.isAssignableFrom(kClass))
+            return;
+        Class declaringClass;
+        try {
+            declaringClass = kClass.getMethod("hashCode").getDeclaringClass();
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+        if (declaringClass == Object.class || declaringClass == Enum.class)
+            throw new IllegalArgumentException("Keys of " + kClass + " have identity hash codes, which " +
+                    "change when the persisted map is reopened");
+    }
+
+    /**
+     * Writes the layout of the persisted areas to the file the first time, and checks it matches on
+     * reopening, as areas of a different number of segments or entry size would be misread.
+     */
+    static void checkMetaData(File file, int segments, int smallEntrySize) {
+        try {
+            if (!file.exists()) {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+                try {
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(segments);
+                    out.writeInt(smallEntrySize);
+                } finally {
+                    out.close();
+                }
+                return;
+            }
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                int formatVersion = in.readInt(), persistedSegments = in.readInt(),
+                        persistedEntrySize = in.readInt();
+                if (formatVersion != FORMAT_VERSION || persistedSegments != segments ||
+                        persistedEntrySize != smallEntrySize)
+                    throw new IllegalStateException(file.getParentFile() + " was persisted with format " +
+                            formatVersion + ", " + persistedSegments + " segments and a smallEntrySize of " +
+                            persistedEntrySize + ", but is opened with format " + FORMAT_VERSION + ", " +
+                            segments + " segments and a smallEntrySize of " + smallEntrySize);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to access " + file, e);
+        }
+    }
+
+    long longKey(Object key) {
+        return inlineLongKey && key instanceof Long ? (Long) key : 0L;
+    }
+
+    /**
+     * @return {@code false} if the key can't be in this map, as inline Long keys are compared encoded
+     */
+    boolean isKey(Object key) {
+        return !inlineLongKey || key instanceof Long;
     }
 
     @Override
@@ -62,7 +161,7 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         long hash = hasher.hash(key);
         int segment = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        segments[segment].put(segmentHash, key, value, true, true);
+        segments[segment].put(segmentHash, key, longKey(key), value, true, true);
         return null;
     }
 
@@ -73,27 +172,33 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
 
     @Override
     public V get(K key, V value) {
+        if (!isKey(key))
+            return null;
         long hash = hasher.hash(key);
         int segment = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segment].get(segmentHash, key, value);
+        return segments[segment].get(segmentHash, key, longKey(key), value, readers.get());
     }
 
     @Override
     public V remove(Object key) {
+        if (!isKey(key))
+            return null;
         long hash = hasher.hash(key);
         int segment = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        segments[segment].remove(segmentHash, (K) key);
+        segments[segment].remove(segmentHash, (K) key, longKey(key));
         return null;
     }
 
     @Override
     public boolean containsKey(Object key) {
+        if (!isKey(key))
+            return false;
         long hash = hasher.hash(key);
         int segment = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segment].containsKey(segmentHash, (K) key);
+        return segments[segment].containsKey(segmentHash, (K) key, longKey(key), readers.get());
     }
 
     @NotNull
@@ -107,12 +212,14 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         long hash = hasher.hash(key);
         int segment = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        segments[segment].put(segmentHash, key, value, false, true);
+        segments[segment].put(segmentHash, key, longKey(key), value, false, true);
         return null;
     }
 
     @Override
     public boolean remove(@NotNull Object key, Object value) {
+        if (!isKey(key))
+            return false;
         long hash = hasher.hash(key);
         int segment = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
@@ -121,7 +228,7 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         synchronized (segment2) {
             V value2 = get(key);
             if (value2 != null && value.equals(value2)) {
-                segment2.remove(segmentHash, (K) key);
+                segment2.remove(segmentHash, (K) key, longKey(key));
                 return true;
             }
             return false;
@@ -138,7 +245,7 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         synchronized (segment2) {
             V value2 = get(key);
             if (value2 != null && oldValue.equals(value2)) {
-                segment2.put(segmentHash, key, newValue, true, true);
+                segment2.put(segmentHash, key, longKey(key), newValue, true, true);
                 return true;
             }
             return false;
@@ -150,7 +257,7 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         long hash = hasher.hash(key);
         int segment = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
-        segments[segment].put(segmentHash, key, value, true, false);
+        segments[segment].put(segmentHash, key, longKey(key), value, true, false);
         return null;
     }
 
@@ -188,17 +295,27 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         }
     }
 
+    @Override
+    public void close() {
+        for (Segment<K, V> segment : segments) {
+            segment.close();
+        }
+    }
+
     static final class Hasher<K> {
 
         private final boolean isCharSequence;
 
         private final boolean isLongHashable;
 
+        private final boolean isLong;
+
         private final int segmentMask, segmentShift;
 
         Hasher(Class keyClass, int segmentCount) {
             this.isCharSequence = CharSequence.class.isAssignableFrom(keyClass);
             this.isLongHashable = LongHashable.class.isAssignableFrom(keyClass);
+            this.isLong = keyClass == Long.class;
             this.segmentMask = segmentCount - 1;
             this.segmentShift = Maths.intLog2(segmentCount);
         }
@@ -209,9 +326,20 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
                 hash = Maths.hash((CharSequence) key);
             } else if (isLongHashable) {
                 hash = ((LongHashable) key).longHashCode();
+            } else if (isLong && key instanceof Long) {
+                return hash((long) (Long) key);
             } else {
                 hash = (long) key.hashCode() << 31;
             }
+            return mix(hash);
+        }
+
+        final long hash(long key) {
+            // the multiplication spreads the low bits, so keys with a common stride don't share a segment
+            return mix(key * 0x9E3779B97F4A7C15L);
+        }
+
+        private static long mix(long hash) {
             hash += (hash >>> 42) - (hash >>> 21);
             hash += (hash >>> 14) - (hash >>> 7);
             return hash;
@@ -226,139 +354,714 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         }
     }
 
+    /**
+     * The state of an optimistic read of a thread, to avoid sharing mutable state of a segment
+     * between readers not holding its lock.
+     */
+    static final class SegmentReader {
+        final MultiStoreBytes bytes = new MultiStoreBytes();
+        final VanillaIntIntMultiMap.Search search = new VanillaIntIntMultiMap.Search();
+        DirectStore keyStore;
+        DirectBytes keyBytes;
+        long keyLength;
+        // a copy of the entry found, only decoded once the read is validated, so a torn entry is never
+        // deserialized
+        DirectStore entryStore;
+        DirectBytes entryBytes;
+        // written before the version is read again, so the reads of the entry can't be reordered after
+        // that read, as Unsafe.loadFence() isn't available before Java 8
+        volatile int fence;
+
+        /**
+         * @return {@code true} if the segment hasn't been modified since the version was read
+         */
+        boolean validate(Segment segment, int version) {
+            fence = version;
+            return segment.version == version;
+        }
+
+        /**
+         * Copies the entry at the offset of the store to {@link #entryBytes}, positioned at its value.
+         */
+        void copyEntry(BytesStore store, long offset, int entrySize, ObjectSerializer objectSerializer) {
+            if (entryStore == null) {
+                entryStore = DirectStore.allocateLazy(entrySize, objectSerializer);
+                entryBytes = entryStore.bytes();
+            }
+            NativeBytes.UNSAFE.copyMemory(store.address() + offset, entryStore.address(), entrySize);
+            entryBytes.clear();
+            entryBytes.position(keyLength);
+        }
+
+        void encodeKey(CharSequence key) {
+            // modified UTF-8 takes at most 3 bytes per char, and the stop bit encoded length at most 5
+            long maxLength = 3L * key.length() + 5;
+            if (keyBytes == null || keyBytes.capacity() < maxLength) {
+                if (keyStore != null)
+                    keyStore.free();
+                keyStore = DirectStore.allocateLazy(Maths.nextPower2(maxLength, 64L));
+                keyBytes = keyStore.bytes();
+            }
+            keyBytes.clear();
+            keyBytes.writeUTFΔ(key);
+            keyLength = keyBytes.position();
+        }
+
+        void encodeKey(long key) {
+            if (keyBytes == null) {
+                keyStore = DirectStore.allocateLazy(64);
+                keyBytes = keyStore.bytes();
+            }
+            keyBytes.writeLong(0, key);
+            keyLength = 8;
+        }
+    }
+
+    /**
+     * Slots of small entries, followed by a multimap of segment hashes to slots, in one store.
+     */
+    static final class SmallArea {
+        final int entries;
+        final BytesStore store;
+        final VanillaIntIntMultiMap map;
+        final BitSet used;
+        int count = 0;
+
+        static long sizeInBytes(int entries, int entrySize) {
+            return (long) entries * entrySize + VanillaIntIntMultiMap.sizeInBytes(entries * 2) +
+                    VanillaIntIntMultiMap.sizeOfBitSetInBytes(entries * 2);
+        }
+
+        /**
+         * @param existing if the store holds an area written before, rather than a new one
+         */
+        SmallArea(BytesStore store, int entries, int entrySize, boolean existing) {
+            this.entries = entries;
+            this.store = store;
+            long slotsSize = (long) entries * entrySize;
+            long mapSize = VanillaIntIntMultiMap.sizeInBytes(entries * 2);
+            map = new VanillaIntIntMultiMap(store.bytes(slotsSize, mapSize), store.bytes(slotsSize + mapSize,
+                    VanillaIntIntMultiMap.sizeOfBitSetInBytes(entries * 2)));
+            used = new BitSet(entries);
+            if (existing) {
+                map.forEach(new IntIntMultiMap.EntryConsumer() {
+                    @Override
+                    public void accept(int key, int pos) {
+                        used.set(pos);
+                        count++;
+                    }
+                });
+            } else {
+                map.clear();
+            }
+        }
+
+        /**
+         * @return a free slot, preferably close to the hash, or -1 if all slots are used
+         */
+        int allocate(int hash) {
+            int free = used.nextClearBit(hash & (entries - 1));
+            if (free >= entries)
+                free = used.nextClearBit(0);
+            if (free >= entries)
+                return -1;
+            used.set(free);
+            count++;
+            return free;
+        }
+
+        void remove(int hash, int pos) {
+            used.clear(pos);
+            map.remove(hash, pos);
+            count--;
+        }
+
+        void clear() {
+            used.clear();
+            map.clear();
+            count = 0;
+        }
+
+        long sizeInBytes() {
+            return store.size();
+        }
+    }
+
+    /**
+     * All modifications are synchronized on the segment. Reads of CharSequence and Long keys are
+     * optimistic: {@link #version} is odd while the segment is being modified, and a reader copies the raw
+     * entry found and validates that the version hasn't changed before decoding the copy, otherwise (or if
+     * the entry may be in the overflow area or being migrated) the read is repeated holding the lock. Other
+     * keys would have to be deserialized to be compared, so their reads always hold the lock. So optimistic
+     * readers neither block each other nor inflate the monitor. <p/>
+     * <p>When the small entries area is full, a twice as large one is allocated, and each following
+     * modification migrates a few entries from the old area, so there is no stop-the-world rehash. Old
+     * areas are only freed when the segment is closed, as an optimistic reader may still be reading one
+     * however long ago it was migrated. As each area is half the size of the next, they take less memory
+     * than the current area together. <p/> <p>Entries which don't fit {@code
+     * smallEntrySize}, or don't fit the small entries area, are stored in the overflow area off heap, in
+     * consecutive blocks of {@code smallEntrySize} as {@code [int size][key][value]}, indexed by a
+     * separate multimap. The overflow area doubles when it has no room for an entry. <p/> <p>If {@link
+     * HugeConfig#setPersistenceDirectory(File) persisted}, each area is a file in the directory, named
+     * after the segment index and the number of slots or blocks of the area, and the areas found there
+     * are mapped back when the segment is created. Which slots and blocks are used is rebuilt from the
+     * multimaps.
+     */
     static class Segment<K, V> {
+        static final int MIN_OVERFLOW_BLOCKS = 64;
+        // entries of the buffer of the current operation
+        static final int TMP_ENTRIES = 64;
+        static final int MIGRATION_STEP = 8;
+        // the small area multimap has twice as many slots as entries
+        static final int MAX_SMALL_ENTRIES = 1 << 29;
+
+        static final String SMALL_AREA = "small", OVERFLOW_AREA = "overflow";
+
         final VanillaBytesMarshallerFactory bmf = new VanillaBytesMarshallerFactory();
-        final IntIntMultiMap smallMap;
-        final Map<K, DirectStore> map = new HashMap<K, DirectStore>();
+        final ObjectSerializer objectSerializer =
+                BytesMarshallableSerializer.create(bmf, JDKObjectSerializer.INSTANCE);
+        final File directory;
+        final int index;
+        // the key of the current operation is written first, CharSequence and Long keys are compared in
+        // this form
+        final DirectStore tmpStore;
         final DirectBytes tmpBytes;
+        long keyLength;
         final MultiStoreBytes bytes = new MultiStoreBytes();
-        final DirectStore store;
-        final BitSet usedSet;
         final int smallEntrySize;
-        final int entriesPerSegment;
         final boolean csKey;
+        final boolean inlineLongKey;
         final Hasher hasher;
         final StringBuilder sbKey;
         final boolean bytesMarshallable;
+        // Long values are stored as 8 bytes rather than serialized
+        final boolean inlineLongValue;
         final Class<V> vClass;
         long offHeapUsed = 0;
         long size = 0;
-
-        Segment(HugeConfig config, Hasher hasher, boolean csKey, boolean bytesMarshallable, Class<V> vClass) {
+        volatile int version = 0;
+
+        SmallArea small;
+        // the area entries are being migrated from, and the next slot to migrate
+        SmallArea migrating;
+        int migratePos;
+        // areas migrated from, which optimistic readers may still be reading
+        final List<SmallArea> retired = new ArrayList<SmallArea>();
+
+        // the overflow area is allocated on the first overflow, its blocks are followed by its multimap
+        BytesStore overflowStore;
+        VanillaIntIntMultiMap overflowMap;
+        final BitSet overflowUsed = new BitSet();
+        int overflowBlocks = 0;
+        int overflowCount = 0;
+
+        Segment(HugeConfig config, int index, Hasher hasher, boolean csKey, boolean inlineLongKey,
+                boolean bytesMarshallable, Class<V> vClass) {
+            this.index = index;
             this.csKey = csKey;
+            this.inlineLongKey = inlineLongKey;
             this.hasher = hasher;
             this.bytesMarshallable = bytesMarshallable;
+            this.inlineLongValue = vClass == Long.class;
             this.vClass = vClass;
+            directory = config.getPersistenceDirectory();
             smallEntrySize = (config.getSmallEntrySize() + 7) & ~7; // round to next multiple of 8.
-            entriesPerSegment = config.getEntriesPerSegment();
-            store = new DirectStore(bmf, smallEntrySize * entriesPerSegment, false);
-            usedSet = new BitSet(config.getEntriesPerSegment());
-            smallMap = new VanillaIntIntMultiMap(entriesPerSegment * 2);
-            tmpBytes = new DirectStore(bmf, 64 * smallEntrySize, false).bytes();
-            offHeapUsed = tmpBytes.capacity() + store.size();
+            tmpStore = DirectStore.allocateLazy(TMP_ENTRIES * smallEntrySize, objectSerializer);
+            tmpBytes = tmpStore.bytes();
+            offHeapUsed = tmpBytes.capacity();
             sbKey = csKey ? new StringBuilder() : null;
+            if (directory != null)
+                openPersistedAreas();
+            if (small == null) {
+                int entries = config.getEntriesPerSegment();
+                small = new SmallArea(newStore(SMALL_AREA, entries, SmallArea.sizeInBytes(entries, smallEntrySize)),
+                        entries, smallEntrySize, false);
+                offHeapUsed += small.sizeInBytes();
+            }
         }
 
-        synchronized void put(int hash, K key, V value, boolean ifPresent, boolean ifAbsent) {
-            // search for the previous entry
-            int h = smallMap.startSearch(hash);
-            boolean foundSmall = false, foundLarge = false;
-            while (true) {
-                int pos = smallMap.nextPos();
-                if (pos < 0) {
-                    K key2 = key instanceof CharSequence ? (K) key.toString() : key;
-                    final DirectStore store = map.get(key2);
-                    if (store == null) {
-                        if (ifPresent && !ifAbsent)
-                            return;
-                        break;
-                    }
-                    if (ifAbsent && !ifPresent)
-                        return;
-                    bytes.storePositionAndSize(store, 0, store.size());
-                    foundLarge = true;
-                    break;
-                } else {
-                    bytes.storePositionAndSize(store, pos * smallEntrySize, smallEntrySize);
-                    K key2 = getKey();
-                    if (equals(key, key2)) {
-                        if (ifAbsent && !ifPresent)
-                            return;
-                        foundSmall = true;
-                        break;
+        File file(String area, int count) {
+            return new File(directory, "segment-" + index + "-" + count + "." + area);
+        }
+
+        BytesStore newStore(String area, int count, long size) {
+            if (directory == null)
+                return DirectStore.allocateLazy(size, objectSerializer);
+            File file = file(area, count);
+            try {
+                return new MappedStore(file, FileChannel.MapMode.READ_WRITE, size, objectSerializer);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map " + file, e);
+            }
+        }
+
+        void freeStore(String area, int count, BytesStore store) {
+            store.free();
+            if (directory != null)
+                file(area, count).delete();
+        }
+
+        /**
+         * @return the numbers of slots or blocks of the areas of this segment in the directory, ascending
+         */
+        List<Integer> persistedCounts(String area) {
+            String prefix = "segment-" + index + "-", suffix = "." + area;
+            List<Integer> counts = new ArrayList<Integer>();
+            String[] names = directory.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                        try {
+                            counts.add(Integer.parseInt(
+                                    name.substring(prefix.length(), name.length() - suffix.length())));
+                        } catch (NumberFormatException ignored) {
+                            // not a file of this segment
+                        }
                     }
                 }
             }
+            Collections.sort(counts);
+            return counts;
+        }
 
-            tmpBytes.clear();
-            if (csKey)
-                //noinspection ConstantConditions
-                tmpBytes.writeUTFΔ((CharSequence) key);
-            else
-                tmpBytes.writeObject(key);
-            long startOfValuePos = tmpBytes.position();
-            if (bytesMarshallable)
-                ((BytesMarshallable) value).writeMarshallable(tmpBytes);
-            else
-                tmpBytes.writeObject(value);
-            boolean largeRemoved = false;
+        BytesStore openPersistedStore(String area, int count, long size) {
+            File file = file(area, count);
+            if (file.length() != size || Integer.bitCount(count) != 1)
+                throw new IllegalStateException(file + " of " + file.length() + " bytes doesn't match the " +
+                        "smallEntrySize of " + smallEntrySize + ", expected " + size + " bytes");
+            offHeapUsed += size;
+            return newStore(area, count, size);
+        }
+
+        /**
+         * Maps the largest small area, and the one before it as being migrated, if there are such, and the
+         * largest overflow area. Other areas are left from completed migrations and growths.
+         */
+        private void openPersistedAreas() {
+            List<Integer> smallCounts = persistedCounts(SMALL_AREA);
+            int n = smallCounts.size();
+            for (int i = 0; i < n - 2; i++)
+                file(SMALL_AREA, smallCounts.get(i)).delete();
+            if (n > 0) {
+                int entries = smallCounts.get(n - 1);
+                small = new SmallArea(openPersistedStore(SMALL_AREA, entries,
+                        SmallArea.sizeInBytes(entries, smallEntrySize)), entries, smallEntrySize, true);
+                size += small.count;
+            }
+            if (n > 1) {
+                int entries = smallCounts.get(n - 2);
+                migrating = new SmallArea(openPersistedStore(SMALL_AREA, entries,
+                        SmallArea.sizeInBytes(entries, smallEntrySize)), entries, smallEntrySize, true);
+                migratePos = 0;
+                size += migrating.count;
+            }
+
+            List<Integer> overflowCounts = persistedCounts(OVERFLOW_AREA);
+            int m = overflowCounts.size();
+            for (int i = 0; i < m - 1; i++)
+                file(OVERFLOW_AREA, overflowCounts.get(i)).delete();
+            if (m > 0) {
+                int blocks = overflowCounts.get(m - 1);
+                overflowStore = openPersistedStore(OVERFLOW_AREA, blocks, overflowSizeInBytes(blocks));
+                overflowBlocks = blocks;
+                overflowMap = overflowMap(overflowStore, blocks);
+                overflowMap.forEach(new IntIntMultiMap.EntryConsumer() {
+                    @Override
+                    public void accept(int key, int block) {
+                        overflowUsed.set(block, block + overflowBlocks(overflowSize(block)));
+                        overflowCount++;
+                    }
+                });
+                size += overflowCount;
+            }
+        }
+
+        synchronized void close() {
+            if (small == null)
+                return;
+            tmpStore.free();
+            small.store.free();
+            small = null;
+            if (migrating != null) {
+                migrating.store.free();
+                migrating = null;
+            }
+            for (SmallArea area : retired)
+                freeStore(SMALL_AREA, area.entries, area.store);
+            retired.clear();
+            if (overflowStore != null) {
+                overflowStore.free();
+                overflowStore = null;
+                overflowMap = null;
+            }
+        }
+
+        synchronized void put(int hash, K key, long longKey, V value, boolean ifPresent, boolean ifAbsent) {
+            version++;
+            try {
+                migrateSome();
+                writeKey(key, longKey);
+                if (inlineLongValue)
+                    tmpBytes.writeLong((Long) value);
+                else if (bytesMarshallable)
+                    ((BytesMarshallable) value).writeMarshallable(tmpBytes);
+                else
+                    tmpBytes.writeObject(value);
+                put0(hash, key, ifPresent, ifAbsent);
+            } finally {
+                version++;
+            }
+        }
+
+        /**
+         * Primitive put of {@link HugeLongLongMap}.
+         */
+        synchronized void putLong(int hash, long key, long value) {
+            version++;
+            try {
+                migrateSome();
+                writeKey(null, key);
+                tmpBytes.writeLong(value);
+                put0(hash, null, true, true);
+            } finally {
+                version++;
+            }
+        }
+
+        /**
+         * Puts the entry written to {@link #tmpBytes}.
+         */
+        private void put0(int hash, K key, boolean ifPresent, boolean ifAbsent) {
             long size = tmpBytes.position();
+            // search for the previous entry
+            int h = small.map.startSearch(hash);
+            int smallPos = smallSearch(small, hash, key);
+            int migratingPos = smallPos < 0 && migrating != null ? smallSearch(migrating, hash, key) : -1;
+            int overflowBlock = smallPos < 0 && migratingPos < 0 ? overflowSearch(hash, key) : -1;
+            boolean found = smallPos >= 0 || migratingPos >= 0 || overflowBlock >= 0;
+            if (found ? ifAbsent && !ifPresent : ifPresent && !ifAbsent)
+                return;
+
             if (size <= smallEntrySize) {
-                if (foundSmall) {
-                    bytes.position(0);
+                if (smallPos >= 0 || migratingPos >= 0) {
+                    SmallArea area = smallPos >= 0 ? small : migrating;
+                    int pos = smallPos >= 0 ? smallPos : migratingPos;
+                    bytes.storePositionAndSize(area.store, pos * (long) smallEntrySize, smallEntrySize);
                     bytes.write(tmpBytes, 0, size);
                     return;
-                } else if (foundLarge) {
-                    remove(hash, key);
-                    largeRemoved = true;
                 }
-                // look for a free spot.
-                int position = h & (entriesPerSegment - 1);
-                int free = usedSet.nextClearBit(position);
-                if (free >= entriesPerSegment)
-                    free = usedSet.nextClearBit(0);
-                if (free < entriesPerSegment) {
-                    bytes.storePositionAndSize(store, free * smallEntrySize, smallEntrySize);
+                int free = small.allocate(h);
+                if (free < 0 && startResize())
+                    free = small.allocate(h);
+                if (free >= 0) {
+                    if (overflowBlock >= 0)
+                        removeOverflow(hash, overflowBlock);
+                    bytes.storePositionAndSize(small.store, free * (long) smallEntrySize, smallEntrySize);
                     bytes.write(tmpBytes, 0, size);
-                    smallMap.put(h, free);
-                    usedSet.set(free);
+                    small.map.put(h, free);
                     this.size++;
                     return;
                 }
             }
-            if (foundSmall) {
-                remove(hash, key);
-            } else if (foundLarge && !largeRemoved) {
-                remove(hash, key);
-            }
-            size = size - startOfValuePos;
-            DirectStore store = new DirectStore(bmf, size);
-            bytes.storePositionAndSize(store, 0, size);
-            bytes.write(tmpBytes, startOfValuePos, size);
-            K key2 = key instanceof CharSequence ? (K) key.toString() : key;
-            map.put(key2, store);
-            offHeapUsed += size;
+            int blocks = overflowBlocks(size);
+            if (overflowBlock >= 0 && blocks == overflowBlocks(overflowSize(overflowBlock))) {
+                writeOverflow(overflowBlock, size);
+                return;
+            }
+            if (smallPos >= 0)
+                removeSmall(small, hash, smallPos);
+            else if (migratingPos >= 0)
+                removeSmall(migrating, hash, migratingPos);
+            else if (overflowBlock >= 0)
+                removeOverflow(hash, overflowBlock);
+            int block = allocateOverflow(blocks);
+            writeOverflow(block, size);
+            overflowMap.put(hash, block);
+            overflowCount++;
             this.size++;
         }
 
-        synchronized V get(int hash, K key, V value) {
-            smallMap.startSearch(hash);
+        /**
+         * @return the slot of the entry of the key in the area, with {@link #bytes} positioned at its
+         * value, or -1 if there is no such entry
+         */
+        int smallSearch(SmallArea area, int hash, K key) {
+            area.map.startSearch(hash);
+            int pos;
+            while ((pos = area.map.nextPos()) >= 0) {
+                bytes.storePositionAndSize(area.store, pos * (long) smallEntrySize, smallEntrySize);
+                if (keyEquals(key, bytes, tmpBytes, keyLength))
+                    return pos;
+            }
+            return -1;
+        }
+
+        void removeSmall(SmallArea area, int hash, int pos) {
+            area.remove(hash, pos);
+            this.size--;
+        }
+
+        /**
+         * Starts migration to a small area of twice the size of the current one.
+         *
+         * @return {@code false} if the small area can't grow anymore, or is already being migrated to
+         */
+        boolean startResize() {
+            if (migrating != null || small.entries >= MAX_SMALL_ENTRIES)
+                return false;
+            migrating = small;
+            migratePos = 0;
+            int entries = small.entries * 2;
+            small = new SmallArea(newStore(SMALL_AREA, entries, SmallArea.sizeInBytes(entries, smallEntrySize)),
+                    entries, smallEntrySize, false);
+            offHeapUsed += small.sizeInBytes();
+            return true;
+        }
+
+        /**
+         * Moves up to {@link #MIGRATION_STEP} entries from the area being migrated to the current one.
+         */
+        void migrateSome() {
+            for (int i = 0; i < MIGRATION_STEP && migrating != null; i++)
+                migrateNext();
+        }
+
+        void migrateNext() {
+            int pos = migrating.used.nextSetBit(migratePos);
+            if (pos < 0) {
+                retired.add(migrating);
+                migrating = null;
+                return;
+            }
+            migratePos = pos + 1;
+            long offset = pos * (long) smallEntrySize;
+            bytes.storePositionAndSize(migrating.store, offset, smallEntrySize);
+            int hash = hasher.segmentHash(inlineLongKey ? hasher.hash(bytes.readLong(0)) :
+                    hasher.hash(getKey(bytes, sbKey)));
+            int h = small.map.startSearch(hash);
+            // the current area is twice as large, and more than one entry is migrated per put
+            int free = small.allocate(h);
+            assert free >= 0;
+            NativeBytes.UNSAFE.copyMemory(migrating.store.address() + offset,
+                    small.store.address() + free * (long) smallEntrySize, smallEntrySize);
+            small.map.put(h, free);
+            migrating.remove(hash, pos);
+        }
+
+        int overflowBlocks(long size) {
+            return (int) ((4 + size + smallEntrySize - 1) / smallEntrySize);
+        }
+
+        int overflowSize(int block) {
+            bytes.storePositionAndSize(overflowStore, block * (long) smallEntrySize, 4);
+            return bytes.readInt(0);
+        }
+
+        void writeOverflow(int block, long size) {
+            bytes.storePositionAndSize(overflowStore, block * (long) smallEntrySize, 4 + size);
+            bytes.writeInt((int) size);
+            bytes.write(tmpBytes, 0, size);
+        }
+
+        /**
+         * Positions {@link #bytes} at the key of the overflow entry.
+         */
+        void positionAtOverflow(int block) {
+            long offset = block * (long) smallEntrySize;
+            bytes.storePositionAndSize(overflowStore, offset, 4);
+            int size = bytes.readInt(0);
+            bytes.storePositionAndSize(overflowStore, offset + 4, size);
+        }
+
+        /**
+         * @return the first block of the overflow entry of the key, or -1 if there is no such entry
+         */
+        int overflowSearch(int hash, K key) {
+            if (overflowCount == 0)
+                return -1;
+            overflowMap.startSearch(hash);
+            int block;
+            while ((block = overflowMap.nextPos()) >= 0) {
+                positionAtOverflow(block);
+                if (keyEquals(key, bytes, tmpBytes, keyLength))
+                    return block;
+            }
+            return -1;
+        }
+
+        int allocateOverflow(int blocks) {
             while (true) {
-                int pos = smallMap.nextPos();
-                if (pos < 0) {
-                    K key2 = key instanceof CharSequence ? (K) key.toString() : key;
-                    final DirectStore store = map.get(key2);
-                    if (store == null)
+                for (int start = overflowUsed.nextClearBit(0); start + blocks <= overflowBlocks; ) {
+                    int end = overflowUsed.nextSetBit(start);
+                    if (end < 0 || end >= start + blocks) {
+                        overflowUsed.set(start, start + blocks);
+                        return start;
+                    }
+                    start = overflowUsed.nextClearBit(end);
+                }
+                growOverflow(blocks);
+            }
+        }
+
+        // no entry takes less than one block, so the overflow map is at most half full
+        long overflowSizeInBytes(int blocks) {
+            return blocks * (long) smallEntrySize + VanillaIntIntMultiMap.sizeInBytes(blocks * 2) +
+                    VanillaIntIntMultiMap.sizeOfBitSetInBytes(blocks * 2);
+        }
+
+        VanillaIntIntMultiMap overflowMap(BytesStore store, int blocks) {
+            long blocksSize = blocks * (long) smallEntrySize;
+            long mapSize = VanillaIntIntMultiMap.sizeInBytes(blocks * 2);
+            return new VanillaIntIntMultiMap(store.bytes(blocksSize, mapSize), store.bytes(blocksSize + mapSize,
+                    VanillaIntIntMultiMap.sizeOfBitSetInBytes(blocks * 2)));
+        }
+
+        void growOverflow(int minExtraBlocks) {
+            int blocks = Maths.nextPower2(overflowBlocks + minExtraBlocks,
+                    Math.max(MIN_OVERFLOW_BLOCKS, overflowBlocks * 2));
+            BytesStore store = newStore(OVERFLOW_AREA, blocks, overflowSizeInBytes(blocks));
+            final VanillaIntIntMultiMap map = overflowMap(store, blocks);
+            map.clear();
+            if (overflowStore != null) {
+                NativeBytes.UNSAFE.copyMemory(overflowStore.address(), store.address(),
+                        overflowBlocks * (long) smallEntrySize);
+                overflowMap.forEach(new IntIntMultiMap.EntryConsumer() {
+                    @Override
+                    public void accept(int key, int value) {
+                        map.put(key, value);
+                    }
+                });
+                offHeapUsed -= overflowStore.size();
+                freeStore(OVERFLOW_AREA, overflowBlocks, overflowStore);
+            }
+            overflowStore = store;
+            overflowMap = map;
+            overflowBlocks = blocks;
+            offHeapUsed += store.size();
+        }
+
+        void removeOverflow(int hash, int block) {
+            overflowUsed.clear(block, block + overflowBlocks(overflowSize(block)));
+            overflowMap.remove(hash, block);
+            overflowCount--;
+            this.size--;
+        }
+
+        /**
+         * @return {@code true} if keys are compared in their encoded form, so they can be compared
+         * without holding the lock, as nothing read from the entry is decoded
+         */
+        boolean optimisticKeys() {
+            return csKey || inlineLongKey;
+        }
+
+        /**
+         * Searches the current small area without holding the lock. Only the raw bytes of the entries
+         * are read, the caller validates the read before decoding anything of the entry found.
+         *
+         * @param copy whether to copy the entry found to {@code reader.entryBytes}, positioned at its value
+         * @return the slot of the entry of the key, with {@code reader.bytes} positioned at its value, or
+         * a negative value if there is no such entry in the current small area
+         */
+        int optimisticSearch(int hash, K key, long longKey, SegmentReader reader, boolean copy) {
+            if (csKey)
+                reader.encodeKey((CharSequence) key);
+            else
+                reader.encodeKey(longKey);
+            SmallArea area = small;
+            MultiStoreBytes bytes = reader.bytes;
+            area.map.startSearch(hash, reader.search);
+            int pos;
+            while ((pos = area.map.nextPos(reader.search)) >= 0) {
+                if (pos >= area.entries)
+                    break; // read garbage while the segment was modified
+                long offset = pos * (long) smallEntrySize;
+                bytes.storePositionAndSize(area.store, offset, smallEntrySize);
+                if (keyEquals(key, bytes, reader.keyBytes, reader.keyLength)) {
+                    if (copy)
+                        reader.copyEntry(area.store, offset, smallEntrySize, objectSerializer);
+                    return pos;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return {@code true} if an entry not found in the current small area can't be anywhere else
+         */
+        boolean onlySmallEntries() {
+            return overflowCount == 0 && migrating == null;
+        }
+
+        V get(int hash, K key, long longKey, V value, SegmentReader reader) {
+            int version = this.version;
+            if ((version & 1) == 0 && optimisticKeys()) {
+                try {
+                    if (optimisticSearch(hash, key, longKey, reader, true) >= 0) {
+                        if (reader.validate(this, version))
+                            return readValue(reader.entryBytes, value);
+                    } else if (onlySmallEntries() && reader.validate(this, version)) {
                         return null;
-                    bytes.storePositionAndSize(store, 0, store.size());
-                    break;
-                } else {
-                    bytes.storePositionAndSize(store, pos * smallEntrySize, smallEntrySize);
-                    K key2 = getKey();
-                    if (equals(key, key2))
-                        break;
+                    }
+                } catch (IndexOutOfBoundsException ignored) {
+                    // read a slot while the segment was modified, repeat holding the lock
+                } catch (IllegalStateException ignored) {
+                    // idem
+                } catch (IllegalArgumentException ignored) {
+                    // idem
+                }
+            }
+            return lockedGet(hash, key, longKey, value);
+        }
+
+        synchronized V lockedGet(int hash, K key, long longKey, V value) {
+            return search(hash, key, longKey) ? readValue(bytes, value) : null;
+        }
+
+        /**
+         * Primitive get of {@link HugeLongLongMap}.
+         */
+        long getLong(int hash, long key, long notFound, SegmentReader reader) {
+            int version = this.version;
+            if ((version & 1) == 0) {
+                try {
+                    // a raw long, which is only returned if the read is validated
+                    if (optimisticSearch(hash, null, key, reader, false) >= 0) {
+                        long value = reader.bytes.readLong();
+                        if (reader.validate(this, version))
+                            return value;
+                    } else if (onlySmallEntries() && reader.validate(this, version)) {
+                        return notFound;
+                    }
+                } catch (IndexOutOfBoundsException ignored) {
+                    // read a slot while the segment was modified, repeat holding the lock
+                } catch (IllegalStateException ignored) {
+                    // idem
+                } catch (IllegalArgumentException ignored) {
+                    // idem
                 }
             }
+            return lockedGetLong(hash, key, notFound);
+        }
+
+        synchronized long lockedGetLong(int hash, long key, long notFound) {
+            return search(hash, null, key) ? bytes.readLong() : notFound;
+        }
+
+        /**
+         * @return if the entry of the key is found, then {@link #bytes} are positioned at its value
+         */
+        boolean search(int hash, K key, long longKey) {
+            if (csKey || inlineLongKey)
+                writeKey(key, longKey);
+            return smallSearch(small, hash, key) >= 0 ||
+                    (migrating != null && smallSearch(migrating, hash, key) >= 0) ||
+                    overflowSearch(hash, key) >= 0;
+        }
+
+        V readValue(Bytes bytes, V value) {
+            if (inlineLongValue)
+                return (V) (Long) bytes.readLong();
             if (bytesMarshallable) {
                 try {
                     V v = value == null ? (V) NativeBytes.UNSAFE.allocateInstance(vClass) : value;
@@ -371,42 +1074,93 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
             return (V) bytes.readObject();
         }
 
-        synchronized void visit(IntIntMultiMap.EntryConsumer entryConsumer) {
-            smallMap.forEach(entryConsumer);
+        /**
+         * @return the mask of the ranges of segment hashes to iterate this segment by, so that a range has
+         * a few entries while the segment isn't resized
+         */
+        synchronized int iterationMask() {
+            return small.map.capacity() - 1;
         }
 
-        synchronized Entry<K, V> getEntry(int pos) {
-            try {
-                bytes.storePositionAndSize(store, pos * smallEntrySize, smallEntrySize);
-                K key = getKey();
-                key = key instanceof CharSequence ? (K) key.toString() : key;
-                if (bytesMarshallable) {
-                    V value = (V) NativeBytes.UNSAFE.allocateInstance(vClass);
-                    ((BytesMarshallable) value).readMarshallable(bytes);
-                    return new WriteThroughEntry(key, value);
-                } else {
-                    V value = (V) bytes.readObject();
-                    return new WriteThroughEntry(key, value);
-                }
-            } catch (InstantiationException e) {
-                throw new AssertionError(e);
+        /**
+         * Adds copies of the entries of this segment whose segment hashes, masked with {@code mask}, are in
+         * {@code [from, to)}. The entries of a hash are found in the same range wherever they are moved, so
+         * iterating the ranges one by one finds each entry once, even if the segment is resized meanwhile.
+         */
+        synchronized void addEntriesTo(final Collection<Entry<K, V>> entries, int mask, int from, int to) {
+            addSmallEntriesTo(small, entries, mask, from, to);
+            if (migrating != null)
+                addSmallEntriesTo(migrating, entries, mask, from, to);
+            if (overflowCount > 0) {
+                overflowMap.forEachInRange(mask, from, to, new IntIntMultiMap.EntryConsumer() {
+                    @Override
+                    public void accept(int key, int block) {
+                        positionAtOverflow(block);
+                        entries.add(readEntry());
+                    }
+                });
             }
         }
 
-        boolean equals(K key, K key2) {
-            return csKey ? equalsCS((CharSequence) key, (CharSequence) key2) : key.equals(key2);
+        private void addSmallEntriesTo(final SmallArea area, final Collection<Entry<K, V>> entries, int mask,
+                                       int from, int to) {
+            area.map.forEachInRange(mask, from, to, new IntIntMultiMap.EntryConsumer() {
+                @Override
+                public void accept(int key, int pos) {
+                    bytes.storePositionAndSize(area.store, pos * (long) smallEntrySize, smallEntrySize);
+                    entries.add(readEntry());
+                }
+            });
         }
 
-        static boolean equalsCS(CharSequence key, CharSequence key2) {
-            if (key.length() != key2.length())
+        private Entry<K, V> readEntry() {
+            K key = getKey(bytes, sbKey);
+            key = key instanceof CharSequence ? (K) key.toString() : key;
+            return new WriteThroughEntry(key, readValue(bytes, null));
+        }
+
+        /**
+         * @param longKey the key, if Long keys are inline, then {@code key} may be {@code null}
+         */
+        void writeKey(K key, long longKey) {
+            tmpBytes.clear();
+            if (csKey)
+                //noinspection ConstantConditions
+                tmpBytes.writeUTFΔ((CharSequence) key);
+            else if (inlineLongKey)
+                tmpBytes.writeLong(longKey);
+            else
+                tmpBytes.writeObject(key);
+            keyLength = tmpBytes.position();
+        }
+
+        /**
+         * Compares the key with the key of the entry at {@code bytes}, and if they are equal positions
+         * the bytes at the value. CharSequence and inline Long keys are compared in their encoded form, as
+         * the encoding is self delimiting or of fixed length, so neither is decoded.
+         *
+         * @param keyBytes  the encoded key
+         * @param keyLength the length of the encoded key
+         */
+        boolean keyEquals(K key, Bytes bytes, Bytes keyBytes, long keyLength) {
+            if (!csKey && !inlineLongKey)
+                return key.equals(bytes.readObject());
+            if (bytes.remaining() < keyLength)
                 return false;
-            for (int i = 0; i < key.length(); i++)
-                if (key.charAt(i) != key2.charAt(i))
+            long i = 0;
+            for (; i < keyLength - 7; i += 8)
+                if (bytes.readLong(i) != keyBytes.readLong(i))
+                    return false;
+            for (; i < keyLength; i++)
+                if (bytes.readByte(i) != keyBytes.readByte(i))
                     return false;
+            bytes.position(keyLength);
             return true;
         }
 
-        K getKey() {
+        K getKey(Bytes bytes, StringBuilder sbKey) {
+            if (inlineLongKey)
+                return (K) (Long) bytes.readLong();
             if (csKey) {
                 sbKey.setLength(0);
                 bytes.readUTFΔ(sbKey);
@@ -415,47 +1169,54 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
             return (K) bytes.readObject();
         }
 
-        synchronized boolean containsKey(int hash, K key) {
-            smallMap.startSearch(hash);
-            while (true) {
-                int pos = smallMap.nextPos();
-                if (pos < 0) {
-                    K key2 = key instanceof CharSequence ? (K) key.toString() : key;
-                    return map.containsKey(key2);
-                }
-                bytes.storePositionAndSize(store, pos * smallEntrySize, smallEntrySize);
-                K key2 = getKey();
-                if (equals(key, key2)) {
-                    return true;
+        boolean containsKey(int hash, K key, long longKey, SegmentReader reader) {
+            int version = this.version;
+            if ((version & 1) == 0 && optimisticKeys()) {
+                try {
+                    boolean found = optimisticSearch(hash, key, longKey, reader, false) >= 0;
+                    if ((found || onlySmallEntries()) && reader.validate(this, version))
+                        return found;
+                } catch (IndexOutOfBoundsException ignored) {
+                    // read a slot while the segment was modified, repeat holding the lock
+                } catch (IllegalStateException ignored) {
+                    // idem
+                } catch (IllegalArgumentException ignored) {
+                    // idem
                 }
             }
+            return lockedContainsKey(hash, key, longKey);
         }
 
-        synchronized boolean remove(int hash, K key) {
-            int h = smallMap.startSearch(hash);
-            boolean found = false;
-            while (true) {
-                int pos = smallMap.nextPos();
-                if (pos < 0) {
-                    break;
-                }
-                bytes.storePositionAndSize(store, pos * smallEntrySize, smallEntrySize);
-                K key2 = getKey();
-                if (equals(key, key2)) {
-                    usedSet.clear(pos);
-                    smallMap.remove(h, pos);
-                    found = true;
-                    this.size--;
-                    break;
-                }
+        synchronized boolean lockedContainsKey(int hash, K key, long longKey) {
+            return search(hash, key, longKey);
+        }
+
+        synchronized boolean remove(int hash, K key, long longKey) {
+            version++;
+            try {
+                migrateSome();
+                return remove0(hash, key, longKey);
+            } finally {
+                version++;
             }
-            K key2 = key instanceof CharSequence ? (K) key.toString() : key;
-            DirectStore remove = map.remove(key2);
-            if (remove == null)
-                return found;
-            offHeapUsed -= remove.size();
-            remove.free();
-            this.size--;
+        }
+
+        private boolean remove0(int hash, K key, long longKey) {
+            if (csKey || inlineLongKey)
+                writeKey(key, longKey);
+            int pos = smallSearch(small, hash, key);
+            if (pos >= 0) {
+                removeSmall(small, hash, pos);
+                return true;
+            }
+            if (migrating != null && (pos = smallSearch(migrating, hash, key)) >= 0) {
+                removeSmall(migrating, hash, pos);
+                return true;
+            }
+            int block = overflowSearch(hash, key);
+            if (block < 0)
+                return false;
+            removeOverflow(hash, block);
             return true;
         }
 
@@ -468,13 +1229,22 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         }
 
         synchronized void clear() {
-            usedSet.clear();
-            smallMap.clear();
-            for (DirectStore directStore : map.values()) {
-                directStore.free();
+            version++;
+            try {
+                small.clear();
+                if (migrating != null) {
+                    migrating.clear();
+                    migratePos = 0;
+                }
+                if (overflowMap != null) {
+                    overflowUsed.clear();
+                    overflowMap.clear();
+                    overflowCount = 0;
+                }
+                size = 0;
+            } finally {
+                version++;
             }
-            map.clear();
-            size = 0;
         }
 
         final class WriteThroughEntry extends SimpleEntry<K, V> {
@@ -493,19 +1263,27 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
                 long hash = hasher.hash(key);
                 int segment = hasher.getSegment(hash);
                 int segmentHash = hasher.segmentHash(hash);
-                put(segmentHash, key, value, true, true);
+                put(segmentHash, key, inlineLongKey ? (Long) key : 0L, value, true, true);
                 return super.setValue(value);
             }
         }
     }
 
-    final class EntryIterator implements Iterator<Entry<K, V>>, IntIntMultiMap.EntryConsumer {
+    /**
+     * Iterates each segment by ranges of segment hashes, copying only the entries of one range at a time,
+     * so neither is a whole segment copied on the heap, nor is its lock held between calls.
+     */
+    final class EntryIterator implements Iterator<Entry<K, V>> {
+        // the number of hashes of a range, of up to a quarter as many entries, as the multimap of a small
+        // area is at most half full
+        static final int RANGE_HASHES = 256;
 
         int segmentIndex = segments.length;
+        int rangeMask, rangeFrom;
 
         Entry<K, V> nextEntry, lastReturned;
 
-        Deque<Integer> segmentPositions = new ArrayDeque<Integer>(); //todo: replace with a more efficient, auto resizing int[]
+        final Deque<Entry<K, V>> segmentEntries = new ArrayDeque<Entry<K, V>>();
 
         EntryIterator() {
             nextEntry = nextSegmentEntry();
@@ -531,35 +1309,21 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         }
 
         Entry<K, V> nextSegmentEntry() {
-            while (segmentIndex >= 0) {
-                if (segmentPositions.isEmpty()) {
-                    switchToNextSegment();
-                } else {
-                    Segment segment = segments[segmentIndex];
-                    while (!segmentPositions.isEmpty()) {
-                        Entry<K, V> entry = segment.getEntry(segmentPositions.removeFirst());
-                        if (entry != null) {
-                            return entry;
-                        }
-                    }
+            while (segmentEntries.isEmpty()) {
+                if (segmentIndex < segments.length && rangeFrom <= rangeMask) {
+                    int to = (int) Math.min(rangeFrom + (long) RANGE_HASHES, rangeMask + 1L);
+                    segments[segmentIndex].addEntriesTo(segmentEntries, rangeMask, rangeFrom, to);
+                    rangeFrom = to;
+                    continue;
                 }
+                if (--segmentIndex < 0)
+                    return null;
+                // the mask is kept while the segment is iterated, even if it resizes
+                rangeMask = segments[segmentIndex].iterationMask();
+                rangeFrom = 0;
             }
-            return null;
-        }
-
-        private void switchToNextSegment() {
-            segmentPositions.clear();
-            segmentIndex--;
-            if (segmentIndex >= 0) {
-                segments[segmentIndex].visit(this);
-            }
+            return segmentEntries.removeFirst();
         }
-
-        @Override
-        public void accept(int key, int value) {
-            segmentPositions.add(value);
-        }
-
     }
 
     final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * A {@link HugeHashMap} of {@code long} keys and values, both stored as 8 bytes in the entry. The
+ * methods taking and returning them unboxed allocate nothing.
+ */
+public class HugeLongLongMap extends HugeLongMap<Long> {
+
+    public HugeLongLongMap(HugeConfig config) {
+        super(config, Long.class);
+    }
+
+    /**
+     * @param notFound the value to return if there is no entry of the key
+     * @return the value of the key, or {@code notFound}
+     */
+    public long get(long key, long notFound) {
+        long hash = hasher.hash(key);
+        return segment(hash).getLong(hasher.segmentHash(hash), key, notFound, readers.get());
+    }
+
+    public void put(long key, long value) {
+        long hash = hasher.hash(key);
+        segment(hash).putLong(hasher.segmentHash(hash), key, value);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * A {@link HugeHashMap} of {@code long} keys, with methods taking the keys unboxed. Each key is stored as
+ * 8 bytes in the entry and compared as a single {@code long}, rather than being serialized and
+ * deserialized. With a {@link net.openhft.lang.io.serialization.BytesMarshallable} value class and a
+ * value to reuse, {@link #get(long, Object)} allocates nothing.
+ */
+public class HugeLongMap<V> extends HugeHashMap<Long, V> {
+
+    public HugeLongMap(HugeConfig config, Class<V> vClass) {
+        super(config, Long.class, vClass);
+    }
+
+    final Segment<Long, V> segment(long hash) {
+        return segments[hasher.getSegment(hash)];
+    }
+
+    /**
+     * Get a value, optionally populating a pre-allocated object.
+     *
+     * @param key   to search for
+     * @param using to populate, or {@code null} to create a new value
+     * @return the value, populated, a new object, or null if not found.
+     */
+    public V get(long key, V using) {
+        long hash = hasher.hash(key);
+        return segment(hash).get(hasher.segmentHash(hash), null, key, using, readers.get());
+    }
+
+    public void put(long key, V value) {
+        long hash = hasher.hash(key);
+        segment(hash).put(hasher.segmentHash(hash), null, key, value, true, true);
+    }
+
+    public boolean containsKey(long key) {
+        long hash = hasher.hash(key);
+        return segment(hash).containsKey(hasher.segmentHash(hash), null, key, readers.get());
+    }
+
+    /**
+     * @return {@code true} if there was an entry of the key
+     */
+    public boolean remove(long key) {
+        long hash = hasher.hash(key);
+        return segment(hash).remove(hasher.segmentHash(hash), null, key);
+    }
+}
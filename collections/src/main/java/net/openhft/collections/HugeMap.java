@@ -39,4 +39,10 @@ interface HugeMap<K, V> extends ConcurrentMap<K, V> {
      * @return the value, populated, a new object, or null if not found.
      */
     V get(K key, V value);
+
+    /**
+     * Releases the off heap memory of this data structure, or unmaps its files if it is persisted.
+     * The map shouldn't be used after this call.
+     */
+    void close();
 }
@@ -77,5 +77,20 @@ interface IntIntMultiMap {
 
     void forEach(EntryConsumer action);
 
+    /**
+     * Scans all the slots of this map, O(capacity). May be called without the lock guarding this map: each
+     * slot is read once, and the result is then approximate if the map is modified concurrently.
+     *
+     * @return the maximum number of slots (or groups of slots, for maps probing groups) probed past the first
+     * one, to find an entry of this map
+     */
+    int maxProbeLength();
+
+    /**
+     * @return the mean number of slots (or groups of slots) probed past the first one, to find an entry of
+     * this map, or 0 if this map is empty
+     */
+    double meanProbeLength();
+
 
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java compressor of the LZ4 block format, working directly on {@link Bytes}, so compressing and
+ * decompressing off-heap memory doesn't copy it on heap. <p/> <p>An instance keeps the hash table of the
+ * compressor, so it is not thread safe, but allocation free.
+ */
+final class LZ4 {
+
+    private static final int MIN_MATCH = 4;
+    // the last 5 bytes are always literals
+    private static final int LAST_LITERALS = 5;
+    // the last match starts at least 12 bytes before the end
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = (1 << 16) - 1;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 15;
+    // after this number of unsuccessful attempts, the compressor starts skipping bytes
+    private static final int SKIP_TRIGGER = 6;
+
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    /**
+     * @return the number of bytes written to {@code dst}, at most {@link #maxCompressedLength(int)
+     * maxCompressedLength(length)}
+     */
+    int compress(Bytes src, long srcOff, int length, Bytes dst, long dstOff) {
+        long srcEnd = srcOff + length;
+        long op = dstOff;
+        long anchor = srcOff;
+        if (length >= MF_LIMIT + 1) {
+            Arrays.fill(hashTable, -1);
+            long matchLimit = srcEnd - LAST_LITERALS;
+            long mfLimit = srcEnd - MF_LIMIT;
+            long ip = srcOff;
+            int searchCount = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                int sequence = src.readInt(ip);
+                int h = hash(sequence);
+                int refIndex = hashTable[h];
+                hashTable[h] = (int) (ip - srcOff);
+                long ref = srcOff + refIndex;
+                if (refIndex < 0 || ip - ref > MAX_DISTANCE || src.readInt(ref) != sequence) {
+                    ip += searchCount++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searchCount = 1 << SKIP_TRIGGER;
+                // extend the match backwards
+                while (ip > anchor && ref > srcOff && src.readByte(ip - 1) == src.readByte(ref - 1)) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit &&
+                        src.readByte(ip + matchLength) == src.readByte(ref + matchLength))
+                    matchLength++;
+
+                op = writeSequence(src, anchor, (int) (ip - anchor), dst, op,
+                        (int) (ip - ref), matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        // the last literals
+        int literals = (int) (srcEnd - anchor);
+        long tokenPos = op++;
+        if (literals >= RUN_MASK) {
+            dst.writeByte(tokenPos, RUN_MASK << 4);
+            op = writeLength(dst, op, literals - RUN_MASK);
+        } else {
+            dst.writeByte(tokenPos, literals << 4);
+        }
+        copy(src, anchor, dst, op, literals);
+        op += literals;
+        return (int) (op - dstOff);
+    }
+
+    private static long writeSequence(Bytes src, long literalsPos, int literals, Bytes dst, long op,
+                                      int distance, int matchLength) {
+        long tokenPos = op++;
+        int token;
+        if (literals >= RUN_MASK) {
+            token = RUN_MASK << 4;
+            op = writeLength(dst, op, literals - RUN_MASK);
+        } else {
+            token = literals << 4;
+        }
+        copy(src, literalsPos, dst, op, literals);
+        op += literals;
+        dst.writeByte(op++, distance);
+        dst.writeByte(op++, distance >>> 8);
+        int ml = matchLength - MIN_MATCH;
+        if (ml >= RUN_MASK) {
+            token |= RUN_MASK;
+            op = writeLength(dst, op, ml - RUN_MASK);
+        } else {
+            token |= ml;
+        }
+        dst.writeByte(tokenPos, token);
+        return op;
+    }
+
+    private static long writeLength(Bytes dst, long op, int length) {
+        for (; length >= 255; length -= 255)
+            dst.writeByte(op++, 255);
+        dst.writeByte(op++, length);
+        return op;
+    }
+
+    static void copy(Bytes src, long srcOff, Bytes dst, long dstOff, int length) {
+        int i = 0;
+        for (; i < length - 7; i += 8)
+            dst.writeLong(dstOff + i, src.readLong(srcOff + i));
+        for (; i < length; i++)
+            dst.writeByte(dstOff + i, src.readByte(srcOff + i));
+    }
+
+    /**
+     * @param length the number of compressed bytes in {@code src}
+     * @param decompressedLength the exact number of bytes to be written to {@code dst}
+     * @throws IllegalStateException if the data is malformed
+     */
+    static void decompress(Bytes src, long srcOff, int length, Bytes dst, long dstOff,
+                           int decompressedLength) {
+        long ip = srcOff;
+        long srcEnd = srcOff + length;
+        long op = dstOff;
+        long dstEnd = dstOff + decompressedLength;
+        while (true) {
+            if (ip >= srcEnd)
+                throw malformed();
+            int token = src.readByte(ip++) & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd)
+                        throw malformed();
+                    b = src.readByte(ip++) & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (ip + literals > srcEnd || op + literals > dstEnd)
+                throw malformed();
+            copy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == srcEnd)
+                break;
+
+            if (ip + 2 > srcEnd)
+                throw malformed();
+            int distance = (src.readByte(ip) & 0xFF) | ((src.readByte(ip + 1) & 0xFF) << 8);
+            ip += 2;
+            long ref = op - distance;
+            if (distance == 0 || ref < dstOff)
+                throw malformed();
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd)
+                        throw malformed();
+                    b = src.readByte(ip++) & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (op + matchLength > dstEnd)
+                throw malformed();
+            if (distance >= 8) {
+                copy(dst, ref, dst, op, matchLength);
+            } else {
+                // overlapping match, repeats the last bytes
+                for (int i = 0; i < matchLength; i++)
+                    dst.writeByte(op + i, dst.readByte(ref + i));
+            }
+            op += matchLength;
+        }
+        if (op != dstEnd)
+            throw malformed();
+    }
+
+    private static IllegalStateException malformed() {
+        return new IllegalStateException("Malformed LZ4 compressed data");
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * {@link ValueCodec} compressing values with a pure Java implementation of the LZ4 block format. It is
+ * fast enough to be used on every put and get, and gives a good compression ratio on text-like values,
+ * e. g. JSON or XML documents.
+ */
+public final class LZ4ValueCodec implements ValueCodec {
+
+    public static final LZ4ValueCodec INSTANCE = new LZ4ValueCodec();
+
+    private final ThreadLocal<LZ4> compressors = new ThreadLocal<LZ4>() {
+        @Override
+        protected LZ4 initialValue() {
+            return new LZ4();
+        }
+    };
+
+    private LZ4ValueCodec() {
+    }
+
+    @Override
+    public int maxEncodedSize(int valueSize) {
+        return LZ4.maxCompressedLength(valueSize);
+    }
+
+    @Override
+    public void encode(Bytes source, Bytes destination) {
+        long position = source.position();
+        int length = (int) (source.limit() - position);
+        int compressedLength = compressors.get().compress(source, position, length,
+                destination, destination.position());
+        source.position(position + length);
+        destination.position(destination.position() + compressedLength);
+    }
+
+    @Override
+    public void decode(Bytes source, Bytes destination, int decodedSize) {
+        long position = source.position();
+        int length = (int) (source.limit() - position);
+        LZ4.decompress(source, position, length, destination, destination.position(), decodedSize);
+        source.position(position + length);
+        destination.position(destination.position() + decodedSize);
+    }
+
+    @Override
+    public String toString() {
+        return "LZ4ValueCodec";
+    }
+}
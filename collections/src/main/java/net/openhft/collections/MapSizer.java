@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+import net.openhft.lang.io.serialization.BytesMarshallable;
+import net.openhft.lang.io.serialization.BytesMarshallableSerializer;
+import net.openhft.lang.io.serialization.JDKObjectSerializer;
+import net.openhft.lang.io.serialization.ObjectSerializer;
+import net.openhft.lang.io.serialization.impl.VanillaBytesMarshallerFactory;
+import net.openhft.lang.model.Byteable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static net.openhft.collections.VanillaSharedHashMap.expectedStopBits;
+
+/**
+ * Sizes a {@link SharedHashMapBuilder} or a {@link HugeConfig} from a sample of representative keys and
+ * values, rather than guessing the entry size. <p/> <p>The samples are serialized the way the configured map
+ * would serialize them, and the entry (block) size is chosen to minimize the projected memory, taking into
+ * account that entries larger than a block take several blocks. The number of entries per segment is then
+ * chosen so the expected number of entries fills the map up to the target load factor.
+ * <pre>{@code
+ * MapSizer<String, String> sizer = MapSizer.of(String.class, String.class).entries(1000000);
+ * for (Map.Entry<String, String> e : sampleOfEntries)
+ *     sizer.sample(e.getKey(), e.getValue());
+ * SharedHashMap<String, String> map = sizer.applyTo(SharedHashMapBuilder.of(String.class, String.class))
+ *     .create(file);
+ * }</pre>
+ * A sizer is not thread safe.
+ */
+public final class MapSizer<K, V> {
+    // the entries over this load factor probe long chains in the vanilla multimap
+    private static final double HIGH_LOAD_FACTOR = 0.7;
+    // the timestamp, the identifier and the deleted flag of replicated entries
+    private static final int REPLICATION_BYTES = 10;
+    private static final int SAMPLE_BUFFER_SIZE = 1 << 20;
+
+    private final Class<K> kClass;
+    private final Class<V> vClass;
+    private final List<K> keys = new ArrayList<K>();
+    private final List<V> values = new ArrayList<V>();
+    private long entries = 1 << 20;
+    private double loadFactor = 0.5;
+
+    private MapSizer(Class<K> kClass, Class<V> vClass) {
+        this.kClass = kClass;
+        this.vClass = vClass;
+    }
+
+    public static <K, V> MapSizer<K, V> of(Class<K> kClass, Class<V> vClass) {
+        return new MapSizer<K, V>(kClass, vClass);
+    }
+
+    /**
+     * Adds a representative key and value. The more samples, the more accurate the sizing, however the
+     * samples are kept on heap until the sizer is dropped.
+     *
+     * @return this sizer back
+     */
+    public MapSizer<K, V> sample(K key, V value) {
+        if (key == null || value == null)
+            throw new IllegalArgumentException("Samples can't be null");
+        keys.add(key);
+        values.add(value);
+        return this;
+    }
+
+    /**
+     * Adds all the entries of the map as samples.
+     *
+     * @return this sizer back
+     */
+    public MapSizer<K, V> sample(Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> e : map.entrySet())
+            sample(e.getKey(), e.getValue());
+        return this;
+    }
+
+    public int samples() {
+        return keys.size();
+    }
+
+    /**
+     * @param entries the expected number of entries in the map
+     * @return this sizer back
+     */
+    public MapSizer<K, V> entries(long entries) {
+        if (entries <= 0)
+            throw new IllegalArgumentException("entries must be positive, was " + entries);
+        this.entries = entries;
+        return this;
+    }
+
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * Sets the share of the capacity, taken by the expected number of entries. The default is {@code 0.5},
+     * the same as {@link SharedHashMapBuilder} reserves by default. Higher load factors save memory, but
+     * leave less space for the entries more than expected, and make probing longer.
+     *
+     * @param loadFactor in range (0, 1]
+     * @return this sizer back
+     */
+    public MapSizer<K, V> loadFactor(double loadFactor) {
+        if (!(loadFactor > 0 && loadFactor <= 1))
+            throw new IllegalArgumentException("loadFactor must be in (0, 1], was " + loadFactor);
+        this.loadFactor = loadFactor;
+        return this;
+    }
+
+    public double loadFactor() {
+        return loadFactor;
+    }
+
+    /**
+     * Configures the entry size, the alignment, the number of segments and entries per segment, and the
+     * multimap type of the builder. The other settings of the builder, which affect the size of entries
+     * (replication, meta data bytes, generated types and the serializer), should be set before.
+     *
+     * @return the builder back
+     * @throws IllegalStateException if there are no samples
+     */
+    public SharedHashMapBuilder<K, V> applyTo(SharedHashMapBuilder<K, V> builder) {
+        if (Byteable.class.isAssignableFrom(vClass))
+            // the fields of the values are likely updated concurrently via ByteableAtomics
+            builder.entryAndValueAlignment(Alignment.OF_8_BYTES);
+        int[] sizes = sharedEntrySizes(builder);
+        Alignment alignment = builder.entryAndValueAlignment();
+        int maxSize = sizes[sizes.length - 1];
+        int minEntrySize = alignment.alignSize(
+                (maxSize + VanillaSharedHashMap.MAX_ENTRY_OVERSIZE_FACTOR - 1) /
+                        VanillaSharedHashMap.MAX_ENTRY_OVERSIZE_FACTOR);
+
+        // try entry sizes of every percentile of the sampled sizes, the multimap slot is the cost of a block
+        int bestEntrySize = -1;
+        long bestBlocks = 0, bestCost = Long.MAX_VALUE;
+        for (int percentile = 1; percentile <= 100; percentile++) {
+            int entrySize = Math.max(minEntrySize,
+                    alignment.alignSize(sizes[(sizes.length - 1) * percentile / 100]));
+            if (entrySize == bestEntrySize)
+                continue;
+            long blocks = blocks(sizes, entrySize);
+            long cost = blocks * (entrySize + 8);
+            if (cost <= bestCost) {
+                bestEntrySize = entrySize;
+                bestBlocks = blocks;
+                bestCost = cost;
+            }
+        }
+
+        builder.entrySize(bestEntrySize).entries(entries);
+        long blocks = (long) Math.ceil(entries * (double) bestBlocks / sizes.length / loadFactor);
+        int segments = builder.actualSegments();
+        while (blocks / segments > SharedHashMapBuilder.MAX_ENTRIES_PER_SEGMENT / 2)
+            segments <<= 1;
+        long entriesPerSegment = ((blocks + segments - 1) / segments + 63L) & ~63L;
+        return builder.actualSegments(segments)
+                .actualEntriesPerSegment((int) entriesPerSegment)
+                .multiMapType(loadFactor > HIGH_LOAD_FACTOR ? MultiMapType.ROBIN_HOOD : MultiMapType.VANILLA);
+    }
+
+    /**
+     * @return the projected off-heap footprint in bytes of the map created by the builder, excluding the
+     * value log and the buffers of the threads using the map
+     */
+    public long footprint(SharedHashMapBuilder<K, V> builder) {
+        return VanillaSharedHashMap.headerSize(builder) +
+                builder.actualSegments() * VanillaSharedHashMap.segmentSize(builder);
+    }
+
+    /**
+     * Configures the small entry size, the number of segments and the capacity of the config. Entries larger
+     * than the small entry size are stored in the overflow area, so the small entry size is chosen to
+     * minimize the projected memory, rather than to fit all entries.
+     *
+     * @return the config back
+     * @throws IllegalStateException if there are no samples
+     */
+    public HugeConfig applyTo(HugeConfig config) {
+        int[] sizes = hugeEntrySizes();
+        int maxEntrySize = Maths.nextPower2(sizes[sizes.length - 1], 64);
+        int bestEntrySize = 64;
+        long bestCost = Long.MAX_VALUE;
+        for (int entrySize = 64; entrySize <= maxEntrySize; entrySize <<= 1) {
+            long capacity = hugeCapacity(sizes, entrySize);
+            long cost = HugeHashMap.SmallArea.sizeInBytes((int) Math.min(capacity, 1 << 30), entrySize) +
+                    overflowBlocks(sizes, entrySize) * (entrySize + 16L);
+            if (cost <= bestCost) {
+                bestEntrySize = entrySize;
+                bestCost = cost;
+            }
+        }
+        int capacity = (int) Math.min(hugeCapacity(sizes, bestEntrySize), 1 << 30);
+        // a few thousand small entries per segment, as in the presets of HugeConfig
+        int segments = (int) Math.min(Maths.nextPower2(capacity >> 12, 16), 1024);
+        return config.setSmallEntrySize(bestEntrySize)
+                .setSegments(segments)
+                .setCapacity(Math.max(capacity, segments * 16));
+    }
+
+    /**
+     * @return the projected off-heap footprint in bytes of the map created with the config, once it holds
+     * the expected number of entries
+     */
+    public long footprint(HugeConfig config) {
+        int[] sizes = hugeEntrySizes();
+        int entrySize = config.getSmallEntrySize();
+        int segments = config.getSegments();
+        long footprint = segments * (HugeHashMap.SmallArea.sizeInBytes(config.getEntriesPerSegment(),
+                entrySize) + HugeHashMap.Segment.TMP_ENTRIES * (long) entrySize);
+        long overflowBlocks = overflowBlocks(sizes, entrySize);
+        if (overflowBlocks > 0) {
+            int blocksPerSegment = (int) Maths.nextPower2((overflowBlocks + segments - 1) / segments,
+                    (long) HugeHashMap.Segment.MIN_OVERFLOW_BLOCKS);
+            footprint += segments * (blocksPerSegment * (long) entrySize +
+                    VanillaIntIntMultiMap.sizeInBytes(blocksPerSegment * 2) +
+                    VanillaIntIntMultiMap.sizeOfBitSetInBytes(blocksPerSegment * 2));
+        }
+        return footprint;
+    }
+
+    /**
+     * @return the number of blocks of the given size taken by the sampled entries
+     */
+    private static long blocks(int[] sizes, int entrySize) {
+        long blocks = 0;
+        for (int size : sizes)
+            blocks += (size + entrySize - 1) / entrySize;
+        return blocks;
+    }
+
+    /**
+     * @return the projected number of small entries over the load factor
+     */
+    private long hugeCapacity(int[] sizes, int entrySize) {
+        int small = 0;
+        for (int size : sizes) {
+            if (size <= entrySize)
+                small++;
+        }
+        return Math.max(16, (long) Math.ceil(entries * (double) small / sizes.length / loadFactor));
+    }
+
+    /**
+     * @return the projected number of overflow blocks taken by the expected number of entries
+     */
+    private long overflowBlocks(int[] sizes, int entrySize) {
+        long blocks = 0;
+        for (int size : sizes) {
+            if (size > entrySize)
+                blocks += (4 + size + entrySize - 1) / entrySize;
+        }
+        return (long) Math.ceil(entries * (double) blocks / sizes.length);
+    }
+
+    /**
+     * @return the sorted sizes of the sampled entries of {@link SharedHashMap}, as laid out by its segments
+     */
+    private int[] sharedEntrySizes(SharedHashMapBuilder<K, V> builder) {
+        checkSamples();
+        Alignment alignment = builder.entryAndValueAlignment();
+        int extraBytes = builder.metaDataBytes() + (builder.canReplicate() ? REPLICATION_BYTES +
+                (builder.deltaReplication() ? VanillaSharedReplicatedHashMap.DELTA_HEADER_SIZE : 0) : 0);
+        boolean framedValues = builder.valueCodec() != null || builder.valueLogSize() > 0;
+        DirectStore store = new DirectStore(builder.objectSerializer(), SAMPLE_BUFFER_SIZE, false);
+        try {
+            Bytes bytes = store.bytes();
+            int[] sizes = new int[keys.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                bytes.clear();
+                if (builder.generatedKeyType())
+                    ((BytesMarshallable) keys.get(i)).writeMarshallable(bytes);
+                else
+                    bytes.writeInstance(kClass, keys.get(i));
+                long keyLen = bytes.position();
+
+                bytes.clear();
+                if (framedValues)
+                    bytes.writeByte(0);
+                if (builder.generatedValueType())
+                    ((BytesMarshallable) values.get(i)).writeMarshallable(bytes);
+                else
+                    bytes.writeInstance(vClass, values.get(i));
+                long valueLen = bytes.position();
+
+                sizes[i] = (int) (alignment.alignAddr(extraBytes + expectedStopBits(keyLen) + keyLen +
+                        expectedStopBits(valueLen)) + valueLen);
+            }
+            Arrays.sort(sizes);
+            return sizes;
+        } finally {
+            store.free();
+        }
+    }
+
+    /**
+     * @return the sorted sizes of the sampled entries of {@link HugeHashMap}, as written by its segments
+     */
+    private int[] hugeEntrySizes() {
+        checkSamples();
+        ObjectSerializer objectSerializer =
+                BytesMarshallableSerializer.create(new VanillaBytesMarshallerFactory(), JDKObjectSerializer.INSTANCE);
+        DirectStore store = DirectStore.allocateLazy(SAMPLE_BUFFER_SIZE, objectSerializer);
+        try {
+            Bytes bytes = store.bytes();
+            boolean bytesMarshallable = BytesMarshallable.class.isAssignableFrom(vClass);
+            int[] sizes = new int[keys.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                bytes.clear();
+                K key = keys.get(i);
+                if (CharSequence.class.isAssignableFrom(kClass))
+                    bytes.writeUTFΔ((CharSequence) key);
+                else if (kClass == Long.class)
+                    bytes.writeLong((Long) key);
+                else
+                    bytes.writeObject(key);
+                V value = values.get(i);
+                if (vClass == Long.class)
+                    bytes.writeLong((Long) value);
+                else if (bytesMarshallable)
+                    ((BytesMarshallable) value).writeMarshallable(bytes);
+                else
+                    bytes.writeObject(value);
+                sizes[i] = (int) bytes.position();
+            }
+            Arrays.sort(sizes);
+            return sizes;
+        } finally {
+            store.free();
+        }
+    }
+
+    private void checkSamples() {
+        if (keys.isEmpty())
+            throw new IllegalStateException("No samples to size the map from");
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded off-heap ring of the changes of a replicated map, appended once per change by the writers, and
+ * read by each remote node from its own {@link Cursor}. <p/> <p>The writers never wait for the readers, a
+ * record is overwritten once the ring wraps around, so a reader falling behind by more than the capacity of
+ * the ring is told that it {@link Cursor#OVERRUN overran}, and has to find the changes it missed by other
+ * means. <p/> <p>A record is {@code [long sequence][long index][long timestamp]}, where {@code index} is the
+ * index of the entry in the bit sets of the modification iterators. The sequence is written last, as {@code
+ * sequence + 1} once the record is complete, and as {@code -(sequence + 1)} while it's being written, so a
+ * reader can tell a complete record from one being written or overwritten.
+ */
+final class ModificationJournal {
+
+    private static final int RECORD_SIZE = 24;
+    private static final int INDEX_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 16;
+
+    private final DirectStore store;
+    private final Bytes bytes;
+    private final long mask;
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity the number of records, rounded up to a power of 2
+     */
+    ModificationJournal(int capacity) {
+        final long records = Maths.nextPower2(capacity, 16);
+        mask = records - 1;
+        store = DirectStore.allocateLazy(records * RECORD_SIZE);
+        bytes = store.bytes();
+    }
+
+    /**
+     * frees the ring, once no writer or cursor uses it anymore
+     */
+    void free() {
+        store.free();
+    }
+
+    long capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * appends a change, the caller holds the lock of the segment of the entry
+     *
+     * @param index     the index of the entry in the bit sets of the modification iterators
+     * @param timestamp the time of the change
+     */
+    void append(long index, long timestamp) {
+        final long sequence = head.getAndIncrement();
+        final long offset = (sequence & mask) * RECORD_SIZE;
+        bytes.writeOrderedLong(offset, -(sequence + 1));
+        bytes.writeLong(offset + INDEX_OFFSET, index);
+        bytes.writeLong(offset + TIMESTAMP_OFFSET, timestamp);
+        bytes.writeOrderedLong(offset, sequence + 1);
+    }
+
+    /**
+     * @param timestamp the time the cursor is created at
+     * @return a cursor reading the changes appended from now on
+     */
+    Cursor newCursor(long timestamp) {
+        return new Cursor(head.get(), timestamp);
+    }
+
+    /**
+     * The position of a single reader in the journal, not thread safe.
+     */
+    final class Cursor {
+
+        // returned by next(), if there are no more changes complete yet
+        static final long NONE = -1;
+        // returned by next(), if the changes after the last one read were overwritten
+        static final long OVERRUN = -2;
+
+        private long sequence;
+        private long timestamp;
+
+        private Cursor(long sequence, long timestamp) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return the index of the next change, or {@link #NONE}, or {@link #OVERRUN} in which case the
+         * cursor skips to the head of the journal
+         */
+        long next() {
+            final long expected = sequence + 1;
+            final long offset = (sequence & mask) * RECORD_SIZE;
+            final long before = bytes.readVolatileLong(offset);
+            if (before == expected) {
+                final long index = bytes.readVolatileLong(offset + INDEX_OFFSET);
+                final long changeTimestamp = bytes.readVolatileLong(offset + TIMESTAMP_OFFSET);
+                if (bytes.readVolatileLong(offset) == expected) {
+                    timestamp = changeTimestamp;
+                    sequence++;
+                    return index;
+                }
+            } else if (Math.abs(before) <= expected && head.get() - sequence <= capacity()) {
+                // not written yet, or being written
+                return NONE;
+            }
+            sequence = head.get();
+            return OVERRUN;
+        }
+
+        /**
+         * @return the approximate number of the changes appended, which are not read yet, at most the
+         * capacity of the journal, safe to call from any thread as it's meant for monitoring only
+         */
+        long lag() {
+            return Math.max(0, Math.min(head.get() - sequence, capacity()));
+        }
+
+        /**
+         * @return the timestamp of the last change read, or the time the cursor was created at
+         */
+        long timestamp() {
+            return timestamp;
+        }
+    }
+}
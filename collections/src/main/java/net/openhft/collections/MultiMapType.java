@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * Implementations of the hash lookup of {@link SharedHashMap} segments, mapping hashes of keys to positions of
+ * entries.
+ *
+ * @see SharedHashMapBuilder#multiMapType(MultiMapType)
+ */
+public enum MultiMapType {
+    /**
+     * Linear probing over 8-byte slots, one slot compared at a time. Segments of up to 65536 entries use
+     * 4-byte slots with 16-bit hashes.
+     */
+    VANILLA {
+        @Override
+        long sizeInBytes(int entriesPerSegment) {
+            return smallMultiMaps(entriesPerSegment) ?
+                    VanillaShortShortMultiMap.sizeInBytes(entriesPerSegment) :
+                    VanillaIntIntMultiMap.sizeInBytes(entriesPerSegment);
+        }
+
+        @Override
+        long sizeOfBitSetInBytes(int entriesPerSegment) {
+            return smallMultiMaps(entriesPerSegment) ?
+                    VanillaShortShortMultiMap.sizeOfBitSetInBytes(entriesPerSegment) :
+                    VanillaIntIntMultiMap.sizeOfBitSetInBytes(entriesPerSegment);
+        }
+
+        @Override
+        int hashMask(int entriesPerSegment) {
+            return smallMultiMaps(entriesPerSegment) ? 0xFFFF : ~0;
+        }
+
+        @Override
+        IntIntMultiMap create(int entriesPerSegment, Bytes multiMapBytes, Bytes multiMapBitSetBytes) {
+            return smallMultiMaps(entriesPerSegment) ?
+                    new VanillaShortShortMultiMap(multiMapBytes, multiMapBitSetBytes) :
+                    new VanillaIntIntMultiMap(multiMapBytes, multiMapBitSetBytes);
+        }
+
+        private boolean smallMultiMaps(int entriesPerSegment) {
+            return entriesPerSegment <= (1 << 16);
+        }
+    },
+
+    /**
+     * Probing groups of 8 slots at once by 1-byte tags, in the style of Swiss tables. Takes 1/8 more memory
+     * than {@link #VANILLA} with 32-bit slots, but probes several times less slots at high fill.
+     */
+    SWISS {
+        @Override
+        long sizeInBytes(int entriesPerSegment) {
+            return SwissIntIntMultiMap.sizeInBytes(entriesPerSegment);
+        }
+
+        @Override
+        long sizeOfBitSetInBytes(int entriesPerSegment) {
+            return SwissIntIntMultiMap.sizeOfBitSetInBytes(entriesPerSegment);
+        }
+
+        @Override
+        int hashMask(int entriesPerSegment) {
+            return ~0;
+        }
+
+        @Override
+        IntIntMultiMap create(int entriesPerSegment, Bytes multiMapBytes, Bytes multiMapBitSetBytes) {
+            return new SwissIntIntMultiMap(multiMapBytes, multiMapBitSetBytes);
+        }
+    },
+
+    /**
+     * Robin Hood linear probing over 8-byte slots, with backward shift deletion. The same memory as {@link
+     * #VANILLA} with 32-bit slots, but probe lengths stay short and bounded even with skewed hashes.
+     */
+    ROBIN_HOOD {
+        @Override
+        long sizeInBytes(int entriesPerSegment) {
+            return RobinHoodIntIntMultiMap.sizeInBytes(entriesPerSegment);
+        }
+
+        @Override
+        long sizeOfBitSetInBytes(int entriesPerSegment) {
+            return RobinHoodIntIntMultiMap.sizeOfBitSetInBytes(entriesPerSegment);
+        }
+
+        @Override
+        int hashMask(int entriesPerSegment) {
+            return ~0;
+        }
+
+        @Override
+        IntIntMultiMap create(int entriesPerSegment, Bytes multiMapBytes, Bytes multiMapBitSetBytes) {
+            return new RobinHoodIntIntMultiMap(multiMapBytes, multiMapBitSetBytes);
+        }
+    };
+
+    private static final MultiMapType[] VALUES = values();
+
+    static MultiMapType fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    static int count() {
+        return VALUES.length;
+    }
+
+    abstract long sizeInBytes(int entriesPerSegment);
+
+    abstract long sizeOfBitSetInBytes(int entriesPerSegment);
+
+    /**
+     * @return the mask of hashes of keys in segments
+     */
+    abstract int hashMask(int entriesPerSegment);
+
+    abstract IntIntMultiMap create(int entriesPerSegment, Bytes multiMapBytes, Bytes multiMapBitSetBytes);
+}
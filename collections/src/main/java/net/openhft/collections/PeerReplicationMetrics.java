@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import javax.management.MXBean;
+
+/**
+ * The state of the replication over a connection with a remote node, or for the {@link UdpReplicator}, with
+ * all the remote nodes. It is pulled by {@link ReplicationMetrics#peers(SharedHashMap)}, or over JMX, if
+ * {@link AbstractReplicationBuilder#jmxMetrics(boolean)} is enabled. <p/> <p>The values are updated by the
+ * thread serving the connection, without synchronization, so each is consistent on its own only. The rates
+ * are averaged over about a second.
+ */
+@MXBean
+public interface PeerReplicationMetrics {
+
+    /**
+     * @return {@code "tcp"} or {@code "udp"}
+     */
+    String getReplicator();
+
+    byte getLocalIdentifier();
+
+    /**
+     * @return the identifier of the remote node, or {@link Byte#MIN_VALUE} until the hand shaking is complete,
+     * and for the UDP replicator
+     */
+    byte getRemoteIdentifier();
+
+    boolean isConnected();
+
+    /**
+     * @return {@code true} once all the entries found to be missing by the remote node on connection, were
+     * sent
+     */
+    boolean isBootstrapComplete();
+
+    /**
+     * @return the approximate number of the changed entries not sent yet, this takes time proportional to
+     * the size of the map
+     */
+    long getPendingEntries();
+
+    /**
+     * @return the number of bytes written to the buffer, but not to the socket yet
+     */
+    long getBytesQueued();
+
+    long getBytesSent();
+
+    long getEntriesSent();
+
+    long getBytesReceived();
+
+    long getEntriesReceived();
+
+    double getBytesSentPerSecond();
+
+    double getEntriesSentPerSecond();
+
+    double getBytesReceivedPerSecond();
+
+    double getEntriesReceivedPerSecond();
+
+    /**
+     * @return the number of datagrams found missing from the sequences of the remote nodes, always {@code 0}
+     * for the TCP replicator
+     */
+    long getLostDatagrams();
+
+    /**
+     * @return the time in milliseconds, a heartbeat or any data was last received at, or {@code 0} if never
+     */
+    long getLastReceivedTime();
+
+    /**
+     * @return the smoothed time in milliseconds, from the timestamp of an entry to its receipt, of the
+     * entries changed since the connection was made, the clocks of the nodes are assumed to be in sync
+     */
+    long getReplicationLatency();
+}
@@ -66,6 +66,27 @@ interface Replica<K, V> {
      */
     long lastModificationTime(byte remoteIdentifier);
 
+    /**
+     * @return the number of segments, which digests of the entries are kept for, or {@code 0} if this replica
+     * doesn't keep digests
+     * @see SharedHashMapBuilder#digestBootstrap(boolean)
+     */
+    int digestSegments();
+
+    /**
+     * @param segment the index of the segment
+     * @return the XOR of the digests of the buckets of the segment
+     */
+    long segmentDigest(int segment);
+
+    /**
+     * Copies the digests of the buckets of a segment.
+     *
+     * @param segment       the index of the segment
+     * @param bucketDigests the array to copy {@link VanillaSharedReplicatedHashMap#DIGEST_BUCKETS} digests to
+     */
+    void bucketDigests(int segment, @NotNull long[] bucketDigests);
+
 
     /**
      * notifies when there is a changed to the modification iterator
@@ -106,6 +127,19 @@ interface Replica<K, V> {
          */
         boolean nextEntry(@NotNull final AbstractEntryCallback callback, final int chronicleId);
 
+        /**
+         * A non-blocking call that provides the changed entries of a segment to {@code callback.onEntry()},
+         * under a single acquisition of the segment lock. Starts with the segment of the next changed entry,
+         * and stops at the end of the segment, or when {@code callback.canAcceptMore()} returns {@code false}
+         * (it is asked before every entry, except the first).
+         *
+         * @param callback    a callback which will be called for each changed entry
+         * @param chronicleId only assigned when clustering
+         * @return the number of entries accepted by the {@code callback.onEntry()} method, {@code 0} if
+         * there were no changed entries
+         */
+        int nextEntries(@NotNull final AbstractEntryCallback callback, final int chronicleId);
+
         /**
          * Dirties all entries with a modification time equal to {@code fromTimeStamp} or newer. It means all
          * these entries will be considered as "new" by this ModificationIterator and iterated once again no
@@ -117,6 +151,37 @@ interface Replica<K, V> {
          * @param fromTimeStamp the timestamp from which all entries should be dirty
          */
         void dirtyEntries(long fromTimeStamp);
+
+        /**
+         * Dirties the entry of the key of an external entry, which was written by {@link
+         * EntryExternalizable#writeExternalEntry(AbstractBytes, Bytes, int, boolean)} as a delta, but
+         * couldn't be applied by the remote node. The entry will be iterated once again, and the {@code
+         * callback} will be told to write it in full.
+         *
+         * @param externalEntry the rejected entry, from its position to its limit
+         * @see AbstractEntryCallback#fullEntryRequired
+         */
+        void resendFullEntry(@NotNull Bytes externalEntry);
+
+        /**
+         * Dirties the entries written by this node, of the given digest buckets of a segment, which differ from
+         * the digests of the remote node.
+         *
+         * <p>This functionality is used instead of {@link #dirtyEntries(long)}, to publish the entries which
+         * differ only, to a remote node as it connects.
+         *
+         * @param segment the index of the segment
+         * @param buckets the bit mask of the buckets of the segment
+         * @see Replica#bucketDigests(int, long[])
+         */
+        void dirtyBuckets(int segment, long buckets);
+
+        /**
+         * @return the approximate number of the changed entries, which are not iterated yet, including the
+         * changes in the modification journal not read yet, so an entry changed more than once may be counted
+         * more than once, it takes time proportional to the size of the map, so is meant for monitoring only
+         */
+        long pendingEntries();
     }
 
 
@@ -153,6 +218,13 @@ interface Replica<K, V> {
      */
     abstract class AbstractEntryCallback implements EntryCallback {
 
+        /**
+         * Set by the {@link ModificationIterator} before {@link #onEntry(AbstractBytes, int)}, {@code true} if
+         * the entry has to be written in full rather than as a delta, because the remote node doesn't hold
+         * the version of the entry the delta is based on.
+         */
+        boolean fullEntryRequired;
+
         /**
          * Called whenever a put() or remove() has occurred to a replicating map.
          *
@@ -180,6 +252,16 @@ interface Replica<K, V> {
         public void onBeforeEntry() {
             // no-op by default
         }
+
+        /**
+         * Called by {@link ModificationIterator#nextEntries(AbstractEntryCallback, int)} before every entry of
+         * a batch except the first.
+         *
+         * @return {@code false} if no more entries should be provided in this batch
+         */
+        public boolean canAcceptMore() {
+            return true;
+        }
     }
 
 
@@ -198,14 +280,69 @@ interface Replica<K, V> {
          */
         void writeExternalEntry(@NotNull AbstractBytes entry, @NotNull Bytes destination, int chronicleId);
 
+        /**
+         * The same as {@link #writeExternalEntry(AbstractBytes, Bytes, int)}, but if {@code delta} is {@code
+         * true} and only parts of the value were changed since the entry was last written in full, writes
+         * only these parts. Such a delta can be applied only by a node which holds the version of the entry
+         * the delta is based on.
+         *
+         * @param entry       the byte location of the entry to be stored
+         * @param destination a buffer the entry will be written to
+         * @param chronicleId used in cluster into identify the canonical map or queue
+         * @param delta       {@code true} if the remote node accepts deltas
+         */
+        void writeExternalEntry(@NotNull AbstractBytes entry, @NotNull Bytes destination, int chronicleId,
+                                boolean delta);
+
         /**
          * The map implements this method to restore its contents. This method must read the values in the
          * same sequence and with the same types as were written by {@code writeExternalEntry()}. This method
          * is typically called when we receive a remote replication event, this event could originate from
          * either a remote {@code put(K key, V value)} or {@code remove(Object key)}
+         *
+         * @return {@code false} if the entry is a delta, which couldn't be applied because this node doesn't
+         * hold the version of the entry the delta is based on, the entry should be sent once again in full
+         * @see ModificationIterator#resendFullEntry(Bytes)
          */
-        void readExternalEntry(@NotNull Bytes source);
+        boolean readExternalEntry(@NotNull Bytes source);
 
+        /**
+         * The same as {@link #readExternalEntry(Bytes)}, but leaves the lock of the segment of the entry held
+         * in {@code heldLock}, so that the following entries of the same segment are applied under the same
+         * acquisition of the lock. The lock held before is released first if the entry is of another segment,
+         * so no more than one lock is held at a time.
+         */
+        boolean readExternalEntry(@NotNull Bytes source, @NotNull HeldSegmentLock heldLock);
+
+    }
+
+    /**
+     * The lock of a segment, held by a reader of external entries between the entries of the segment it
+     * reads one after another.
+     */
+    final class HeldSegmentLock {
+        private SharedSegment segment;
+
+        /**
+         * Acquires the lock of the segment, unless it is held already, releasing the lock held before.
+         */
+        void hold(@NotNull SharedSegment segment) {
+            if (this.segment == segment)
+                return;
+            release();
+            segment.lock();
+            this.segment = segment;
+        }
+
+        /**
+         * Releases the lock, if any is held.
+         */
+        public void release() {
+            if (segment != null) {
+                segment.unlock();
+                segment = null;
+            }
+        }
     }
 
     /**
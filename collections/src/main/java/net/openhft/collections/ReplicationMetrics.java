@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.model.constraints.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pulls the metrics of the replication of a map.
+ */
+public final class ReplicationMetrics {
+
+    private ReplicationMetrics() {
+    }
+
+    /**
+     * @param map the map, possibly not replicated
+     * @return the metrics of the current connections of the TCP and UDP replicators of the map, empty if the
+     * map is not replicated
+     */
+    @NotNull
+    public static List<PeerReplicationMetrics> peers(@NotNull SharedHashMap<?, ?> map) {
+        if (map instanceof VanillaSharedReplicatedHashMap)
+            return ((VanillaSharedReplicatedHashMap<?, ?>) map).replicationMetrics();
+        return Collections.emptyList();
+    }
+}
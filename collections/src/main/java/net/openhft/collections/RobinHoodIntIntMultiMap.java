@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.collection.DirectBitSet;
+import net.openhft.lang.collection.SingleThreadedDirectBitSet;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+/**
+ * {@link IntIntMultiMap} with Robin Hood linear probing: on insertion an entry displaced further from its
+ * home slot than the entry in the probed slot takes the slot, and the poorer entry continues probing. The
+ * variance of probe lengths is therefore low even with skewed hashes, and a search stops as soon as it meets
+ * an entry closer to its home slot than the searched key would be. Removal shifts the following entries back
+ * instead of leaving tombstones. <p/> <p>The slot layout is the same as in {@link VanillaIntIntMultiMap}.
+ */
+class RobinHoodIntIntMultiMap implements IntIntMultiMap {
+
+    /**
+     * @param minCapacity as in {@link #RobinHoodIntIntMultiMap(int)} constructor
+     * @return size of {@link Bytes} to provide to {@link #RobinHoodIntIntMultiMap(Bytes, Bytes)} constructor
+     * as the first argument
+     */
+    public static long sizeInBytes(int minCapacity) {
+        return VanillaIntIntMultiMap.sizeInBytes(minCapacity);
+    }
+
+    /**
+     * @param minCapacity as in {@link #RobinHoodIntIntMultiMap(int)} constructor
+     * @return size of {@link Bytes} to provide to {@link #RobinHoodIntIntMultiMap(Bytes, Bytes)} constructor
+     * as the second argument
+     */
+    public static long sizeOfBitSetInBytes(int minCapacity) {
+        return VanillaIntIntMultiMap.sizeOfBitSetInBytes(minCapacity);
+    }
+
+    private static final int ENTRY_SIZE = 8;
+    private static final int ENTRY_SIZE_SHIFT = 3;
+
+    private static final int UNSET_KEY = 0;
+    private static final int HASH_INSTEAD_OF_UNSET_KEY = -1;
+    private static final int UNSET_VALUE = Integer.MIN_VALUE;
+    private static final long UNSET_ENTRY = 0L;
+
+    private static int maskUnsetKey(int key) {
+        return key != UNSET_KEY ? key : HASH_INSTEAD_OF_UNSET_KEY;
+    }
+
+    private static long entry(int key, int value) {
+        return (((long) key) << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private static int key(long entry) {
+        return (int) (entry >> 32);
+    }
+
+    private final int capacity;
+    private final int capacityMask;
+    private final Bytes bytes;
+    final DirectBitSet positions;
+
+    public RobinHoodIntIntMultiMap(int minCapacity) {
+        if (minCapacity < 0)
+            throw new IllegalArgumentException();
+        capacity = Maths.nextPower2(minCapacity, 16);
+        capacityMask = capacity - 1;
+        bytes = DirectStore.allocateLazy(((long) capacity) << ENTRY_SIZE_SHIFT).bytes();
+        positions = VanillaIntIntMultiMap.newPositions(capacity);
+        clear();
+    }
+
+    public RobinHoodIntIntMultiMap(Bytes multiMapBytes, Bytes multiMapBitSetBytes) {
+        capacity = (int) (multiMapBytes.capacity() / ENTRY_SIZE);
+        assert capacity == Maths.nextPower2(capacity, 16);
+        capacityMask = capacity - 1;
+        this.bytes = multiMapBytes;
+        positions = new SingleThreadedDirectBitSet(multiMapBitSetBytes);
+    }
+
+    /**
+     * Skewed hashes are spread, because clusters of home slots make all probes long.
+     */
+    private int home(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & capacityMask;
+    }
+
+    private int distance(long entry, int index) {
+        return (index - home(key(entry))) & capacityMask;
+    }
+
+    private long read(int index) {
+        return bytes.readLong(((long) index) << ENTRY_SIZE_SHIFT);
+    }
+
+    private void write(int index, long entry) {
+        bytes.writeLong(((long) index) << ENTRY_SIZE_SHIFT, entry);
+    }
+
+    /**
+     * @return the index of the key and value, or -1 if not found
+     */
+    private int find(int key, int value) {
+        int index = home(key);
+        for (int dist = 0; dist <= capacityMask; dist++) {
+            long entry = read(index);
+            if (entry == UNSET_ENTRY || distance(entry, index) < dist)
+                return -1;
+            if (key(entry) == key && (int) entry == value)
+                return index;
+            index = (index + 1) & capacityMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts the entry, starting from the given index, which is at the given distance from the home slot of
+     * the entry, and where either the slot is free, or the entry in it is closer to its home.
+     */
+    private void insert(long entry, int index, int dist) {
+        positions.set((int) entry);
+        for (int i = 0; i <= capacityMask; i++) {
+            long existing = read(index);
+            if (existing == UNSET_ENTRY) {
+                write(index, entry);
+                return;
+            }
+            int existingDist = distance(existing, index);
+            if (existingDist < dist) {
+                write(index, entry);
+                entry = existing;
+                dist = existingDist;
+            }
+            index = (index + 1) & capacityMask;
+            dist++;
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    /**
+     * Backward shift deletion: the following entries, not at their home slots, are moved one slot back.
+     */
+    private void removeAt(int index) {
+        for (int i = 0; i < capacityMask; i++) {
+            int next = (index + 1) & capacityMask;
+            long entry = read(next);
+            if (entry == UNSET_ENTRY || distance(entry, next) == 0)
+                break;
+            write(index, entry);
+            index = next;
+        }
+        write(index, UNSET_ENTRY);
+    }
+
+    @Override
+    public void put(int key, int value) {
+        key = maskUnsetKey(key);
+        if (find(key, value) < 0)
+            insert(entry(key, value), home(key), 0);
+    }
+
+    @Override
+    public boolean remove(int key, int value) {
+        key = maskUnsetKey(key);
+        int index = find(key, value);
+        if (index < 0)
+            return false;
+        positions.clear(value);
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public boolean replace(int key, int oldValue, int newValue) {
+        key = maskUnsetKey(key);
+        int index = find(key, oldValue);
+        if (index < 0)
+            return false;
+        positions.clear(oldValue);
+        positions.set(newValue);
+        write(index, entry(key, newValue));
+        return true;
+    }
+
+    /////////////////////
+    // Stateful methods
+
+    private int searchHash = -1;
+    private int searchIndex = -1;
+    private int searchDist = 0;
+
+    @Override
+    public int startSearch(int key) {
+        key = maskUnsetKey(key);
+        searchIndex = home(key);
+        searchDist = 0;
+        return searchHash = key;
+    }
+
+    @Override
+    public int nextPos() {
+        for (; searchDist <= capacityMask; searchDist++) {
+            long entry = read(searchIndex);
+            // the searched key would have taken the slot, if it was there
+            if (entry == UNSET_ENTRY || distance(entry, searchIndex) < searchDist)
+                return UNSET_VALUE;
+            searchIndex = (searchIndex + 1) & capacityMask;
+            if (key(entry) == searchHash) {
+                searchDist++;
+                return (int) entry;
+            }
+        }
+        return UNSET_VALUE;
+    }
+
+    @Override
+    public void removePrevPos() {
+        int prevIndex = (searchIndex - 1) & capacityMask;
+        positions.clear((int) read(prevIndex));
+        removeAt(prevIndex);
+        // the next entry, if any, is shifted to the previous slot
+        searchIndex = prevIndex;
+        searchDist--;
+    }
+
+    @Override
+    public void replacePrevPos(int newValue) {
+        int prevIndex = (searchIndex - 1) & capacityMask;
+        positions.clear((int) read(prevIndex));
+        positions.set(newValue);
+        write(prevIndex, entry(searchHash, newValue));
+    }
+
+    @Override
+    public void putAfterFailedSearch(int value) {
+        // the failed search stopped at the slot, where the entry should be inserted
+        insert(entry(searchHash, value), searchIndex, searchDist);
+    }
+
+    public int getSearchHash() {
+        return searchHash;
+    }
+
+    @Override
+    public int maxProbeLength() {
+        int max = 0;
+        for (int i = 0; i < capacity; i++) {
+            long entry = read(i);
+            if (entry != UNSET_ENTRY)
+                max = Math.max(max, distance(entry, i));
+        }
+        return max;
+    }
+
+    @Override
+    public double meanProbeLength() {
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < capacity; i++) {
+            long entry = read(i);
+            if (entry != UNSET_ENTRY) {
+                sum += distance(entry, i);
+                count++;
+            }
+        }
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        for (int i = 0; i < capacity; i++) {
+            long entry = read(i);
+            if (entry != UNSET_ENTRY)
+                sb.append(key(entry)).append('=').append((int) entry).append(", ");
+        }
+        if (sb.length() > 2) {
+            sb.setLength(sb.length() - 2);
+            return sb.append(" }").toString();
+        }
+        return "{ }";
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            long entry = read(i);
+            if (entry != UNSET_ENTRY)
+                action.accept(key(entry), (int) entry);
+        }
+    }
+
+    @Override
+    public DirectBitSet getPositions() {
+        return positions;
+    }
+
+    @Override
+    public void clear() {
+        positions.clear();
+        bytes.zeroOut(0, ((long) capacity) << ENTRY_SIZE_SHIFT);
+    }
+}
@@ -19,6 +19,7 @@ package net.openhft.collections;
 import java.io.Closeable;
 import java.io.File;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 public interface SharedHashMap<K, V> extends ConcurrentMap<K, V>, Closeable {
     /**
@@ -47,6 +48,76 @@ public interface SharedHashMap<K, V> extends ConcurrentMap<K, V>, Closeable {
      */
     V acquireUsing(K key, V value);
 
+    /**
+     * Returns the modification version of the part of the map holding the key. The version is shared
+     * between all processes using the same file, and changes on every put or remove of any key held by
+     * the same segment (including changes received by replication), so it could change when {@code key}
+     * itself wasn't modified. In-place updates of values acquired via {@link #acquireUsing(Object,
+     * Object)} don't change the version.
+     *
+     * @param key to lookup.
+     * @return the current version, to be passed to {@link #awaitChange(Object, long, long, TimeUnit)}.
+     */
+    long version(K key);
+
+    /**
+     * Waits until the version of the part of the map holding the key differs from {@code sinceVersion}.
+     * Spins at first, then yields and then parks, so a handoff from another process is picked up in
+     * microseconds without keeping a core busy while nothing changes. As with {@link #version(Object)},
+     * the wake up could be caused by a change of another key.
+     *
+     * @param key          to wait for.
+     * @param sinceVersion the version returned by {@link #version(Object)} or a previous call to this
+     *                     method.
+     * @param timeout      the maximum time to wait.
+     * @param unit         the unit of the timeout.
+     * @return the new version, or {@code sinceVersion} if the timeout elapsed.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    long awaitChange(K key, long sinceVersion, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Waits until the map contains the key, possibly put by another process.
+     *
+     * @param key     to wait for.
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit of the timeout.
+     * @return {@code true} if the key is present, {@code false} if the timeout elapsed.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    boolean awaitPresent(K key, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Starts a transaction, to put and remove several keys atomically.
+     *
+     * @return a new transaction
+     * @throws IllegalStateException if the map was not built with {@link
+     *                               SharedHashMapBuilder#transactional(boolean) transactional(true)}
+     */
+    SharedMapTransaction<K, V> startTransaction();
+
+    /**
+     * Returns the maximum probe length of the hash lookup of each segment, i. e. the maximum number of slots
+     * (or groups of slots, for {@link MultiMapType#SWISS}) probed past the first one, to find an entry. This
+     * bounds the latency of lookups, and is useful to monitor maps with skewed hashes of keys.
+     *
+     * <p>Each call scans the whole hash lookup of every segment, without holding the segment locks, so the
+     * statistics are approximate if the map is modified concurrently.
+     *
+     * @return the maximum probe length of each segment, indexed by segment
+     * @see SharedHashMapBuilder#multiMapType(MultiMapType)
+     */
+    int[] maxProbeLengths();
+
+    /**
+     * Returns the mean probe length of the hash lookup of each segment, approximate if the map is modified
+     * concurrently, as for {@link #maxProbeLengths()}.
+     *
+     * @return the mean probe length of the hash lookup of each segment, indexed by segment
+     * @see #maxProbeLengths()
+     */
+    double[] meanProbeLengths();
+
     /**
      * @return The file or directory for this SharedHashMap
      */
@@ -38,7 +38,17 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
 
     static final int HEADER_SIZE = 128;
     static final int SEGMENT_HEADER = 64;
+    /**
+     * Positions of entries in segments are ints, and hash lookups are sized to the next power of 2 of entries
+     * per segment, which must fit an int too.
+     */
+    static final int MAX_ENTRIES_PER_SEGMENT = 1 << 30;
     private static final byte[] MAGIC = "SharedHM".getBytes();
+    // bits of the value format byte of the header
+    private static final int VALUES_WITH_CODEC = 1;
+    private static final int VALUES_IN_LOG = 2;
+    private static final int VALUES_WITH_DELTAS = 4;
+    private static final int WITH_DIGESTS = 8;
 
     public static final short UDP_REPLICATION_MODIFICATION_ITERATOR_ID = 128;
     public static final short JDBC_REPLICATION_MODIFICATION_ITERATOR_ID = 129;
@@ -65,9 +75,17 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
     private boolean generatedKeyType = false;
     private boolean generatedValueType = false;
     private boolean largeSegments = false;
+    private ValueCodec valueCodec = null;
+    private int valueCodecThreshold = 256;
+    private long valueLogSize = 0;
+    private int valueLogThreshold = 4096;
+    private MultiMapType multiMapType = MultiMapType.VANILLA;
 
     // replication
     private boolean canReplicate;
+    private boolean deltaReplication = false;
+    private int modificationJournal = 0;
+    private boolean digestBootstrap = false;
     byte identifier = Byte.MIN_VALUE;
     TcpReplicatorBuilder tcpReplicatorBuilder;
   //  ExternalReplicatorBuilder externalReplicatorBuilder;
@@ -171,7 +189,9 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
      * rare) architectures any misaligned memory access is more expensive than aligned. <p/> <p>Note that
      * specified {@link #entrySize()} will be aligned according to this alignment. I. e. if you set {@code
      * entrySize(20)} and {@link net.openhft.collections.Alignment#OF_8_BYTES}, actual entry size will be 24
-     * (20 aligned to 8 bytes).
+     * (20 aligned to 8 bytes). <p/> <p>If 8-byte fields of the values are updated concurrently without
+     * locking, e. g. via {@link ByteableAtomics}, use {@link net.openhft.collections.Alignment#OF_8_BYTES},
+     * otherwise such fields might be misaligned.
      *
      * @return this {@code SharedHashMapBuilder} back
      * @see #entryAndValueAlignment()
@@ -210,6 +230,9 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
     }
 
     public SharedHashMapBuilder<K, V> actualEntriesPerSegment(int actualEntriesPerSegment) {
+        if (actualEntriesPerSegment > MAX_ENTRIES_PER_SEGMENT)
+            throw new IllegalArgumentException("actualEntriesPerSegment can't be greater than " +
+                    MAX_ENTRIES_PER_SEGMENT + ", was " + actualEntriesPerSegment);
         this.actualEntriesPerSegment = actualEntriesPerSegment;
         return this;
     }
@@ -219,7 +242,12 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
             return actualEntriesPerSegment;
         int as = actualSegments();
         // round up to the next multiple of 64.
-        return (int) (Math.max(1, entries * 2L / as) + 63) & ~63;
+        long entriesPerSegment = (Math.max(1L, entries * 2L / as) + 63L) & ~63L;
+        if (entriesPerSegment > MAX_ENTRIES_PER_SEGMENT)
+            throw new IllegalArgumentException(entries + " entries in " + as + " segments require " +
+                    entriesPerSegment + " entries per segment, " + MAX_ENTRIES_PER_SEGMENT +
+                    " is maximum, configure more segments");
+        return (int) entriesPerSegment;
     }
 
     public SharedHashMapBuilder<K, V> actualSegments(int actualSegments) {
@@ -235,12 +263,13 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
             if (segments < 1 << 20)
                 return (int) segments;
         }
-        // try to keep it 16-bit sizes segments
-        return (int) Maths.nextPower2(Math.max((entries >> 30) + 1, minSegments()), 1);
+        // as few segments as possible, each segment holds up to MAX_ENTRIES_PER_SEGMENT / 2 entries
+        return (int) Maths.nextPower2(Math.max((entries >> 29) + 1, minSegments()), 1);
     }
 
     /**
-     * Not supported yet.
+     * Enables {@link SharedHashMap#startTransaction()}, to put and remove several keys atomically.
+     * Default is {@code false}.
      *
      * @param transactional if the built map should be transactional
      * @return this {@code SharedHashMapBuilder} back
@@ -255,6 +284,111 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
     }
 
 
+    /**
+     * Sets the codec to encode (e. g. compress) serialized values with, before they are written to the map.
+     * Entries of a map with large, compressible values (like JSON documents) could then be configured much
+     * smaller, which reduces the memory footprint and the page cache pressure. Default is {@code null}, no
+     * encoding. <p/> <p>The codec must be the same for all processes and nodes sharing the map, a file
+     * created without a codec can't be opened with one and vice versa. Values can't be {@link
+     * #generatedValueType(boolean) generated} or bound to the map memory with {@link
+     * SharedHashMap#acquireUsing(Object, Object)}, when a codec is set.
+     *
+     * @param valueCodec the codec to encode values with, or {@code null} to store values as is
+     * @return this {@code SharedHashMapBuilder} back
+     * @see LZ4ValueCodec#INSTANCE
+     * @see #valueCodecThreshold(int)
+     */
+    public SharedHashMapBuilder<K, V> valueCodec(ValueCodec valueCodec) {
+        this.valueCodec = valueCodec;
+        return this;
+    }
+
+    public ValueCodec valueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Sets the minimum size of a serialized value in bytes to {@link #valueCodec(ValueCodec) encode}, smaller
+     * values are stored as is, because compressing them takes time and rarely saves space. Default is
+     * {@code 256}.
+     *
+     * @param valueCodecThreshold the minimum size of a value to encode
+     * @return this {@code SharedHashMapBuilder} back
+     */
+    public SharedHashMapBuilder<K, V> valueCodecThreshold(int valueCodecThreshold) {
+        if (valueCodecThreshold < 0)
+            throw new IllegalArgumentException("valueCodecThreshold must be non-negative, was " +
+                    valueCodecThreshold);
+        this.valueCodecThreshold = valueCodecThreshold;
+        return this;
+    }
+
+    public int valueCodecThreshold() {
+        return valueCodecThreshold;
+    }
+
+    /**
+     * Enables the value log: entries with serialized (and {@link #valueCodec(ValueCodec) encoded}) values not
+     * smaller than {@link #valueLogThreshold(int)} keep only the offset and the size of the value inline,
+     * and the value itself is appended to a separate circular log, mapped from the file next to the map
+     * file, with {@code .values} suffix. Segments then stay compact even with a few very large values, and
+     * large values don't need multi-block allocation. <p/> <p>Space of overwritten and removed values is
+     * reclaimed by a background thread, when the log is more than half full, by moving live values to the
+     * head of the log. Puts of large values fail with {@code IllegalStateException}, if the log is full. The
+     * size of the log should be at least twice the total size of the live large values. Default is {@code
+     * 0}, no value log. Not supported for replicated maps.
+     *
+     * @param valueLogSize the capacity of the value log in bytes, used if the log file doesn't exist yet
+     * @return this {@code SharedHashMapBuilder} back
+     */
+    public SharedHashMapBuilder<K, V> valueLogSize(long valueLogSize) {
+        if (valueLogSize < 0)
+            throw new IllegalArgumentException("valueLogSize must be non-negative, was " + valueLogSize);
+        this.valueLogSize = valueLogSize;
+        return this;
+    }
+
+    public long valueLogSize() {
+        return valueLogSize;
+    }
+
+    /**
+     * Sets the minimum size of a stored value in bytes to move to the {@link #valueLogSize(long) value log}.
+     * Default is {@code 4096}.
+     *
+     * @param valueLogThreshold the minimum size of a value to move to the value log
+     * @return this {@code SharedHashMapBuilder} back
+     */
+    public SharedHashMapBuilder<K, V> valueLogThreshold(int valueLogThreshold) {
+        if (valueLogThreshold < 0)
+            throw new IllegalArgumentException("valueLogThreshold must be non-negative, was " +
+                    valueLogThreshold);
+        this.valueLogThreshold = valueLogThreshold;
+        return this;
+    }
+
+    public int valueLogThreshold() {
+        return valueLogThreshold;
+    }
+
+    /**
+     * Sets the implementation of the hash lookup in segments. Default is {@link MultiMapType#VANILLA}. The
+     * type is recorded in the map file, the type configured for an existing map is ignored.
+     *
+     * @param multiMapType the hash lookup implementation
+     * @return this {@code SharedHashMapBuilder} back
+     */
+    public SharedHashMapBuilder<K, V> multiMapType(MultiMapType multiMapType) {
+        if (multiMapType == null)
+            throw new IllegalArgumentException("multiMapType can't be null");
+        this.multiMapType = multiMapType;
+        return this;
+    }
+
+    public MultiMapType multiMapType() {
+        return multiMapType;
+    }
+
     public SharedHashMapBuilder<K, V> kClass(Class<K> kClass) {
         this.kClass = kClass;
         return this;
@@ -293,6 +427,11 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         if (file == null)
             throw new IllegalArgumentException("missing mandatory parameter file");
 
+        if (valueCodec != null && generatedValueType)
+            throw new IllegalArgumentException("generatedValueType values can't be encoded with a valueCodec");
+
+        if (valueLogSize > 0 && generatedValueType)
+            throw new IllegalArgumentException("generatedValueType values can't be stored in a value log");
 
         SharedHashMapBuilder<K, V> builder = toBuilder();
 
@@ -302,6 +441,9 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         if (identifier <= 0)
             throw new IllegalArgumentException("Identifier must be positive, " + identifier + " given");
 
+        if (valueLogSize > 0)
+            throw new IllegalArgumentException("Replicated maps don't support the value log");
+
         final VanillaSharedReplicatedHashMap<K, V> result =
                 new VanillaSharedReplicatedHashMap<K, V>(builder, kClass, vClass);
 
@@ -377,6 +519,22 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         builder.replicas(bb.getInt());
         builder.transactional(bb.get() == 'Y');
         builder.metaDataBytes(bb.get() & 0xFF);
+        // absent in files of older versions, which are zero filled
+        int valueFormat = bb.remaining() > 0 ? bb.get() : 0;
+        if (((valueFormat & VALUES_WITH_CODEC) != 0) != (builder.valueCodec() != null))
+            throw new IOException("The map in " + file + ((valueFormat & VALUES_WITH_CODEC) != 0 ?
+                    " was created with a value codec, but none is configured" :
+                    " was created without a value codec, but one is configured"));
+        if (((valueFormat & VALUES_IN_LOG) != 0) != (builder.valueLogSize() > 0))
+            throw new IOException("The map in " + file + ((valueFormat & VALUES_IN_LOG) != 0 ?
+                    " was created with a value log, but valueLogSize is not configured" :
+                    " was created without a value log, but valueLogSize is configured"));
+        int multiMapType = bb.remaining() > 0 ? bb.get() : 0;
+        if (multiMapType < 0 || multiMapType >= MultiMapType.count())
+            throw new IOException("Unknown multiMapType " + multiMapType + " in " + file);
+        builder.multiMapType(MultiMapType.fromOrdinal(multiMapType));
+        builder.deltaReplication((valueFormat & VALUES_WITH_DELTAS) != 0);
+        builder.digestBootstrap((valueFormat & WITH_DIGESTS) != 0);
         if (builder.actualSegments() <= 0 || builder.actualEntriesPerSegment() <= 0 || builder.entrySize() <= 0)
             throw new IOException("Corrupt header for " + file);
     }
@@ -391,6 +549,9 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         bb.putInt(replicas());
         bb.put((byte) (transactional ? 'Y' : 'N'));
         bb.put((byte) metaDataBytes);
+        bb.put((byte) ((valueCodec != null ? VALUES_WITH_CODEC : 0) | (valueLogSize > 0 ? VALUES_IN_LOG : 0) |
+                (deltaReplication ? VALUES_WITH_DELTAS : 0) | (digestBootstrap ? WITH_DIGESTS : 0)));
+        bb.put((byte) multiMapType.ordinal());
         bb.flip();
         FileOutputStream fos = new FileOutputStream(file);
         fos.getChannel().write(bb);
@@ -536,8 +697,16 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
                 ", generatedKeyType=" + generatedKeyType() +
                 ", generatedValueType=" + generatedValueType() +
                 ", largeSegments=" + largeSegments() +
+                ", valueCodec=" + valueCodec() +
+                ", valueCodecThreshold=" + valueCodecThreshold() +
+                ", valueLogSize=" + valueLogSize() +
+                ", valueLogThreshold=" + valueLogThreshold() +
+                ", multiMapType=" + multiMapType() +
                 ", canReplicate=" + canReplicate() +
                 ", identifier=" + identifierToString() +
+                ", deltaReplication=" + deltaReplication() +
+                ", modificationJournal=" + modificationJournal() +
+                ", digestBootstrap=" + digestBootstrap() +
                 ", tcpReplicatorBuilder=" + tcpReplicatorBuilder() +
                 ", udpReplicatorBuilder=" + udpReplicatorBuilder() +
                 ", timeProvider=" + timeProvider() +
@@ -555,6 +724,9 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         if (actualEntriesPerSegment != that.actualEntriesPerSegment) return false;
         if (actualSegments != that.actualSegments) return false;
         if (canReplicate != that.canReplicate) return false;
+        if (deltaReplication != that.deltaReplication) return false;
+        if (modificationJournal != that.modificationJournal) return false;
+        if (digestBootstrap != that.digestBootstrap) return false;
         if (entries != that.entries) return false;
         if (entrySize != that.entrySize) return false;
         if (generatedKeyType != that.generatedKeyType) return false;
@@ -568,8 +740,12 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         if (removeReturnsNull != that.removeReturnsNull) return false;
         if (replicas != that.replicas) return false;
         if (transactional != that.transactional) return false;
+        if (valueCodecThreshold != that.valueCodecThreshold) return false;
+        if (valueLogSize != that.valueLogSize) return false;
+        if (valueLogThreshold != that.valueLogThreshold) return false;
 
         if (alignment != that.alignment) return false;
+        if (multiMapType != that.multiMapType) return false;
         if (errorListener != null ? !errorListener.equals(that.errorListener) : that.errorListener != null)
             return false;
         if (eventListener != null ? !eventListener.equals(that.eventListener) : that.eventListener != null)
@@ -580,6 +756,8 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
             return false;
         if (udpReplicatorBuilder != null ? !udpReplicatorBuilder.equals(that.udpReplicatorBuilder) : that.udpReplicatorBuilder != null)
             return false;
+        if (valueCodec != null ? !valueCodec.equals(that.valueCodec) : that.valueCodec != null)
+            return false;
 
         return true;
     }
@@ -603,8 +781,16 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         result = 31 * result + (generatedKeyType ? 1 : 0);
         result = 31 * result + (generatedValueType ? 1 : 0);
         result = 31 * result + (largeSegments ? 1 : 0);
+        result = 31 * result + (valueCodec != null ? valueCodec.hashCode() : 0);
+        result = 31 * result + valueCodecThreshold;
+        result = 31 * result + (int) (valueLogSize ^ (valueLogSize >>> 32));
+        result = 31 * result + valueLogThreshold;
+        result = 31 * result + (multiMapType != null ? multiMapType.hashCode() : 0);
         result = 31 * result + (canReplicate ? 1 : 0);
         result = 31 * result + (int) identifier;
+        result = 31 * result + (deltaReplication ? 1 : 0);
+        result = 31 * result + modificationJournal;
+        result = 31 * result + (digestBootstrap ? 1 : 0);
         result = 31 * result + (tcpReplicatorBuilder != null ? tcpReplicatorBuilder.hashCode() : 0);
         result = 31 * result + (timeProvider != null ? timeProvider.hashCode() : 0);
         result = 31 * result + (udpReplicatorBuilder != null ? udpReplicatorBuilder.hashCode() : 0);
@@ -620,6 +806,73 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
         return this;
     }
 
+    /**
+     * If enabled, entries of a replicated map record which parts of their values were changed by {@code
+     * put()} since they were last replicated in full, and the TCP replication sends only these parts to the
+     * nodes which hold the previous version of the entry. It's worth enabling for wide values, of which only
+     * a few fields change at a time. It takes 12 bytes more per entry. Default is {@code false}. The option is
+     * recorded in the map file, the option configured for an existing map is ignored.
+     *
+     * @param deltaReplication {@code true} to replicate the changed parts of values only
+     * @return this {@code SharedHashMapBuilder} back
+     */
+    public SharedHashMapBuilder<K, V> deltaReplication(boolean deltaReplication) {
+        this.deltaReplication = deltaReplication;
+        return this;
+    }
+
+    public boolean deltaReplication() {
+        return deltaReplication;
+    }
+
+    /**
+     * If positive, a replicated map records its changes once, in a journal shared by all the remote nodes,
+     * each reading it from its own cursor, rather than marking the changed entry in a bit set per remote
+     * node, so the cost of {@code put()} and {@code remove()} doesn't grow with the number of nodes. The
+     * journal is held off-heap, and is not persisted. A node which falls behind by more than the capacity of
+     * the journal is bootstrapped from the timestamp of the last change it read. Default is {@code 0}, i. e.
+     * the bit sets per node.
+     *
+     * @param modificationJournal the number of changes the journal holds, rounded up to a power of 2, or
+     *                            {@code 0} to mark the changes in the bit sets per node
+     * @return this {@code SharedHashMapBuilder} back
+     * @throws IllegalArgumentException if {@code modificationJournal} is negative
+     */
+    public SharedHashMapBuilder<K, V> modificationJournal(int modificationJournal) {
+        if (modificationJournal < 0)
+            throw new IllegalArgumentException("modificationJournal should be non-negative, " +
+                    modificationJournal + " given");
+        this.modificationJournal = modificationJournal;
+        return this;
+    }
+
+    public int modificationJournal() {
+        return modificationJournal;
+    }
+
+    /**
+     * If enabled, a replicated map keeps digests of its entries, in 64 buckets per segment, and when a TCP
+     * connection is made to a node, which keeps digests too, the nodes exchange the digests of the segments,
+     * then the digests of the buckets of the segments which differ, and send each other the entries of the
+     * buckets which differ only, rather than the entries changed since the last time the nodes were
+     * connected. Worth enabling for large maps, as the catch up takes time proportional to the differences,
+     * rather than the size of the map. The maps of both nodes have to be configured with the same number of
+     * segments, otherwise the entries are bootstrapped by their timestamps. The digests are kept in the file
+     * of the map and updated in place, so they are found again when the map is reopened, with the setting of
+     * the file. Default is {@code false}.
+     *
+     * @param digestBootstrap {@code true} to keep digests of the entries
+     * @return this {@code SharedHashMapBuilder} back
+     */
+    public SharedHashMapBuilder<K, V> digestBootstrap(boolean digestBootstrap) {
+        this.digestBootstrap = digestBootstrap;
+        return this;
+    }
+
+    public boolean digestBootstrap() {
+        return digestBootstrap;
+    }
+
 
     /*<K, V> ExternalReplicator.AbstractExternalReplicator applyExternalReplicator
             (VanillaSharedReplicatedHashMap<K, V> map,
@@ -687,7 +940,8 @@ public class SharedHashMapBuilder<K, V> implements Cloneable {
                                     @NotNull TcpReplicatorBuilder tcpReplicatorBuilder)
             throws IOException {
 
-        result.addCloseable(new TcpReplicator(result, result, tcpReplicatorBuilder, entrySize()));
+        result.addCloseable(new TcpReplicator(result, result, tcpReplicatorBuilder, entrySize(),
+                result.deltaReplication()));
     }
 
     public SharedHashMapBuilder timeProvider(TimeProvider timeProvider) {
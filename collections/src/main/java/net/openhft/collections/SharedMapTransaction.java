@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * A set of puts and removes, which are applied to a {@link SharedHashMap} together. <p/> <p>Nothing is
+ * applied until {@link #commit()}. On commit, the locks of all segments touched by the transaction are
+ * acquired in the order of segment indexes (so concurrent transactions can't deadlock), then all
+ * operations are applied, grouped by segment, and then the locks are released. If an operation fails, the
+ * previous values of the keys are restored before the locks are released, so either all or none of the
+ * operations are applied. Other operations on these segments, in this or other processes, see the keys of
+ * a segment either before or after the transaction. <p/> <p>A transaction is not thread safe and can be
+ * committed only once.
+ *
+ * @see SharedHashMapBuilder#transactional(boolean)
+ * @see SharedHashMap#startTransaction()
+ */
+public interface SharedMapTransaction<K, V> {
+
+    /**
+     * Adds a put of the key and value to this transaction.
+     *
+     * @return this transaction back
+     */
+    SharedMapTransaction<K, V> put(K key, V value);
+
+    /**
+     * Adds a remove of the key to this transaction.
+     *
+     * @return this transaction back
+     */
+    SharedMapTransaction<K, V> remove(K key);
+
+    /**
+     * @return the number of operations added to this transaction
+     */
+    int size();
+
+    /**
+     * Applies all the operations of this transaction to the map. <p/> <p>If an operation fails (e. g.
+     * a segment is full), the operations applied are undone, and the exception is thrown after all the
+     * locks are released.
+     *
+     * @throws IllegalStateException if the transaction was already committed or rolled back
+     */
+    void commit();
+
+    /**
+     * Discards all the operations of this transaction.
+     */
+    void rollback();
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.collection.DirectBitSet;
+import net.openhft.lang.collection.SingleThreadedDirectBitSet;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+import java.nio.ByteOrder;
+
+/**
+ * {@link IntIntMultiMap} probing groups of 8 slots at once, in the style of Swiss tables. <p/> <p>Each slot
+ * has a control byte, holding 7 bits of the mixed key (the tag), or a mark of an empty or a deleted slot.
+ * Control bytes of a group are read as a single long and compared with the searched tag with SWAR
+ * arithmetic, so only slots with matching tags are read. Groups are probed quadratically, the search stops
+ * at the first group with an empty slot. Removed slots become deleted marks (tombstones), unless there is an
+ * empty slot in the group, tombstones are cleaned by rehashing in place when they take more than 1/8 of
+ * slots. <p/> <p>The layout is: header, control bytes, slots of 32-bit keys and values. Zeroed memory is
+ * an empty map.
+ */
+class SwissIntIntMultiMap implements IntIntMultiMap {
+
+    /**
+     * @param minCapacity as in {@link #SwissIntIntMultiMap(int)} constructor
+     * @return size of {@link Bytes} to provide to {@link #SwissIntIntMultiMap(Bytes, Bytes)} constructor as
+     * the first argument
+     */
+    public static long sizeInBytes(int minCapacity) {
+        int capacity = Maths.nextPower2(minCapacity, 16);
+        return slotPos(capacity, capacity);
+    }
+
+    /**
+     * @param minCapacity as in {@link #SwissIntIntMultiMap(int)} constructor
+     * @return size of {@link Bytes} to provide to {@link #SwissIntIntMultiMap(Bytes, Bytes)} constructor as
+     * the second argument
+     */
+    public static long sizeOfBitSetInBytes(int minCapacity) {
+        return Maths.nextPower2(minCapacity, 64L) / 8L;
+    }
+
+    private static final int HEADER_SIZE = 64;
+    private static final int DELETED_COUNT_OFFSET = 0; // 32-bit
+
+    private static final int GROUP_SIZE = 8;
+    private static final int GROUP_SIZE_SHIFT = 3;
+    private static final int SLOT_SIZE_SHIFT = 3;
+
+    // control bytes
+    private static final byte EMPTY = 0;
+    private static final byte DELETED = 1;
+    private static final int FULL_BIT = 0x80;
+
+    private static final long LSBS = 0x0101010101010101L;
+    private static final long MSBS = 0x8080808080808080L;
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private static final int UNSET_VALUE = Integer.MIN_VALUE;
+
+    private static long slotPos(int slot, int capacity) {
+        return HEADER_SIZE + capacity + (((long) slot) << SLOT_SIZE_SHIFT);
+    }
+
+    private static int mix(int key) {
+        return key * 0x9E3779B9;
+    }
+
+    private static int tag(int mixed) {
+        return (mixed >>> 25) | FULL_BIT;
+    }
+
+    /**
+     * @return the mask with the highest bit set in each byte of the group equal to zero
+     */
+    private static long zeroBytes(long group) {
+        return ~(((group & LOW_7_BITS) + LOW_7_BITS) | group | LOW_7_BITS);
+    }
+
+    /**
+     * @return the index of the byte in the group, of the first bit in the mask, in memory order
+     */
+    private static int firstIndex(long mask) {
+        return (LITTLE_ENDIAN ? Long.numberOfTrailingZeros(mask) : Long.numberOfLeadingZeros(mask))
+                >>> GROUP_SIZE_SHIFT;
+    }
+
+    private static long removeFirst(long mask) {
+        return LITTLE_ENDIAN ? mask & (mask - 1) : mask & ~Long.highestOneBit(mask);
+    }
+
+    private final int capacity;
+    private final int groupsMask;
+    private final Bytes bytes;
+    final DirectBitSet positions;
+
+    public SwissIntIntMultiMap(int minCapacity) {
+        if (minCapacity < 0)
+            throw new IllegalArgumentException();
+        capacity = Maths.nextPower2(minCapacity, 16);
+        groupsMask = (capacity >>> GROUP_SIZE_SHIFT) - 1;
+        bytes = DirectStore.allocateLazy(sizeInBytes(capacity)).bytes();
+        positions = VanillaIntIntMultiMap.newPositions(capacity);
+        clear();
+    }
+
+    public SwissIntIntMultiMap(Bytes multiMapBytes, Bytes multiMapBitSetBytes) {
+        // 1 control byte and 8 bytes of the slot per entry
+        capacity = (int) ((multiMapBytes.capacity() - HEADER_SIZE) / (1 + (1 << SLOT_SIZE_SHIFT)));
+        assert capacity == Maths.nextPower2(capacity, 16);
+        groupsMask = (capacity >>> GROUP_SIZE_SHIFT) - 1;
+        this.bytes = multiMapBytes;
+        positions = new SingleThreadedDirectBitSet(multiMapBitSetBytes);
+    }
+
+    private long readGroup(int group) {
+        return bytes.readLong(HEADER_SIZE + (((long) group) << GROUP_SIZE_SHIFT));
+    }
+
+    private byte control(int slot) {
+        return bytes.readByte(HEADER_SIZE + slot);
+    }
+
+    private void setControl(int slot, int control) {
+        bytes.writeByte(HEADER_SIZE + slot, control);
+    }
+
+    private long readSlot(int slot) {
+        return bytes.readLong(slotPos(slot, capacity));
+    }
+
+    private void writeSlot(int slot, int key, int value) {
+        writeSlot(slot, (((long) key) << 32) | (value & 0xFFFFFFFFL));
+    }
+
+    private void writeSlot(int slot, long entry) {
+        bytes.writeLong(slotPos(slot, capacity), entry);
+    }
+
+    /**
+     * @return the slot of the key and value, or -1 if not found
+     */
+    private int findSlot(int key, int value) {
+        int mixed = mix(key);
+        long tags = LSBS * tag(mixed);
+        int group = mixed & groupsMask;
+        for (int step = 0; step <= groupsMask; ) {
+            long controls = readGroup(group);
+            for (long m = zeroBytes(controls ^ tags); m != 0; m = removeFirst(m)) {
+                int slot = (group << GROUP_SIZE_SHIFT) + firstIndex(m);
+                long entry = readSlot(slot);
+                if ((int) (entry >> 32) == key && (int) entry == value)
+                    return slot;
+            }
+            if (zeroBytes(controls) != 0)
+                return -1;
+            group = (group + ++step) & groupsMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first empty or deleted slot in the probe sequence of the mixed key
+     */
+    private int findInsertSlot(int mixed) {
+        int group = mixed & groupsMask;
+        for (int step = 0; step <= groupsMask; ) {
+            long notFull = ~readGroup(group) & MSBS;
+            if (notFull != 0)
+                return (group << GROUP_SIZE_SHIFT) + firstIndex(notFull);
+            group = (group + ++step) & groupsMask;
+        }
+        throw new IllegalStateException(getClass().getSimpleName() + " is full");
+    }
+
+    private void insert(int key, int value) {
+        int deleted = bytes.readInt(DELETED_COUNT_OFFSET);
+        if (deleted > capacity >>> 3) {
+            rehashInPlace();
+            deleted = 0;
+        }
+        int mixed = mix(key);
+        int slot = findInsertSlot(mixed);
+        if (control(slot) == DELETED)
+            bytes.writeInt(DELETED_COUNT_OFFSET, deleted - 1);
+        setControl(slot, tag(mixed));
+        writeSlot(slot, key, value);
+        positions.set(value);
+    }
+
+    private void removeSlot(int slot) {
+        // If there is an empty slot in the group, no search continued past this group,
+        // so the slot could be marked empty
+        if (zeroBytes(readGroup(slot >>> GROUP_SIZE_SHIFT)) != 0) {
+            setControl(slot, EMPTY);
+        } else {
+            setControl(slot, DELETED);
+            bytes.writeInt(DELETED_COUNT_OFFSET, bytes.readInt(DELETED_COUNT_OFFSET) + 1);
+        }
+    }
+
+    /**
+     * Drops tombstones without resizing: all full slots are marked deleted and all deleted slots empty, then
+     * each "deleted" entry is moved to the first not full group in its probe sequence, swapping with not yet
+     * moved entries.
+     */
+    private void rehashInPlace() {
+        for (int group = 0; group <= groupsMask; group++) {
+            long pos = HEADER_SIZE + (((long) group) << GROUP_SIZE_SHIFT);
+            bytes.writeLong(pos, (bytes.readLong(pos) >>> 7) & LSBS);
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            if (control(slot) != DELETED)
+                continue;
+            long entry = readSlot(slot);
+            int mixed = mix((int) (entry >> 32));
+            int target = findInsertSlot(mixed);
+            if ((target >>> GROUP_SIZE_SHIFT) == (slot >>> GROUP_SIZE_SHIFT)) {
+                setControl(slot, tag(mixed));
+            } else if (control(target) == EMPTY) {
+                setControl(target, tag(mixed));
+                writeSlot(target, entry);
+                setControl(slot, EMPTY);
+            } else {
+                // swap with the entry not moved yet, and process it on the next iteration
+                setControl(target, tag(mixed));
+                writeSlot(slot, readSlot(target));
+                writeSlot(target, entry);
+                slot--;
+            }
+        }
+        bytes.writeInt(DELETED_COUNT_OFFSET, 0);
+    }
+
+    @Override
+    public void put(int key, int value) {
+        if (findSlot(key, value) < 0)
+            insert(key, value);
+    }
+
+    @Override
+    public boolean remove(int key, int value) {
+        int slot = findSlot(key, value);
+        if (slot < 0)
+            return false;
+        positions.clear(value);
+        removeSlot(slot);
+        return true;
+    }
+
+    @Override
+    public boolean replace(int key, int oldValue, int newValue) {
+        int slot = findSlot(key, oldValue);
+        if (slot < 0)
+            return false;
+        positions.clear(oldValue);
+        positions.set(newValue);
+        writeSlot(slot, key, newValue);
+        return true;
+    }
+
+    /////////////////////
+    // Stateful methods
+
+    private int searchHash = -1;
+    private long searchTags;
+    private int searchGroup;
+    private int searchStep;
+    private long searchControls;
+    private long searchMatches;
+    private int prevSlot = -1;
+
+    @Override
+    public int startSearch(int key) {
+        int mixed = mix(key);
+        searchTags = LSBS * tag(mixed);
+        searchGroup = mixed & groupsMask;
+        searchStep = 0;
+        searchControls = readGroup(searchGroup);
+        searchMatches = zeroBytes(searchControls ^ searchTags);
+        prevSlot = -1;
+        return searchHash = key;
+    }
+
+    @Override
+    public int nextPos() {
+        while (true) {
+            while (searchMatches != 0) {
+                int slot = (searchGroup << GROUP_SIZE_SHIFT) + firstIndex(searchMatches);
+                searchMatches = removeFirst(searchMatches);
+                long entry = readSlot(slot);
+                if ((int) (entry >> 32) == searchHash) {
+                    prevSlot = slot;
+                    return (int) entry;
+                }
+            }
+            if (zeroBytes(searchControls) != 0 || searchStep == groupsMask)
+                return UNSET_VALUE;
+            searchGroup = (searchGroup + ++searchStep) & groupsMask;
+            searchControls = readGroup(searchGroup);
+            searchMatches = zeroBytes(searchControls ^ searchTags);
+        }
+    }
+
+    @Override
+    public void removePrevPos() {
+        positions.clear((int) readSlot(prevSlot));
+        removeSlot(prevSlot);
+    }
+
+    @Override
+    public void replacePrevPos(int newValue) {
+        positions.clear((int) readSlot(prevSlot));
+        positions.set(newValue);
+        writeSlot(prevSlot, searchHash, newValue);
+    }
+
+    @Override
+    public void putAfterFailedSearch(int value) {
+        insert(searchHash, value);
+    }
+
+    public int getSearchHash() {
+        return searchHash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        for (int slot = 0; slot < capacity; slot++) {
+            if (control(slot) < 0) {
+                long entry = readSlot(slot);
+                sb.append((int) (entry >> 32)).append('=').append((int) entry).append(", ");
+            }
+        }
+        if (sb.length() > 2) {
+            sb.setLength(sb.length() - 2);
+            return sb.append(" }").toString();
+        }
+        return "{ }";
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        for (int slot = 0; slot < capacity; slot++) {
+            // full slots have the highest bit set
+            if (control(slot) < 0) {
+                long entry = readSlot(slot);
+                action.accept((int) (entry >> 32), (int) entry);
+            }
+        }
+    }
+
+    /**
+     * @return the number of groups probed before the group of the slot
+     */
+    private int probeLength(int slot) {
+        int group = mix((int) (readSlot(slot) >> 32)) & groupsMask;
+        int slotGroup = slot >>> GROUP_SIZE_SHIFT;
+        int step = 0;
+        while (group != slotGroup && step <= groupsMask)
+            group = (group + ++step) & groupsMask;
+        return step;
+    }
+
+    @Override
+    public int maxProbeLength() {
+        int max = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (control(slot) < 0)
+                max = Math.max(max, probeLength(slot));
+        }
+        return max;
+    }
+
+    @Override
+    public double meanProbeLength() {
+        long sum = 0;
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (control(slot) < 0) {
+                sum += probeLength(slot);
+                count++;
+            }
+        }
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    @Override
+    public DirectBitSet getPositions() {
+        return positions;
+    }
+
+    @Override
+    public void clear() {
+        positions.clear();
+        bytes.zeroOut(0, HEADER_SIZE + capacity);
+    }
+}
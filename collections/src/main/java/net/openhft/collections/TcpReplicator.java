@@ -18,8 +18,11 @@
 
 package net.openhft.collections;
 
+import net.openhft.lang.io.AbstractBytes;
 import net.openhft.lang.io.ByteBufferBytes;
 import net.openhft.lang.model.constraints.NotNull;
+import net.openhft.lang.model.constraints.Nullable;
+import net.openhft.lang.thread.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,20 +31,46 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayDeque;
 import java.util.BitSet;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.nio.channels.SelectionKey.*;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static net.openhft.collections.Replica.EntryExternalizable;
+import static net.openhft.collections.Replica.HeldSegmentLock;
 import static net.openhft.collections.Replica.ModificationIterator;
+import static net.openhft.collections.VanillaSharedReplicatedHashMap.DIGEST_BUCKETS;
 
 /**
  * Used with a {@see net.openhft.collections.ReplicatedSharedHashMap} to send data between the maps using a
- * socket connection <p/> {@see net.openhft.collections.OutSocketReplicator}
+ * socket connection <p/> {@see net.openhft.collections.OutSocketReplicator} <p/> <p>After the hand shaking,
+ * the entries are sent in frames of {@code [unsigned short entryCount]} followed by {@code entryCount} times
+ * {@code [unsigned short entrySize][entry]}. The entries of a frame are taken from the modification iterator a
+ * segment at a time, under a single acquisition of the segment lock. A frame of zero entries is a heartbeat.
+ * <p/> <p>If both nodes enable {@link TcpReplicatorBuilder#compression(boolean) compression}, everything
+ * after the hand shaking is sent in blocks of {@code [int rawLength][int compressedLength][LZ4 block]}, each
+ * holding the whole contents of the writer's buffer. A block of the same compressed and raw lengths is stored
+ * uncompressed. Each node sends the capacity of its writer's buffer in the hand shaking, so the reader's
+ * buffer holds the largest block of the remote node, whatever its packet size.
+ * <p/> <p>If both maps enable {@link SharedHashMapBuilder#deltaReplication(boolean) delta replication}, the
+ * entries may be sent as deltas of their values. A delta which the remote node couldn't apply is sent back in a
+ * frame with the entry count of {@code 0xFFFF}, the entry is sent in full then.
+ * <p/> <p>If both maps keep {@link SharedHashMapBuilder#digestBootstrap(boolean) digests} of the same number of
+ * segments, the nodes don't bootstrap each other by the timestamps of the entries. Each node sends the digests
+ * of its segments instead, in frames with the entry count of {@code 0xFFFD}, and answers the digests of the
+ * segments which differ with the digests of their buckets, in frames with the entry count of {@code 0xFFFE}.
+ * A node resends the entries it wrote in the buckets which differ from the remote ones.
+ * <p/> <p>The connections are served by {@link TcpReplicatorBuilder#ioThreads(int) a number of} {@link
+ * IoWorker}s, each running its own selector on its own thread. The server socket is served by the first of
+ * them, the connections are assigned to the workers in turn, and stay with their worker till closed.
  *
  * @author Rob Austin.
  */
@@ -49,20 +78,33 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(TcpReplicator.class.getName());
     private static final int BUFFER_SIZE = 0x100000; // 1MB
+    private static final int MAX_ENTRIES_PER_FRAME = 0xFFFC;
+    // the entry count of a frame, which holds the digests of consecutive segments
+    private static final int SEGMENT_DIGESTS = 0xFFFD;
+    // the entry count of a frame, which holds the digests of the buckets of a segment
+    private static final int BUCKET_DIGESTS = 0xFFFE;
+    // the entry count of a frame, which holds a rejected delta
+    private static final int FULL_ENTRY_REQUEST = 0xFFFF;
+    private static final int MAX_SEGMENT_DIGESTS_PER_FRAME = 256;
+
+    // the flags sent just after the identifier of the node
+    private static final int COMPRESSION_FLAG = 1;
+    private static final int DELTA_FLAG = 2;
+    private static final int DIGEST_FLAG = 4;
+    private static final int SIZE_OF_BLOCK_HEADER = 8;
 
 
     private final Map<SocketAddress, AbstractConnector> connectorBySocket = new ConcurrentHashMap<SocketAddress, AbstractConnector>();
 
-
-    private final SelectionKey[] selectionKeysStore = new SelectionKey[Byte.MAX_VALUE + 1];
-    private final BitSet activeKeys = new BitSet(selectionKeysStore.length);
-
-    // used to instruct the selector thread to set OP_WRITE on a key correlated by the bit index in the
-    // bitset
-    private final KeyInterestUpdater opWriteUpdater = new KeyInterestUpdater(OP_WRITE, selectionKeysStore);
+    private final IoWorker[] ioWorkers;
+    // runs all the workers but the first, which runs on the thread of process()
+    @Nullable
+    private final ExecutorService ioExecutorService;
+    // the worker the next connection is assigned to, only used by the thread of the first worker
+    private int nextIoWorker;
 
     private final long heartBeatInterval;
-    private long selectorTimeout;
+    private volatile long selectorTimeout;
 
     private final InetSocketAddress serverInetSocketAddress;
     private final int packetSize;
@@ -72,6 +114,8 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
     private final byte localIdentifier;
     private final int maxEntrySizeBytes;
     private final EntryExternalizable externalizable;
+    private final boolean compression;
+    private final boolean deltaReplication;
 
 
     /**
@@ -82,16 +126,33 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
      *                             smaller than the size of and entry, if it is set smaller the buffer will
      *                             over flow, it can be larger then the entry, but setting it too large
      *                             reduces the workable space in the buffer.
+     * @param deltaReplication     true if the entries of the map track the changes of their values
      * @throws IOException
      */
     TcpReplicator(@NotNull final Replica replica,
                   @NotNull final EntryExternalizable externalizable,
                   @NotNull final TcpReplicatorBuilder tcpReplicatorBuilder,
-                  final int maxEntrySizeBytes) throws IOException {
+                  final int maxEntrySizeBytes,
+                  final boolean deltaReplication) throws IOException {
 
         super("TcpSocketReplicator-" + replica.identifier(), tcpReplicatorBuilder,
                 maxEntrySizeBytes);
 
+        final int ioThreads = tcpReplicatorBuilder.ioThreads();
+        ioWorkers = new IoWorker[ioThreads];
+        // the bandwidth is shared by the channels of all the workers
+        final Throttler throttler = newThrottler();
+        ioWorkers[0] = new IoWorker(selector, throttler);
+        for (int i = 1; i < ioThreads; i++) {
+            final Selector workerSelector = Selector.open();
+            closeables.add(workerSelector);
+            ioWorkers[i] = new IoWorker(workerSelector, throttler);
+        }
+        ioExecutorService = ioThreads > 1 ?
+                Executors.newFixedThreadPool(ioThreads - 1,
+                        new NamedThreadFactory("TcpSocketReplicator-io-" + replica.identifier(), true)) :
+                null;
+
         serverInetSocketAddress = tcpReplicatorBuilder.serverInetSocketAddress();
 
         heartBeatInterval = tcpReplicatorBuilder.heartBeatInterval(MILLISECONDS);
@@ -106,142 +167,225 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         this.localIdentifier = replica.identifier();
         this.maxEntrySizeBytes = maxEntrySizeBytes;
         this.externalizable = externalizable;
+        this.compression = tcpReplicatorBuilder.compression();
+        this.deltaReplication = deltaReplication;
 
         start();
     }
 
     @Override
     void process() throws IOException {
-        try {
-            final Details serverDetails = new Details(serverInetSocketAddress, localIdentifier);
-            connectorBySocket.put(serverInetSocketAddress, new ServerConnector(serverDetails));
+        final Details serverDetails = new Details(serverInetSocketAddress, localIdentifier);
+        connectorBySocket.put(serverInetSocketAddress, new ServerConnector(serverDetails));
 
-            for (InetSocketAddress client : endpoints) {
-                final Details clientDetails = new Details(client, localIdentifier);
-                connectorBySocket.put(client, new ClientConnector(clientDetails));
-            }
+        for (InetSocketAddress client : endpoints) {
+            final Details clientDetails = new Details(client, localIdentifier);
+            connectorBySocket.put(client, new ClientConnector(clientDetails, nextIoWorker()));
+        }
 
-            for (AbstractConnector connector : connectorBySocket.values()) {
-                connector.connect();
+        for (AbstractConnector connector : connectorBySocket.values()) {
+            connector.connect();
+        }
+
+        for (int i = 1; i < ioWorkers.length; i++) {
+            ioExecutorService.execute(ioWorkers[i]);
+        }
+
+        ioWorkers[0].run();
+    }
+
+    /**
+     * @return the worker to serve the next connection
+     */
+    private IoWorker nextIoWorker() {
+        final IoWorker ioWorker = ioWorkers[nextIoWorker];
+        nextIoWorker = (nextIoWorker + 1) % ioWorkers.length;
+        return ioWorker;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (ioExecutorService != null)
+            ioExecutorService.shutdownNow();
+    }
+
+    /**
+     * A selector, and the thread running it, serving some of the connections with the remote nodes. The
+     * selection keys, and the pending changes of their interest ops, are kept by the worker, so only its own
+     * thread changes them.
+     */
+    private class IoWorker implements Runnable {
+
+        private final Selector selector;
+        @Nullable
+        private final Throttler throttler;
+        private final Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<Runnable>();
+
+        private final SelectionKey[] selectionKeysStore = new SelectionKey[Byte.MAX_VALUE + 1];
+        private final BitSet activeKeys = new BitSet(selectionKeysStore.length);
+
+        // used to instruct the selector thread to set OP_WRITE on a key correlated by the bit index in the
+        // bitset
+        private final KeyInterestUpdater opWriteUpdater;
+
+        private IoWorker(@NotNull final Selector selector, @Nullable final Throttler throttler) {
+            this.selector = selector;
+            this.throttler = throttler;
+            opWriteUpdater = new KeyInterestUpdater(OP_WRITE, selectionKeysStore, throttler);
+        }
+
+        /**
+         * runs the {@code registration} on the thread of this worker, as the channels have to be registered
+         * on the same thread as the selector
+         */
+        void addPendingRegistration(@NotNull final Runnable registration) {
+            pendingRegistrations.add(registration);
+            selector.wakeup();
+        }
+
+        private void registerPendingRegistrations() {
+            for (Runnable runnable = pendingRegistrations.poll(); runnable != null;
+                 runnable = pendingRegistrations.poll()) {
+                try {
+                    runnable.run();
+                } catch (Exception e) {
+                    LOG.info("", e);
+                }
             }
+        }
 
-            while (selector.isOpen()) {
+        void throttle(@NotNull final SelectableChannel channel) {
+            if (throttler != null)
+                throttler.add(channel, selector);
+        }
 
-                registerPendingRegistrations();
+        void closeEarlyAndQuietly(@NotNull final SelectableChannel channel) {
+            if (throttler != null)
+                throttler.remove(channel);
+            TcpReplicator.this.closeEarlyAndQuietly(channel);
+        }
 
-                final int nSelectedKeys = selector.select(selectorTimeout);
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
 
-                // its less resource intensive to set this less frequently and use an approximation
-                final long approxTime = System.currentTimeMillis();
+                    registerPendingRegistrations();
 
-                checkThrottleInterval();
+                    final int nSelectedKeys = selector.select(selectorTimeout);
 
-                // check that we have sent and received heartbeats
-                heartBeatMonitor(approxTime);
+                    // its less resource intensive to set this less frequently and use an approximation
+                    final long approxTime = System.currentTimeMillis();
 
-                // set the OP_WRITE when data is ready to send
-                opWriteUpdater.applyUpdates();
+                    if (throttler != null)
+                        throttler.checkThrottleInterval(selector);
 
-                if (nSelectedKeys == 0)
-                    continue;    // go back and check pendingRegistrations
+                    // check that we have sent and received heartbeats
+                    heartBeatMonitor(approxTime);
 
-                final Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                for (final SelectionKey key : selectionKeys) {
-                    try {
+                    // set the OP_WRITE when data is ready to send
+                    opWriteUpdater.applyUpdates();
 
-                        if (!key.isValid())
-                            continue;
+                    if (nSelectedKeys == 0)
+                        continue;    // go back and check pendingRegistrations
 
-                        if (key.isAcceptable())
-                            onAccept(key);
+                    final Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                    for (final SelectionKey key : selectionKeys) {
+                        try {
 
-                        if (key.isConnectable())
-                            onConnect(key);
+                            if (!key.isValid())
+                                continue;
 
-                        if (key.isReadable())
-                            onRead(key, approxTime);
+                            if (key.isAcceptable())
+                                onAccept(key);
 
-                        if (key.isWritable())
-                            onWrite(key, approxTime);
+                            if (key.isConnectable())
+                                onConnect(key);
 
-                    } catch (CancelledKeyException e) {
-                        quietClose(key, e);
-                    } catch (ClosedSelectorException e) {
-                        quietClose(key, e);
-                    } catch (IOException e) {
-                        quietClose(key, e);
-                    } catch (InterruptedException e) {
-                        quietClose(key, e);
-                    } catch (Exception e) {
-                        LOG.info("", e);
-                        closeEarlyAndQuietly(key.channel());
+                            if (key.isReadable())
+                                onRead(key, approxTime);
+
+                            if (key.isWritable())
+                                onWrite(key, approxTime);
+
+                        } catch (CancelledKeyException e) {
+                            quietClose(key, e);
+                        } catch (ClosedSelectorException e) {
+                            quietClose(key, e);
+                        } catch (IOException e) {
+                            quietClose(key, e);
+                        } catch (InterruptedException e) {
+                            quietClose(key, e);
+                        } catch (Exception e) {
+                            LOG.info("", e);
+                            closeEarlyAndQuietly(key.channel());
+                        }
                     }
+                    selectionKeys.clear();
                 }
-                selectionKeys.clear();
-            }
-        } catch (CancelledKeyException e) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("", e);
-        } catch (ClosedSelectorException e) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("", e);
-        } catch (ClosedChannelException e) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("", e);
-        } catch (ConnectException e) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("", e);
-        } catch (Exception e) {
-            LOG.error("", e);
-        } finally
-
-        {
-            if (selector != null)
+            } catch (CancelledKeyException e) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("", e);
+            } catch (ClosedSelectorException e) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("", e);
+            } catch (ClosedChannelException e) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("", e);
+            } catch (ConnectException e) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("", e);
+            } catch (Exception e) {
+                LOG.error("", e);
+            } finally {
                 try {
                     selector.close();
                 } catch (IOException e) {
                     if (LOG.isDebugEnabled())
                         LOG.debug("", e);
                 }
-            close();
+                TcpReplicator.this.close();
+            }
         }
-    }
 
-    /**
-     * checks that we receive heartbeats and send out heart beats.
-     *
-     * @param approxTime the approximate time in milliseconds
-     */
-    void heartBeatMonitor(long approxTime) {
-        for (int i = activeKeys.nextSetBit(0); i >= 0; i = activeKeys.nextSetBit(i + 1)) {
-            try {
-                final SelectionKey key = selectionKeysStore[i];
-                if (!key.isValid() || !key.channel().isOpen()) {
-                    activeKeys.clear(i);
-                    continue;
-                }
+        /**
+         * checks that we receive heartbeats and send out heart beats.
+         *
+         * @param approxTime the approximate time in milliseconds
+         */
+        void heartBeatMonitor(long approxTime) {
+            for (int i = activeKeys.nextSetBit(0); i >= 0; i = activeKeys.nextSetBit(i + 1)) {
                 try {
-                    sendHeartbeatIfRequired(approxTime, key);
-                } catch (Exception e) {
-                    if (LOG.isDebugEnabled())
-                        LOG.debug("", e);
-                }
+                    final SelectionKey key = selectionKeysStore[i];
+                    if (!key.isValid() || !key.channel().isOpen()) {
+                        ((Attached) key.attachment()).metrics.disconnected();
+                        activeKeys.clear(i);
+                        continue;
+                    }
+                    ((Attached) key.attachment()).metrics.sample(approxTime);
+                    try {
+                        sendHeartbeatIfRequired(approxTime, key);
+                    } catch (Exception e) {
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("", e);
+                    }
+
+                    try {
+                        heartbeatCheckHasReceived(key, approxTime);
+                    } catch (Exception e) {
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("", e);
+                    }
 
-                try {
-                    heartbeatCheckHasReceived(key, approxTime);
                 } catch (Exception e) {
                     if (LOG.isDebugEnabled())
                         LOG.debug("", e);
                 }
-
-            } catch (Exception e) {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("", e);
             }
         }
     }
 
-
     /**
      * check to see if its time to send a heartbeat, and send one if required
      *
@@ -296,10 +440,13 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
             if (LOG.isDebugEnabled())
                 LOG.debug("lost connection, attempting to reconnect. " +
                         "missed heartbeat from identifier=" + attached.remoteIdentifier);
+            attached.metrics.disconnected();
             try {
                 channel.socket().close();
                 channel.close();
-                activeKeys.clear(attached.remoteIdentifier);
+                attached.ioWorker.activeKeys.clear(attached.remoteIdentifier);
+                if (attached.ioWorker.throttler != null)
+                    attached.ioWorker.throttler.remove(channel);
                 closeables.remove(channel);
             } catch (IOException e) {
                 LOG.debug("", e);
@@ -318,7 +465,9 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
     private void quietClose(@NotNull final SelectionKey key, @NotNull final Exception e) {
         if (LOG.isDebugEnabled())
             LOG.debug("", e);
-        closeEarlyAndQuietly(key.channel());
+        final Attached attached = (Attached) key.attachment();
+        attached.metrics.disconnected();
+        attached.ioWorker.closeEarlyAndQuietly(key.channel());
     }
 
     final AtomicBoolean forceBootstrap = new AtomicBoolean();
@@ -356,14 +505,15 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
 
             serverSocket.bind(details.address());
 
-            // these can be run on this thread
-            addPendingRegistration(new Runnable() {
+            // the server socket is served by the first worker
+            final IoWorker ioWorker = ioWorkers[0];
+            ioWorker.addPendingRegistration(new Runnable() {
                 @Override
                 public void run() {
-                    final Attached attached = new Attached();
+                    final Attached attached = new Attached(ioWorker);
                     attached.connector = ServerConnector.this;
                     try {
-                        serverChannel.register(TcpReplicator.this.selector, OP_ACCEPT, attached);
+                        serverChannel.register(ioWorker.selector, OP_ACCEPT, attached);
                     } catch (ClosedChannelException e) {
                         LOG.error("", e);
                     }
@@ -371,8 +521,6 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
                 }
             });
 
-            selector.wakeup();
-
             return serverChannel;
         }
     }
@@ -381,10 +529,13 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
     private class ClientConnector extends AbstractConnector {
 
         private final Details details;
+        // the worker serving the connection, whenever it's reconnected
+        private final IoWorker ioWorker;
 
-        private ClientConnector(@NotNull Details details) {
+        private ClientConnector(@NotNull Details details, @NotNull IoWorker ioWorker) {
             super("TCP-ClientConnector-" + details.localIdentifier());
             this.details = details;
+            this.ioWorker = ioWorker;
         }
 
 
@@ -420,15 +571,15 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
                 Thread.sleep(10);
 
                 // the registration has be be run on the same thread as the selector
-                addPendingRegistration(new Runnable() {
+                ioWorker.addPendingRegistration(new Runnable() {
                     @Override
                     public void run() {
 
-                        final Attached attached = new Attached();
+                        final Attached attached = new Attached(ioWorker);
                         attached.connector = ClientConnector.this;
 
                         try {
-                            socketChannel.register(selector, OP_CONNECT, attached);
+                            socketChannel.register(ioWorker.selector, OP_CONNECT, attached);
                         } catch (ClosedChannelException e) {
                             if (socketChannel.isOpen())
                                 LOG.error("", e);
@@ -437,7 +588,6 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
                     }
                 });
 
-                selector.wakeup();
                 success = true;
                 return socketChannel;
 
@@ -488,15 +638,16 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         channel.socket().setSoTimeout(0);
         channel.socket().setSoLinger(false, 0);
 
-        attached.entryReader = new TcpSocketChannelEntryReader();
+        attached.entryReader = new TcpSocketChannelEntryReader(attached);
         attached.entryWriter = new TcpSocketChannelEntryWriter();
 
         key.interestOps(OP_WRITE | OP_READ);
 
-        throttle(channel);
+        attached.ioWorker.throttle(channel);
 
         // register it with the selector and store the ModificationIterator for this key
         attached.entryWriter.identifierToBuffer(localIdentifier);
+        attached.entryWriter.flagsToBuffer();
     }
 
     /**
@@ -512,21 +663,34 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         channel.socket().setSoTimeout(0);
         channel.socket().setSoLinger(false, 0);
 
-        final Attached attached = new Attached();
-        channel.register(selector, OP_WRITE | OP_READ, attached);
+        // the connection is served by the next worker, from now on
+        final IoWorker ioWorker = nextIoWorker();
+        final Attached attached = new Attached(ioWorker);
 
-        throttle(channel);
-
-        attached.entryReader = new TcpSocketChannelEntryReader();
+        attached.entryReader = new TcpSocketChannelEntryReader(attached);
         attached.entryWriter = new TcpSocketChannelEntryWriter();
 
         attached.isServer = true;
         attached.entryWriter.identifierToBuffer(localIdentifier);
+        attached.entryWriter.flagsToBuffer();
+
+        ioWorker.addPendingRegistration(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(ioWorker.selector, OP_WRITE | OP_READ, attached);
+                    ioWorker.throttle(channel);
+                } catch (ClosedChannelException e) {
+                    if (channel.isOpen())
+                        LOG.error("", e);
+                }
+            }
+        });
     }
 
 
     /**
-     * used to exchange identifiers and timestamps and heartbeat intervals between the server and client
+     * used to exchange identifiers, flags, timestamps and heartbeat intervals between the server and client
      *
      * @param key the SelectionKey relating to the this cha
      * @throws java.io.IOException
@@ -549,8 +713,8 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
 
             // we use the as iterating the activeKeys via the bitset wont create and Objects
             // but if we use the selector.keys() this will.
-            selectionKeysStore[remoteIdentifier] = key;
-            activeKeys.set(remoteIdentifier);
+            attached.ioWorker.selectionKeysStore[remoteIdentifier] = key;
+            attached.ioWorker.activeKeys.set(remoteIdentifier);
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug("server-connection id={}, remoteIdentifier={}",
@@ -564,13 +728,43 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
                         "please change either this maps identifier or the remote one");
             }
 
-            attached.remoteModificationIterator = replica.acquireModificationIterator(remoteIdentifier,
-                    attached);
+            attached.metrics.remoteIdentifier(remoteIdentifier);
+            peerMetrics(remoteIdentifier, attached.metrics);
 
-            writer.writeRemoteBootstrapTimestamp(replica.lastModificationTime(remoteIdentifier));
+            if (attached.ioWorker.throttler != null)
+                attached.ioWorker.throttler.weight(key.channel(), throttleWeight(remoteIdentifier));
+        }
+
+        if (attached.remoteFlags == -1) {
+            final int remoteFlags = reader.flagsFromBuffer();
+
+            if (remoteFlags == -1)
+                return;
+
+            attached.remoteFlags = remoteFlags;
+            attached.compressed = compression && (remoteFlags & COMPRESSION_FLAG) != 0;
+            writer.entryCallback.deltas(deltaReplication && (remoteFlags & DELTA_FLAG) != 0);
+
+            writer.writeRemoteBootstrapTimestamp(replica.lastModificationTime(attached.remoteIdentifier));
 
             // tell the remote node, what are heartbeat interval is
             writer.writeRemoteHeartbeatInterval(heartBeatInterval);
+
+            // and the number of segments, our digests are kept for
+            if (replica.digestSegments() > 0)
+                writer.writeDigestSegments(replica.digestSegments());
+
+            // and the largest block we compress, which depends on our packet size
+            if (compression)
+                writer.writeBlockSize();
+
+            // the rest of the data, starting with the entries, goes compressed
+            if (attached.compressed)
+                writer.enableCompression();
+
+            attached.remoteModificationIterator = replica.acquireModificationIterator(
+                    attached.remoteIdentifier, attached);
+            attached.metrics.modificationIterator(attached.remoteModificationIterator);
         }
 
         if (attached.remoteBootstrapTimestamp == Long.MIN_VALUE) {
@@ -602,12 +796,44 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
                 LOG.info("");
 
             attached.hasRemoteHeartbeatInterval = true;
+        }
 
-            // now we're finished we can get on with reading the entries
-            attached.setHandShakingComplete();
+        if (attached.remoteDigestSegments == -1) {
+            if ((attached.remoteFlags & DIGEST_FLAG) != 0) {
+                final int remoteDigestSegments = reader.digestSegmentsFromBuffer();
+                if (remoteDigestSegments == -1)
+                    return;
+                attached.remoteDigestSegments = remoteDigestSegments;
+            } else {
+                attached.remoteDigestSegments = 0;
+            }
+        }
+
+        if (attached.remoteBlockSize == -1) {
+            if ((attached.remoteFlags & COMPRESSION_FLAG) != 0) {
+                final int remoteBlockSize = reader.blockSizeFromBuffer();
+                if (remoteBlockSize == -1)
+                    return;
+                attached.remoteBlockSize = remoteBlockSize;
+            } else {
+                attached.remoteBlockSize = 0;
+            }
+        }
+
+        if (attached.compressed)
+            reader.enableCompression(attached.remoteBlockSize);
+
+        // now we're finished we can get on with reading the entries
+        attached.setHandShakingComplete();
+        attached.metrics.connected(System.currentTimeMillis());
+        if (replica.digestSegments() > 0 && attached.remoteDigestSegments == replica.digestSegments()) {
+            // the entries which differ are found by the digests
+            writer.segmentDigestsToSend();
+            attached.onChange();
+        } else {
             attached.remoteModificationIterator.dirtyEntries(attached.remoteBootstrapTimestamp);
-            reader.entriesFromBuffer();
         }
+        reader.entriesFromBuffer();
     }
 
     /**
@@ -618,6 +844,12 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         final SocketChannel socketChannel = (SocketChannel) key.channel();
         final Attached attached = (Attached) key.attachment();
 
+        // the bytes of the interval may have been used up by the channels of the other workers
+        if (attached.ioWorker.throttler != null && !attached.ioWorker.throttler.canWrite(socketChannel)) {
+            key.interestOps(key.interestOps() & ~OP_WRITE);
+            return;
+        }
+
         if (attached.remoteModificationIterator != null)
             attached.entryWriter.entriesToBuffer(attached.remoteModificationIterator, key);
 
@@ -625,7 +857,11 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
             int bytesJustWritten = attached.entryWriter.writeBufferToSocket(socketChannel,
                     approxTime);
 
-            contemplateThrottleWrites(bytesJustWritten);
+            if (attached.ioWorker.throttler != null)
+                attached.ioWorker.throttler.contemplateThrottleWrites(socketChannel, bytesJustWritten);
+
+            attached.metrics.bytesSent(bytesJustWritten);
+            attached.metrics.bytesQueued(attached.entryWriter.bytesQueued());
 
         } catch (IOException e) {
             quietClose(key, e);
@@ -645,9 +881,11 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         final Attached attached = (Attached) key.attachment();
 
         try {
-            if (attached.entryReader.readSocketToBuffer(socketChannel) <= 0)
+            final int len = attached.entryReader.readSocketToBuffer(socketChannel);
+            if (len <= 0)
                 return;
 
+            attached.metrics.bytesReceived(len, approxTime);
         } catch (IOException e) {
             if (!attached.isServer)
                 attached.connector.connectLater();
@@ -672,6 +910,9 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
      */
     class Attached implements Replica.ModificationNotifier {
 
+        // the worker serving the channel
+        final IoWorker ioWorker;
+
         public TcpSocketChannelEntryReader entryReader;
         public TcpSocketChannelEntryWriter entryWriter;
 
@@ -682,6 +923,15 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
 
         public byte remoteIdentifier = Byte.MIN_VALUE;
 
+        // -1 until received from the remote node
+        public int remoteFlags = -1;
+        // the number of segments the remote node keeps digests for, -1 until received from the remote node
+        public int remoteDigestSegments = -1;
+        // the largest block the remote node compresses, -1 until received from the remote node
+        public int remoteBlockSize = -1;
+        // true if both nodes enabled compression
+        public boolean compressed;
+
         // the frequency the remote node will send a heartbeat
         public long remoteHeartbeatInterval = heartBeatInterval;
         public boolean hasRemoteHeartbeatInterval;
@@ -690,6 +940,12 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         // true if its socket is a ServerSocket
         public boolean isServer;
 
+        final VanillaPeerReplicationMetrics metrics = new VanillaPeerReplicationMetrics("tcp", localIdentifier);
+
+        Attached(@NotNull final IoWorker ioWorker) {
+            this.ioWorker = ioWorker;
+        }
+
         boolean isHandShakingComplete() {
             return handShakingComplete;
         }
@@ -706,9 +962,9 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         public void onChange() {
 
             if (remoteIdentifier != Byte.MIN_VALUE)
-                TcpReplicator.this.opWriteUpdater.set(remoteIdentifier);
+                ioWorker.opWriteUpdater.set(remoteIdentifier);
 
-            selector.wakeup();
+            ioWorker.selector.wakeup();
         }
 
     }
@@ -723,11 +979,41 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         private final ByteBufferBytes in;
         private final EntryCallback entryCallback;
         private long lastSentTime;
+        // the number of entries in the frame being written
+        private int frameEntries;
+
+        // if compressed, the block being written to the socket, and its compressor
+        private ByteBuffer blockOut;
+        private ByteBufferBytes blockIn;
+        private LZ4 lz4;
+        // the length of the hand shaking data at the start of the buffer, which is sent uncompressed
+        private int uncompressedPrefix;
+        // the deltas rejected by this node, to send back
+        private final ArrayDeque<byte[]> fullEntryRequests = new ArrayDeque<byte[]>();
+        // the next segment to send the digest of, -1 if the digests of the segments are not to be sent
+        private int nextSegmentDigest = -1;
+        // the segments which digests differ from the remote ones, to send the digests of the buckets of
+        private final ArrayDeque<Integer> bucketDigestRequests = new ArrayDeque<Integer>();
+        private final long[] bucketDigests = new long[DIGEST_BUCKETS];
 
         private TcpSocketChannelEntryWriter() {
             out = ByteBuffer.allocateDirect(packetSize + maxEntrySizeBytes);
             in = new ByteBufferBytes(out);
-            entryCallback = new EntryCallback(externalizable, in);
+            entryCallback = new EntryCallback(externalizable, in) {
+                @Override
+                public boolean onEntry(AbstractBytes entry, int chronicleId) {
+                    if (!super.onEntry(entry, chronicleId))
+                        return false;
+                    frameEntries++;
+                    return true;
+                }
+
+                @Override
+                public boolean canAcceptMore() {
+                    return frameEntries < MAX_ENTRIES_PER_FRAME &&
+                            TcpSocketChannelEntryWriter.this.in.remaining() > maxEntrySizeBytes;
+                }
+            };
         }
 
 
@@ -740,6 +1026,117 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
             in.writeByte(localIdentifier);
         }
 
+        /**
+         * writes the features requested by this node into the buffer
+         */
+        void flagsToBuffer() {
+            in.writeByte((compression ? COMPRESSION_FLAG : 0) | (deltaReplication ? DELTA_FLAG : 0) |
+                    (replica.digestSegments() > 0 ? DIGEST_FLAG : 0));
+        }
+
+        /**
+         * compresses all the data written to the buffer from now on
+         */
+        void enableCompression() {
+            uncompressedPrefix = (int) in.position();
+            int capacity = SIZE_OF_BLOCK_HEADER + uncompressedPrefix + LZ4.maxCompressedLength(in.capacity());
+            blockOut = ByteBuffer.allocateDirect(capacity);
+            blockIn = new ByteBufferBytes(blockOut);
+            blockOut.limit(0);
+            lz4 = new LZ4();
+        }
+
+        /**
+         * @return true if there is data which is not written to the socket yet
+         */
+        boolean hasPendingData() {
+            return in.position() > 0 || (blockOut != null && blockOut.hasRemaining()) ||
+                    !fullEntryRequests.isEmpty() || !bucketDigestRequests.isEmpty() ||
+                    (nextSegmentDigest >= 0 && nextSegmentDigest < replica.digestSegments());
+        }
+
+        /**
+         * @return the number of bytes written to the buffer, but not to the socket yet
+         */
+        long bytesQueued() {
+            return in.position() + (blockOut != null ? blockOut.remaining() : 0);
+        }
+
+        /**
+         * sends the digests of all the segments, once the hand shaking is complete
+         */
+        void segmentDigestsToSend() {
+            nextSegmentDigest = 0;
+        }
+
+        /**
+         * queues the digests of the buckets of a segment, which digest differs from the remote one, to be sent
+         */
+        void bucketDigestRequest(final int segment) {
+            bucketDigestRequests.add(segment);
+        }
+
+        /**
+         * writes the queued digests of the buckets, then the digests of the segments, while they fit the buffer
+         */
+        private void digestsToBuffer() {
+            final int bucketDigestsSize = 4 + 8 * DIGEST_BUCKETS;
+            for (Integer segment; (segment = bucketDigestRequests.peek()) != null; ) {
+                if (in.remaining() < SIZE_OF_SHORT + SIZE_OF_SHORT + bucketDigestsSize)
+                    return;
+                replica.bucketDigests(segment, bucketDigests);
+                in.writeUnsignedShort(BUCKET_DIGESTS);
+                in.writeUnsignedShort(bucketDigestsSize);
+                in.writeInt(segment);
+                for (long digest : bucketDigests)
+                    in.writeLong(digest);
+                bucketDigestRequests.poll();
+            }
+
+            final int segments = replica.digestSegments();
+            while (nextSegmentDigest >= 0 && nextSegmentDigest < segments) {
+                final long fits = (in.remaining() - SIZE_OF_SHORT - SIZE_OF_SHORT - 4) / 8;
+                final int count = (int) Math.min(Math.min(segments - nextSegmentDigest,
+                        MAX_SEGMENT_DIGESTS_PER_FRAME), fits);
+                if (count <= 0)
+                    return;
+                in.writeUnsignedShort(SEGMENT_DIGESTS);
+                in.writeUnsignedShort(4 + 8 * count);
+                in.writeInt(nextSegmentDigest);
+                for (int i = 0; i < count; i++)
+                    in.writeLong(replica.segmentDigest(nextSegmentDigest + i));
+                nextSegmentDigest += count;
+            }
+        }
+
+        /**
+         * queues a delta, which this node couldn't apply, to be sent back to the remote node
+         *
+         * @param source the buffer holding the delta
+         * @param start  the position of the delta in the {@code source}
+         * @param size   the size of the delta
+         */
+        void fullEntryRequest(@NotNull final ByteBufferBytes source, final long start, final int size) {
+            final byte[] rejectedDelta = new byte[size];
+            for (int i = 0; i < size; i++)
+                rejectedDelta[i] = source.readByte(start + i);
+            fullEntryRequests.add(rejectedDelta);
+        }
+
+        /**
+         * writes the queued full entry requests, while they fit the buffer
+         */
+        private void fullEntryRequestsToBuffer() {
+            for (byte[] rejectedDelta; (rejectedDelta = fullEntryRequests.peek()) != null; ) {
+                if (in.remaining() < SIZE_OF_SHORT + SIZE_OF_SHORT + rejectedDelta.length)
+                    return;
+                in.writeUnsignedShort(FULL_ENTRY_REQUEST);
+                in.writeUnsignedShort(rejectedDelta.length);
+                in.write(rejectedDelta);
+                fullEntryRequests.poll();
+            }
+        }
+
         /**
          * sends the identity and timestamp of this node to a remote node
          *
@@ -750,7 +1147,8 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         }
 
         /**
-         * writes all the entries that have changed, to the buffer which will later be written to TCP/IP
+         * writes a frame of the entries that have changed, to the buffer which will later be written to
+         * TCP/IP
          *
          * @param modificationIterator a record of which entries have modification
          * @param selectionKey
@@ -765,28 +1163,40 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
             // this can occur when new SHM's are added to a cluster
             final boolean handShakingComplete = attached.isHandShakingComplete();
 
-            for (; ; ) {
-
-                final boolean wasDataRead = modificationIterator.nextEntry(entryCallback, 0);
-
-                if (!wasDataRead) {
-
-                    // if we have no more data to write to the socket then we will
-                    // un-register OP_WRITE on the selector, until more data becomes available
-                    if (in.position() == 0 && handShakingComplete)
-                        disableWrite(socketChannel, attached);
+            if (handShakingComplete) {
+                fullEntryRequestsToBuffer();
+                digestsToBuffer();
+            }
 
-                    return;
-                }
+            // we've filled up the buffer lets give another channel a chance to send some data
+            if (in.remaining() <= maxEntrySizeBytes + SIZE_OF_SHORT)
+                return;
 
-                // we've filled up the buffer lets give another channel a chance to send some data
-                if (in.remaining() <= maxEntrySizeBytes)
-                    return;
+            final long frameStart = in.position();
+            in.skip(SIZE_OF_SHORT);
+            frameEntries = 0;
 
+            // takes the entries a segment at a time, while there is space in the buffer
+            while (entryCallback.canAcceptMore() &&
+                    modificationIterator.nextEntries(entryCallback, 0) > 0) {
                 // if we have space in the buffer to write more data and we just wrote data into the
                 // buffer then let try and write some more
             }
 
+            if (frameEntries > 0) {
+                in.writeUnsignedShort(frameStart, frameEntries);
+                attached.metrics.entriesSent(frameEntries);
+                return;
+            }
+
+            in.position(frameStart);
+
+            // if we have no more data to write to the socket then we will
+            // un-register OP_WRITE on the selector, until more data becomes available
+            if (!hasPendingData() && handShakingComplete) {
+                attached.metrics.bootstrapComplete();
+                disableWrite(socketChannel, attached);
+            }
         }
 
         /**
@@ -799,6 +1209,9 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         private int writeBufferToSocket(@NotNull final SocketChannel socketChannel,
                                         final long approxTime) throws IOException {
 
+            if (blockOut != null)
+                return writeBlockToSocket(socketChannel, approxTime);
+
             if (in.position() == 0)
                 return 0;
 
@@ -825,7 +1238,51 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         }
 
         /**
-         * used to send an single zero byte if we have not send any data for up to the localHeartbeatInterval
+         * writes the rest of the last block to the socket, or if it was written, compresses the contents of
+         * the buffer into the next block, so the buffer can be filled again while the block is being written
+         */
+        private int writeBlockToSocket(@NotNull final SocketChannel socketChannel,
+                                       final long approxTime) throws IOException {
+            if (!blockOut.hasRemaining()) {
+                if (in.position() == 0)
+                    return 0;
+
+                blockOut.clear();
+                blockIn.clear();
+                LZ4.copy(in, 0, blockIn, 0, uncompressedPrefix);
+                final long blockStart = uncompressedPrefix;
+                final int rawLength = (int) in.position() - uncompressedPrefix;
+                uncompressedPrefix = 0;
+                if (rawLength > 0) {
+                    final long dataStart = blockStart + SIZE_OF_BLOCK_HEADER;
+                    int compressedLength = lz4.compress(in, blockStart, rawLength, blockIn, dataStart);
+                    if (compressedLength >= rawLength) {
+                        // store incompressible data as it is
+                        LZ4.copy(in, blockStart, blockIn, dataStart, rawLength);
+                        compressedLength = rawLength;
+                    }
+                    blockIn.writeInt(blockStart, rawLength);
+                    blockIn.writeInt(blockStart + 4, compressedLength);
+                    blockOut.limit((int) dataStart + compressedLength);
+                } else {
+                    blockOut.limit((int) blockStart);
+                }
+                blockOut.position(0);
+                in.clear();
+            }
+
+            lastSentTime = approxTime;
+            final int len = socketChannel.write(blockOut);
+
+            if (LOG.isDebugEnabled())
+                LOG.debug("bytes-written=" + len);
+
+            return len;
+        }
+
+        /**
+         * used to send a frame of no entries if we have not send any data for up to the
+         * localHeartbeatInterval
          */
         private void writeHeartbeatToBuffer() {
             in.writeUnsignedShort(0);
@@ -835,6 +1292,17 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
             in.writeLong(localHeartbeatInterval);
         }
 
+        private void writeDigestSegments(int digestSegments) {
+            in.writeInt(digestSegments);
+        }
+
+        /**
+         * writes the capacity of the buffer, which is the largest raw length of a block this node sends
+         */
+        private void writeBlockSize() {
+            in.writeInt((int) in.capacity());
+        }
+
 
         /**
          * removes back in the OP_WRITE from the selector, otherwise it'll spin loop. The OP_WRITE will get
@@ -846,6 +1314,7 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         public synchronized void disableWrite(@NotNull final SocketChannel socketChannel,
                                               @NotNull final Attached attached) {
             try {
+                final Selector selector = attached.ioWorker.selector;
                 SelectionKey key = socketChannel.keyFor(selector);
                 if (key != null) {
                     if (attached.isHandShakingComplete() && selector.isOpen()) {
@@ -869,18 +1338,62 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
      * Reads map entries from a socket, this could be a client or server socket
      */
     private class TcpSocketChannelEntryReader {
-        private final ByteBuffer in;
-        private final ByteBufferBytes out;
+        // replaced by larger ones, if the blocks of the remote node don't fit
+        private ByteBuffer in;
+        private ByteBufferBytes out;
 
         // we use Integer.MIN_VALUE as N/A
         private int sizeOfNextEntry = Integer.MIN_VALUE;
+        // the number of entries of the current frame still to be read
+        private int entriesLeftInFrame = 0;
         public long lastHeartBeatReceived = System.currentTimeMillis();
 
-        private TcpSocketChannelEntryReader() {
-            in = ByteBuffer.allocateDirect(packetSize + maxEntrySizeBytes);
+        // the entries are read from these, the same as in and out unless the connection is compressed
+        private ByteBuffer entriesIn;
+        private ByteBufferBytes entriesOut;
+        // the size of the compressed block, which is not received completely yet
+        private int pendingBlockSize = 0;
+        // the entry count of the control frame being read, or 0 if the frame holds entries
+        private int controlFrame;
+        private final long[] bucketDigests = new long[DIGEST_BUCKETS];
+        private final Attached attached;
+        // consecutive entries of a segment are applied under one acquisition of its lock
+        private final HeldSegmentLock heldLock = new HeldSegmentLock();
+
+        private TcpSocketChannelEntryReader(@NotNull final Attached attached) {
+            this.attached = attached;
+            // a block holds the whole buffer of the remote writer, and its header
+            in = ByteBuffer.allocateDirect(packetSize + maxEntrySizeBytes + SIZE_OF_BLOCK_HEADER);
             out = new ByteBufferBytes(in);
             out.limit(0);
             in.clear();
+            entriesIn = in;
+            entriesOut = out;
+        }
+
+        /**
+         * decompresses all the data received from now on
+         *
+         * @param remoteBlockSize the largest raw length of a block of the remote node, as a block holds the
+         *                        whole buffer of the remote writer
+         */
+        void enableCompression(final int remoteBlockSize) {
+            final int capacity = SIZE_OF_BLOCK_HEADER + Math.max(remoteBlockSize, packetSize + maxEntrySizeBytes);
+            if (capacity > in.capacity()) {
+                // keep the data received after the hand shaking
+                final ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+                in.flip();
+                larger.put(in);
+                final long position = out.position();
+                in = larger;
+                out = new ByteBufferBytes(in);
+                out.position(position);
+                out.limit(in.position());
+            }
+            entriesIn = ByteBuffer.allocateDirect(2 * in.capacity());
+            entriesOut = new ByteBufferBytes(entriesIn);
+            entriesOut.limit(0);
+            entriesIn.clear();
         }
 
         /**
@@ -900,29 +1413,114 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         }
 
         /**
-         * reads entries from the buffer till empty
+         * reads entries from the buffer till empty, the entries of a frame received so far are applied in
+         * one pass
          *
          * @throws InterruptedException
          */
         private void entriesFromBuffer() throws InterruptedException, IOException {
+            if (entriesIn == in) {
+                readEntries();
+                return;
+            }
+            do {
+                readEntries();
+            } while (decompressBlocks());
+        }
+
+        /**
+         * decompresses the blocks received completely, while they fit the buffer of entries
+         *
+         * @return true if any block was decompressed
+         */
+        private boolean decompressBlocks() {
+            // compact the buffer of entries
+            entriesIn.limit(entriesIn.position());
+            entriesIn.position((int) entriesOut.position());
+            entriesIn.compact();
+            entriesOut.position(0);
+            entriesOut.limit(entriesOut.capacity());
+
+            boolean decompressed = false;
+            try {
+                for (; ; ) {
+                    out.limit(in.position());
+                    if (out.remaining() < SIZE_OF_BLOCK_HEADER)
+                        return decompressed;
+
+                    final long blockStart = out.position();
+                    final int rawLength = out.readInt(blockStart);
+                    final int compressedLength = out.readInt(blockStart + 4);
+                    final int blockSize = SIZE_OF_BLOCK_HEADER + compressedLength;
+                    if (rawLength < 0 || compressedLength < 0 || compressedLength > rawLength ||
+                            blockSize > in.capacity())
+                        throw new IllegalStateException("Malformed compressed block, rawLength=" +
+                                rawLength + ", compressedLength=" + compressedLength);
+                    if (out.remaining() < blockSize) {
+                        pendingBlockSize = blockSize;
+                        return decompressed;
+                    }
+                    pendingBlockSize = 0;
+                    if (entriesIn.remaining() < rawLength)
+                        return decompressed;
+
+                    final long dataStart = blockStart + SIZE_OF_BLOCK_HEADER;
+                    if (compressedLength == rawLength) {
+                        LZ4.copy(out, dataStart, entriesOut, entriesIn.position(), rawLength);
+                    } else {
+                        LZ4.decompress(out, dataStart, compressedLength, entriesOut, entriesIn.position(),
+                                rawLength);
+                    }
+                    entriesIn.position(entriesIn.position() + rawLength);
+                    out.position(blockStart + blockSize);
+                    decompressed = true;
+                }
+            } finally {
+                entriesOut.limit(entriesIn.position());
+            }
+        }
+
+        /**
+         * reads the entries of frames received so far, the lock of a segment is held while the entries read
+         * one after another are of that segment
+         */
+        private void readEntries() {
+            try {
+                readEntries0();
+            } finally {
+                heldLock.release();
+            }
+        }
+
+        private void readEntries0() {
+            final ByteBuffer in = entriesIn;
+            final ByteBufferBytes out = entriesOut;
+            final long now = System.currentTimeMillis();
 
             for (; ; ) {
 
                 out.limit(in.position());
 
-                // its set to MIN_VALUE when it should be read again
-                if (sizeOfNextEntry == Integer.MIN_VALUE) {
+                if (entriesLeftInFrame == 0) {
                     if (out.remaining() < SIZE_OF_SHORT) {
                         return;
                     }
 
-                    int value = out.readUnsignedShort();
+                    // a frame of no entries is the heartbeat
+                    entriesLeftInFrame = out.readUnsignedShort();
+                    controlFrame = entriesLeftInFrame > MAX_ENTRIES_PER_FRAME ? entriesLeftInFrame : 0;
+                    if (controlFrame != 0)
+                        entriesLeftInFrame = 1;
+                    continue;
+                }
 
-                    // this is the heartbeat
-                    if (value == 0)
-                        continue;
+                // its set to MIN_VALUE when it should be read again
+                if (sizeOfNextEntry == Integer.MIN_VALUE) {
+                    if (out.remaining() < SIZE_OF_SHORT) {
+                        return;
+                    }
 
-                    sizeOfNextEntry = value;
+                    sizeOfNextEntry = out.readUnsignedShort();
                 }
 
 
@@ -930,10 +1528,32 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
                     return;
                 }
 
-                final long nextEntryPos = out.position() + sizeOfNextEntry;
+                final long entryStart = out.position();
+                final long nextEntryPos = entryStart + sizeOfNextEntry;
                 final long limit = out.limit();
                 out.limit(nextEntryPos);
-                externalizable.readExternalEntry(out);
+                // control frames may lock other segments
+                if (controlFrame != 0)
+                    heldLock.release();
+                switch (controlFrame) {
+                    case FULL_ENTRY_REQUEST:
+                        attached.remoteModificationIterator.resendFullEntry(out);
+                        break;
+                    case SEGMENT_DIGESTS:
+                        segmentDigestsFromBuffer(out);
+                        break;
+                    case BUCKET_DIGESTS:
+                        bucketDigestsFromBuffer(out);
+                        break;
+                    default:
+                        attached.metrics.entryReceived(
+                                VanillaSharedReplicatedHashMap.externalEntryTimestamp(out), now);
+                        if (!externalizable.readExternalEntry(out, heldLock)) {
+                            // we don't hold the version the delta is based on, ask for the full entry
+                            attached.entryWriter.fullEntryRequest(out, entryStart, sizeOfNextEntry);
+                            attached.onChange();
+                        }
+                }
 
                 out.limit(limit);
                 // skip onto the next entry
@@ -941,11 +1561,50 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
 
                 // to allow the sizeOfNextEntry to be read the next time around
                 sizeOfNextEntry = Integer.MIN_VALUE;
+                entriesLeftInFrame--;
             }
 
         }
 
 
+        /**
+         * compares the digests of the segments of the remote node with ours, and asks the writer to send the
+         * digests of the buckets of the segments which differ
+         */
+        private void segmentDigestsFromBuffer(@NotNull final ByteBufferBytes out) {
+            final int segments = replica.digestSegments();
+            boolean differ = false;
+            for (int segment = out.readInt(); out.remaining() >= 8; segment++) {
+                final long remoteDigest = out.readLong();
+                if (segment < segments && replica.segmentDigest(segment) != remoteDigest) {
+                    attached.entryWriter.bucketDigestRequest(segment);
+                    differ = true;
+                }
+            }
+            if (differ)
+                attached.onChange();
+        }
+
+        /**
+         * compares the digests of the buckets of a segment of the remote node with ours, and dirties our
+         * entries in the buckets which differ
+         */
+        private void bucketDigestsFromBuffer(@NotNull final ByteBufferBytes out) {
+            final int segment = out.readInt();
+            if (segment >= replica.digestSegments())
+                return;
+            replica.bucketDigests(segment, bucketDigests);
+            long buckets = 0L;
+            for (int bucket = 0; bucket < DIGEST_BUCKETS && out.remaining() >= 8; bucket++) {
+                if (out.readLong() != bucketDigests[bucket])
+                    buckets |= 1L << bucket;
+            }
+            if (buckets != 0L) {
+                attached.remoteModificationIterator.dirtyBuckets(segment, buckets);
+                attached.onChange();
+            }
+        }
+
         /**
          * compacts the buffer and updates the {@code in} and {@code out} accordingly
          */
@@ -954,7 +1613,8 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
             // the maxEntrySizeBytes used here may not be the maximum size of the entry in its serialized form
             // however, its only use as an indication that the buffer is becoming full and should be compacted
             // the buffer can be compacted at any time
-            if (in.position() == 0 || in.remaining() > maxEntrySizeBytes)
+            if (in.position() == 0 || (in.remaining() > maxEntrySizeBytes &&
+                    in.capacity() - out.position() >= pendingBlockSize))
                 return;
 
             in.limit(in.position());
@@ -971,6 +1631,13 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
             return (out.remaining() >= 1) ? out.readByte() : Byte.MIN_VALUE;
         }
 
+        /**
+         * @return the flags of the remote node or -1 if unsuccessful
+         */
+        int flagsFromBuffer() {
+            return (out.remaining() >= 1) ? out.readUnsignedByte() : -1;
+        }
+
         /**
          * @return the timestamp or -1 if unsuccessful
          */
@@ -981,6 +1648,20 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         public long remoteHeartbeatIntervalFromBuffer() {
             return (out.remaining() >= 8) ? out.readLong() : Long.MIN_VALUE;
         }
+
+        /**
+         * @return the number of segments the remote node keeps digests for, or -1 if unsuccessful
+         */
+        int digestSegmentsFromBuffer() {
+            return (out.remaining() >= 4) ? out.readInt() : -1;
+        }
+
+        /**
+         * @return the largest raw length of a block of the remote node, or -1 if unsuccessful
+         */
+        int blockSizeFromBuffer() {
+            return (out.remaining() >= 4) ? out.readInt() : -1;
+        }
     }
 
 
@@ -988,7 +1669,8 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
      * sets interestOps to "selector keys",The change to interestOps much be on the same thread as the
      * selector. This  class, allows via {@link net.openhft.collections.AbstractChannelReplicator
      * .KeyInterestUpdater#set(int)}  to holds a pending change  in interestOps ( via a bitset ), this change
-     * is processed later on the same thread as the selector
+     * is processed later on the same thread as the selector. The OP_WRITE of a channel held back by the
+     * throttler is left to the throttler to restore, at the start of the next interval.
      */
     private static class KeyInterestUpdater {
 
@@ -996,10 +1678,13 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
         private final BitSet changeOfOpWriteRequired;
         private final SelectionKey[] selectionKeys;
         private final int op;
+        @Nullable
+        private final Throttler throttler;
 
-        KeyInterestUpdater(int op, final SelectionKey[] selectionKeys) {
+        KeyInterestUpdater(int op, final SelectionKey[] selectionKeys, @Nullable final Throttler throttler) {
             this.op = op;
             this.selectionKeys = selectionKeys;
+            this.throttler = throttler;
             changeOfOpWriteRequired = new BitSet(selectionKeys.length);
         }
 
@@ -1009,6 +1694,8 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
                      i = changeOfOpWriteRequired.nextSetBit(i + 1)) {
                     changeOfOpWriteRequired.clear(i);
                     final SelectionKey key = selectionKeys[i];
+                    if (throttler != null && op == OP_WRITE && !throttler.canWrite(key.channel()))
+                        continue;
                     try {
                         key.interestOps(key.interestOps() | op);
                     } catch (Exception e) {
@@ -1020,7 +1707,7 @@ class TcpReplicator extends AbstractChannelReplicator implements Closeable {
 
         /**
          * @param keyIndex the index of the key that has changed, the list of keys is provided by the
-         *                 constructor {@link KeyInterestUpdater(int, SelectionKey[])}
+         *                 constructor {@link KeyInterestUpdater(int, SelectionKey[], Throttler)}
          */
         public void set(int keyIndex) {
             changeOfOpWriteRequired.set(keyIndex);
@@ -43,6 +43,8 @@ public final class TcpReplicatorBuilder extends AbstractReplicationBuilder<TcpRe
     private int packetSize = 1024 * 8;
     private long heartBeatInterval = 20;
     private TimeUnit heartBeatIntervalUnit = SECONDS;
+    private boolean compression = false;
+    private int ioThreads = 1;
 
     public TcpReplicatorBuilder(int serverPort, InetSocketAddress... endpoints) {
         this.serverPort = serverPort;
@@ -71,6 +73,47 @@ public final class TcpReplicatorBuilder extends AbstractReplicationBuilder<TcpRe
         return packetSize;
     }
 
+    /**
+     * Compresses the replication stream of a connection with LZ4, if the remote node enables compression
+     * too. Worth it on links of limited bandwidth, when keys and values are repetitive, at the cost of CPU
+     * time on both ends. Default is {@code false}.
+     *
+     * @param compression if the connections should be compressed
+     * @return this builder back
+     */
+    public TcpReplicatorBuilder compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public boolean compression() {
+        return compression;
+    }
+
+    /**
+     * Sets the number of threads, which read from and write to the connections with the remote nodes. Each
+     * thread runs its own selector, the connections are assigned to the threads in turn, as they are
+     * accepted or connected, so a slow node or a large bootstrap holds up only the nodes served by the same
+     * thread. Worth more than one thread with a large number of nodes. Default is {@code 1}.
+     *
+     * <p>If the replication is {@link #throttle(long, TimeUnit) throttled}, the bandwidth is shared by the
+     * connections of all the threads, by their {@link #throttleWeight(byte, int) weights}.
+     *
+     * @param ioThreads the number of I/O threads
+     * @return this builder back
+     * @throws IllegalArgumentException if {@code ioThreads} is less than 1
+     */
+    public TcpReplicatorBuilder ioThreads(int ioThreads) {
+        if (ioThreads < 1)
+            throw new IllegalArgumentException("ioThreads should be positive, " + ioThreads + " given");
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public int ioThreads() {
+        return ioThreads;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -80,6 +123,8 @@ public final class TcpReplicatorBuilder extends AbstractReplicationBuilder<TcpRe
 
         if (serverPort() != that.serverPort()) return false;
         if (!endpoints().equals(that.endpoints())) return false;
+        if (compression() != that.compression()) return false;
+        if (ioThreads() != that.ioThreads()) return false;
         return packetSize() == that.packetSize();
     }
 
@@ -90,6 +135,8 @@ public final class TcpReplicatorBuilder extends AbstractReplicationBuilder<TcpRe
                 "serverPort=" + serverPort() +
                 ", endpoints=" + endpoints() +
                 ", packetSize=" + packetSize() +
+                ", compression=" + compression() +
+                ", ioThreads=" + ioThreads() +
                 "}";
     }
 
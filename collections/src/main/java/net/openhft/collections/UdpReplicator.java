@@ -20,6 +20,7 @@ package net.openhft.collections;
 
 import net.openhft.lang.io.ByteBufferBytes;
 import net.openhft.lang.model.constraints.NotNull;
+import net.openhft.lang.model.constraints.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +32,7 @@ import java.net.NetworkInterface;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.BitSet;
 import java.util.Set;
 
 import static java.net.StandardProtocolFamily.INET;
@@ -39,6 +41,7 @@ import static java.net.StandardSocketOptions.IP_MULTICAST_IF;
 import static java.net.StandardSocketOptions.SO_REUSEADDR;
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
+import static net.openhft.collections.Replica.HeldSegmentLock;
 import static net.openhft.collections.Replica.ModificationIterator;
 import static net.openhft.collections.Replica.ModificationNotifier;
 
@@ -48,17 +51,29 @@ import static net.openhft.collections.Replica.ModificationNotifier;
  * should use the UdpReplicator if you have a large number of nodes, and you wish to receive the data before
  * it becomes available on TCP/IP. In order to not miss data, UdpReplicator should be used in conjunction with
  * the TCP Replicator.
+ * <p/> <p>The entries are packed into datagrams of up to {@link UdpReplicatorBuilder#datagramSize(int)} bytes,
+ * numbered in sequence by their sender, so the receivers count the datagrams lost, see {@link
+ * PeerReplicationMetrics#getLostDatagrams()}. The lost entries are not requested again, as the TCP replicator
+ * sends every change to every node anyway.
  */
 class UdpReplicator extends AbstractChannelReplicator implements ModificationNotifier, Closeable {
 
     private static final Logger LOG =
             LoggerFactory.getLogger(UdpReplicator.class.getName());
+    // [short ~size][unsigned short size][byte sender identifier][int sequence][unsigned short entry count]
+    private static final int DATAGRAM_HEADER_SIZE = SIZE_OF_SHORT + SIZE_OF_SHORT + 1 + 4 + SIZE_OF_SHORT;
+    // a sequence going back by more than this number of datagrams is taken as a restart of the sender
+    private static final int MAX_REORDERING = 1024;
 
     private final byte localIdentifier;
     private final UdpSocketChannelEntryWriter writer;
     private final UdpSocketChannelEntryReader reader;
     private final ReplicaExternalizable replicaExternalizable;
     private final short udpIdentifier;
+    // the metrics of the datagrams sent to and received from all the remote nodes
+    private final VanillaPeerReplicationMetrics metrics;
+    @Nullable
+    private final Throttler throttler;
 
     private ModificationIterator modificationIterator;
 
@@ -89,8 +104,14 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
         this.localIdentifier = localIdentifier;
         this.replicaExternalizable = replicaExternalizable;
         this.udpIdentifier = udpIdentifier;
-        this.writer = new UdpSocketChannelEntryWriter(serializedEntrySize, replicaExternalizable);
-        this.reader = new UdpSocketChannelEntryReader(serializedEntrySize, replicaExternalizable);
+        this.metrics = new VanillaPeerReplicationMetrics("udp", localIdentifier);
+        final int datagramSize = udpReplicatorBuilder.datagramSize();
+        this.writer = new UdpSocketChannelEntryWriter(serializedEntrySize, datagramSize, replicaExternalizable,
+                localIdentifier, metrics);
+        this.reader = new UdpSocketChannelEntryReader(serializedEntrySize, datagramSize, replicaExternalizable,
+                localIdentifier, metrics);
+        peerMetrics(Byte.MIN_VALUE, metrics);
+        throttler = newThrottler();
 
         address = udpReplicatorBuilder.address();
         port = udpReplicatorBuilder.port();
@@ -107,10 +128,17 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
         super.close();
     }
 
+    @Override
+    void closeEarlyAndQuietly(SelectableChannel channel) {
+        if (throttler != null)
+            throttler.remove(channel);
+        super.closeEarlyAndQuietly(channel);
+    }
 
     @Override
     public void forceBootstrap() {
         modificationIterator = replicaExternalizable.acquireModificationIterator(udpIdentifier, this);
+        metrics.modificationIterator(modificationIterator);
     }
 
     /**
@@ -133,7 +161,10 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
             if (shouldEnableOpWrite)
                 enableWrites();
 
-            checkThrottleInterval();
+            if (throttler != null)
+                throttler.checkThrottleInterval(selector);
+
+            metrics.sample(System.currentTimeMillis());
 
             if (n == 0) {
                 continue;    // nothing to do
@@ -152,8 +183,10 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
                     if (key.isWritable()) {
                         final DatagramChannel socketChannel = (DatagramChannel) key.channel();
                         try {
-                            int bytesJustWritten = writer.writeAll(socketChannel);
-                            contemplateThrottleWrites(bytesJustWritten);
+                            int bytesJustWritten = writer.writeAll(key, modificationIterator);
+                            if (throttler != null)
+                                throttler.contemplateThrottleWrites(socketChannel, bytesJustWritten);
+                            metrics.bytesSent(bytesJustWritten);
                         } catch (NotYetConnectedException e) {
                             if (LOG.isDebugEnabled())
                                 LOG.debug("", e);
@@ -220,100 +253,153 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
         if (writeChannel == null)
             return;
 
-        try {
-            final SelectionKey selectionKey = writeChannel.keyFor(this.selector);
-            if (selectionKey != null)
-                selectionKey.interestOps(selectionKey.interestOps() | OP_WRITE);
-        } catch (Exception e) {
-            LOG.error("", e);
-        }
-    }
-
-    private void disableWrites() {
-
-        if (writeChannel == null)
+        // a throttled channel gets its OP_WRITE back at the start of the next interval
+        if (throttler != null && !throttler.canWrite(writeChannel))
             return;
 
         try {
             final SelectionKey selectionKey = writeChannel.keyFor(this.selector);
-            selectionKey.interestOps(selectionKey.interestOps() & ~OP_WRITE);
+            if (selectionKey != null)
+                selectionKey.interestOps(selectionKey.interestOps() | OP_WRITE);
         } catch (Exception e) {
             LOG.error("", e);
         }
     }
 
-    private class UdpSocketChannelEntryWriter {
+    static class UdpSocketChannelEntryWriter {
 
         private final ByteBuffer out;
         private final ByteBufferBytes in;
         private final EntryCallback entryCallback;
+        private final int datagramSize;
+        private final byte localIdentifier;
+        private final VanillaPeerReplicationMetrics metrics;
+        // the sequence number of the next datagram
+        private int sequence;
+        // the number of entries in the datagram being written
+        private int entries;
 
-        UdpSocketChannelEntryWriter(final int serializedEntrySize,
-                                    @NotNull final Replica.EntryExternalizable externalizable) {
-
-            // we make the buffer twice as large just to give ourselves headroom
-            out = ByteBuffer.allocateDirect(serializedEntrySize * 2);
+        /**
+         * @param serializedEntrySize the maximum size of an entry include the meta data
+         * @param datagramSize        the maximum size of a datagram of more than one entry
+         * @param externalizable      supports reading and writing serialize entries
+         * @param localIdentifier     the identifier of this node, sent as the sender of the datagrams
+         * @param metrics             the metrics of the sent datagrams
+         */
+        UdpSocketChannelEntryWriter(final int serializedEntrySize, final int datagramSize,
+                                    @NotNull final Replica.EntryExternalizable externalizable,
+                                    final byte localIdentifier,
+                                    @NotNull final VanillaPeerReplicationMetrics metrics) {
+
+            this.datagramSize = datagramSize;
+            this.localIdentifier = localIdentifier;
+            this.metrics = metrics;
+            // an entry is started only before the datagram is full, so may end past it by an entry
+            out = ByteBuffer.allocateDirect(datagramCapacity(serializedEntrySize, datagramSize));
             in = new ByteBufferBytes(out);
+            in.position(DATAGRAM_HEADER_SIZE);
             entryCallback = new EntryCallback(externalizable, in);
 
         }
 
         /**
-         * writes all the entries that have changed, to the tcp socket
+         * writes the changed entries to the socket, as many as fit into a datagram, an entry which doesn't
+         * fit is carried over to the next datagram. Datagrams that can't be sent at once are dropped, as they
+         * are reported missing by the remote nodes.
          *
-         * @param socketChannel
-         * @param modificationIterator
-         * @throws InterruptedException
-         * @throws java.io.IOException
-         */
-
-        /**
-         * update that are throttled are rejected.
-         *
-         * @param socketChannel the socketChannel that we will write to
+         * @param key                  the key of the socketChannel that we will write to, its OP_WRITE is
+         *                             removed once there are no changed entries left
+         * @param modificationIterator the changed entries to write, or {@code null} if not bootstrapped yet
+         * @return the number of bytes written
          * @throws InterruptedException
          * @throws IOException
          */
-        int writeAll(@NotNull final DatagramChannel socketChannel)
+        int writeAll(@NotNull final SelectionKey key,
+                     @Nullable final ModificationIterator modificationIterator)
                 throws InterruptedException, IOException {
 
             if (modificationIterator == null)
                 return 0;
 
-            out.clear();
-            in.clear();
-            in.skip(SIZE_OF_SHORT);
-
-            final boolean wasDataRead = modificationIterator.nextEntry(entryCallback, 0);
+            // the start of the entry carried over to the next datagram, or -1
+            long carriedStart = -1;
+            while (in.position() < datagramSize) {
+                final long entryStart = in.position();
+                if (!modificationIterator.nextEntry(entryCallback, 0))
+                    break;
+                if (in.position() > datagramSize && entries > 0) {
+                    carriedStart = entryStart;
+                    break;
+                }
+                entries++;
+            }
 
-            if (!wasDataRead) {
-                disableWrites();
+            if (entries == 0) {
+                metrics.bootstrapComplete();
+                key.interestOps(key.interestOps() & ~OP_WRITE);
                 return 0;
             }
 
-            // we'll write the size inverted at the start
-            in.writeShort(0, ~(in.readUnsignedShort(SIZE_OF_SHORT)));
-            out.limit((int) in.position());
+            final long carriedEnd = in.position();
+            final long datagramEnd = carriedStart >= 0 ? carriedStart : carriedEnd;
+            final int size = (int) datagramEnd - SIZE_OF_SHORT - SIZE_OF_SHORT;
 
-            return socketChannel.write(out);
+            // we'll write the size inverted at the start
+            in.writeShort(0, ~size);
+            in.writeUnsignedShort(SIZE_OF_SHORT, size);
+            in.writeByte(SIZE_OF_SHORT + SIZE_OF_SHORT, localIdentifier);
+            in.writeInt(SIZE_OF_SHORT + SIZE_OF_SHORT + 1, sequence++);
+            in.writeUnsignedShort(DATAGRAM_HEADER_SIZE - SIZE_OF_SHORT, entries);
+            out.limit((int) datagramEnd);
+            out.position(0);
+
+            final int len;
+            try {
+                len = ((DatagramChannel) key.channel()).write(out);
+            } finally {
+                metrics.entriesSent(entries);
+                entries = 0;
+                out.clear();
+                in.clear();
+                in.position(DATAGRAM_HEADER_SIZE);
+                if (carriedStart >= 0) {
+                    for (long i = carriedStart; i < carriedEnd; i++)
+                        in.writeByte(in.readByte(i));
+                    entries = 1;
+                }
+            }
 
+            return len;
         }
     }
 
-    private static class UdpSocketChannelEntryReader {
+    static class UdpSocketChannelEntryReader {
 
         private final Replica.EntryExternalizable externalizable;
         private final ByteBuffer in;
         private final ByteBufferBytes out;
+        private final byte localIdentifier;
+        private final VanillaPeerReplicationMetrics metrics;
+        // the sequence number of the next datagram expected from each remote node, by its identifier
+        private final int[] nextSequences = new int[Byte.MAX_VALUE + 1];
+        private final BitSet sequenced = new BitSet(Byte.MAX_VALUE + 1);
+        // consecutive entries of a segment in a datagram are applied under one acquisition of its lock
+        private final HeldSegmentLock heldLock = new HeldSegmentLock();
 
         /**
          * @param serializedEntrySize the maximum size of an entry include the meta data
+         * @param datagramSize        the maximum size of a datagram of more than one entry
          * @param externalizable      supports reading and writing serialize entries
+         * @param localIdentifier     the identifier of this node, its own datagrams are ignored
+         * @param metrics             the metrics of the received datagrams
          */
-        UdpSocketChannelEntryReader(final int serializedEntrySize,
-                                    @NotNull final Replica.EntryExternalizable externalizable) {
-            // we make the buffer twice as large just to give ourselves headroom
-            in = ByteBuffer.allocateDirect(serializedEntrySize * 2);
+        UdpSocketChannelEntryReader(final int serializedEntrySize, final int datagramSize,
+                                    @NotNull final Replica.EntryExternalizable externalizable,
+                                    final byte localIdentifier,
+                                    @NotNull final VanillaPeerReplicationMetrics metrics) {
+            this.localIdentifier = localIdentifier;
+            this.metrics = metrics;
+            in = ByteBuffer.allocateDirect(datagramCapacity(serializedEntrySize, datagramSize));
             this.externalizable = externalizable;
             out = new ByteBufferBytes(in);
             out.limit(0);
@@ -321,7 +407,7 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
         }
 
         /**
-         * reads entries from the socket till it is empty
+         * reads the entries of a datagram from the socket
          *
          * @param socketChannel the socketChannel that we will read from
          * @throws IOException
@@ -335,8 +421,11 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
             socketChannel.receive(in);
 
             final int bytesRead = in.position();
+            final long now = System.currentTimeMillis();
+            if (bytesRead > 0)
+                metrics.bytesReceived(bytesRead, now);
 
-            if (bytesRead < SIZE_OF_SHORT + SIZE_OF_SHORT)
+            if (bytesRead < DATAGRAM_HEADER_SIZE)
                 return;
 
             out.limit(in.position());
@@ -345,16 +434,71 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
             final int size = out.readUnsignedShort();
 
             // check the the first 4 bytes are the inverted len followed by the len
-            // we do this to check that this is a valid start of entry, otherwise we throw it away
+            // we do this to check that this is a valid start of a datagram, otherwise we throw it away
             if (((short) ~size) != invertedSize)
                 return;
 
             if (out.remaining() != size)
                 return;
 
-            externalizable.readExternalEntry(out);
+            final byte sender = out.readByte();
+            final int sequence = out.readInt();
+            int entries = out.readUnsignedShort();
+
+            if (sender <= 0 || sender == localIdentifier)
+                return;
+
+            checkSequence(sender, sequence);
+
+            try {
+                for (; entries > 0 && out.remaining() >= SIZE_OF_SHORT; entries--) {
+                    final int entrySize = out.readUnsignedShort();
+                    final long nextEntryPos = out.position() + entrySize;
+                    if (nextEntryPos > in.position())
+                        return;
+                    out.limit(nextEntryPos);
+                    metrics.entryReceived(VanillaSharedReplicatedHashMap.externalEntryTimestamp(out), now);
+                    externalizable.readExternalEntry(out, heldLock);
+                    out.limit(in.position());
+                    out.position(nextEntryPos);
+                }
+            } finally {
+                heldLock.release();
+            }
         }
 
+        /**
+         * counts the datagrams skipped in the sequence of the sender as lost, a sequence going back a little
+         * is taken as a datagram delivered out of order, and further back as a restart of the sender, which
+         * sequence starts over
+         */
+        private void checkSequence(final byte sender, final int sequence) {
+            if (sequenced.get(sender)) {
+                final int gap = sequence - nextSequences[sender];
+                if (gap > 0) {
+                    metrics.datagramsLost(gap);
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("lost " + gap + " datagrams from identifier=" + sender);
+                } else if (gap < 0) {
+                    if (gap >= -MAX_REORDERING)
+                        return;
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("restarted sequence of datagrams from identifier=" + sender);
+                }
+            } else {
+                sequenced.set(sender);
+            }
+            nextSequences[sender] = sequence + 1;
+        }
+
+    }
+
+    /**
+     * @return the capacity of a datagram buffer, which holds a datagram of up to {@code datagramSize} bytes,
+     * and an entry starting just before its end, or a single entry of up to {@code serializedEntrySize}
+     */
+    private static int datagramCapacity(final int serializedEntrySize, final int datagramSize) {
+        return Math.max(datagramSize, DATAGRAM_HEADER_SIZE) + SIZE_OF_SHORT + serializedEntrySize;
     }
 
     private class ServerConnector extends TcpReplicator.AbstractConnector {
@@ -396,7 +540,9 @@ class UdpReplicator extends AbstractChannelReplicator implements ModificationNot
                     try {
                         server.register(selector, OP_WRITE);
                         writeChannel = server;
-                        throttle(server);
+                        if (throttler != null)
+                            throttler.add(server, selector);
+                        metrics.connected(System.currentTimeMillis());
                     } catch (ClosedChannelException e) {
                         LOG.error("", e);
                     }
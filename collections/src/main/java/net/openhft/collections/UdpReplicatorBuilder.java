@@ -33,6 +33,8 @@ public final class UdpReplicatorBuilder extends AbstractReplicationBuilder<UdpRe
     private InetAddress address;
     private int port;
     private NetworkInterface interf;
+    // the largest payload of a datagram, which isn't fragmented over an Ethernet MTU of 1500 bytes
+    private int datagramSize = 1472;
 
     /**
      * @param port    udp port
@@ -69,11 +71,34 @@ public final class UdpReplicatorBuilder extends AbstractReplicationBuilder<UdpRe
         return this;
     }
 
+    /**
+     * Default datagram size is {@code 1472} bytes, the payload of a datagram, which is not fragmented over
+     * Ethernet. The entries are packed into datagrams of up to this size, an entry larger than this is sent in
+     * a datagram of its own. All the nodes should use the same datagram size.
+     *
+     * @param datagramSize the maximum size of a datagram in bytes
+     * @return this builder back
+     * @throws IllegalArgumentException if {@code datagramSize} is less than 64, or larger than the maximum
+     *                                  UDP payload of 65507 bytes
+     */
+    public UdpReplicatorBuilder datagramSize(int datagramSize) {
+        if (datagramSize < 64 || datagramSize > 65507)
+            throw new IllegalArgumentException("datagramSize should be between 64 and 65507, " +
+                    datagramSize + " given");
+        this.datagramSize = datagramSize;
+        return this;
+    }
+
+    public int datagramSize() {
+        return datagramSize;
+    }
+
     @Override
     public String toString() {
         return "UdpReplication{" +
                 "address='" + address + '\'' +
-                ", port=" + port + '}';
+                ", port=" + port +
+                ", datagramSize=" + datagramSize + '}';
     }
 
     public UdpReplicatorBuilder networkInterface(NetworkInterface interf) throws SocketException {
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * Encodes serialized values before they are written to a {@link SharedHashMap} and decodes them back on
+ * read, typically compresses them. Values smaller than {@link SharedHashMapBuilder#valueCodecThreshold()}
+ * or those the codec can't make smaller are stored as is, a flag in the entry tells which values are
+ * encoded. <p/> <p>Implementations must be thread safe, and the same codec must be configured for a map in
+ * all processes sharing its file and all nodes replicating it.
+ *
+ * @see SharedHashMapBuilder#valueCodec(ValueCodec)
+ * @see LZ4ValueCodec
+ */
+public interface ValueCodec {
+
+    /**
+     * @return the maximum number of bytes {@link #encode(Bytes, Bytes)} could write for a value of the
+     * given size
+     */
+    int maxEncodedSize(int valueSize);
+
+    /**
+     * Encodes the bytes between the position and the limit of the {@code source} into the {@code
+     * destination}, starting from its position. Positions of both bytes are advanced.
+     */
+    void encode(Bytes source, Bytes destination);
+
+    /**
+     * Decodes the bytes between the position and the limit of the {@code source}, written by {@link
+     * #encode(Bytes, Bytes)}, into the {@code destination}, starting from its position. Positions of both
+     * bytes are advanced.
+     *
+     * @param decodedSize the size of the value before encoding
+     * @throws IllegalStateException if the source bytes are malformed
+     */
+    void decode(Bytes source, Bytes destination, int decodedSize);
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.*;
+import net.openhft.lang.io.serialization.ObjectSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Circular append-only log of large values, which {@link SharedHashMap} entries point to, instead of holding
+ * the value bytes inline. <p/> <p>Records are appended at the head and reclaimed from the tail by {@link
+ * #collect(AbstractVanillaSharedHashMap)}: a record is garbage if no entry points to it any more, live records
+ * are moved to the head. The bytes of the records {@link #discard(long) discarded} by the entries are
+ * counted in the header, so the log is collected when it is worth it. Offsets in the log are logical, i. e.
+ * growing forever, the physical position is the logical offset modulo the log capacity. <p/> <p>Appends
+ * and moves are done under the lock of the segment, owning the entry, then the lock of the log, so they
+ * can't deadlock.
+ */
+final class ValueLog {
+
+    static final int HEADER_SIZE = 64;
+    private static final int LOCK_OFFSET = 0; // 64-bit
+    private static final int COLLECTOR_LOCK_OFFSET = LOCK_OFFSET + 8; // 64-bit
+    private static final int HEAD_OFFSET = COLLECTOR_LOCK_OFFSET + 8; // 64-bit
+    private static final int TAIL_OFFSET = HEAD_OFFSET + 8; // 64-bit
+    private static final int CAPACITY_OFFSET = TAIL_OFFSET + 8; // 64-bit
+    private static final int GARBAGE_OFFSET = CAPACITY_OFFSET + 8; // 64-bit
+
+    /*
+    The record format is
+    - 32-bit size of the whole record, aligned to 8 bytes
+    - 32-bit index of the segment of the entry, or SKIP if the rest of the log till the end is unused
+    - 32-bit hash2 of the key in the segment
+    - 32-bit size of the value
+    - bytes of the value
+     */
+    static final int RECORD_HEADER = 16;
+    private static final int SKIP = -1;
+
+    // the results of the relocation of a record by the collector
+    static final int RELOCATED = 0;
+    static final int GARBAGE = 1;
+    static final int FULL = 2;
+
+    private final BytesStore store;
+    private final NativeBytes bytes;
+    private final long capacity;
+    private final long lockTimeOutNS;
+    private final ThreadLocal<MultiStoreBytes> localValueBytes = new ThreadLocal<MultiStoreBytes>() {
+        @Override
+        protected MultiStoreBytes initialValue() {
+            return new MultiStoreBytes();
+        }
+    };
+    private final MultiStoreBytes appendBytes = new MultiStoreBytes();
+
+    /**
+     * @param file     the file of the log, or {@code null} if the log shouldn't be persisted
+     * @param capacity the capacity of a new log, an existing log keeps its capacity
+     */
+    ValueLog(File file, long capacity, ObjectSerializer objectSerializer, long lockTimeOutNS)
+            throws IOException {
+        this.lockTimeOutNS = lockTimeOutNS;
+        if (file != null && file.length() > HEADER_SIZE)
+            capacity = file.length() - HEADER_SIZE;
+        capacity &= ~7L;
+        if (capacity < RECORD_HEADER * 2)
+            throw new IllegalArgumentException("Value log of " + capacity + " bytes is too small");
+        long size = HEADER_SIZE + capacity;
+        store = file == null
+                ? DirectStore.allocateLazy(size, objectSerializer)
+                : new MappedStore(file, FileChannel.MapMode.READ_WRITE, size, objectSerializer);
+        bytes = (NativeBytes) store.bytes(0, size);
+        if (!bytes.compareAndSwapLong(CAPACITY_OFFSET, 0L, capacity) &&
+                bytes.readVolatileLong(CAPACITY_OFFSET) != capacity)
+            throw new IOException("Corrupt value log header in " + file);
+        this.capacity = capacity;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes between the tail and the head, both live and garbage
+     */
+    long usedBytes() {
+        return bytes.readVolatileLong(HEAD_OFFSET) - bytes.readVolatileLong(TAIL_OFFSET);
+    }
+
+    /**
+     * @return the number of bytes of the records discarded by the entries, which are not collected yet
+     */
+    long garbageBytes() {
+        return bytes.readVolatileLong(GARBAGE_OFFSET);
+    }
+
+    /**
+     * Counts the record at the given logical offset as garbage, called under the lock of the segment, when
+     * the value of the entry pointing to it is replaced, or the entry is removed.
+     */
+    void discard(long offset) {
+        int recordSize = bytes.readInt(HEADER_SIZE + offset % capacity);
+        lock();
+        try {
+            bytes.writeOrderedLong(GARBAGE_OFFSET, bytes.readLong(GARBAGE_OFFSET) + recordSize);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Appends the bytes between the position and the limit of the value.
+     *
+     * @return the logical offset of the record
+     * @throws IllegalStateException if there is no room in the log
+     */
+    long append(int segmentIndex, int hash2, Bytes value) {
+        long valueSize = value.remaining();
+        long recordSize = (RECORD_HEADER + valueSize + 7) & ~7L;
+        if (recordSize > capacity)
+            throw new IllegalArgumentException("Value of " + valueSize +
+                    " bytes is larger than the value log of " + capacity + " bytes");
+        lock();
+        try {
+            long head = bytes.readLong(HEAD_OFFSET);
+            long tail = bytes.readVolatileLong(TAIL_OFFSET);
+            long toEnd = capacity - head % capacity;
+            boolean wrap = recordSize > toEnd;
+            if (head + (wrap ? toEnd + recordSize : recordSize) - tail > capacity)
+                throw new IllegalStateException("Value log is full, " + (head - tail) + " of " +
+                        capacity + " bytes used");
+            if (wrap) {
+                long skipPos = HEADER_SIZE + head % capacity;
+                bytes.writeInt(skipPos, (int) toEnd);
+                bytes.writeInt(skipPos + 4, SKIP);
+                head += toEnd;
+            }
+            long pos = HEADER_SIZE + head % capacity;
+            bytes.writeInt(pos, (int) recordSize);
+            bytes.writeInt(pos + 4, segmentIndex);
+            bytes.writeInt(pos + 8, hash2);
+            bytes.writeInt(pos + 12, (int) valueSize);
+            appendBytes.storePositionAndSize(bytes, pos + RECORD_HEADER, valueSize);
+            appendBytes.write(value);
+            bytes.writeOrderedLong(HEAD_OFFSET, head + recordSize);
+            return head;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * @return the bytes of the value of the record at the given logical offset, valid until the next call
+     * of this method in the same thread
+     */
+    Bytes value(long offset, int size) {
+        long pos = HEADER_SIZE + offset % capacity;
+        MultiStoreBytes valueBytes = localValueBytes.get();
+        valueBytes.storePositionAndSize(bytes, pos + RECORD_HEADER, size);
+        return valueBytes;
+    }
+
+    /**
+     * Reclaims the records between the tail and the head, as of the start of this call, unless another
+     * thread or process is collecting the log at the same time.
+     *
+     * @return {@code false} if stopped because the log is full of live records
+     */
+    boolean collect(AbstractVanillaSharedHashMap<?, ?> map) {
+        if (!bytes.tryLockLong(COLLECTOR_LOCK_OFFSET))
+            return true;
+        // the bytes of the garbage records passed by the tail
+        long collected = 0;
+        try {
+            long head = bytes.readVolatileLong(HEAD_OFFSET);
+            for (long tail; (tail = bytes.readVolatileLong(TAIL_OFFSET)) < head; ) {
+                long pos = HEADER_SIZE + tail % capacity;
+                int recordSize = bytes.readInt(pos);
+                int segmentIndex = bytes.readInt(pos + 4);
+                if (segmentIndex != SKIP) {
+                    int relocation =
+                            map.relocateLoggedValue(segmentIndex, bytes.readInt(pos + 8), tail, this);
+                    if (relocation == FULL)
+                        return false;
+                    if (relocation == GARBAGE)
+                        collected += recordSize;
+                }
+                bytes.writeOrderedLong(TAIL_OFFSET, tail + recordSize);
+            }
+            return true;
+        } finally {
+            if (collected > 0)
+                uncount(collected);
+            bytes.unlockLong(COLLECTOR_LOCK_OFFSET);
+        }
+    }
+
+    /**
+     * takes the collected garbage off the count, the garbage not discarded by the entries (e. g. of cleared
+     * segments) may be collected too, so the count doesn't go below zero
+     */
+    private void uncount(long collected) {
+        lock();
+        try {
+            long garbage = bytes.readLong(GARBAGE_OFFSET);
+            bytes.writeOrderedLong(GARBAGE_OFFSET, Math.max(0, garbage - collected));
+        } finally {
+            unlock();
+        }
+    }
+
+    private void lock() {
+        if (!bytes.tryLockNanosLong(LOCK_OFFSET, lockTimeOutNS))
+            throw new IllegalStateException("Unable to acquire the value log lock in " +
+                    lockTimeOutNS / 1000000 + " ms");
+    }
+
+    private void unlock() {
+        bytes.unlockLong(LOCK_OFFSET);
+    }
+
+    void close() {
+        store.free();
+    }
+}
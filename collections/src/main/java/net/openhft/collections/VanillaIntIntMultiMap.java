@@ -273,6 +273,43 @@ class VanillaIntIntMultiMap implements IntIntMultiMap {
         return searchHash;
     }
 
+    /////////////////////
+    // Search methods for readers not holding the lock guarding this multimap
+
+    /**
+     * The state of a search by a reader, which doesn't hold the lock guarding this multimap. The search
+     * doesn't modify the multimap and always terminates, but may return garbage positions if the multimap
+     * is modified concurrently, so the reader should validate what it has read afterwards.
+     */
+    static final class Search {
+        int searchHash;
+        long searchPos;
+        int probes;
+    }
+
+    void startSearch(int key, Search search) {
+        key = maskUnsetKey(key);
+        search.searchHash = key;
+        search.searchPos = indexToPos(key & capacityMask);
+        search.probes = 0;
+    }
+
+    /**
+     * @return the next position of the searched key, or a negative value if there are no more
+     */
+    int nextPos(Search search) {
+        while (search.probes++ < capacity) {
+            long entry = bytes.readLong(search.searchPos);
+            int hash2 = (int) (entry >> 32);
+            if (hash2 == UNSET_KEY)
+                return UNSET_VALUE;
+            search.searchPos = (search.searchPos + ENTRY_SIZE) & capacityMask2;
+            if (hash2 == search.searchHash)
+                return (int) entry;
+        }
+        return UNSET_VALUE;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -303,6 +340,75 @@ class VanillaIntIntMultiMap implements IntIntMultiMap {
         }
     }
 
+    /**
+     * Passes the entries whose keys, masked with {@code mask}, are in {@code [from, to)} to the action,
+     * scanning only the slots such keys can be in, so iterating over all the ranges of a mask scans each
+     * slot about once if the mask isn't larger than the capacity. Unlike with {@link #forEach}, the keys of
+     * any range are found in this map whatever its capacity.
+     *
+     * @param mask of a power of 2 number of ranges
+     */
+    public void forEachInRange(int mask, int from, int to, EntryConsumer action) {
+        int width = to - from;
+        if (width >= capacity) {
+            for (int i = 0; i < capacity; i++) {
+                long entry = bytes.readLong(indexToPos(i));
+                int key = (int) (entry >> 32);
+                if (key != UNSET_KEY && (key & mask) >= from && (key & mask) < to)
+                    action.accept(key, (int) entry);
+            }
+            return;
+        }
+        // the keys of the range have their home slots in one block of width slots every mask + 1 slots
+        int blocks = Math.max(1, (int) (capacity / (mask + 1L)));
+        for (int j = 0; j < blocks; j++) {
+            int start = (from + j * (mask + 1)) & capacityMask;
+            // entries are probed forwards from their home slots, so past the block until an unset slot
+            for (int i = 0; i <= capacityMask; i++) {
+                int index = (start + i) & capacityMask;
+                long entry = bytes.readLong(indexToPos(index));
+                int key = (int) (entry >> 32);
+                if (key == UNSET_KEY) {
+                    if (i >= width)
+                        break;
+                    continue;
+                }
+                if ((((key & capacityMask) - start) & capacityMask) < width && (key & mask) >= from &&
+                        (key & mask) < to)
+                    action.accept(key, (int) entry);
+            }
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int maxProbeLength() {
+        int max = 0;
+        for (int i = 0; i < capacity; i++) {
+            int key = (int) (bytes.readLong(indexToPos(i)) >> 32);
+            if (key != UNSET_KEY)
+                max = Math.max(max, (i - key) & capacityMask);
+        }
+        return max;
+    }
+
+    @Override
+    public double meanProbeLength() {
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < capacity; i++) {
+            int key = (int) (bytes.readLong(indexToPos(i)) >> 32);
+            if (key != UNSET_KEY) {
+                sum += (i - key) & capacityMask;
+                count++;
+            }
+        }
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
     @Override
     public DirectBitSet getPositions() {
         return positions;
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.model.constraints.NotNull;
+import net.openhft.lang.model.constraints.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static net.openhft.collections.Replica.ModificationIterator;
+
+/**
+ * The metrics of a single connection, updated by the thread serving it only.
+ */
+final class VanillaPeerReplicationMetrics implements PeerReplicationMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VanillaPeerReplicationMetrics.class);
+    private static final long SAMPLE_INTERVAL = 1000;
+    // the weight of the previous latency, as a power of 2
+    private static final int LATENCY_SMOOTHING_SHIFT = 3;
+
+    private final String replicator;
+    private final byte localIdentifier;
+    private volatile byte remoteIdentifier = Byte.MIN_VALUE;
+    @Nullable
+    private volatile ModificationIterator modificationIterator;
+    private volatile boolean connected;
+    private volatile boolean bootstrapComplete;
+    // entries with older timestamps are taken as bootstrapped, and are not counted in the latency
+    private volatile long connectedTime = Long.MAX_VALUE;
+
+    private volatile long bytesQueued;
+    private volatile long bytesSent;
+    private volatile long entriesSent;
+    private volatile long bytesReceived;
+    private volatile long entriesReceived;
+    private volatile long lostDatagrams;
+    private volatile long lastReceivedTime;
+    private volatile long latency = -1;
+
+    private volatile double bytesSentPerSecond;
+    private volatile double entriesSentPerSecond;
+    private volatile double bytesReceivedPerSecond;
+    private volatile double entriesReceivedPerSecond;
+
+    // the totals at the last sample
+    private long sampleTime = System.currentTimeMillis();
+    private long sampleBytesSent;
+    private long sampleEntriesSent;
+    private long sampleBytesReceived;
+    private long sampleEntriesReceived;
+
+    @Nullable
+    private ObjectName objectName;
+
+    VanillaPeerReplicationMetrics(@NotNull String replicator, byte localIdentifier) {
+        this.replicator = replicator;
+        this.localIdentifier = localIdentifier;
+    }
+
+    void remoteIdentifier(byte remoteIdentifier) {
+        this.remoteIdentifier = remoteIdentifier;
+    }
+
+    void modificationIterator(@NotNull ModificationIterator modificationIterator) {
+        this.modificationIterator = modificationIterator;
+    }
+
+    void connected(long time) {
+        connectedTime = time;
+        connected = true;
+    }
+
+    void disconnected() {
+        connected = false;
+    }
+
+    void bootstrapComplete() {
+        if (!bootstrapComplete)
+            bootstrapComplete = true;
+    }
+
+    void bytesQueued(long bytesQueued) {
+        this.bytesQueued = bytesQueued;
+    }
+
+    void bytesSent(int bytes) {
+        if (bytes > 0)
+            bytesSent += bytes;
+    }
+
+    void entriesSent(int entries) {
+        entriesSent += entries;
+    }
+
+    void bytesReceived(int bytes, long time) {
+        if (bytes > 0)
+            bytesReceived += bytes;
+        lastReceivedTime = time;
+    }
+
+    void datagramsLost(long datagrams) {
+        lostDatagrams += datagrams;
+    }
+
+    /**
+     * @param timestamp the timestamp of the entry
+     * @param time      the time it was received at
+     */
+    void entryReceived(long timestamp, long time) {
+        entriesReceived++;
+        if (timestamp < connectedTime)
+            return;
+        final long sample = Math.max(0, time - timestamp);
+        final long latency = this.latency;
+        this.latency = latency < 0 ? sample : latency + ((sample - latency) >> LATENCY_SMOOTHING_SHIFT);
+    }
+
+    /**
+     * updates the rates, if a second or more passed since they were last updated
+     *
+     * @param time the current time in milliseconds
+     */
+    void sample(long time) {
+        final long interval = time - sampleTime;
+        if (interval < SAMPLE_INTERVAL)
+            return;
+        final double perSecond = 1000.0 / interval;
+        final long bytesSent = this.bytesSent;
+        final long entriesSent = this.entriesSent;
+        final long bytesReceived = this.bytesReceived;
+        final long entriesReceived = this.entriesReceived;
+        bytesSentPerSecond = (bytesSent - sampleBytesSent) * perSecond;
+        entriesSentPerSecond = (entriesSent - sampleEntriesSent) * perSecond;
+        bytesReceivedPerSecond = (bytesReceived - sampleBytesReceived) * perSecond;
+        entriesReceivedPerSecond = (entriesReceived - sampleEntriesReceived) * perSecond;
+        sampleBytesSent = bytesSent;
+        sampleEntriesSent = entriesSent;
+        sampleBytesReceived = bytesReceived;
+        sampleEntriesReceived = entriesReceived;
+        sampleTime = time;
+    }
+
+    /**
+     * registers this with the platform MBean server, a registration failure is logged only
+     */
+    synchronized void registerMBean() {
+        try {
+            final ObjectName objectName = new ObjectName("net.openhft.collections:type=PeerReplicationMetrics" +
+                    ",replicator=" + replicator + ",localIdentifier=" + localIdentifier +
+                    (remoteIdentifier == Byte.MIN_VALUE ? "" : ",remoteIdentifier=" + remoteIdentifier));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            LOG.warn("Unable to register the replication metrics, " + this, e);
+        }
+    }
+
+    synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister the replication metrics, " + this, e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public String getReplicator() {
+        return replicator;
+    }
+
+    @Override
+    public byte getLocalIdentifier() {
+        return localIdentifier;
+    }
+
+    @Override
+    public byte getRemoteIdentifier() {
+        return remoteIdentifier;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean isBootstrapComplete() {
+        return bootstrapComplete;
+    }
+
+    @Override
+    public long getPendingEntries() {
+        final ModificationIterator modificationIterator = this.modificationIterator;
+        return modificationIterator == null ? 0 : modificationIterator.pendingEntries();
+    }
+
+    @Override
+    public long getBytesQueued() {
+        return bytesQueued;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public long getEntriesSent() {
+        return entriesSent;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getEntriesReceived() {
+        return entriesReceived;
+    }
+
+    @Override
+    public double getBytesSentPerSecond() {
+        return bytesSentPerSecond;
+    }
+
+    @Override
+    public double getEntriesSentPerSecond() {
+        return entriesSentPerSecond;
+    }
+
+    @Override
+    public double getBytesReceivedPerSecond() {
+        return bytesReceivedPerSecond;
+    }
+
+    @Override
+    public double getEntriesReceivedPerSecond() {
+        return entriesReceivedPerSecond;
+    }
+
+    @Override
+    public long getLostDatagrams() {
+        return lostDatagrams;
+    }
+
+    @Override
+    public long getLastReceivedTime() {
+        return lastReceivedTime;
+    }
+
+    @Override
+    public long getReplicationLatency() {
+        return Math.max(0, latency);
+    }
+
+    @Override
+    public String toString() {
+        return "PeerReplicationMetrics{" +
+                "replicator=" + replicator +
+                ", localIdentifier=" + localIdentifier +
+                ", remoteIdentifier=" + remoteIdentifier +
+                ", connected=" + connected +
+                ", bootstrapComplete=" + bootstrapComplete +
+                ", bytesQueued=" + bytesQueued +
+                ", bytesSent=" + bytesSent +
+                ", entriesSent=" + entriesSent +
+                ", bytesReceived=" + bytesReceived +
+                ", entriesReceived=" + entriesReceived +
+                ", lostDatagrams=" + lostDatagrams +
+                ", lastReceivedTime=" + lastReceivedTime +
+                ", replicationLatency=" + getReplicationLatency() +
+                '}';
+    }
+}
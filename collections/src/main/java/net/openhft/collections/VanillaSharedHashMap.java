@@ -24,6 +24,7 @@ import net.openhft.lang.io.serialization.BytesMarshallable;
 import net.openhft.lang.io.serialization.ObjectSerializer;
 import net.openhft.lang.model.Byteable;
 import net.openhft.lang.model.DataValueClasses;
+import net.openhft.lang.thread.NamedThreadFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -34,6 +35,10 @@ import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.lang.Thread.currentThread;
 import static net.openhft.collections.AbstractVanillaSharedHashMap.Hasher.hash;
@@ -49,6 +54,8 @@ class VanillaSharedHashMap<K, V> extends AbstractVanillaSharedHashMap<K, V> {
                 ? DirectStore.allocateLazy(sizeInBytes(), objectSerializer)
                 : new MappedStore(file, FileChannel.MapMode.READ_WRITE, sizeInBytes(), objectSerializer);
         createMappedStoreAndSegments(bytesStore);
+        if (builder.valueLogSize() > 0)
+            startValueLog(file, builder);
     }
 }
 
@@ -60,7 +67,31 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
     /**
      * Because DirectBitSet implementations couldn't find more than 64 continuous clear or set bits.
      */
-    private static final int MAX_ENTRY_OVERSIZE_FACTOR = 64;
+    static final int MAX_ENTRY_OVERSIZE_FACTOR = 64;
+
+    /**
+     * awaitChange() busy spins this number of times, then yields this number of times, then parks for
+     * exponentially growing periods, up to the maximum.
+     */
+    private static final int AWAIT_SPINS = 1000;
+    private static final int AWAIT_YIELDS = 100;
+    private static final long AWAIT_MIN_PARK_NS = 1000;
+    private static final long AWAIT_MAX_PARK_NS = 1000000;
+    /**
+     * When a value codec is configured, each stored value starts with a byte of these flags.
+     */
+    static final int VALUE_ENCODED = 1;
+    /**
+     * The value is followed by the 64-bit offset of the record in the value log and the 32-bit size of the
+     * value in the record.
+     */
+    static final int VALUE_IN_LOG = 2;
+    private static final int LOGGED_VALUE_POINTER_SIZE = 1 + 8 + 4;
+    private static final int MAX_LOGGED_VALUE_SIZE = 1 << 24;
+    private static final String VALUE_LOG_SUFFIX = ".values";
+    private static final long VALUE_LOG_COLLECT_PERIOD_MS = 10;
+    // the most collection periods skipped, after the collections which didn't reclaim anything
+    private static final int MAX_VALUE_LOG_COLLECT_BACKOFF = 1024;
     public static final ObjectSerializer NO_OBJECT_SERIALIZER = (ObjectSerializer) null;
 
 /*    private final ObjectSerializer objectSerializer;
@@ -79,6 +110,10 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
             new ThreadLocal<DirectBytes>();
     private final ThreadLocal<DirectBytes> localBufferForValues =
             new ThreadLocal<DirectBytes>();
+    private final ThreadLocal<DirectBytes> localBufferForEncodedValues =
+            new ThreadLocal<DirectBytes>();
+    private final ThreadLocal<DirectBytes> localBufferForDecodedValues =
+            new ThreadLocal<DirectBytes>();
 
     final Class<K> kClass;
     final Class<V> vClass;
@@ -93,6 +128,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
     final int entrySize;
     final Alignment alignment;
     final int entriesPerSegment;
+    final MultiMapType multiMapType;
 
     private final SharedMapErrorListener errorListener;
 
@@ -108,6 +144,23 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
     // rather than as returning the Object can be expensive for something you probably don't use.
     final boolean putReturnsNull;
     final boolean removeReturnsNull;
+    private final boolean transactional;
+    /**
+     * If true, values are framed with the flags byte. If valueCodec is non-null, values are encoded if not
+     * smaller than valueCodecThreshold.
+     */
+    final boolean framedValues;
+    final ValueCodec valueCodec;
+    private final int valueCodecThreshold;
+    private final int valueLogThreshold;
+    // non-final for close() and because it is initialized out of constructor
+    ValueLog valueLog;
+    private ScheduledExecutorService valueLogCollector;
+    // the state of the collector thread: the periods to skip, after the collections which didn't reclaim
+    // anything, and if the log was found full of live values
+    private int valueLogCollectBackoff = 0;
+    private int valueLogCollectSkips = 0;
+    private boolean valueLogFull = false;
 
     transient Set<Map.Entry<K, V>> entrySet;
 
@@ -130,6 +183,11 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         this.generatedValueType = builder.generatedValueType();
         this.putReturnsNull = builder.putReturnsNull();
         this.removeReturnsNull = builder.removeReturnsNull();
+        this.transactional = builder.transactional();
+        this.valueCodec = builder.valueCodec();
+        this.valueCodecThreshold = builder.valueCodecThreshold();
+        this.valueLogThreshold = builder.valueLogThreshold();
+        this.framedValues = valueCodec != null || builder.valueLogSize() > 0;
         //  this.objectSerializer = builder.objectSerializer();
 
         int segments = builder.actualSegments();
@@ -138,7 +196,8 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         this.metaDataBytes = builder.metaDataBytes();
         this.eventListener = builder.eventListener();
 
-        int hashMask = useSmallMultiMaps() ? 0xFFFF : ~0;
+        this.multiMapType = builder.multiMapType();
+        int hashMask = multiMapType.hashMask(entriesPerSegment);
         this.hasher = new Hasher(segments, hashMask);
 
         @SuppressWarnings("unchecked")
@@ -203,20 +262,11 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
     }
 
     long sizeOfMultiMap() {
-        return useSmallMultiMaps() ?
-                VanillaShortShortMultiMap.sizeInBytes(entriesPerSegment) :
-                VanillaIntIntMultiMap.sizeInBytes(entriesPerSegment);
+        return multiMapType.sizeInBytes(entriesPerSegment);
     }
 
     long sizeOfMultiMapBitSet() {
-        return useSmallMultiMaps() ?
-                VanillaShortShortMultiMap.sizeOfBitSetInBytes(entriesPerSegment) :
-                VanillaIntIntMultiMap.sizeOfBitSetInBytes(entriesPerSegment);
-    }
-
-
-    boolean useSmallMultiMaps() {
-        return entriesPerSegment <= (1 << 16);
+        return multiMapType.sizeOfBitSetInBytes(entriesPerSegment);
     }
 
     long sizeOfBitSets() {
@@ -230,10 +280,36 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
     }
 
     long segmentSize() {
+        return segmentSize(multiMapType, entriesPerSegment, entrySize, multiMapsPerSegment());
+    }
+
+    /**
+     * @return the size in bytes of the header of the map created by the builder, with the replication
+     * header if the map can replicate
+     */
+    static long headerSize(SharedHashMapBuilder builder) {
+        long headerSize = SharedHashMapBuilder.HEADER_SIZE;
+        if (builder.canReplicate())
+            headerSize += VanillaSharedReplicatedHashMap.replicationHeaderSize(builder.actualSegments(),
+                    builder.actualEntriesPerSegment(), builder.digestBootstrap());
+        return headerSize;
+    }
+
+    /**
+     * @return the size in bytes of a segment of the map created by the builder
+     */
+    static long segmentSize(SharedHashMapBuilder builder) {
+        return segmentSize(builder.multiMapType(), builder.actualEntriesPerSegment(),
+                builder.alignedEntrySize(), builder.canReplicate() ? 2 : 1);
+    }
+
+    private static long segmentSize(MultiMapType multiMapType, int entriesPerSegment, int entrySize,
+                                    int multiMapsPerSegment) {
         long ss = SharedHashMapBuilder.SEGMENT_HEADER
-                + align64(sizeOfMultiMap() + sizeOfMultiMapBitSet()) * multiMapsPerSegment()
-                + numberOfBitSets() * sizeOfBitSets() // the free list and 0+ dirty lists.
-                + sizeOfEntriesInSegment();
+                + align64(multiMapType.sizeInBytes(entriesPerSegment) +
+                multiMapType.sizeOfBitSetInBytes(entriesPerSegment)) * multiMapsPerSegment
+                + align64(entriesPerSegment / 8) // the free list
+                + align64((long) entriesPerSegment * entrySize);
         if ((ss & 63) != 0)
             throw new AssertionError();
 
@@ -259,10 +335,6 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         return 1;
     }
 
-    private long sizeOfEntriesInSegment() {
-        return align64((long) entriesPerSegment * entrySize);
-    }
-
     /**
      * Cache line alignment, assuming 64-byte cache lines.
      */
@@ -277,6 +349,16 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
     public void close() {
         if (ms == null)
             return;
+        if (valueLog != null) {
+            valueLogCollector.shutdown();
+            try {
+                valueLogCollector.awaitTermination(lockTimeOutNS, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                currentThread().interrupt();
+            }
+            valueLog.close();
+            valueLog = null;
+        }
         ms.free();
         segments = null;
         ms = null;
@@ -294,11 +376,92 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         return buffer;
     }
 
+    /**
+     * Encoded values take up to MAX_ENTRY_OVERSIZE_FACTOR entries, but values before encoding could be
+     * several times larger. Logged values are limited only by the value log capacity.
+     */
+    private int valueBufferCapacity() {
+        if (!framedValues)
+            return entrySize * bufferAllocationFactor;
+        int capacity = entrySize * MAX_ENTRY_OVERSIZE_FACTOR * 4;
+        if (valueLog != null)
+            capacity = (int) Math.max(capacity, Math.min(valueLog.capacity() / 4, MAX_LOGGED_VALUE_SIZE));
+        return capacity;
+    }
+
+    /**
+     * Opens the log of values not smaller than valueLogThreshold, next to the map file, and starts the
+     * collector of the log.
+     */
+    void startValueLog(File file, SharedHashMapBuilder builder) throws IOException {
+        valueLog = new ValueLog(file == null ? null : new File(file.getPath() + VALUE_LOG_SUFFIX),
+                builder.valueLogSize(), builder.objectSerializer(), lockTimeOutNS);
+        valueLogCollector = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("value-log-collector", true));
+        valueLogCollector.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                collectValueLog();
+            }
+        }, VALUE_LOG_COLLECT_PERIOD_MS, VALUE_LOG_COLLECT_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collects the value log, if it is more than half full and at least a quarter of the used bytes are
+     * garbage, so the live values moved by a collection are at most three times the garbage reclaimed. The
+     * garbage not counted by the log (e. g. of cleared segments) is collected when the log is nearly full.
+     * Values are appended to the log under segment locks, so the log couldn't be collected when an append
+     * finds it full, because the collector locks segments too. <p/> <p>A collection which reclaims nothing
+     * doubles the number of the following periods skipped, up to {@link #MAX_VALUE_LOG_COLLECT_BACKOFF}.
+     */
+    void collectValueLog() {
+        ValueLog log = valueLog;
+        if (log == null)
+            return;
+        if (valueLogCollectSkips > 0) {
+            valueLogCollectSkips--;
+            return;
+        }
+        long used = log.usedBytes();
+        long capacity = log.capacity();
+        boolean worthIt = used > capacity / 2 && log.garbageBytes() * 4 >= used;
+        if (!worthIt && used < capacity - capacity / 8)
+            return;
+        try {
+            boolean complete = log.collect(this);
+            if (!complete && !valueLogFull)
+                LOG.warn("Value log of " + file() + " is full of live values");
+            valueLogFull = !complete;
+            if (log.usedBytes() < used) {
+                valueLogCollectBackoff = 0;
+            } else {
+                valueLogCollectBackoff = Math.min(Math.max(1, valueLogCollectBackoff * 2),
+                        MAX_VALUE_LOG_COLLECT_BACKOFF);
+                valueLogCollectSkips = valueLogCollectBackoff;
+            }
+        } catch (Exception e) {
+            // an exception would cancel further collections
+            LOG.error("Failed to collect the value log of " + file(), e);
+        }
+    }
+
+    /**
+     * Called by the value log collector for each record of the log.
+     *
+     * @return {@link ValueLog#RELOCATED} if the record is moved, {@link ValueLog#GARBAGE} if no entry
+     * points to it, or {@link ValueLog#FULL} if the record is live, but couldn't be moved because the log
+     * is full
+     */
+    int relocateLoggedValue(int segmentIndex, int hash2, long logOffset, ValueLog log) {
+        Segment[] segments = this.segments;
+        return segments == null ? ValueLog.GARBAGE :
+                segments[segmentIndex].relocateLoggedValue(hash2, logOffset, log);
+    }
+
     private DirectBytes acquireBufferForValue() {
         DirectBytes buffer = localBufferForValues.get();
         if (buffer == null) {
-            buffer = new DirectStore(ms.objectSerializer(),
-                    entrySize * bufferAllocationFactor, false).bytes();
+            buffer = new DirectStore(ms.objectSerializer(), valueBufferCapacity(), false).bytes();
             localBufferForValues.set(buffer);
         } else {
             buffer.clear();
@@ -306,6 +469,31 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         return buffer;
     }
 
+    private DirectBytes acquireBufferForEncodedValue() {
+        DirectBytes buffer = localBufferForEncodedValues.get();
+        if (buffer == null) {
+            // flags byte, decoded size stop bit and encoded value
+            buffer = new DirectStore(ms.objectSerializer(),
+                    1 + 5 + valueCodec.maxEncodedSize(valueBufferCapacity()), false).bytes();
+            localBufferForEncodedValues.set(buffer);
+        } else {
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private DirectBytes acquireBufferForDecodedValue(long decodedSize) {
+        DirectBytes buffer = localBufferForDecodedValues.get();
+        if (buffer == null || buffer.capacity() < decodedSize) {
+            buffer = new DirectStore(ms.objectSerializer(),
+                    Math.max(decodedSize, valueBufferCapacity()), false).bytes();
+            localBufferForDecodedValues.set(buffer);
+        } else {
+            buffer.clear();
+        }
+        return buffer;
+    }
+
     void checkKey(Object key) {
         if (!kClass.isInstance(key)) {
             // key.getClass will cause NPE exactly as needed
@@ -360,12 +548,67 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
     DirectBytes getValueAsBytes(V value) {
         DirectBytes buffer = acquireBufferForValue();
         buffer.clear();
+        if (framedValues)
+            buffer.writeByte(0);
         if (generatedValueType)
             ((BytesMarshallable) value).writeMarshallable(buffer);
         else
             buffer.writeInstance(vClass, value);
         buffer.flip();
-        return buffer;
+        return valueCodec != null ? encodeValue(buffer) : buffer;
+    }
+
+    /**
+     * @param buffer the flags byte followed by the serialized value
+     * @return the given buffer, or the encoded value framed with {@link #VALUE_ENCODED} flag and the size of
+     * the serialized value, if it is large enough and the codec made it smaller
+     */
+    private DirectBytes encodeValue(DirectBytes buffer) {
+        long valueSize = buffer.remaining() - 1;
+        if (valueSize < valueCodecThreshold)
+            return buffer;
+        DirectBytes encoded = acquireBufferForEncodedValue();
+        encoded.writeByte(VALUE_ENCODED);
+        encoded.writeStopBit(valueSize);
+        buffer.position(1);
+        valueCodec.encode(buffer, encoded);
+        buffer.position(0);
+        if (encoded.position() >= buffer.limit())
+            return buffer;
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Reads the value, framed by {@link #getValueAsBytes(Object)} when a value codec or log is configured. The
+     * entry position is moved to the end of the value.
+     */
+    V readFramedValue(Bytes entry, long valueLen, V value) {
+        long start = entry.position();
+        long end = start + valueLen;
+        int flags = entry.readUnsignedByte();
+        if ((flags & VALUE_IN_LOG) != 0) {
+            long logOffset = entry.readLong();
+            int size = entry.readInt();
+            entry.position(end);
+            return readFramedValue(valueLog.value(logOffset, size), size, value);
+        }
+        if ((flags & VALUE_ENCODED) == 0) {
+            value = entry.readInstance(vClass, value);
+            entry.position(end);
+            return value;
+        }
+        long decodedSize = entry.readStopBit();
+        DirectBytes decoded = acquireBufferForDecodedValue(decodedSize);
+        long limit = entry.limit();
+        entry.limit(end);
+        try {
+            valueCodec.decode(entry, decoded, (int) decodedSize);
+        } finally {
+            entry.limit(limit);
+        }
+        decoded.flip();
+        return decoded.readInstance(vClass, value);
     }
 
     /**
@@ -415,6 +658,77 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
             segment.clear();
     }
 
+    Segment segmentFor(K key) {
+        checkKey(key);
+        Bytes keyBytes = getKeyAsBytes(key);
+        return segments[hasher.getSegment(hash(keyBytes))];
+    }
+
+    @Override
+    public int[] maxProbeLengths() {
+        int[] lengths = new int[segments.length];
+        for (int i = 0; i < lengths.length; i++)
+            lengths[i] = segments[i].maxProbeLength();
+        return lengths;
+    }
+
+    @Override
+    public double[] meanProbeLengths() {
+        double[] lengths = new double[segments.length];
+        for (int i = 0; i < lengths.length; i++)
+            lengths[i] = segments[i].meanProbeLength();
+        return lengths;
+    }
+
+    @Override
+    public long version(K key) {
+        return segmentFor(key).getModCount();
+    }
+
+    @Override
+    public long awaitChange(K key, long sinceVersion, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return awaitChange(segmentFor(key), sinceVersion, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    @Override
+    public boolean awaitPresent(K key, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Segment segment = segmentFor(key);
+        while (true) {
+            // read the version before the check, so a put in between is not missed
+            long version = segment.getModCount();
+            if (containsKey(key))
+                return true;
+            if (awaitChange(segment, version, deadline) == version)
+                return containsKey(key);
+        }
+    }
+
+    private static long awaitChange(Segment segment, long sinceVersion, long deadline)
+            throws InterruptedException {
+        long parkNanos = AWAIT_MIN_PARK_NS;
+        for (int i = 0; ; i++) {
+            long version = segment.getModCount();
+            if (version != sinceVersion)
+                return version;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return sinceVersion;
+            if (i < AWAIT_SPINS)
+                continue;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (i < AWAIT_SPINS + AWAIT_YIELDS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(Math.min(parkNanos, remaining));
+                if (parkNanos < AWAIT_MAX_PARK_NS)
+                    parkNanos <<= 1;
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -526,6 +840,13 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         return segments[segmentNum].replace(keyBytes, key, existingValue, newValue, segmentHash);
     }
 
+    @Override
+    public SharedMapTransaction<K, V> startTransaction() {
+        if (!transactional)
+            throw new IllegalStateException("The map should be built with transactional(true)");
+        return new Transaction();
+    }
+
     /**
      * For testing
      */
@@ -586,6 +907,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         static final int SIZE_OFFSET = LOCK_OFFSET + 8; // 32-bit
         static final int PAD1_OFFSET = SIZE_OFFSET + 4; // 32-bit
         static final int REPLICA_OFFSET = PAD1_OFFSET + 4; // 64-bit
+        static final int MOD_COUNT_OFFSET = REPLICA_OFFSET + 8; // 64-bit
 
         private final NativeBytes bytes;
         private final int index;
@@ -614,7 +936,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
             freeList = new SingleThreadedDirectBitSet(bsBytes);
             start += numberOfBitSets() * sizeOfBitSets();
             entriesOffset = start - bytes.startAddr();
-            assert bytes.capacity() >= entriesOffset + entriesPerSegment * entrySize;
+            assert bytes.capacity() >= entriesOffset + (long) entriesPerSegment * entrySize;
         }
 
         void createHashLookups(long start) {
@@ -637,9 +959,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
             // warm memory eagerly.
             multiMapBytes.load();
             multiMapBitSetBytes.load();
-            return useSmallMultiMaps() ?
-                    new VanillaShortShortMultiMap(multiMapBytes, multiMapBitSetBytes) :
-                    new VanillaIntIntMultiMap(multiMapBytes, multiMapBitSetBytes);
+            return multiMapType.create(entriesPerSegment, multiMapBytes, multiMapBitSetBytes);
         }
 
         public int getIndex() {
@@ -669,6 +989,34 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
             this.bytes.addInt(SIZE_OFFSET, -1);
         }
 
+        /**
+         * Increments the modification version, should be called under the segment lock on every change,
+         * waiters in this or other processes read it via {@link #getModCount()}.
+         */
+        void incrementModCount() {
+            this.bytes.writeOrderedLong(MOD_COUNT_OFFSET, this.bytes.readLong(MOD_COUNT_OFFSET) + 1);
+        }
+
+        long getModCount() {
+            return this.bytes.readVolatileLong(MOD_COUNT_OFFSET);
+        }
+
+        /**
+         * Scans the hash lookup without the segment lock, so the writers of this segment are not stalled for
+         * the O(capacity) scan. Slots are read one by one, the result is approximate if the segment is
+         * modified concurrently.
+         */
+        int maxProbeLength() {
+            return getHashLookup().maxProbeLength();
+        }
+
+        /**
+         * @see #maxProbeLength()
+         */
+        double meanProbeLength() {
+            return getHashLookup().meanProbeLength();
+        }
+
         /**
          * reads the the number of entries in this segment
          */
@@ -886,12 +1234,12 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
 
             // "if-else polymorphism" is not very beautiful, but allows to
             // reuse the rest code of this method and doesn't hurt performance.
-            boolean byteableValue = usingValue && value instanceof Byteable;
+            boolean byteableValue = usingValue && !framedValues && value instanceof Byteable;
             long valueLen;
             Bytes valueBytes = null;
             Byteable valueAsByteable = null;
             if (!byteableValue) {
-                valueBytes = getValueAsBytes(value);
+                valueBytes = storedValueBytes(value, hashLookup.getSearchHash());
                 valueLen = valueBytes.remaining();
             } else {
                 valueAsByteable = (Byteable) value;
@@ -972,6 +1320,75 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
                 nextPosToSearchFrom = fromPos;
         }
 
+        /**
+         * Serializes the value, and appends it to the value log, if it is large enough.
+         *
+         * @param hash2 the hash of the key in this segment, to find the entry by the log collector
+         * @return the bytes to store in the entry
+         */
+        Bytes storedValueBytes(V value, int hash2) {
+            DirectBytes valueBytes = getValueAsBytes(value);
+            int size = (int) valueBytes.remaining();
+            if (valueLog == null || size < valueLogThreshold)
+                return valueBytes;
+            long logOffset = valueLog.append(index, hash2, valueBytes);
+            // the value bytes are not needed any more, reuse the buffer
+            DirectBytes pointer = acquireBufferForValue();
+            pointer.writeByte(VALUE_IN_LOG);
+            pointer.writeLong(logOffset);
+            pointer.writeInt(size);
+            pointer.flip();
+            return pointer;
+        }
+
+        /**
+         * Moves the value in the value log record at the given offset to the head of the log, if an entry
+         * of this segment still points to it.
+         *
+         * @return {@link ValueLog#RELOCATED}, {@link ValueLog#GARBAGE}, or {@link ValueLog#FULL} if the
+         * record is live, but couldn't be moved because the log is full
+         */
+        int relocateLoggedValue(int hash2, long logOffset, ValueLog log) {
+            lock();
+            try {
+                hashLookup.startSearch(hash2);
+                for (int pos; (pos = hashLookup.nextPos()) >= 0; ) {
+                    NativeBytes entry = entry(offsetFromPos(pos));
+                    entry.skip(entry.readStopBit());
+                    long valueLen = readValueLen(entry);
+                    if (valueLen != LOGGED_VALUE_POINTER_SIZE)
+                        continue;
+                    long pointerPos = entry.position();
+                    if ((entry.readUnsignedByte() & VALUE_IN_LOG) == 0 || entry.readLong() != logOffset)
+                        continue;
+                    int size = entry.readInt();
+                    long newLogOffset;
+                    try {
+                        newLogOffset = log.append(index, hash2, log.value(logOffset, size));
+                    } catch (IllegalStateException e) {
+                        return ValueLog.FULL;
+                    }
+                    entry.writeLong(pointerPos + 1, newLogOffset);
+                    return ValueLog.RELOCATED;
+                }
+                return ValueLog.GARBAGE;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Counts the value log record the value points to, if any, as garbage, before the value is replaced
+         * or the entry is removed.
+         *
+         * @param valuePos the position of the value in the entry
+         */
+        void discardLoggedValue(Bytes entry, long valuePos, long valueLen) {
+            if (valueLog != null && valueLen == LOGGED_VALUE_POINTER_SIZE &&
+                    (entry.readUnsignedByte(valuePos) & VALUE_IN_LOG) != 0)
+                valueLog.discard(entry.readLong(valuePos + 1));
+        }
+
         V readValue(NativeBytes entry, V value) {
             return readValue(entry, value, readValueLen(entry));
         }
@@ -988,6 +1405,8 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
          * @param value the object to reuse (if possible), if {@code null} a new object is created
          */
         V readValue(NativeBytes entry, V value, long valueLen) {
+            if (framedValues)
+                return readFramedValue(entry, valueLen, value);
             if (generatedValueType)
                 if (value == null)
                     value = DataValueClasses.newDirectReference(vClass);
@@ -1027,11 +1446,13 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
                     // key is found
                     entry.skip(keyLen);
                     long valueLen = readValueLen(entry);
+                    long valuePos = entry.position();
                     long entryEndAddr = entry.positionAddr() + valueLen;
                     V valueRemoved = expectedValue != null || !removeReturnsNull
                             ? readValue(entry, null, valueLen) : null;
                     if (expectedValue != null && !expectedValue.equals(valueRemoved))
                         return null;
+                    discardLoggedValue(entry, valuePos, valueLen);
                     hashLookup.removePrevPos();
                     decrementSize();
                     free(pos, inBlocks(entryEndAddr - entryStartAddr(offset)));
@@ -1117,6 +1538,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
 
 
         void notifyPut(long offset, boolean added, K key, V value, final long pos) {
+            incrementModCount();
             if (eventListener != SharedMapEventListeners.NOP) {
                 tmpBytes.storePositionAndSize(bytes, offset, entrySize);
                 eventListener.onPut(AbstractVanillaSharedHashMap.this, tmpBytes, metaDataBytes,
@@ -1141,6 +1563,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         }
 
         void notifyRemoved(long offset, K key, V value, final int pos) {
+            incrementModCount();
             if (eventListener != SharedMapEventListeners.NOP) {
                 tmpBytes.storePositionAndSize(bytes, offset, entrySize);
                 eventListener.onRemove(AbstractVanillaSharedHashMap.this, tmpBytes, metaDataBytes,
@@ -1150,12 +1573,13 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
 
         long putValue(int pos, long offset, NativeBytes entry, long valueLenPos,
                       long entryEndAddr, V value, IntIntMultiMap searchedHashLookup) {
-            if (value instanceof Byteable) {
+            if (!framedValues && value instanceof Byteable) {
                 return putValue(pos, offset, entry, valueLenPos, entryEndAddr,
                         null, (Byteable) value, false, searchedHashLookup);
             } else {
                 return putValue(pos, offset, entry, valueLenPos, entryEndAddr,
-                        getValueAsBytes(value), null, true, searchedHashLookup);
+                        storedValueBytes(value, searchedHashLookup.getSearchHash()), null, true,
+                        searchedHashLookup);
             }
         }
 
@@ -1180,6 +1604,12 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
                       long entryEndAddr, @Nullable Bytes valueBytes,
                       @Nullable Byteable valueAsByteable, boolean allowOversize,
                       IntIntMultiMap searchedHashLookup) {
+            if (valueLog != null) {
+                // the new value is logged already, if large, the record of the replaced one is garbage
+                entry.position(valueLenPos);
+                long oldValueLen = readValueLen(entry);
+                discardLoggedValue(entry, entry.position(), oldValueLen);
+            }
             long valueLenAddr = entry.address() + valueLenPos;
             long newValueLen;
             if (valueBytes != null) {
@@ -1282,6 +1712,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
                 hashLookup.clear();
                 freeList.clear();
                 resetSize();
+                incrementModCount();
             } finally {
                 unlock();
             }
@@ -1453,6 +1884,7 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
 
             entry.skip(keyLen);
             long valueLen = segment.readValueLen(entry);
+            segment.discardLoggedValue(entry, entry.position(), valueLen);
             final long entryEndAddr = entry.positionAddr() + valueLen;
             segment.getHashLookup().remove(segmentHash, pos);
             segment.decrementSize();
@@ -1509,6 +1941,142 @@ abstract class AbstractVanillaSharedHashMap<K, V> extends AbstractMap<K, V>
         }
     }
 
+    final class Transaction implements SharedMapTransaction<K, V> {
+        private final List<K> keys = new ArrayList<K>();
+        // null value means remove
+        private final List<V> values = new ArrayList<V>();
+        // the copies of the previous values backed by the bytes of the entries, freed after commit
+        private final List<DirectStore> undoStores = new ArrayList<DirectStore>();
+        private boolean done = false;
+
+        @Override
+        public SharedMapTransaction<K, V> put(K key, V value) {
+            checkNotDone();
+            checkKey(key);
+            checkValue(value);
+            keys.add(key);
+            values.add(value);
+            return this;
+        }
+
+        @Override
+        public SharedMapTransaction<K, V> remove(K key) {
+            checkNotDone();
+            checkKey(key);
+            keys.add(key);
+            values.add(null);
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+
+        @Override
+        public void commit() {
+            checkNotDone();
+            done = true;
+            int size = keys.size();
+            // the operations sorted by segment index, and by their order in a segment, so the locks are
+            // acquired in index order and concurrent transactions can't deadlock. The order of the
+            // operations on each key is kept, because the same key is always in the same segment.
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                int segmentIndex = hasher.getSegment(hash(getKeyAsBytes(keys.get(i))));
+                order[i] = ((long) segmentIndex << 32) | i;
+            }
+            Arrays.sort(order);
+            BitSet locked = new BitSet(segments.length);
+            // the values of the keys before each operation applied, null if absent
+            List<V> undoValues = new ArrayList<V>(size);
+            boolean applied = false;
+            try {
+                for (long o : order) {
+                    int s = (int) (o >>> 32);
+                    if (!locked.get(s)) {
+                        segments[s].lock();
+                        locked.set(s);
+                    }
+                }
+                // segment locks are reentrant, so the ordinary put() and remove() could be
+                // applied while the locks are held
+                for (long o : order) {
+                    int i = (int) o;
+                    K key = keys.get(i);
+                    undoValues.add(detached(AbstractVanillaSharedHashMap.this.get(key)));
+                    V value = values.get(i);
+                    if (value != null) {
+                        AbstractVanillaSharedHashMap.this.put(key, value);
+                    } else {
+                        AbstractVanillaSharedHashMap.this.remove(key);
+                    }
+                }
+                applied = true;
+            } finally {
+                if (!applied)
+                    undo(order, undoValues);
+                for (int s = locked.length() - 1; s >= 0; s = locked.previousSetBit(s - 1))
+                    segments[s].unlock();
+                for (DirectStore store : undoStores)
+                    store.free();
+                undoStores.clear();
+                keys.clear();
+                values.clear();
+            }
+        }
+
+        /**
+         * @return the value, or a copy of it if it is backed by the bytes of the entry, which the
+         * transaction may change
+         */
+        private V detached(V value) {
+            if (!generatedValueType || value == null)
+                return value;
+            Byteable byteable = (Byteable) value;
+            DirectStore store = DirectStore.allocateLazy(byteable.maxSize());
+            undoStores.add(store);
+            DirectBytes copyBytes = store.bytes();
+            copyBytes.write(byteable.bytes(), byteable.offset(), byteable.maxSize());
+            V copy = DataValueClasses.newDirectReference(vClass);
+            ((Byteable) copy).bytes(copyBytes, 0);
+            return copy;
+        }
+
+        /**
+         * restores the values of the keys, in the reverse order of the operations applied, including the
+         * failed one, which may have been applied partially
+         */
+        private void undo(long[] order, List<V> undoValues) {
+            for (int j = undoValues.size() - 1; j >= 0; j--) {
+                K key = keys.get((int) order[j]);
+                V value = undoValues.get(j);
+                try {
+                    if (value != null) {
+                        AbstractVanillaSharedHashMap.this.put(key, value);
+                    } else {
+                        AbstractVanillaSharedHashMap.this.remove(key);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.error("Unable to restore the value of " + key + " on a failed commit", e);
+                }
+            }
+        }
+
+        @Override
+        public void rollback() {
+            checkNotDone();
+            done = true;
+            keys.clear();
+            values.clear();
+        }
+
+        private void checkNotDone() {
+            if (done)
+                throw new IllegalStateException("Transaction is already committed or rolled back");
+        }
+    }
+
     final class WriteThroughEntry extends SimpleEntry<K, V> {
 
         WriteThroughEntry(K key, V value) {
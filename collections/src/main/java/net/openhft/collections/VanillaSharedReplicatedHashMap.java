@@ -25,6 +25,7 @@ import net.openhft.lang.io.serialization.ObjectSerializer;
 import net.openhft.lang.model.Byteable;
 import net.openhft.lang.model.DataValueClasses;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,9 +33,13 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static net.openhft.collections.AbstractVanillaSharedHashMap.Hasher.hash;
@@ -77,6 +82,24 @@ import static net.openhft.lang.collection.DirectBitSet.NOT_FOUND;
  * decision made to the other. We resolve this simple dilemma by using a node identifier, each node will have a unique
  * identifier, the update from the node with the smallest identifier wins.
  *
+ * <p>Delta replication
+ *
+ * <p>If {@link SharedHashMapBuilder#deltaReplication(boolean)} is enabled, each entry holds the version of its
+ * value, and a bit mask of the chunks of the value, which were changed by {@code put()} since the version
+ * was written. A value is split into at most 64 chunks of at least 8 bytes. Only the changed chunks are sent
+ * to the nodes which accept deltas, and a node applies them only if it holds the same version of the value,
+ * otherwise the node asks for the full entry. A value starts a new version if its length changes, it is
+ * written by another node or by {@code replace()}, or the most of its chunks were changed.
+ *
+ * <p>Digests
+ *
+ * <p>If {@link SharedHashMapBuilder#digestBootstrap(boolean)} is enabled, the map keeps {@link #DIGEST_BUCKETS}
+ * digests per segment, each the XOR of the digests of the entries of the bucket, which are taken of the hash of
+ * the key, and the timestamp, identifier and is deleted flag of the entry. The bucket of an entry is chosen by the
+ * hash of its key, so the nodes of the same configuration hold the same digests, if they hold the same entries.
+ * The digests are kept in the header of the map, after the modification iterators, and updated in place along
+ * with the entries, so they are found again when the map is reopened.
+ *
  * @param <K> the entries key type
  * @param <V> the entries value type
  */
@@ -87,11 +110,21 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
     static final int MAX_UNSIGNED_SHORT = Character.MAX_VALUE;
 
     private static final Logger LOG = LoggerFactory.getLogger(VanillaSharedReplicatedHashMap.class);
-    private static final int LAST_UPDATED_HEADER_SIZE = (127 * 8);
+    static final int LAST_UPDATED_HEADER_SIZE = (127 * 8);
 
     // for file, jdbc and UDP replication
     public static final int RESERVED_MOD_ITER = 8;
 
+    // the version of the value and the mask of its changed chunks, follows the is deleted flag
+    static final int DELTA_HEADER_SIZE = 12;
+    static final int MIN_DELTA_CHUNK_SIZE = 8;
+
+    // the number of digests per segment
+    static final int DIGEST_BUCKETS = 64;
+
+    // how far the changes of concurrent writers may be out of timestamp order in the journal, in millis
+    private static final long JOURNAL_TIMESTAMP_MARGIN = 1000;
+
     private final TimeProvider timeProvider;
     private final byte localIdentifier;
     private final Set<Closeable> closeables = new CopyOnWriteArraySet<Closeable>();
@@ -102,6 +135,18 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
     private final ModificationDelegator modificationDelegator;
     private int startOfModificationIterators;
 
+    // 0 if delta replication is off
+    private final int deltaHeaderSize;
+    private final AtomicInteger versions = new AtomicInteger(new Random().nextInt());
+
+    // the changes shared by the modification iterators, null if each iterator marks them in its bit set
+    private final ModificationJournal modificationJournal;
+
+    private final boolean keepsDigests;
+    // the digests of the buckets of the entries, DIGEST_BUCKETS longs per segment, null if digests are not
+    // kept, the digests of a segment are guarded by its lock
+    private final Bytes digests;
+
     public VanillaSharedReplicatedHashMap(@NotNull SharedHashMapBuilder builder,
                                           @NotNull Class<K> kClass,
                                           @NotNull Class<V> vClass) throws IOException {
@@ -109,6 +154,10 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
         this.timeProvider = builder.timeProvider();
         this.localIdentifier = builder.identifier();
+        this.deltaHeaderSize = builder.deltaReplication() ? DELTA_HEADER_SIZE : 0;
+        this.modificationJournal = builder.modificationJournal() > 0 ?
+                new ModificationJournal(builder.modificationJournal()) : null;
+        this.keepsDigests = builder.digestBootstrap();
         File file = builder.file();
         ObjectSerializer objectSerializer = builder.objectSerializer();
         BytesStore bytesStore = file == null
@@ -116,11 +165,130 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                 : new MappedStore(file, FileChannel.MapMode.READ_WRITE, sizeInBytes(), objectSerializer);
         createMappedStoreAndSegments(bytesStore);
 
+        // zero filled when the file is created, then maintained by the writers
+        digests = keepsDigests ? ms.bytes(startOfModificationIterators +
+                (long) modIterBitSetSizeInBytes() * (128 + RESERVED_MOD_ITER),
+                digestsSizeInBytes(segments.length)) : null;
+
         modificationDelegator = new ModificationDelegator(eventListener, modDelBytes, startOfModificationIterators);
         this.eventListener = modificationDelegator;
     }
 
-    private int assignedModIterBitSetSizeInBytes() {
+    boolean deltaReplication() {
+        return deltaHeaderSize > 0;
+    }
+
+    /**
+     * @return a new version of a value written by this node, never 0, which stands for an unknown version
+     */
+    private int nextVersion() {
+        int version;
+        do {
+            version = versions.incrementAndGet();
+        } while (version == 0);
+        return version;
+    }
+
+    /**
+     * @return the size of the chunks, which the changes of a value of the given length are tracked in
+     */
+    static int deltaChunkSize(long valueLen) {
+        long chunkSize = (valueLen + 63) / 64;
+        return (int) Math.max(MIN_DELTA_CHUNK_SIZE, (chunkSize + 7) & ~7L);
+    }
+
+    static int deltaChunks(long valueLen, int chunkSize) {
+        return (int) ((valueLen + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return the number of bytes of the given chunks of a value
+     */
+    static long deltaLength(long changedChunks, long valueLen, int chunkSize) {
+        long length = (long) Long.bitCount(changedChunks) * chunkSize;
+        int lastChunk = deltaChunks(valueLen, chunkSize) - 1;
+        // the last chunk may be shorter
+        if ((changedChunks & (1L << lastChunk)) != 0)
+            length -= (long) (lastChunk + 1) * chunkSize - valueLen;
+        return length;
+    }
+
+    /**
+     * @return the bit mask of the chunks which differ in the values of the given length at the given
+     * addresses
+     */
+    static long changedChunks(long addr1, long addr2, long valueLen, int chunkSize) {
+        long changedChunks = 0L;
+        for (int chunk = 0; (long) chunk * chunkSize < valueLen; chunk++) {
+            long start = (long) chunk * chunkSize;
+            if (!sameBytes(addr1 + start, addr2 + start, Math.min(chunkSize, valueLen - start)))
+                changedChunks |= 1L << chunk;
+        }
+        return changedChunks;
+    }
+
+    /**
+     * @return the digest of an entry, the same on every node which holds the same entry
+     */
+    static long entryDigest(int hash2, long timestamp, byte identifier, boolean deleted) {
+        long h = hash2 * 0x9E3779B97F4A7C15L ^ timestamp;
+        h = h * 0xC2B2AE3D27D4EB4FL + (identifier << 1 | (deleted ? 1 : 0));
+        return h ^ (h >>> 31);
+    }
+
+    @Override
+    public int digestSegments() {
+        return digests == null ? 0 : segments.length;
+    }
+
+    @Override
+    public long segmentDigest(int segmentIndex) {
+        final Segment segment = segment(segmentIndex);
+        segment.lock();
+        try {
+            long digest = 0L;
+            for (int i = 0; i < DIGEST_BUCKETS; i++)
+                digest ^= digests.readLong(digestOffset(segmentIndex, i));
+            return digest;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public void bucketDigests(int segmentIndex, @NotNull long[] bucketDigests) {
+        final Segment segment = segment(segmentIndex);
+        segment.lock();
+        try {
+            for (int i = 0; i < DIGEST_BUCKETS; i++)
+                bucketDigests[i] = digests.readLong(digestOffset(segmentIndex, i));
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    private static long digestOffset(int segmentIndex, int bucket) {
+        return ((long) segmentIndex * DIGEST_BUCKETS + bucket) * 8L;
+    }
+
+    private static long digestsSizeInBytes(int segments) {
+        return align64((long) segments * DIGEST_BUCKETS * 8L);
+    }
+
+    private static boolean sameBytes(long addr1, long addr2, long length) {
+        long i = 0;
+        for (; i < length - 7; i += 8) {
+            if (NativeBytes.UNSAFE.getLong(addr1 + i) != NativeBytes.UNSAFE.getLong(addr2 + i))
+                return false;
+        }
+        for (; i < length; i++) {
+            if (NativeBytes.UNSAFE.getByte(addr1 + i) != NativeBytes.UNSAFE.getByte(addr2 + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int assignedModIterBitSetSizeInBytes() {
         return (int) align64((127 + RESERVED_MOD_ITER) / 8);
     }
 
@@ -134,10 +302,14 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
     }
 
     int modIterBitSetSizeInBytes() {
-        return (int) align64(bitsPerSegmentInModIterBitSet() * segments.length / 8);
+        return modIterBitSetSizeInBytes(segments.length, entriesPerSegment);
     }
 
-    private long bitsPerSegmentInModIterBitSet() {
+    private static int modIterBitSetSizeInBytes(int segments, int entriesPerSegment) {
+        return (int) align64(bitsPerSegmentInModIterBitSet(entriesPerSegment) * segments / 8);
+    }
+
+    private static long bitsPerSegmentInModIterBitSet(int entriesPerSegment) {
         // min 128 * 8 to prevent false sharing on updating bits from different segments
         return Maths.nextPower2((long) entriesPerSegment, 128 * 8);
     }
@@ -148,10 +320,18 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
     }
 
     int getHeaderSize() {
-        final int headerSize = super.getHeaderSize();
+        return super.getHeaderSize() +
+                (int) replicationHeaderSize(segments.length, entriesPerSegment, keepsDigests);
+    }
 
-        return headerSize + LAST_UPDATED_HEADER_SIZE + (modIterBitSetSizeInBytes() * (128 +
-                RESERVED_MOD_ITER)) + assignedModIterBitSetSizeInBytes();
+    /**
+     * @return the size in bytes of the header following the header of {@link VanillaSharedHashMap}: the
+     * last update times, the assigned modification iterators, their bit sets and the digests, if kept
+     */
+    static long replicationHeaderSize(int segments, int entriesPerSegment, boolean digests) {
+        return LAST_UPDATED_HEADER_SIZE + modIterBitSetSizeInBytes(segments, entriesPerSegment) *
+                (128 + RESERVED_MOD_ITER) + assignedModIterBitSetSizeInBytes() +
+                (digests ? digestsSizeInBytes(segments) : 0L);
     }
 
     void setLastModificationTime(byte identifier, long timestamp) {
@@ -291,6 +471,18 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
         closeables.add(closeable);
     }
 
+    /**
+     * @return the metrics of the current connections of the replicators of this map
+     */
+    List<PeerReplicationMetrics> replicationMetrics() {
+        final List<PeerReplicationMetrics> metrics = new ArrayList<PeerReplicationMetrics>();
+        for (Closeable closeable : closeables) {
+            if (closeable instanceof AbstractChannelReplicator)
+                metrics.addAll(((AbstractChannelReplicator) closeable).peerMetrics());
+        }
+        return metrics;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -310,6 +502,11 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        if (ms != null) {
+            modificationDelegator.free();
+            if (modificationJournal != null)
+                modificationJournal.free();
+        }
         super.close();
 
     }
@@ -392,7 +589,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
         private long entrySize(long keyLen, long valueLen) {
             long result = alignment.alignAddr(metaDataBytes +
-                    expectedStopBits(keyLen) + keyLen + 10 +
+                    expectedStopBits(keyLen) + keyLen + 10 + deltaHeaderSize +
                     expectedStopBits(valueLen)) + valueLen;
             // replication enforces that the entry size will never be larger than an unsigned short
             if (result > MAX_UNSIGNED_SHORT)
@@ -415,8 +612,8 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                 long offset = searchKey(keyBytes, hash2, entry, hashLookupLiveOnly);
                 if (offset >= 0) {
 
-                    // skip the timestamp, identifier and is deleted flag
-                    entry.skip(10);
+                    // skip the timestamp, identifier, is deleted flag and the delta header
+                    entry.skip(10 + deltaHeaderSize);
 
                     return onKeyPresentOnAcquire(key, usingValue, offset, entry);
                 } else {
@@ -477,11 +674,10 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                     }
 
                     entry.position(timeStampPos);
-                    entry.writeLong(timestamp);
                     assert identifier > 0;
-                    entry.writeByte(identifier);
                     // was deleted
-                    entry.writeBoolean(true);
+                    writeStamp(entry, hash2, true, timestamp, identifier, true);
+                    incrementModCount();
                 }
                 // key is not found
                 if (LOG.isDebugEnabled())
@@ -497,7 +693,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
          * called from a remote node when it wishes to propagate a remove event
          */
         private void remotePut(@NotNull final Bytes inBytes, int hash2,
-                               final byte identifier, final long timestamp,
+                               final byte identifier, final long timestamp, final int version,
                                long valuePos, long valueLimit) {
             lock();
             try {
@@ -522,12 +718,9 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
                     boolean wasDeleted = entry.readBoolean();
                     entry.positionAddr(timeStampPos);
-                    entry.writeLong(timestamp);
                     assert identifier > 0;
-                    entry.writeByte(identifier);
-
-                    // deleted flag
-                    entry.writeBoolean(false);
+                    writeStamp(entry, hash2, true, timestamp, identifier, false);
+                    writeDeltaHeader(entry, version, 0L);
 
                     long valueLenPos = entry.position();
                     long valueLen = readValueLen(entry);
@@ -545,6 +738,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                         hashLookupLiveOnly.put(hash2, pos);
                         incrementSize();
                     }
+                    incrementModCount();
                     return;
                 }
 
@@ -560,9 +754,8 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                 // write the key
                 entry.write(inBytes);
 
-                entry.writeLong(timestamp);
-                entry.writeByte(identifier);
-                entry.writeBoolean(false);
+                writeStamp(entry, hash2, false, timestamp, identifier, false);
+                writeDeltaHeader(entry, version, 0L);
 
                 entry.writeStopBit(valueLen);
                 alignment.alignPositionAddr(entry);
@@ -577,12 +770,168 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                 hashLookupLiveOnly.put(hash2, pos);
 
                 incrementSize();
+                incrementModCount();
 
             } finally {
                 unlock();
             }
         }
 
+        /**
+         * called from a remote node, to apply the changed chunks of a value
+         *
+         * @return {@code false} if this node doesn't hold the version of the value the delta is based on
+         */
+        private boolean remoteDelta(@NotNull final Bytes inBytes, int hash2,
+                                    final byte identifier, final long timestamp, final int version,
+                                    final long changedChunks, final long valueLen,
+                                    long deltaPos, long deltaLimit) {
+            lock();
+            try {
+                // inBytes position and limit correspond to the key
+                final long keyLen = inBytes.remaining();
+
+                hashLookupLiveAndDeleted.startSearch(hash2);
+                for (int pos; (pos = hashLookupLiveAndDeleted.nextPos()) >= 0; ) {
+
+                    long offset = offsetFromPos(pos);
+                    NativeBytes entry = entry(offset);
+                    if (!keyEquals(inBytes, keyLen, entry))
+                        continue;
+                    // key is found
+                    entry.skip(keyLen);
+
+                    final long timeStampPos = entry.positionAddr();
+
+                    if (shouldIgnore(entry, timestamp, identifier))
+                        return true;
+
+                    entry.positionAddr(timeStampPos + 8);
+                    final byte entryIdentifier = entry.readByte();
+                    final boolean wasDeleted = entry.readBoolean();
+                    if (wasDeleted || entryIdentifier != identifier || deltaHeaderSize == 0 ||
+                            entry.readInt() != version)
+                        return false;
+                    // the changed chunks are tracked by the node which wrote the version only
+                    entry.skip(8);
+                    if (readValueLen(entry) != valueLen)
+                        return false;
+                    final long valueStart = entry.position();
+
+                    entry.positionAddr(timeStampPos);
+                    writeStamp(entry, hash2, true, timestamp, identifier, false);
+
+                    // write the changed chunks of the value
+                    final int chunkSize = deltaChunkSize(valueLen);
+                    inBytes.limit(deltaLimit);
+                    inBytes.position(deltaPos);
+                    for (long chunks = changedChunks; chunks != 0L; chunks &= chunks - 1) {
+                        final long chunkStart = (long) Long.numberOfTrailingZeros(chunks) * chunkSize;
+                        final long chunkLen = Math.min(chunkSize, valueLen - chunkStart);
+                        entry.position(valueStart + chunkStart);
+                        entry.write(inBytes, inBytes.position(), chunkLen);
+                        inBytes.skip(chunkLen);
+                    }
+
+                    incrementModCount();
+                    return true;
+                }
+
+                // key is not found
+                return false;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * writes the timestamp, the identifier and the is deleted flag of the entry, which is positioned at the
+         * timestamp, and updates the digest of its bucket, if digests are kept
+         *
+         * @param replacing {@code true} if the entry holds a timestamp, identifier and is deleted flag already
+         */
+        void writeStamp(NativeBytes entry, int hash2, boolean replacing,
+                        long timestamp, byte identifier, boolean deleted) {
+            if (digests != null) {
+                long digest = entryDigest(hash2, timestamp, identifier, deleted);
+                if (replacing) {
+                    final long timeStampPos = entry.position();
+                    digest ^= entryDigest(hash2, entry.readLong(timeStampPos),
+                            entry.readByte(timeStampPos + 8), entry.readByte(timeStampPos + 9) != 0);
+                }
+                final long offset = digestOffset(getIndex(), hash2 & (DIGEST_BUCKETS - 1));
+                digests.writeLong(offset, digests.readLong(offset) ^ digest);
+            }
+            entry.writeLong(timestamp);
+            entry.writeByte(identifier);
+            entry.writeBoolean(deleted);
+        }
+
+        /**
+         * @param entry the entry, positioned at its start, is positioned at the timestamp then
+         * @return the hash of the key of the entry within its segment
+         */
+        private int keyHash2(NativeBytes entry) {
+            final long keyLen = entry.readStopBit();
+            final long limit = entry.limit();
+            entry.limit(entry.position() + keyLen);
+            final int hash2 = hasher.segmentHash(hash(entry));
+            entry.limit(limit);
+            entry.skip(keyLen);
+            return hash2;
+        }
+
+        /**
+         * marks the entries written by this node, of the given digest buckets
+         *
+         * @param buckets the bit mask of the buckets
+         */
+        void dirtyBuckets(final long buckets, final ModificationIterator.EntryModifiableCallback callback) {
+            lock();
+            try {
+                final int index = getIndex();
+                hashLookupLiveAndDeleted.forEach(new IntIntMultiMap.EntryConsumer() {
+                    @Override
+                    public void accept(int hash, int pos) {
+                        final NativeBytes entry = entry(offsetFromPos(pos));
+                        final int hash2 = keyHash2(entry);
+                        if ((buckets & (1L << (hash2 & (DIGEST_BUCKETS - 1)))) == 0)
+                            return;
+                        entry.skip(8);
+                        if (entry.readByte() == VanillaSharedReplicatedHashMap.this.identifier())
+                            callback.set(index, pos);
+                    }
+                });
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * writes the version of the value and the mask of its changed chunks, if delta replication is on
+         */
+        private void writeDeltaHeader(NativeBytes entry, int version, long changedChunks) {
+            if (deltaHeaderSize == 0)
+                return;
+            entry.writeInt(version);
+            entry.writeLong(changedChunks);
+        }
+
+        /**
+         * The segment lock should be held by the caller.
+         *
+         * @return the position of the live or deleted entry of the key, or {@code -1} if it is not found
+         */
+        int findPos(Bytes keyBytes, int hash2) {
+            long keyLen = keyBytes.remaining();
+            hashLookupLiveAndDeleted.startSearch(hash2);
+            for (int pos; (pos = hashLookupLiveAndDeleted.nextPos()) >= 0; ) {
+                if (keyEquals(keyBytes, keyLen, entry(offsetFromPos(pos))))
+                    return pos;
+            }
+            return -1;
+        }
+
         V put(Bytes keyBytes, K key, V value, int hash2, boolean replaceIfPresent,
               final byte identifier, final long timestamp) {
             lock();
@@ -610,14 +959,19 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                     // the same way as replaceIfPresent true
                     if (replaceIfPresent || wasDeleted) {
 
+                        // the changes of the value are tracked while this node writes it
+                        entry.positionAddr(timeStampPos + 8);
+                        final boolean sameVersion = !wasDeleted && identifier == localIdentifier &&
+                                entry.readByte() == localIdentifier;
+
                         entry.positionAddr(timeStampPos);
-                        entry.writeLong(timestamp);
-                        entry.writeByte(identifier);
-                        // deleted flag
-                        entry.writeBoolean(false);
+                        writeStamp(entry, hash2, true, timestamp, identifier, false);
 
-                        final V prevValue = replaceValueOnPut(key, value, entry, pos, offset,
-                                !wasDeleted && !putReturnsNull, hashLookup);
+                        final V prevValue = deltaHeaderSize == 0 ?
+                                replaceValueOnPut(key, value, entry, pos, offset,
+                                        !wasDeleted && !putReturnsNull, hashLookup) :
+                                replaceValueTrackingChanges(key, value, entry, pos, offset, identifier,
+                                        sameVersion, !wasDeleted && !putReturnsNull, hashLookup);
 
                         if (wasDeleted) {
                             // remove() would have got rid of this so we have to add it back in
@@ -643,6 +997,57 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
             }
         }
 
+        /**
+         * The same as {@link #replaceValueOnPut}, but also updates the delta header, which the entry is
+         * positioned at. The chunks changed by this put are added to the changed chunks of the value, if it
+         * keeps the same version, otherwise the value starts a new version.
+         */
+        private V replaceValueTrackingChanges(K key, V value, NativeBytes entry, int pos, long offset,
+                                              byte identifier, boolean sameVersion, boolean readPrevValue,
+                                              IntIntMultiMap searchedHashLookup) {
+            final long deltaHeaderPos = entry.position();
+            entry.skip(DELTA_HEADER_SIZE);
+            final long valueLenPos = entry.position();
+            final long valueLen = readValueLen(entry);
+            final long valueAddr = entry.positionAddr();
+            V prevValue = null;
+            if (readPrevValue)
+                prevValue = readValue(entry, null, valueLen);
+
+            final DirectBytes valueBytes = getValueAsBytes(value);
+            long changedChunks = 0L;
+            // the changes made in place of a value acquired from this map can't be tracked
+            if (sameVersion && valueBytes.remaining() == valueLen && !isBackedByValue(value, valueAddr)) {
+                final int chunkSize = deltaChunkSize(valueLen);
+                changedChunks = entry.readLong(deltaHeaderPos + 4) |
+                        changedChunks(valueAddr, valueBytes.positionAddr(), valueLen, chunkSize);
+                // there is no point to send the most of the value as a delta
+                if (Long.bitCount(changedChunks) * 2 > deltaChunks(valueLen, chunkSize))
+                    sameVersion = false;
+            } else {
+                sameVersion = false;
+            }
+            if (sameVersion) {
+                entry.writeLong(deltaHeaderPos + 4, changedChunks);
+            } else {
+                entry.writeInt(deltaHeaderPos, identifier == localIdentifier ? nextVersion() : 0);
+                entry.writeLong(deltaHeaderPos + 4, 0L);
+            }
+
+            // putValue may relocate entry and change offset
+            offset = putValue(pos, offset, entry, valueLenPos, valueAddr + valueLen, valueBytes, null, true,
+                    searchedHashLookup);
+            notifyPut(offset, false, key, value, posFromOffset(offset));
+            return prevValue;
+        }
+
+        private boolean isBackedByValue(V value, long valueAddr) {
+            if (framedValues || !(value instanceof Byteable))
+                return false;
+            Bytes valueBytes = ((Byteable) value).bytes();
+            return valueBytes != null && valueBytes.address() + ((Byteable) value).offset() == valueAddr;
+        }
+
         /**
          * Used only with replication, its sometimes possible to receive an old ( or stale update ) from a remote map.
          * This method is used to determine if we should ignore such updates.
@@ -698,7 +1103,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
             // "if-else polymorphism" is not very beautiful, but allows to
             // reuse the rest code of this method and doesn't hurt performance.
-            boolean byteableValue = usingValue && value instanceof Byteable;
+            boolean byteableValue = usingValue && !framedValues && value instanceof Byteable;
             long valueLen;
             Bytes valueBytes = null;
             Byteable valueAsByteable = null;
@@ -718,9 +1123,8 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
             entry.writeStopBit(keyLen);
             entry.write(keyBytes);
-            entry.writeLong(timestamp);
-            entry.writeByte(identifier);
-            entry.writeBoolean(false);
+            writeStamp(entry, hash2, false, timestamp, (byte) identifier, false);
+            writeDeltaHeader(entry, identifier == localIdentifier ? nextVersion() : 0, 0L);
 
             writeValueOnPutEntry(valueLen, valueBytes, valueAsByteable, entry);
 
@@ -768,15 +1172,14 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                         // map but maybe in our hashLookupLiveAndDeleted,
                         // so we have to send the deleted notification
                         entry.position(timeStampPos);
-                        entry.writeLong(timestamp);
-                        entry.writeByte(identifier);
                         // was deleted is already true
-                        entry.skip(1);
+                        writeStamp(entry, hash2, true, timestamp, identifier, true);
 
                         notifyRemoved(offset, key, null, pos);
                         return null;
                     }
 
+                    entry.skip(deltaHeaderSize);
                     long valueLen = readValueLen(entry);
                     V valueRemoved = expectedValue != null || !removeReturnsNull
                             ? readValue(entry, null, valueLen) : null;
@@ -788,9 +1191,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                     decrementSize();
 
                     entry.position(timeStampPos);
-                    entry.writeLong(timestamp);
-                    entry.writeByte(identifier);
-                    entry.writeBoolean(true);
+                    writeStamp(entry, hash2, true, timestamp, identifier, true);
 
                     notifyRemoved(offset, key, valueRemoved, pos);
                     return valueRemoved;
@@ -828,6 +1229,8 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                         return null;
                     // skip the is deleted flag
                     entry.skip(1);
+                    // the changes made by replace() aren't tracked, the value starts a new version
+                    writeDeltaHeader(entry, nextVersion(), 0L);
 
                     return onKeyPresentOnReplace(key, expectedValue, newValue, pos, offset, entry,
                             hashLookupLiveOnly);
@@ -882,7 +1285,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
             entry.readStopBit();
             K key = entry.readInstance(kClass, null);
             long timestamp = entry.readLong();
-            entry.skip(2L); // identifier and isDeleted flag
+            entry.skip(2L + deltaHeaderSize); // identifier, isDeleted flag and the delta header
             V value = readValue(entry, null);
             return new TimestampTrackingEntry(key, value, timestamp);
         }
@@ -921,6 +1324,23 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
      */
     @Override
     public void writeExternalEntry(@NotNull AbstractBytes entry, @NotNull Bytes destination, int chronicleId) {
+        writeExternalEntry(entry, destination, chronicleId, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The entry is written as {@code [key length][value length][timestamp][identifier][key][value]}, the
+     * identifier is negative if the entry is deleted. If the value has a known version, the value length is
+     * written as {@code ~(valueLength << 1 | isDelta)}, and is followed by the version after the identifier,
+     * and if it is a delta, by the mask of the changed chunks, which are written instead of the value.
+     *
+     * <p>This method does not set a segment lock, A segment lock should be obtained before calling this method,
+     * especially when being used in a multi threaded context.
+     */
+    @Override
+    public void writeExternalEntry(@NotNull AbstractBytes entry, @NotNull Bytes destination, int chronicleId,
+                                   boolean delta) {
 
         final long initialLimit = entry.limit();
 
@@ -937,6 +1357,12 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
         }
 
         final boolean isDeleted = entry.readBoolean();
+        int version = 0;
+        long changedChunks = 0L;
+        if (deltaHeaderSize > 0) {
+            version = entry.readInt();
+            changedChunks = entry.readLong();
+        }
         long valueLen;
         if (!isDeleted) {
             valueLen = entry.readStopBit();
@@ -947,14 +1373,23 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
         final long valuePosition = entry.position();
 
+        final boolean versioned = !isDeleted && version != 0;
+        final boolean isDelta = versioned && delta && changedChunks != 0L;
+
         destination.writeStopBit(keyLen);
-        destination.writeStopBit(valueLen);
+        destination.writeStopBit(versioned ? ~(valueLen << 1 | (isDelta ? 1 : 0)) : valueLen);
         destination.writeStopBit(timeStamp);
 
         // we store the isDeleted flag in the identifier
         // ( when the identifier is negative it is deleted )
         destination.writeByte(isDeleted ? -identifier : identifier);
 
+        if (versioned) {
+            destination.writeInt(version);
+            if (isDelta)
+                destination.writeLong(changedChunks);
+        }
+
         // write the key
         entry.position(keyPosition);
         entry.limit(keyLimit);
@@ -981,6 +1416,23 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
         // skipping the alignment, as alignment wont work when we send the data over the wire.
         alignment.alignPositionAddr(entry);
 
+        if (isDelta) {
+            // writes the changed chunks only
+            final long valueStart = entry.position();
+            final int chunkSize = deltaChunkSize(valueLen);
+            for (long chunks = changedChunks; chunks != 0L; chunks &= chunks - 1) {
+                final long chunkStart = valueStart + (long) Long.numberOfTrailingZeros(chunks) * chunkSize;
+                entry.limit(Math.min(valueStart + valueLen, chunkStart + chunkSize));
+                entry.position(chunkStart);
+                destination.write(entry);
+            }
+
+            if (debugEnabled) {
+                LOG.debug(message + "delta of chunks=" + Long.toBinaryString(changedChunks) + ")");
+            }
+            return;
+        }
+
         // writes the value
         entry.limit(entry.position() + valueLen);
         destination.write(entry);
@@ -991,6 +1443,20 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
     }
 
 
+    /**
+     * @param source the external entry, from its position, which is left unchanged
+     * @return the timestamp of the external entry, see {@link #writeExternalEntry(AbstractBytes, Bytes, int,
+     * boolean)}
+     */
+    static long externalEntryTimestamp(@NotNull Bytes source) {
+        final long position = source.position();
+        source.readStopBit();
+        source.readStopBit();
+        final long timeStamp = source.readStopBit();
+        source.position(position);
+        return timeStamp;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -998,10 +1464,22 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
      * especially when being used in a multi threaded context.
      */
     @Override
-    public void readExternalEntry(@NotNull Bytes source) {
+    public boolean readExternalEntry(@NotNull Bytes source) {
+        return readExternalEntry0(source, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean readExternalEntry(@NotNull Bytes source, @NotNull HeldSegmentLock heldLock) {
+        return readExternalEntry0(source, heldLock);
+    }
+
+    private boolean readExternalEntry0(@NotNull Bytes source, @Nullable HeldSegmentLock heldLock) {
 
         final long keyLen = source.readStopBit();
-        final long valueLen = source.readStopBit();
+        final long valueLenField = source.readStopBit();
         final long timeStamp = source.readStopBit();
         final byte id = source.readByte();
         final byte remoteIdentifier;
@@ -1019,9 +1497,16 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
         if (remoteIdentifier == VanillaSharedReplicatedHashMap.this.identifier()) {
             // this may occur when working with UDP, as we will receive our own data
-            return;
+            return true;
         }
 
+        // a negative value length is followed by the version of the value, see writeExternalEntry()
+        final boolean versioned = valueLenField < 0;
+        final long valueLen = versioned ? (~valueLenField) >>> 1 : valueLenField;
+        final boolean isDelta = versioned && ((~valueLenField) & 1) != 0;
+        final int version = versioned ? source.readInt() : 0;
+        final long changedChunks = isDelta ? source.readLong() : 0L;
+
         final long keyPosition = source.position();
         final long keyLimit = keyPosition + keyLen;
 
@@ -1030,6 +1515,9 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
         int segmentNum = hasher.getSegment(hash);
         int segmentHash = hasher.segmentHash(hash);
+        // the segment lock is reentrant, so the remote operations below take it once more
+        if (heldLock != null)
+            heldLock.hold(segment(segmentNum));
 
         boolean debugEnabled = LOG.isDebugEnabled();
 
@@ -1044,7 +1532,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
             segment(segmentNum).remoteRemove(source, segmentHash, timeStamp, remoteIdentifier);
             setLastModificationTime(remoteIdentifier, timeStamp);
-            return;
+            return true;
         }
 
         String message = null;
@@ -1055,8 +1543,25 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
         }
 
         final long valuePosition = keyLimit;
+
+        if (isDelta) {
+            final long deltaLimit = valuePosition +
+                    deltaLength(changedChunks, valueLen, deltaChunkSize(valueLen));
+            if (!segment(segmentNum).remoteDelta(source, segmentHash, remoteIdentifier, timeStamp, version,
+                    changedChunks, valueLen, valuePosition, deltaLimit)) {
+                if (debugEnabled)
+                    LOG.debug(message + "delta rejected, version=" + version + ")");
+                return false;
+            }
+            setLastModificationTime(remoteIdentifier, timeStamp);
+
+            if (debugEnabled)
+                LOG.debug(message + "delta of chunks=" + Long.toBinaryString(changedChunks) + ")");
+            return true;
+        }
+
         final long valueLimit = valuePosition + valueLen;
-        segment(segmentNum).remotePut(source, segmentHash, remoteIdentifier, timeStamp,
+        segment(segmentNum).remotePut(source, segmentHash, remoteIdentifier, timeStamp, version,
                 valuePosition, valueLimit);
         setLastModificationTime(remoteIdentifier, timeStamp);
 
@@ -1065,6 +1570,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
             source.position(valuePosition);
             LOG.debug(message + "value=" + source.toString().trim() + ")");
         }
+        return true;
     }
 
     class EntryIterator extends VanillaSharedHashMap<K, V>.EntryIterator {
@@ -1106,9 +1612,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
             segment.decrementSize();
 
             entry.skip(keyLen);
-            entry.writeLong(timeProvider.currentTimeMillis());
-            entry.writeByte(localIdentifier);
-            entry.writeBoolean(true);
+            segment.writeStamp(entry, segmentHash, true, timeProvider.currentTimeMillis(), localIdentifier, true);
 
             segment.notifyRemoved(offset, returnedEntry.getKey(), returnedEntry.getValue(), pos);
         }
@@ -1142,13 +1646,42 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
         private final SharedMapEventListener<K, V, SharedHashMap<K, V>> nextListener;
         private long startOfModificationIterators;
+        // see ModificationIterator.combine()
+        private final int segmentIndexShift;
 
         public ModificationDelegator(@NotNull final SharedMapEventListener<K, V, SharedHashMap<K, V>> nextListener,
                                      final Bytes bytes, long startOfModificationIterators) {
             this.nextListener = nextListener;
             this.startOfModificationIterators = startOfModificationIterators;
             bitSet = new ATSDirectBitSet(bytes);
+            segmentIndexShift = Long.numberOfTrailingZeros(bitsPerSegmentInModIterBitSet(entriesPerSegment));
+        }
 
+        /**
+         * appends the change to the journal once, for all the modification iterators, and notifies them
+         */
+        private void journalChange(final SharedSegment segment, final long pos) {
+            modificationJournal.append(((long) segment.getIndex() << segmentIndexShift) | pos,
+                    timeProvider.currentTimeMillis());
+
+            for (long next = bitSet.nextSetBit(0); next > 0; next = bitSet.nextSetBit(next + 1)) {
+                try {
+                    modificationIterators.get((int) next).modificationNotifier.onChange();
+                } catch (Exception e) {
+                    LOG.error("", e);
+                }
+            }
+        }
+
+        /**
+         * frees the memory allocated by the modification iterators, once the map is closed
+         */
+        void free() {
+            for (int i = 0; i < modificationIterators.length(); i++) {
+                final ModificationIterator modificationIterator = modificationIterators.get(i);
+                if (modificationIterator != null)
+                    modificationIterator.free();
+            }
         }
 
         /**
@@ -1197,6 +1730,11 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                 LOG.error("", e);
             }
 
+            if (modificationJournal != null) {
+                journalChange(segment, pos);
+                return;
+            }
+
             for (long next = bitSet.nextSetBit(0); next > 0; next = bitSet.nextSetBit(next + 1)) {
                 try {
                     final ModificationIterator modificationIterator = modificationIterators.get((int) next);
@@ -1224,6 +1762,11 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                 LOG.error("", e);
             }
 
+            if (modificationJournal != null) {
+                journalChange(segment, pos);
+                return;
+            }
+
             for (long next = bitSet.nextSetBit(0); next > 0; next = bitSet.nextSetBit(next + 1)) {
                 try {
                     final ModificationIterator modificationIterator = modificationIterators.get((int) next);
@@ -1262,6 +1805,9 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
      * approach. It uses a bit set, and marks bits which correspond to the indexes of the entries that have changed. It
      * then provides an iterator like interface to poll for such changes.
      *
+     * <p>If the map has a {@link ModificationJournal}, the writers append the changes to the journal instead, and
+     * the iterator marks them in its bit set as it reads the journal, on the thread of the replication.
+     *
      * @author Rob Austin.
      */
     class ModificationIterator extends SharedMapEventListener<K, V, SharedHashMap<K, V>>
@@ -1269,11 +1815,17 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
 
         private final ModificationNotifier modificationNotifier;
-        private final ATSDirectBitSet changes;
+        // the changed entries, summarised by segment, so an idle iterator doesn't scan the whole bitset
+        private final DirtyBitSet changes;
+        // the entries to write in full, as the remote node couldn't apply their deltas, null if deltas are off
+        private final DirectStore fullEntriesStore;
+        private final ATSDirectBitSet fullEntries;
         private final int segmentIndexShift;
         private final long posMask;
 
         private final EntryModifiableCallback entryModifiableCallback = new EntryModifiableCallback();
+        // the position of this iterator in the journal, null if the changes are marked in the bit set directly
+        private final ModificationJournal.Cursor journalCursor;
 
         // records the current position of the cursor in the bitset
         private long position = -1;
@@ -1286,10 +1838,23 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                                     @NotNull final ModificationNotifier modificationNotifier) {
 
             this.modificationNotifier = modificationNotifier;
-            long bitsPerSegment = bitsPerSegmentInModIterBitSet();
+            long bitsPerSegment = bitsPerSegmentInModIterBitSet(entriesPerSegment);
             segmentIndexShift = Long.numberOfTrailingZeros(bitsPerSegment);
             posMask = bitsPerSegment - 1;
-            changes = new ATSDirectBitSet(bytes);
+            changes = new DirtyBitSet(bytes, segmentIndexShift);
+            journalCursor = modificationJournal != null ?
+                    modificationJournal.newCursor(timeProvider.currentTimeMillis()) : null;
+            fullEntriesStore = deltaHeaderSize > 0 ? DirectStore.allocateLazy(bytes.capacity()) : null;
+            fullEntries = fullEntriesStore != null ? new ATSDirectBitSet(fullEntriesStore.bytes()) : null;
+        }
+
+        /**
+         * frees the memory allocated by this iterator, the bits of its changes are freed with the map
+         */
+        void free() {
+            changes.free();
+            if (fullEntriesStore != null)
+                fullEntriesStore.free();
         }
 
         /**
@@ -1339,11 +1904,32 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
         @Override
         void onRelocation(int pos, SharedSegment segment) {
             changes.clear(combine(segment.getIndex(), pos));
+            if (fullEntries != null)
+                fullEntries.clear(combine(segment.getIndex(), pos));
             // don't call nextListener.onRelocation(),
             // because no one event listener else overrides this method.
         }
 
 
+        /**
+         * marks the changes appended to the journal since it was last read, at most a journal full at a time
+         */
+        private void readJournal() {
+            if (journalCursor == null)
+                return;
+            for (long n = modificationJournal.capacity(); n > 0; n--) {
+                final long index = journalCursor.next();
+                if (index == ModificationJournal.Cursor.NONE)
+                    return;
+                if (index == ModificationJournal.Cursor.OVERRUN) {
+                    // the changes we missed are found by their timestamps, as with a bootstrap
+                    dirtyEntries(journalCursor.timestamp() - JOURNAL_TIMESTAMP_MARGIN);
+                    return;
+                }
+                changes.set(index);
+            }
+        }
+
         /**
          * you can continue to poll hasNext() until data becomes available. If are are in the middle of processing an
          * entry via {@code nextEntry}, hasNext will return true until the bit is cleared
@@ -1351,6 +1937,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
          * @return true if there is an entry
          */
         public boolean hasNext() {
+            readJournal();
             final long position = this.position;
             return changes.nextSetBit(position == NOT_FOUND ? 0 : position) != NOT_FOUND ||
                     (position > 0 && changes.nextSetBit(0) != NOT_FOUND);
@@ -1363,6 +1950,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
          * @return true if an entry was processed
          */
         public boolean nextEntry(@NotNull final AbstractEntryCallback entryCallback, final int chronicleId) {
+            readJournal();
             long position = this.position;
             while (true) {
                 long oldPosition = position;
@@ -1383,6 +1971,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
                     if (changes.clearIfSet(position)) {
 
                         entryCallback.onBeforeEntry();
+                        entryCallback.fullEntryRequired = fullEntries != null && fullEntries.clearIfSet(position);
 
                         final long segmentPos = position & posMask;
                         final NativeBytes entry = segment.entry(segment.offsetFromPos(segmentPos));
@@ -1404,6 +1993,62 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
             }
         }
 
+        @Override
+        public int nextEntries(@NotNull final AbstractEntryCallback entryCallback, final int chronicleId) {
+            readJournal();
+            long position = this.position;
+            while (true) {
+                long oldPosition = position;
+                position = changes.nextSetBit(oldPosition + 1);
+
+                if (position == NOT_FOUND) {
+                    if (oldPosition == NOT_FOUND) {
+                        this.position = NOT_FOUND;
+                        return 0;
+                    }
+                    continue;
+                }
+
+                final int segmentIndex = (int) (position >>> segmentIndexShift);
+                final long segmentEnd = combine(segmentIndex + 1, 0);
+                final SharedSegment segment = segment(segmentIndex);
+                int entries = 0;
+                segment.lock();
+                try {
+                    for (; position != NOT_FOUND && position < segmentEnd;
+                         position = changes.nextSetBit(position + 1)) {
+                        if (entries > 0 && !entryCallback.canAcceptMore()) {
+                            // the next call starts from this position
+                            position--;
+                            break;
+                        }
+                        this.position = position;
+                        if (!changes.clearIfSet(position))
+                            continue;
+
+                        entryCallback.onBeforeEntry();
+                        entryCallback.fullEntryRequired = fullEntries != null && fullEntries.clearIfSet(position);
+
+                        final long segmentPos = position & posMask;
+                        final NativeBytes entry = segment.entry(segment.offsetFromPos(segmentPos));
+
+                        if (entryCallback.onEntry(entry, chronicleId))
+                            entries++;
+                        entryCallback.onAfterEntry();
+                    }
+                } finally {
+                    segment.unlock();
+                }
+                if (entries > 0) {
+                    if (position != NOT_FOUND && position < segmentEnd)
+                        this.position = position;
+                    return entries;
+                }
+                // all the entries of the segment were ignored or cleared by another thread
+                position = this.position;
+            }
+        }
+
         /**
          * details about when a modification to an entry was made
          */
@@ -1431,6 +2076,49 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
             }
 
         }
+
+        @Override
+        public void dirtyBuckets(int segmentIndex, long buckets) {
+            segment(segmentIndex).dirtyBuckets(buckets, entryModifiableCallback);
+        }
+
+        @Override
+        public long pendingEntries() {
+            final long journalLag = journalCursor == null ? 0 : journalCursor.lag();
+            return changes.cardinality() + journalLag;
+        }
+
+        @Override
+        public void resendFullEntry(@NotNull Bytes externalEntry) {
+            // deltas are not written by this node
+            if (fullEntries == null)
+                return;
+
+            // skip to the key, see writeExternalEntry()
+            final long keyLen = externalEntry.readStopBit();
+            final long valueLenField = externalEntry.readStopBit();
+            externalEntry.readStopBit();
+            externalEntry.readByte();
+            if (valueLenField < 0)
+                externalEntry.skip(((~valueLenField) & 1) != 0 ? DELTA_HEADER_SIZE : 4);
+
+            externalEntry.limit(externalEntry.position() + keyLen);
+            final long hash = Hasher.hash(externalEntry);
+            final int segmentIndex = hasher.getSegment(hash);
+            final Segment segment = segment(segmentIndex);
+            segment.lock();
+            try {
+                final int pos = segment.findPos(externalEntry, hasher.segmentHash(hash));
+                if (pos < 0)
+                    return;
+                final long combine = combine(segmentIndex, pos);
+                fullEntries.set(combine);
+                changes.set(combine);
+            } finally {
+                segment.unlock();
+            }
+            modificationNotifier.onChange();
+        }
     }
 
     /**
@@ -1486,6 +2174,7 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
             final boolean isDeleted = entry.readBoolean();
             long valueLen;
             if (!isDeleted) {
+                entry.skip(deltaHeaderSize);
                 valueLen = entry.readStopBit();
                 assert valueLen > 0;
             } else {
@@ -1494,6 +2183,9 @@ class VanillaSharedReplicatedHashMap<K, V> extends AbstractVanillaSharedHashMap<
 
             final long valueOffset = entry.position();
 
+            if (framedValues)
+                return readFramedValue(entry, valueLen, usingValue);
+
             if (generatedValueType)
                 if (usingValue == null)
                     usingValue = DataValueClasses.newDirectReference(vClass);
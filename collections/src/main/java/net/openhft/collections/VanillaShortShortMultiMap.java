@@ -288,6 +288,31 @@ class VanillaShortShortMultiMap implements IntIntMultiMap {
         }
     }
 
+    @Override
+    public int maxProbeLength() {
+        int max = 0;
+        for (int i = 0; i < capacity; i++) {
+            int key = bytes.readInt(i << ENTRY_SIZE_SHIFT) >>> 16;
+            if (key != UNSET_KEY)
+                max = Math.max(max, (i - key) & capacityMask);
+        }
+        return max;
+    }
+
+    @Override
+    public double meanProbeLength() {
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < capacity; i++) {
+            int key = bytes.readInt(i << ENTRY_SIZE_SHIFT) >>> 16;
+            if (key != UNSET_KEY) {
+                sum += (i - key) & capacityMask;
+                count++;
+            }
+        }
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
     @Override
     public DirectBitSet getPositions() {
         return positions;
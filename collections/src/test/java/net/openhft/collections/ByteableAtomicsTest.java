@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.values.LongValue;
+import net.openhft.lang.values.LongValue$$Native;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static net.openhft.collections.Builder.getPersistenceFile;
+import static org.junit.Assert.*;
+
+public class ByteableAtomicsTest {
+
+    @Test
+    public void testConcurrentAddWithoutSegmentLock() throws IOException, InterruptedException {
+        final SharedHashMap<String, LongValue> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .entryAndValueAlignment(Alignment.OF_8_BYTES)
+                .file(getPersistenceFile())
+                .kClass(String.class)
+                .vClass(LongValue.class)
+                .create();
+
+        final int threads = 4;
+        final int adds = 100000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LongValue$$Native counter = new LongValue$$Native();
+                    map.acquireUsing("counter", counter);
+                    for (int i = 0; i < adds; i++)
+                        ByteableAtomics.addAndGetLong(counter, 0, 1);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        LongValue$$Native counter = new LongValue$$Native();
+        map.acquireUsing("counter", counter);
+        assertTrue(ByteableAtomics.isAligned(counter, 0, 8));
+        assertEquals((long) threads * adds, ByteableAtomics.getVolatileLong(counter, 0));
+        assertTrue(ByteableAtomics.compareAndSwapLong(counter, 0, threads * adds, -1));
+        assertEquals(-1, counter.getValue());
+        map.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnboundValue() {
+        ByteableAtomics.getVolatileLong(new LongValue$$Native(), 0);
+    }
+}
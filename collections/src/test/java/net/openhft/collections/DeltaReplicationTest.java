@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.AbstractBytes;
+import net.openhft.lang.io.ByteBufferBytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.openhft.collections.Replica.ModificationNotifier.NOP;
+import static org.junit.Assert.*;
+
+public class DeltaReplicationTest {
+
+    static final int VALUE_SIZE = 1000;
+
+    /**
+     * @return a wide value, of the same length for any {@code changes}
+     */
+    static String value(int... changes) {
+        char[] chars = new char[VALUE_SIZE];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = 'a';
+        for (int change : changes)
+            chars[change] = 'b';
+        return new String(chars);
+    }
+
+    static VanillaSharedReplicatedHashMap<Integer, CharSequence> newMap(byte identifier, File file)
+            throws IOException {
+        return (VanillaSharedReplicatedHashMap<Integer, CharSequence>) new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(1200)
+                .identifier(identifier)
+                .canReplicate(true)
+                .deltaReplication(true)
+                .file(file).kClass(Integer.class).vClass(CharSequence.class).create();
+    }
+
+    /**
+     * writes the next changed entry of the map to the buffer, as the TCP replication would
+     *
+     * @return the size of the written entry
+     */
+    static int writeNextEntry(final VanillaSharedReplicatedHashMap<Integer, CharSequence> map,
+                              Replica.ModificationIterator iterator, final ByteBufferBytes buffer) {
+        buffer.clear();
+        assertTrue(iterator.nextEntry(new Replica.AbstractEntryCallback() {
+            @Override
+            public boolean onEntry(AbstractBytes entry, int chronicleId) {
+                map.writeExternalEntry(entry, buffer, chronicleId, !fullEntryRequired);
+                return true;
+            }
+        }, 0));
+        int size = (int) buffer.position();
+        rewind(buffer, size);
+        return size;
+    }
+
+    static void rewind(ByteBufferBytes buffer, int size) {
+        buffer.position(0);
+        buffer.limit(size);
+    }
+
+    @Test
+    public void testDeltaOfChangedChunksOnly() throws IOException {
+        File file1 = Builder.getPersistenceFile();
+        File file2 = Builder.getPersistenceFile();
+        File file3 = Builder.getPersistenceFile();
+        VanillaSharedReplicatedHashMap<Integer, CharSequence> map1 = newMap((byte) 1, file1);
+        VanillaSharedReplicatedHashMap<Integer, CharSequence> map2 = newMap((byte) 2, file2);
+        VanillaSharedReplicatedHashMap<Integer, CharSequence> map3 = newMap((byte) 3, file3);
+        try {
+            Replica.ModificationIterator iterator = map1.acquireModificationIterator((byte) 2, NOP);
+            ByteBufferBytes buffer = new ByteBufferBytes(ByteBuffer.allocateDirect(4 * VALUE_SIZE));
+
+            map1.put(1, value());
+            int fullSize = writeNextEntry(map1, iterator, buffer);
+            assertTrue(fullSize > VALUE_SIZE);
+            assertTrue(map2.readExternalEntry(buffer));
+            assertEquals(value(), map2.get(1).toString());
+
+            // only the changed chunk is sent
+            map1.put(1, value(500));
+            int deltaSize = writeNextEntry(map1, iterator, buffer);
+            assertTrue("delta of " + deltaSize + " bytes", deltaSize * 10 < fullSize);
+            assertTrue(map2.readExternalEntry(buffer));
+            assertEquals(value(500), map2.get(1).toString());
+
+            // the chunks changed since the version was written are sent together
+            map1.put(1, value(100));
+            deltaSize = writeNextEntry(map1, iterator, buffer);
+            assertTrue("delta of " + deltaSize + " bytes", deltaSize * 10 < fullSize);
+            assertTrue(map2.readExternalEntry(buffer));
+            assertEquals(value(100), map2.get(1).toString());
+
+            // a node without the version of the value rejects the delta, which is sent in full then
+            assertFalse(map3.readExternalEntry(buffer));
+            assertNull(map3.get(1));
+            rewind(buffer, deltaSize);
+            iterator.resendFullEntry(buffer);
+            assertTrue(iterator.hasNext());
+            assertTrue(writeNextEntry(map1, iterator, buffer) > VALUE_SIZE);
+            assertTrue(map3.readExternalEntry(buffer));
+            assertEquals(value(100), map3.get(1).toString());
+
+            // a change of the most of the value starts a new version, sent in full
+            int[] changes = new int[VALUE_SIZE / 2];
+            for (int i = 0; i < changes.length; i++)
+                changes[i] = i * 2;
+            map1.put(1, value(changes));
+            assertTrue(writeNextEntry(map1, iterator, buffer) > VALUE_SIZE);
+            assertTrue(map2.readExternalEntry(buffer));
+            assertEquals(value(changes), map2.get(1).toString());
+            assertFalse(iterator.hasNext());
+        } finally {
+            map1.close();
+            map2.close();
+            map3.close();
+            file1.delete();
+            file2.delete();
+            file3.delete();
+        }
+    }
+
+    static SharedHashMap<Integer, CharSequence> newTcpMap(
+            byte identifier, boolean deltaReplication, int serverPort, InetSocketAddress... endpoints)
+            throws IOException {
+        TcpReplicatorBuilder tcpReplicatorBuilder = new TcpReplicatorBuilder(serverPort, endpoints)
+                .heartBeatInterval(1, SECONDS);
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(1200)
+                .identifier(identifier)
+                .deltaReplication(deltaReplication)
+                .tcpReplicatorBuilder(tcpReplicatorBuilder)
+                .file(Builder.getPersistenceFile()).kClass(Integer.class).vClass(CharSequence.class)
+                .create();
+    }
+
+    private static void replicate(boolean deltaReplication1, boolean deltaReplication2, int port)
+            throws IOException, InterruptedException {
+        SharedHashMap<Integer, CharSequence> map1 = newTcpMap((byte) 1, deltaReplication1, port,
+                new InetSocketAddress("localhost", port + 1));
+        SharedHashMap<Integer, CharSequence> map2 = newTcpMap((byte) 2, deltaReplication2, port + 1);
+        try {
+            for (int i = 0; i < 100; i++)
+                map1.put(i, value());
+            waitTillEqual(map1, map2);
+
+            for (int change = 0; change < VALUE_SIZE; change += 97) {
+                for (int i = 0; i < 100; i++)
+                    map1.put(i, value(change));
+                map2.put(100 + change, value(change));
+            }
+            waitTillEqual(map1, map2);
+
+            assertEquals(100 + (VALUE_SIZE + 96) / 97, map1.size());
+            assertEquals(map1, map2);
+        } finally {
+            map1.close();
+            map2.close();
+        }
+    }
+
+    private static void waitTillEqual(SharedHashMap<Integer, CharSequence> map1,
+                                      SharedHashMap<Integer, CharSequence> map2)
+            throws InterruptedException {
+        for (int t = 0; t < 10000 && !map1.equals(map2); t++)
+            Thread.sleep(1);
+    }
+
+    @Test
+    public void testDeltaReplicationOverTcp() throws IOException, InterruptedException {
+        replicate(true, true, 8100);
+    }
+
+    @Test
+    public void testDeltaReplicationEnabledOnOneNodeOnly() throws IOException, InterruptedException {
+        replicate(true, false, 8102);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.AbstractBytes;
+import net.openhft.lang.io.ByteBufferBytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.openhft.collections.Replica.ModificationNotifier.NOP;
+import static net.openhft.collections.VanillaSharedReplicatedHashMap.DIGEST_BUCKETS;
+import static org.junit.Assert.*;
+
+public class DigestBootstrapTest {
+
+    static VanillaSharedReplicatedHashMap<Integer, CharSequence> newMap(byte identifier, File file)
+            throws IOException {
+        return (VanillaSharedReplicatedHashMap<Integer, CharSequence>) new SharedHashMapBuilder()
+                .entries(1000)
+                .identifier(identifier)
+                .canReplicate(true)
+                .digestBootstrap(true)
+                .file(file).kClass(Integer.class).vClass(CharSequence.class).create();
+    }
+
+    /**
+     * copies the changed entries of map1 to map2, as the replication would
+     */
+    static void copyChanges(final VanillaSharedReplicatedHashMap<Integer, CharSequence> map1,
+                            Replica.ModificationIterator iterator,
+                            VanillaSharedReplicatedHashMap<Integer, CharSequence> map2) {
+        final ByteBufferBytes buffer = new ByteBufferBytes(ByteBuffer.allocateDirect(1024));
+        while (iterator.hasNext()) {
+            buffer.clear();
+            iterator.nextEntry(new Replica.AbstractEntryCallback() {
+                @Override
+                public boolean onEntry(AbstractBytes entry, int chronicleId) {
+                    map1.writeExternalEntry(entry, buffer, chronicleId);
+                    return true;
+                }
+            }, 0);
+            final int size = (int) buffer.position();
+            buffer.position(0);
+            buffer.limit(size);
+            map2.readExternalEntry(buffer);
+        }
+    }
+
+    static int differentSegments(Replica replica1, Replica replica2) {
+        int differ = 0;
+        for (int segment = 0; segment < replica1.digestSegments(); segment++) {
+            if (replica1.segmentDigest(segment) != replica2.segmentDigest(segment))
+                differ++;
+        }
+        return differ;
+    }
+
+    @Test
+    public void testDigestsOfTheSameEntriesAreEqual() throws IOException {
+        File file1 = Builder.getPersistenceFile();
+        File file2 = Builder.getPersistenceFile();
+        VanillaSharedReplicatedHashMap<Integer, CharSequence> map1 = newMap((byte) 1, file1);
+        VanillaSharedReplicatedHashMap<Integer, CharSequence> map2 = newMap((byte) 2, file2);
+        try {
+            assertEquals(map1.digestSegments(), map2.digestSegments());
+            assertTrue(map1.digestSegments() > 0);
+            Replica.ModificationIterator iterator = map1.acquireModificationIterator((byte) 2, NOP);
+
+            for (int i = 0; i < 200; i++)
+                map1.put(i, "EXAMPLE-" + i);
+            for (int i = 0; i < 200; i += 3)
+                map1.remove(i);
+            copyChanges(map1, iterator, map2);
+            assertEquals(0, differentSegments(map1, map2));
+
+            // a change of a single entry changes the digest of a single bucket
+            map1.put(7, "CHANGED");
+            assertEquals(1, differentSegments(map1, map2));
+            long[] buckets1 = new long[DIGEST_BUCKETS];
+            long[] buckets2 = new long[DIGEST_BUCKETS];
+            int differ = 0;
+            for (int segment = 0; segment < map1.digestSegments(); segment++) {
+                map1.bucketDigests(segment, buckets1);
+                map2.bucketDigests(segment, buckets2);
+                for (int bucket = 0; bucket < DIGEST_BUCKETS; bucket++) {
+                    if (buckets1[bucket] != buckets2[bucket])
+                        differ++;
+                }
+            }
+            assertEquals(1, differ);
+
+            copyChanges(map1, iterator, map2);
+            assertEquals(0, differentSegments(map1, map2));
+        } finally {
+            map1.close();
+            map2.close();
+            file1.delete();
+            file2.delete();
+        }
+    }
+
+    @Test
+    public void testDigestsPersisted() throws IOException {
+        File file = Builder.getPersistenceFile();
+        VanillaSharedReplicatedHashMap<Integer, CharSequence> map = newMap((byte) 1, file);
+        long[] digests = new long[map.digestSegments()];
+        try {
+            for (int i = 0; i < 100; i++)
+                map.put(i, "EXAMPLE-" + i);
+            map.remove(5);
+            for (int segment = 0; segment < digests.length; segment++)
+                digests[segment] = map.segmentDigest(segment);
+        } finally {
+            map.close();
+        }
+
+        // the digests are kept in the file, which configures them even if the builder doesn't
+        VanillaSharedReplicatedHashMap<Integer, CharSequence> reopened =
+                (VanillaSharedReplicatedHashMap<Integer, CharSequence>) new SharedHashMapBuilder()
+                        .entries(1000)
+                        .identifier((byte) 1)
+                        .canReplicate(true)
+                        .file(file).kClass(Integer.class).vClass(CharSequence.class).create();
+        try {
+            assertEquals(digests.length, reopened.digestSegments());
+            for (int segment = 0; segment < digests.length; segment++)
+                assertEquals(digests[segment], reopened.segmentDigest(segment));
+            reopened.put(5, "EXAMPLE-5");
+        } finally {
+            reopened.close();
+        }
+
+        reopened = newMap((byte) 1, file);
+        try {
+            int differ = 0;
+            for (int segment = 0; segment < digests.length; segment++) {
+                if (digests[segment] != reopened.segmentDigest(segment))
+                    differ++;
+            }
+            assertEquals(1, differ);
+        } finally {
+            reopened.close();
+            file.delete();
+        }
+    }
+
+    static SharedHashMap<Integer, CharSequence> newTcpMap(byte identifier, int serverPort,
+                                                          InetSocketAddress... endpoints)
+            throws IOException {
+        TcpReplicatorBuilder tcpReplicatorBuilder = new TcpReplicatorBuilder(serverPort, endpoints)
+                .heartBeatInterval(1, SECONDS);
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .identifier(identifier)
+                .digestBootstrap(true)
+                .tcpReplicatorBuilder(tcpReplicatorBuilder)
+                .file(Builder.getPersistenceFile()).kClass(Integer.class).vClass(CharSequence.class)
+                .create();
+    }
+
+    @Test
+    public void testBootstrapOverTcpFromDigests() throws IOException, InterruptedException {
+        final int port = 8110;
+        SharedHashMap<Integer, CharSequence> map1 = newTcpMap((byte) 1, port);
+        SharedHashMap<Integer, CharSequence> map2 = null;
+        try {
+            // written before the second node connects
+            for (int i = 0; i < 500; i++)
+                map1.put(i, "EXAMPLE-" + i);
+
+            map2 = newTcpMap((byte) 2, port + 1, new InetSocketAddress("localhost", port));
+            map2.put(1000, "EXAMPLE-1000");
+
+            for (int t = 0; t < 10000 && !map1.equals(map2); t++)
+                Thread.sleep(1);
+
+            assertEquals(501, map1.size());
+            assertEquals(map1, map2);
+        } finally {
+            map1.close();
+            if (map2 != null)
+                map2.close();
+        }
+    }
+}
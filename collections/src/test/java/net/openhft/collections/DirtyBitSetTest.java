@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static net.openhft.lang.collection.DirectBitSet.NOT_FOUND;
+import static org.junit.Assert.*;
+
+public class DirtyBitSetTest {
+
+    // 16 segments of 2^14 bits
+    static final int SEGMENT_SHIFT = 14;
+    static final long SIZE = 16L << SEGMENT_SHIFT;
+
+    @Test
+    public void testNextSetBitAsChangedAndCleared() {
+        Bytes bytes = DirectStore.allocateLazy(SIZE / 8).bytes();
+        DirtyBitSet bitSet = new DirtyBitSet(bytes, SEGMENT_SHIFT);
+        assertEquals(NOT_FOUND, bitSet.nextSetBit(0));
+
+        Random random = new Random(1);
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 20; i++) {
+                long index = (long) (random.nextDouble() * SIZE);
+                bitSet.set(index);
+                expected.add(index);
+            }
+            for (int i = 0; i < 10 && !expected.isEmpty(); i++) {
+                long from = (long) (random.nextDouble() * SIZE);
+                Long index = expected.ceiling(from);
+                if (index == null)
+                    index = expected.first();
+                assertTrue(bitSet.clearIfSet(index));
+                expected.remove(index);
+            }
+            for (int i = 0; i < 10; i++) {
+                long from = (long) (random.nextDouble() * SIZE);
+                Long index = expected.ceiling(from);
+                assertEquals(index == null ? NOT_FOUND : index, bitSet.nextSetBit(from));
+            }
+            assertEquals(expected.size(), bitSet.cardinality());
+        }
+
+        // a bit set again, after its group and segment were found clean
+        for (Long index : expected)
+            assertTrue(bitSet.clearIfSet(index));
+        assertEquals(NOT_FOUND, bitSet.nextSetBit(0));
+        assertEquals(0, bitSet.cardinality());
+        bitSet.set(SIZE - 1);
+        assertEquals(SIZE - 1, bitSet.nextSetBit(0));
+        assertEquals(1, bitSet.cardinality());
+    }
+
+    @Test
+    public void testSummaryRebuiltFromPersistedBits() {
+        Bytes bytes = DirectStore.allocateLazy(SIZE / 8).bytes();
+        DirtyBitSet bitSet = new DirtyBitSet(bytes, SEGMENT_SHIFT);
+        bitSet.set(5);
+        bitSet.set(3 << SEGMENT_SHIFT);
+        bitSet.set(SIZE - 64);
+
+        DirtyBitSet reopened = new DirtyBitSet(bytes, SEGMENT_SHIFT);
+        assertEquals(5, reopened.nextSetBit(0));
+        assertEquals(3 << SEGMENT_SHIFT, reopened.nextSetBit(6));
+        assertEquals(SIZE - 64, reopened.nextSetBit((3 << SEGMENT_SHIFT) + 1));
+        assertEquals(NOT_FOUND, reopened.nextSetBit(SIZE - 63));
+    }
+}
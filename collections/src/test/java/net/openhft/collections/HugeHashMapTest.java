@@ -22,12 +22,15 @@ import net.openhft.lang.io.serialization.BytesMarshallable;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertNotNull;
 
@@ -227,6 +230,17 @@ public class HugeHashMapTest {
         map1.clear();
     }
 
+    @Test
+    public void testNonLongKeysAreAbsentFromLongKeyedMap() {
+        HugeHashMap<Long, Long> map = new HugeHashMap<Long, Long>(HugeConfig.SMALL, Long.class, Long.class);
+        map.put(1L, 10L);
+        org.junit.Assert.assertNull(map.get(1));
+        org.junit.Assert.assertFalse(map.containsKey("1"));
+        org.junit.Assert.assertNull(map.remove(1));
+        org.junit.Assert.assertFalse(map.remove(1, 10L));
+        org.junit.Assert.assertEquals(Long.valueOf(10L), map.get(1L));
+    }
+
     @Test
     public void mapRemoveReflectedInViews() {
         HugeHashMap<Integer, String> map = getViewTestMap(3);
@@ -607,6 +621,248 @@ public class HugeHashMapTest {
 		}
     }
 
+    @Test
+    public void testOverflowEntries() {
+        HugeConfig config = HugeConfig.SMALL.clone().setSegments(16).setCapacity(16 * 16);
+        HugeHashMap<Integer, String> map = new HugeHashMap<Integer, String>(config, Integer.class, String.class);
+        int smallEntrySize = config.getSmallEntrySize();
+        // both values larger than small entries, and more entries than the initial small entries fit
+        int count = 1000;
+        for (int i = 0; i < count; i++)
+            map.put(i, value(i, i % 3 == 0 ? 3 * smallEntrySize : 8));
+        org.junit.Assert.assertEquals(count, map.size());
+        for (int i = 0; i < count; i++)
+            org.junit.Assert.assertEquals(value(i, i % 3 == 0 ? 3 * smallEntrySize : 8), map.get(i));
+
+        // move entries between the small and overflow areas, and resize overflow entries
+        for (int i = 0; i < count; i++)
+            map.put(i, value(i, i % 3 == 0 ? 8 : 5 * smallEntrySize));
+        org.junit.Assert.assertEquals(count, map.size());
+        Map<Integer, String> copy = new HashMap<Integer, String>(map);
+        org.junit.Assert.assertEquals(count, copy.size());
+        for (int i = 0; i < count; i++)
+            org.junit.Assert.assertEquals(value(i, i % 3 == 0 ? 8 : 5 * smallEntrySize), copy.get(i));
+
+        for (int i = 0; i < count; i += 2)
+            map.remove(i);
+        org.junit.Assert.assertEquals(count / 2, map.size());
+        for (int i = 0; i < count; i++)
+            org.junit.Assert.assertEquals(i % 2 == 0 ? null : value(i, i % 3 == 0 ? 8 : 5 * smallEntrySize),
+                    map.get(i));
+        map.clear();
+        org.junit.Assert.assertEquals(0, map.size());
+        org.junit.Assert.assertNull(map.get(1));
+    }
+
+    @Test
+    public void testIncrementalResize() {
+        HugeConfig config = HugeConfig.SMALL.clone().setSegments(16).setCapacity(16 * 16);
+        HugeHashMap<Integer, Integer> map = new HugeHashMap<Integer, Integer>(config, Integer.class, Integer.class);
+        long initialOffHeapUsed = map.offHeapUsed();
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            map.put(i, i);
+            // removes and overwrites while entries are migrated
+            if (i % 7 == 0)
+                map.remove(i / 2);
+            if (i % 5 == 0)
+                map.put(i / 3, -i);
+        }
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int i = 0; i < count; i++) {
+            expected.put(i, i);
+            if (i % 7 == 0)
+                expected.remove(i / 2);
+            if (i % 5 == 0)
+                expected.put(i / 3, -i);
+        }
+        org.junit.Assert.assertEquals(expected.size(), map.size());
+        for (int i = 0; i < count; i++)
+            org.junit.Assert.assertEquals(expected.get(i), map.get(i));
+        org.junit.Assert.assertEquals(expected, new HashMap<Integer, Integer>(map));
+        org.junit.Assert.assertTrue(map.offHeapUsed() > initialOffHeapUsed);
+    }
+
+    @Test
+    public void testIteratorReturnsEachEntryOnceWhileResizing() {
+        HugeConfig config = HugeConfig.SMALL.clone().setSegments(4).setCapacity(4 * 16);
+        HugeHashMap<Integer, Integer> map = new HugeHashMap<Integer, Integer>(config, Integer.class, Integer.class);
+        int count = 5000;
+        for (int i = 0; i < count; i++)
+            map.put(i, i);
+        Set<Integer> seen = new HashSet<Integer>();
+        int added = count;
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            org.junit.Assert.assertTrue("returned twice " + entry, seen.add(entry.getKey()));
+            // new entries resize and migrate the segments while they are iterated
+            for (int j = 0; j < 4 && added < 4 * count; j++, added++)
+                map.put(added, added);
+        }
+        for (int i = 0; i < count; i++)
+            org.junit.Assert.assertTrue("missing " + i, seen.contains(i));
+    }
+
+    @Test
+    public void testCharSequenceKeysComparedEncoded() {
+        HugeConfig config = HugeConfig.SMALL.clone().setSegments(16);
+        HugeHashMap<CharSequence, String> map =
+                new HugeHashMap<CharSequence, String>(config, CharSequence.class, String.class);
+        String[] keys = {"", "a", "ab", "abc", "abcdefgh", "abcdefghi", "\u00e9t\u00e9", "\u4e2d\u6587",
+                "\ud83d\ude00", value(1, 3 * config.getSmallEntrySize())};
+        for (String key : keys)
+            map.put(key, "v" + key);
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            sb.setLength(0);
+            sb.append(key);
+            org.junit.Assert.assertEquals("v" + key, map.get(sb));
+            org.junit.Assert.assertTrue(map.containsKey(sb));
+            sb.append('x');
+            org.junit.Assert.assertNull(map.get(sb));
+            org.junit.Assert.assertFalse(map.containsKey(sb));
+        }
+        sb.setLength(0);
+        sb.append("ab");
+        map.remove(sb);
+        org.junit.Assert.assertNull(map.get("ab"));
+        org.junit.Assert.assertEquals("va", map.get("a"));
+        org.junit.Assert.assertEquals("vabc", map.get("abc"));
+        org.junit.Assert.assertEquals(keys.length - 1, map.size());
+    }
+
+    @Test
+    public void testPersistedMapIsReopened() throws IOException {
+        File dir = Builder.getPersistenceFile();
+        HugeConfig config = HugeConfig.SMALL.clone().setSegments(16).setCapacity(16 * 16)
+                .setPersistenceDirectory(dir);
+        int largeValue = 3 * config.getSmallEntrySize();
+        int count = 2000;
+        HugeHashMap<CharSequence, String> map =
+                new HugeHashMap<CharSequence, String>(config, CharSequence.class, String.class);
+        for (int i = 0; i < count; i++)
+            map.put("key" + i, value(i, i % 10 == 0 ? largeValue : 8));
+        map.close();
+
+        map = new HugeHashMap<CharSequence, String>(config, CharSequence.class, String.class);
+        org.junit.Assert.assertEquals(count, map.size());
+        for (int i = 0; i < count; i++)
+            org.junit.Assert.assertEquals(value(i, i % 10 == 0 ? largeValue : 8), map.get("key" + i));
+        for (int i = 0; i < count; i += 2)
+            map.remove("key" + i);
+        for (int i = count; i < 2 * count; i++)
+            map.put("key" + i, value(i, 8));
+        map.close();
+
+        map = new HugeHashMap<CharSequence, String>(config, CharSequence.class, String.class);
+        org.junit.Assert.assertEquals(count / 2 + count, map.size());
+        for (int i = 0; i < 2 * count; i++)
+            org.junit.Assert.assertEquals(i < count && i % 2 == 0 ? null :
+                    value(i, i % 10 == 0 && i < count ? largeValue : 8), map.get("key" + i));
+        map.close();
+
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testPersistedMapRejectsDifferentLayout() throws IOException {
+        File dir = Builder.getPersistenceFile();
+        HugeConfig config = HugeConfig.SMALL.clone().setSegments(16).setCapacity(16 * 16)
+                .setPersistenceDirectory(dir);
+        HugeHashMap<CharSequence, String> map =
+                new HugeHashMap<CharSequence, String>(config, CharSequence.class, String.class);
+        map.put("key", "value");
+        map.close();
+
+        try {
+            new HugeHashMap<CharSequence, String>(config.clone().setSegments(32), CharSequence.class,
+                    String.class);
+            org.junit.Assert.fail("reopened with a different number of segments");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        try {
+            new HugeHashMap<Thread, String>(config, Thread.class, String.class);
+            org.junit.Assert.fail("persisted keys with identity hash codes");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    static String value(int i, int length) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(i).append(':');
+        while (sb.length() < length)
+            sb.append((char) ('a' + sb.length() % 26));
+        return sb.toString();
+    }
+
+    private static class PairValue implements BytesMarshallable {
+        long first, second;
+
+        @Override
+        public void readMarshallable(Bytes in) throws IllegalStateException {
+            first = in.readLong();
+            second = in.readLong();
+        }
+
+        @Override
+        public void writeMarshallable(Bytes out) {
+            out.writeLong(first);
+            out.writeLong(second);
+        }
+    }
+
+    @Test
+    public void testOptimisticReadsSeeConsistentValues() throws InterruptedException {
+        HugeConfig config = HugeConfig.SMALL.clone().setSegments(16);
+        final HugeHashMap<Integer, PairValue> map =
+                new HugeHashMap<Integer, PairValue>(config, Integer.class, PairValue.class);
+        final int keys = 64;
+        PairValue value = new PairValue();
+        for (int k = 0; k < keys; k++)
+            map.put(k, value);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger inconsistent = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PairValue using = new PairValue();
+                    while (running.get()) {
+                        for (int k = 0; k < keys; k++) {
+                            PairValue v = map.get(k, using);
+                            if (v == null || v.first != v.second || !map.containsKey(k))
+                                inconsistent.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (long i = 1; i <= 200000; i++) {
+            value.first = value.second = i;
+            map.put((int) (i % keys), value);
+        }
+        running.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(0, inconsistent.get());
+        for (int k = 0; k < keys; k++)
+            assertEquals(200000 - (200000 - k) % keys, map.get(k).first);
+    }
+
     private HugeHashMap<Integer, String> getViewTestMap(int noOfElements) {
         HugeHashMap<Integer, String> map = new HugeHashMap<Integer, String>(
                 HugeConfig.DEFAULT.clone().setSegments(16),
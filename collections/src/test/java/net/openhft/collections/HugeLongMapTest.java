@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.serialization.BytesMarshallable;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HugeLongMapTest {
+
+    static class Point implements BytesMarshallable {
+        int x, y;
+
+        @Override
+        public void readMarshallable(Bytes in) throws IllegalStateException {
+            x = in.readInt();
+            y = in.readInt();
+        }
+
+        @Override
+        public void writeMarshallable(Bytes out) {
+            out.writeInt(x);
+            out.writeInt(y);
+        }
+    }
+
+    @Test
+    public void testLongKeys() {
+        HugeLongMap<Point> map = new HugeLongMap<Point>(HugeConfig.SMALL.clone(), Point.class);
+        Point point = new Point();
+        int count = 20000;
+        // keys with a common stride, and negative keys
+        for (int i = 0; i < count; i++) {
+            point.x = i;
+            point.y = -i;
+            map.put(i * 1024L - count, point);
+        }
+        assertEquals(count, map.size());
+        Point using = new Point();
+        for (int i = 0; i < count; i++) {
+            assertSame(using, map.get(i * 1024L - count, using));
+            assertEquals(i, using.x);
+            assertEquals(-i, using.y);
+            assertTrue(map.containsKey(i * 1024L - count));
+        }
+        assertNull(map.get(1L, using));
+        assertFalse(map.containsKey(1L));
+
+        // the boxed API sees the same entries
+        assertEquals(5, map.get(5 * 1024L - count).x);
+        assertTrue(map.remove(5 * 1024L - count));
+        assertFalse(map.remove(5 * 1024L - count));
+        assertNull(map.get(Long.valueOf(5 * 1024L - count)));
+        assertEquals(count - 1, map.size());
+        map.close();
+    }
+
+    @Test
+    public void testLongLongMap() {
+        HugeLongLongMap map = new HugeLongLongMap(HugeConfig.SMALL.clone());
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for (long i = 0; i < 30000; i++) {
+            long key = i * i * 31;
+            map.put(key, -i);
+            expected.put(key, -i);
+        }
+        map.put(Long.MIN_VALUE, Long.MAX_VALUE);
+        expected.put(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+            assertEquals((long) entry.getValue(), map.get((long) entry.getKey(), 1L));
+        assertEquals(1L, map.get(-5L, 1L));
+        assertEquals(expected, new HashMap<Long, Long>(map));
+        map.close();
+    }
+}
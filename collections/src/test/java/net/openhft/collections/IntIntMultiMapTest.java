@@ -38,7 +38,9 @@ public class IntIntMultiMapTest {
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][]{
                 {VanillaIntIntMultiMap.class},
-                {VanillaShortShortMultiMap.class}
+                {VanillaShortShortMultiMap.class},
+                {SwissIntIntMultiMap.class},
+                {RobinHoodIntIntMultiMap.class}
         });
     }
 
@@ -144,4 +146,48 @@ public class IntIntMultiMapTest {
         map.startSearch(15);
         assertTrue(map.nextPos() < 0);
     }
+
+    @Test
+    public void testChurn() {
+        // removes and puts many times more entries than the capacity, which leaves tombstones
+        // in some implementations
+        initMap(1024);
+        Random random = new Random(1);
+        List<int[]> entries = new ArrayList<int[]>();
+        for (int i = 0; i < 100000; i++) {
+            if (entries.size() < 700 && (entries.size() < 300 || random.nextBoolean())) {
+                int[] entry = {random.nextInt(200), i % 1024};
+                if (!referenceMap.containsEntry(entry[0], entry[1])) {
+                    put(entry[0], entry[1]);
+                    entries.add(entry);
+                }
+            } else {
+                int[] entry = entries.remove(random.nextInt(entries.size()));
+                remove(entry[0], entry[1], true);
+            }
+            if (i % 10000 == 0) {
+                multiMapEquals();
+                valuesEqualsByKey(entries.get(0)[0]);
+            }
+        }
+        multiMapEquals();
+        for (int k = 0; k < 200; k++)
+            valuesEqualsByKey(k);
+    }
+
+    @Test
+    public void testProbeLengths() {
+        initMap(256);
+        assertEquals(0, map.maxProbeLength());
+        assertEquals(0.0, map.meanProbeLength(), 0.0);
+        // skewed keys, with the same low bits
+        for (int i = 1; i <= 200; i++)
+            put(i << 8, i);
+        multiMapEquals();
+        assertTrue(map.maxProbeLength() >= map.meanProbeLength());
+        assertTrue(map.maxProbeLength() < 256);
+        for (int i = 1; i <= 200; i++)
+            remove(i << 8, i, true);
+        assertEquals(0, map.maxProbeLength());
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class MapSizerTest {
+
+    static String value(int i) {
+        // mostly short values, with one in 20 ten times longer
+        StringBuilder sb = new StringBuilder();
+        int length = i % 20 == 0 ? 400 : 40;
+        while (sb.length() < length)
+            sb.append(i).append('-');
+        return sb.toString();
+    }
+
+    static MapSizer<String, String> sizer(int entries) {
+        MapSizer<String, String> sizer = MapSizer.of(String.class, String.class).entries(entries);
+        for (int i = 0; i < 200; i++)
+            sizer.sample("key-" + i, value(i));
+        return sizer;
+    }
+
+    @Test
+    public void testSharedHashMapSizedFromSamples() throws IOException {
+        int entries = 20000;
+        MapSizer<String, String> sizer = sizer(entries);
+        SharedHashMapBuilder<String, String> builder =
+                sizer.applyTo(SharedHashMapBuilder.of(String.class, String.class));
+        // the entry size fits the short values, rather than the long ones
+        assertTrue(builder.entrySize() >= 40);
+        assertTrue(builder.entrySize() < 400);
+        assertEquals(MultiMapType.VANILLA, builder.multiMapType());
+        long footprint = sizer.footprint(builder);
+        assertTrue(footprint > (long) entries * builder.entrySize());
+
+        File file = Builder.getPersistenceFile();
+        SharedHashMap<String, String> map = builder.file(file).create();
+        try {
+            for (int i = 0; i < entries; i++)
+                map.put("key-" + i, value(i));
+            for (int i = 0; i < entries; i++)
+                assertEquals(value(i), map.get("key-" + i));
+            // the projection is the size of the map
+            assertEquals(footprint, ((VanillaSharedHashMap) map).sizeInBytes());
+        } finally {
+            map.close();
+            file.delete();
+        }
+
+        SharedHashMapBuilder<String, String> dense = sizer.loadFactor(0.9)
+                .applyTo(SharedHashMapBuilder.of(String.class, String.class));
+        assertEquals(MultiMapType.ROBIN_HOOD, dense.multiMapType());
+        assertTrue(sizer.footprint(dense) < footprint);
+    }
+
+    @Test
+    public void testReplicatedFootprint() throws IOException {
+        MapSizer<String, String> sizer = sizer(20000);
+        SharedHashMapBuilder<String, String> builder =
+                sizer.applyTo(SharedHashMapBuilder.of(String.class, String.class));
+        builder.canReplicate(true).identifier((byte) 1);
+        long footprint = sizer.footprint(builder);
+
+        File file = Builder.getPersistenceFile();
+        SharedHashMap<String, String> map = builder.file(file).create();
+        try {
+            // the replication header and the second multimap of each segment are projected
+            assertEquals(footprint, ((AbstractVanillaSharedHashMap) map).sizeInBytes());
+        } finally {
+            map.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHugeConfigSizedFromSamples() {
+        int entries = 20000;
+        MapSizer<String, String> sizer = sizer(entries);
+        HugeConfig config = sizer.applyTo(HugeConfig.SMALL.clone());
+        // the long values go to the overflow area
+        assertEquals(64, config.getSmallEntrySize());
+        assertTrue(config.getCapacity() >= entries);
+        assertTrue(sizer.footprint(config) > (long) entries * config.getSmallEntrySize());
+
+        HugeHashMap<String, String> map = new HugeHashMap<String, String>(config, String.class, String.class);
+        try {
+            for (int i = 0; i < entries; i++)
+                map.put("key-" + i, value(i));
+            for (int i = 0; i < entries; i++)
+                assertEquals(value(i), map.get("key-" + i));
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoSamples() {
+        MapSizer.of(String.class, String.class).applyTo(HugeConfig.SMALL.clone());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.AbstractBytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static net.openhft.collections.Replica.ModificationNotifier.NOP;
+import static org.junit.Assert.*;
+
+public class ModificationIteratorTest {
+
+    @Test
+    public void testNextEntriesBatchesBySegment() throws IOException {
+        File file = Builder.getPersistenceFile();
+        VanillaSharedReplicatedHashMap<Integer, Integer> map =
+                (VanillaSharedReplicatedHashMap<Integer, Integer>) new SharedHashMapBuilder()
+                        .entries(1000)
+                        .actualSegments(4)
+                        .identifier((byte) 1)
+                        .canReplicate(true)
+                        .file(file).kClass(Integer.class).vClass(Integer.class).create();
+        try {
+            Replica.ModificationIterator iterator = map.acquireModificationIterator((byte) 2, NOP);
+            int count = 200;
+            for (int i = 0; i < count; i++)
+                map.put(i, i);
+
+            final int[] batch = {0};
+            Replica.AbstractEntryCallback callback = new Replica.AbstractEntryCallback() {
+                @Override
+                public boolean onEntry(AbstractBytes entry, int chronicleId) {
+                    batch[0]++;
+                    return true;
+                }
+
+                @Override
+                public boolean canAcceptMore() {
+                    return batch[0] < 30;
+                }
+            };
+
+            int batches = 0, total = 0;
+            int entries;
+            while ((entries = iterator.nextEntries(callback, 0)) > 0) {
+                assertEquals(batch[0], entries);
+                assertTrue(entries <= 30);
+                total += entries;
+                batches++;
+                batch[0] = 0;
+            }
+            assertEquals(count, total);
+            // at least one batch per segment, and far less batches than entries
+            assertTrue(batches >= 4);
+            assertTrue(batches <= 4 + count / 30);
+            assertFalse(iterator.hasNext());
+
+            // entries changed again are iterated once again
+            map.put(1, 2);
+            assertEquals(1, iterator.nextEntries(callback, 0));
+            assertEquals(0, iterator.nextEntries(callback, 0));
+        } finally {
+            map.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testJournalFallsBackToBootstrapOnOverrun() throws IOException {
+        File file = Builder.getPersistenceFile();
+        VanillaSharedReplicatedHashMap<Integer, Integer> map =
+                (VanillaSharedReplicatedHashMap<Integer, Integer>) new SharedHashMapBuilder()
+                        .entries(1000)
+                        .identifier((byte) 1)
+                        .canReplicate(true)
+                        .modificationJournal(16)
+                        .file(file).kClass(Integer.class).vClass(Integer.class).create();
+        try {
+            Replica.ModificationIterator iterator1 = map.acquireModificationIterator((byte) 2, NOP);
+            Replica.ModificationIterator iterator2 = map.acquireModificationIterator((byte) 3, NOP);
+            final int[] entries = {0};
+            Replica.AbstractEntryCallback callback = new Replica.AbstractEntryCallback() {
+                @Override
+                public boolean onEntry(AbstractBytes entry, int chronicleId) {
+                    entries[0]++;
+                    return true;
+                }
+            };
+
+            // each iterator reads the changes from the shared journal
+            for (int i = 0; i < 10; i++)
+                map.put(i, i);
+            for (Replica.ModificationIterator iterator : new Replica.ModificationIterator[]{iterator1, iterator2}) {
+                entries[0] = 0;
+                while (iterator.nextEntry(callback, 0)) {
+                    // iterate all
+                }
+                assertEquals(10, entries[0]);
+            }
+
+            // the journal is overrun, the changes are found by their timestamps
+            for (int i = 10; i < 110; i++)
+                map.put(i, i);
+            entries[0] = 0;
+            while (iterator1.nextEntries(callback, 0) > 0) {
+                // iterate all
+            }
+            assertTrue(entries[0] >= 100);
+            assertTrue(entries[0] <= 110);
+            assertFalse(iterator1.hasNext());
+        } finally {
+            map.close();
+            file.delete();
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Rob Austin.
@@ -257,6 +258,37 @@ public class ReplicationCheckingMap<K, V> implements SharedHashMap<K, V> {
         return map1.acquireUsing(key, value);
     }
 
+    @Override
+    public long version(K key) {
+        return map1.version(key);
+    }
+
+    @Override
+    public long awaitChange(K key, long sinceVersion, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return map1.awaitChange(key, sinceVersion, timeout, unit);
+    }
+
+    @Override
+    public boolean awaitPresent(K key, long timeout, TimeUnit unit) throws InterruptedException {
+        return map1.awaitPresent(key, timeout, unit);
+    }
+
+    @Override
+    public SharedMapTransaction<K, V> startTransaction() {
+        return map1.startTransaction();
+    }
+
+    @Override
+    public int[] maxProbeLengths() {
+        return map1.maxProbeLengths();
+    }
+
+    @Override
+    public double[] meanProbeLengths() {
+        return map1.meanProbeLengths();
+    }
+
     @Override
     public File file() {
         throw new UnsupportedOperationException();
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public class ReplicationMetricsTest {
+
+    static SharedHashMap<Integer, CharSequence> newTcpMap(byte identifier, int serverPort,
+                                                          InetSocketAddress... endpoints)
+            throws IOException {
+        TcpReplicatorBuilder tcpReplicatorBuilder = new TcpReplicatorBuilder(serverPort, endpoints)
+                .heartBeatInterval(1, SECONDS)
+                .jmxMetrics(true);
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .identifier(identifier)
+                .tcpReplicatorBuilder(tcpReplicatorBuilder)
+                .file(Builder.getPersistenceFile()).kClass(Integer.class).vClass(CharSequence.class)
+                .create();
+    }
+
+    @Test
+    public void testMetricsOfTcpConnection() throws Exception {
+        final int port = 8112;
+        SharedHashMap<Integer, CharSequence> map1 = newTcpMap((byte) 1, port);
+        SharedHashMap<Integer, CharSequence> map2 = newTcpMap((byte) 2, port + 1,
+                new InetSocketAddress("localhost", port));
+        try {
+            for (int i = 0; i < 100; i++)
+                map1.put(i, "EXAMPLE-" + i);
+
+            for (int t = 0; t < 10000 && !map1.equals(map2); t++)
+                Thread.sleep(1);
+            assertEquals(map1, map2);
+
+            List<PeerReplicationMetrics> peers1 = ReplicationMetrics.peers(map1);
+            assertEquals(1, peers1.size());
+            PeerReplicationMetrics metrics1 = peers1.get(0);
+            assertEquals("tcp", metrics1.getReplicator());
+            assertEquals(1, metrics1.getLocalIdentifier());
+            assertEquals(2, metrics1.getRemoteIdentifier());
+            assertTrue(metrics1.isConnected());
+            assertTrue(metrics1.getEntriesSent() >= 100);
+            assertTrue(metrics1.getBytesSent() > 0);
+            assertEquals(0, metrics1.getPendingEntries());
+
+            PeerReplicationMetrics metrics2 = ReplicationMetrics.peers(map2).get(0);
+            assertEquals(1, metrics2.getRemoteIdentifier());
+            assertTrue(metrics2.getEntriesReceived() >= 100);
+            assertTrue(metrics2.getBytesReceived() > 0);
+            assertTrue(metrics2.getLastReceivedTime() > 0);
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.openhft.collections:type=PeerReplicationMetrics," +
+                    "replicator=tcp,localIdentifier=1,remoteIdentifier=2");
+            assertEquals(metrics1.getLocalIdentifier(), server.getAttribute(name, "LocalIdentifier"));
+        } finally {
+            map1.close();
+            map2.close();
+        }
+        assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName("net.openhft.collections:type=PeerReplicationMetrics,localIdentifier=1,*"),
+                null).isEmpty());
+    }
+
+    @Test
+    public void testNoMetricsOfMapNotReplicated() throws IOException {
+        SharedHashMap<Integer, CharSequence> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .file(Builder.getPersistenceFile()).kClass(Integer.class).vClass(CharSequence.class)
+                .create();
+        try {
+            assertTrue(ReplicationMetrics.peers(map).isEmpty());
+        } finally {
+            map.close();
+        }
+    }
+}
@@ -1255,4 +1255,169 @@ public class SharedHashMapTest {
 
         assertEquals(map1, map2);
     }
+
+    @Test
+    public void testAwaitPresentAndChange() throws Exception {
+        final SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .file(getPersistenceFile()).kClass(Integer.class).vClass(String.class).create();
+
+        long version = map.version(1);
+        assertEquals(version, map.awaitChange(1, version, 10, TimeUnit.MILLISECONDS));
+        assertFalse(map.awaitPresent(1, 10, TimeUnit.MILLISECONDS));
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        es.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Thread.sleep(50);
+                map.put(1, "one");
+                return null;
+            }
+        });
+        assertTrue(map.awaitPresent(1, 5, TimeUnit.SECONDS));
+        assertEquals("one", map.get(1));
+        assertTrue(map.awaitChange(1, version, 0, TimeUnit.MILLISECONDS) != version);
+
+        version = map.version(1);
+        map.remove(1);
+        assertTrue(map.awaitChange(1, version, 0, TimeUnit.MILLISECONDS) != version);
+
+        es.shutdown();
+        map.close();
+    }
+
+    @Test
+    public void testTransaction() throws IOException {
+        final SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .transactional(true).minSegments(16)
+                .file(getPersistenceFile()).kClass(Integer.class).vClass(String.class).create();
+        map.put(3, "three");
+
+        SharedMapTransaction<Integer, String> tx = map.startTransaction();
+        for (int i = 0; i < 100; i++)
+            tx.put(i, "v" + i);
+        tx.remove(3).remove(4).put(4, "four");
+        assertEquals(103, tx.size());
+        assertEquals("three", map.get(3));
+        assertNull(map.get(1));
+
+        tx.commit();
+        assertEquals(99, map.size());
+        assertNull(map.get(3));
+        assertEquals("four", map.get(4));
+        assertEquals("v99", map.get(99));
+
+        try {
+            tx.commit();
+            fail();
+        } catch (IllegalStateException expected) {
+            // committed already
+        }
+
+        tx = map.startTransaction().put(1000, "discarded");
+        tx.rollback();
+        assertFalse(map.containsKey(1000));
+
+        // locks are released
+        map.put(1, "one");
+        assertEquals("one", map.get(1));
+        map.close();
+    }
+
+    @Test
+    public void testFailedTransactionIsUndone() throws IOException {
+        final SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .transactional(true).minSegments(16).entrySize(32)
+                .file(getPersistenceFile()).kClass(Integer.class).vClass(String.class).create();
+        map.put(3, "three");
+        map.put(4, "four");
+
+        char[] chars = new char[32 * 100];
+        Arrays.fill(chars, 'x');
+        SharedMapTransaction<Integer, String> tx = map.startTransaction();
+        for (int i = 0; i < 50; i++)
+            tx.put(i, "v" + i);
+        tx.remove(3).put(7, new String(chars));
+        try {
+            tx.commit();
+            fail();
+        } catch (RuntimeException expected) {
+            // the value is larger than an entry of the maximum size
+        }
+        assertEquals(2, map.size());
+        assertEquals("three", map.get(3));
+        assertEquals("four", map.get(4));
+        assertNull(map.get(7));
+        map.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTransactionRequiresTransactionalMap() throws IOException {
+        final SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .file(getPersistenceFile()).kClass(Integer.class).vClass(String.class).create();
+        try {
+            map.startTransaction();
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testSwissMultiMap() throws IOException {
+        File file = getPersistenceFile();
+        SharedHashMap<Integer, Integer> map = new SharedHashMapBuilder()
+                .multiMapType(MultiMapType.SWISS).entries(10000).minSegments(4)
+                .file(file).kClass(Integer.class).vClass(Integer.class).create();
+        for (int i = 0; i < 9000; i++)
+            map.put(i, -i);
+        for (int i = 0; i < 9000; i += 2)
+            assertEquals(-i, (int) map.remove(i));
+        map.close();
+
+        // the type is read from the file
+        map = new SharedHashMapBuilder()
+                .entries(10000).minSegments(4)
+                .file(file).kClass(Integer.class).vClass(Integer.class).create();
+        assertEquals(4500, map.size());
+        for (int i = 0; i < 9000; i++)
+            assertEquals(i % 2 == 0 ? null : -i, map.get(i));
+        map.close();
+    }
+
+    @Test
+    public void testRobinHoodMultiMapProbeLengths() throws IOException {
+        SharedHashMap<Integer, Integer> map = new SharedHashMapBuilder()
+                .multiMapType(MultiMapType.ROBIN_HOOD).entries(10000).minSegments(4)
+                .file(getPersistenceFile()).kClass(Integer.class).vClass(Integer.class).create();
+        for (int i = 0; i < 9000; i++)
+            map.put(i, -i);
+        for (int i = 0; i < 9000; i += 2)
+            assertEquals(-i, (int) map.remove(i));
+        for (int i = 0; i < 9000; i++)
+            assertEquals(i % 2 == 0 ? null : -i, map.get(i));
+
+        int[] maxProbeLengths = map.maxProbeLengths();
+        double[] meanProbeLengths = map.meanProbeLengths();
+        assertEquals(4, maxProbeLengths.length);
+        for (int i = 0; i < maxProbeLengths.length; i++)
+            assertTrue(maxProbeLengths[i] >= meanProbeLengths[i]);
+        map.close();
+    }
+
+    @Test
+    public void testEntriesPerSegmentDontOverflow() {
+        SharedHashMapBuilder builder = new SharedHashMapBuilder().entries(1L << 32).largeSegments(true);
+        int segments = builder.actualSegments();
+        int entriesPerSegment = builder.actualEntriesPerSegment();
+        assertTrue(entriesPerSegment > 0);
+        assertTrue(entriesPerSegment <= SharedHashMapBuilder.MAX_ENTRIES_PER_SEGMENT);
+        assertTrue((long) segments * entriesPerSegment >= 1L << 32);
+
+        try {
+            new SharedHashMapBuilder().entries(1L << 31).actualSegments(1).actualEntriesPerSegment();
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 2^32 entries per segment don't fit int positions
+        }
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.openhft.collections.Builder.getPersistenceFile;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test VanillaSharedReplicatedHashMap replicated over a compressed TCP Socket
+ */
+public class TCPSocketReplicationCompressionTest {
+
+    static SharedHashMap<Integer, CharSequence> newCompressedShm(
+            final byte identifier, final boolean compression, final int serverPort,
+            final InetSocketAddress... endpoints) throws IOException {
+        return newCompressedShm(identifier, compression, 1024 * 8, serverPort, endpoints);
+    }
+
+    static SharedHashMap<Integer, CharSequence> newCompressedShm(
+            final byte identifier, final boolean compression, final int packetSize, final int serverPort,
+            final InetSocketAddress... endpoints) throws IOException {
+        final TcpReplicatorBuilder tcpReplicatorBuilder = new TcpReplicatorBuilder(serverPort, endpoints)
+                .heartBeatInterval(1, SECONDS)
+                .packetSize(packetSize)
+                .compression(compression);
+        return new SharedHashMapBuilder()
+                .identifier(identifier)
+                .tcpReplicatorBuilder(tcpReplicatorBuilder)
+                .entries(20000).file(getPersistenceFile()).kClass(Integer.class).vClass(CharSequence.class)
+                .create();
+    }
+
+    private static void replicate(boolean compression1, boolean compression2, int port)
+            throws IOException, InterruptedException {
+        replicate(compression1, 1024 * 8, compression2, 1024 * 8, port);
+    }
+
+    private static void replicate(boolean compression1, int packetSize1, boolean compression2, int packetSize2,
+                                  int port) throws IOException, InterruptedException {
+        SharedHashMap<Integer, CharSequence> map1 = newCompressedShm((byte) 1, compression1, packetSize1, port,
+                new InetSocketAddress("localhost", port + 1));
+        SharedHashMap<Integer, CharSequence> map2 = newCompressedShm((byte) 2, compression2, packetSize2,
+                port + 1);
+        try {
+            // repetitive values, more than fit one buffer
+            for (int i = 0; i < 5000; i++)
+                map1.put(i, "EXAMPLE-EXAMPLE-EXAMPLE-" + (i % 10));
+            for (int i = 5000; i < 5100; i++)
+                map2.put(i, "EXAMPLE-" + i);
+
+            for (int t = 0; t < 10000 && !map1.equals(map2); t++)
+                Thread.sleep(1);
+
+            assertEquals(5100, map1.size());
+            assertEquals(map1, map2);
+        } finally {
+            map1.close();
+            map2.close();
+        }
+    }
+
+    @Test
+    public void testCompressedReplication() throws IOException, InterruptedException {
+        replicate(true, true, 8096);
+    }
+
+    @Test
+    public void testCompressionEnabledOnOneNodeOnly() throws IOException, InterruptedException {
+        replicate(true, false, 8098);
+    }
+
+    @Test
+    public void testCompressedReplicationOfDifferentPacketSizes() throws IOException, InterruptedException {
+        // the blocks of the first node are larger than the buffer of the second one would be
+        replicate(true, 1024 * 64, true, 1024 * 4, 8116);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.openhft.collections.Builder.getPersistenceFile;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test VanillaSharedReplicatedHashMap replicated over TCP, with the connections served by several threads
+ */
+public class TCPSocketReplicationIoThreadsTest {
+
+    static SharedHashMap<Integer, CharSequence> newShm(final byte identifier, final int serverPort,
+                                                       final InetSocketAddress... endpoints)
+            throws IOException {
+        final TcpReplicatorBuilder tcpReplicatorBuilder = new TcpReplicatorBuilder(serverPort, endpoints)
+                .heartBeatInterval(1, SECONDS)
+                .ioThreads(2);
+        return new SharedHashMapBuilder()
+                .identifier(identifier)
+                .tcpReplicatorBuilder(tcpReplicatorBuilder)
+                .entries(20000).file(getPersistenceFile()).kClass(Integer.class).vClass(CharSequence.class)
+                .create();
+    }
+
+    @Test
+    public void testFourNodesServedByTwoThreadsEach() throws IOException, InterruptedException {
+        final int port = 8104;
+        // the connections of the first node are split between its threads
+        SharedHashMap<Integer, CharSequence> map1 = newShm((byte) 1, port,
+                new InetSocketAddress("localhost", port + 1),
+                new InetSocketAddress("localhost", port + 2),
+                new InetSocketAddress("localhost", port + 3));
+        SharedHashMap<Integer, CharSequence> map2 = newShm((byte) 2, port + 1,
+                new InetSocketAddress("localhost", port + 2),
+                new InetSocketAddress("localhost", port + 3));
+        SharedHashMap<Integer, CharSequence> map3 = newShm((byte) 3, port + 2,
+                new InetSocketAddress("localhost", port + 3));
+        SharedHashMap<Integer, CharSequence> map4 = newShm((byte) 4, port + 3);
+        SharedHashMap[] maps = {map1, map2, map3, map4};
+        try {
+            for (int i = 0; i < 4000; i++)
+                maps[i % 4].put(i, "EXAMPLE-" + i);
+
+            for (int t = 0; t < 10000 && !(map1.equals(map2) && map1.equals(map3) && map1.equals(map4)); t++)
+                Thread.sleep(1);
+
+            assertEquals(4000, map1.size());
+            assertEquals(map1, map2);
+            assertEquals(map1, map3);
+            assertEquals(map1, map4);
+        } finally {
+            for (SharedHashMap map : maps)
+                map.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoIoThreads() {
+        new TcpReplicatorBuilder(8108).ioThreads(0);
+    }
+}
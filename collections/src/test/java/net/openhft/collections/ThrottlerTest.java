@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.Selector;
+
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottlerTest {
+
+    // 10000 bytes per interval of 100 ms, after the 100 bytes kept for an entry
+    static final long BITS_PER_DAY = 101L * 8 * 86400000;
+
+    private Selector selector;
+    private Pipe pipe1;
+    private Pipe pipe2;
+    private AbstractChannelReplicator.Throttler throttler;
+
+    @Before
+    public void setup() throws IOException {
+        selector = Selector.open();
+        pipe1 = Pipe.open();
+        pipe2 = Pipe.open();
+        throttler = new AbstractChannelReplicator.Throttler(100, 100, BITS_PER_DAY);
+        for (Pipe pipe : new Pipe[]{pipe1, pipe2}) {
+            pipe.sink().configureBlocking(false);
+            pipe.sink().register(selector, OP_WRITE);
+            throttler.add(pipe.sink(), selector);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Pipe pipe : new Pipe[]{pipe1, pipe2}) {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+        selector.close();
+    }
+
+    boolean writable(Pipe pipe) {
+        return writable(pipe, selector);
+    }
+
+    static boolean writable(Pipe pipe, Selector selector) {
+        return (pipe.sink().keyFor(selector).interestOps() & OP_WRITE) != 0;
+    }
+
+    void nextInterval() {
+        throttler.nextInterval();
+        throttler.restoreWrites(selector);
+    }
+
+    @Test
+    public void testChannelOutOfItsShareIsThrottledAlone() throws IOException {
+        nextInterval();
+
+        throttler.contemplateThrottleWrites(pipe1.sink(), 6000);
+        assertFalse(writable(pipe1));
+        assertTrue(writable(pipe2));
+
+        throttler.contemplateThrottleWrites(pipe2.sink(), 3000);
+        assertTrue(writable(pipe2));
+
+        nextInterval();
+        assertTrue(writable(pipe1));
+        assertTrue(writable(pipe2));
+    }
+
+    @Test
+    public void testBusyChannelTakesTheShareOfIdleOne() throws IOException {
+        nextInterval();
+        throttler.contemplateThrottleWrites(pipe1.sink(), 1);
+
+        // only the first channel wrote in the previous interval
+        nextInterval();
+        throttler.contemplateThrottleWrites(pipe1.sink(), 9000);
+        assertTrue(writable(pipe1));
+        assertTrue(writable(pipe2));
+    }
+
+    @Test
+    public void testSharesByWeight() throws IOException {
+        throttler.weight(pipe1.sink(), 3);
+        nextInterval();
+
+        throttler.contemplateThrottleWrites(pipe1.sink(), 7000);
+        assertTrue(writable(pipe1));
+
+        throttler.contemplateThrottleWrites(pipe2.sink(), 2600);
+        assertFalse(writable(pipe2));
+        assertTrue(writable(pipe1));
+    }
+
+    @Test
+    public void testAllThrottledOutOfTheBytesOfTheInterval() throws IOException {
+        nextInterval();
+        throttler.contemplateThrottleWrites(pipe1.sink(), 10000);
+        assertFalse(writable(pipe1));
+        assertFalse(writable(pipe2));
+    }
+
+    @Test
+    public void testThrottledChannelCannotWriteUntilTheNextInterval() throws IOException {
+        nextInterval();
+
+        throttler.contemplateThrottleWrites(pipe1.sink(), 6000);
+        assertFalse(throttler.canWrite(pipe1.sink()));
+        assertTrue(throttler.canWrite(pipe2.sink()));
+
+        throttler.contemplateThrottleWrites(pipe2.sink(), 4000);
+        assertFalse(throttler.canWrite(pipe1.sink()));
+        assertFalse(throttler.canWrite(pipe2.sink()));
+
+        nextInterval();
+        assertTrue(throttler.canWrite(pipe1.sink()));
+        assertTrue(throttler.canWrite(pipe2.sink()));
+    }
+
+    @Test
+    public void testBytesOfTheIntervalSharedBySelectors() throws IOException {
+        final Selector otherSelector = Selector.open();
+        final Pipe otherPipe = Pipe.open();
+        try {
+            otherPipe.sink().configureBlocking(false);
+            otherPipe.sink().register(otherSelector, OP_WRITE);
+            throttler.add(otherPipe.sink(), otherSelector);
+            nextInterval();
+            throttler.restoreWrites(otherSelector);
+
+            // the other selector is only changed by its own thread
+            throttler.contemplateThrottleWrites(pipe1.sink(), 10000);
+            assertFalse(writable(pipe1));
+            assertFalse(writable(pipe2));
+            assertTrue(writable(otherPipe, otherSelector));
+            assertFalse(throttler.canWrite(otherPipe.sink()));
+
+            throttler.contemplateThrottleWrites(otherPipe.sink(), 1);
+            assertFalse(writable(otherPipe, otherSelector));
+
+            // the writes are restored on each selector by its own thread
+            nextInterval();
+            assertTrue(writable(pipe1));
+            assertFalse(writable(otherPipe, otherSelector));
+            assertTrue(throttler.canWrite(otherPipe.sink()));
+
+            throttler.restoreWrites(otherSelector);
+            assertTrue(writable(otherPipe, otherSelector));
+        } finally {
+            otherPipe.sink().close();
+            otherPipe.source().close();
+            otherSelector.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveWeight() {
+        new TcpReplicatorBuilder(8114).throttleWeight((byte) 2, 0);
+    }
+}
@@ -25,8 +25,17 @@ import org.junit.Test;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
+import static java.nio.channels.SelectionKey.OP_WRITE;
 import static net.openhft.collections.Builder.getPersistenceFile;
+import static net.openhft.collections.Replica.ModificationNotifier.NOP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test  VanillaSharedReplicatedHashMap where the Replicated is over a TCP Socket
@@ -87,6 +96,162 @@ public class UDPSocketReplicationTest {
 
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testDatagramSizeLargerThanUdpPayload() throws IOException {
+        new UdpReplicatorBuilder(1235, Inet4Address.getByName("255.255.255.255")).datagramSize(65508);
+    }
+
+    static final int ENTRY_SIZE = 1200;
+    static final int DATAGRAM_SIZE = 200;
+
+    static VanillaSharedReplicatedHashMap<Integer, CharSequence> newMap(byte identifier) throws IOException {
+        return (VanillaSharedReplicatedHashMap<Integer, CharSequence>) new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(ENTRY_SIZE)
+                .identifier(identifier)
+                .canReplicate(true)
+                .file(getPersistenceFile()).kClass(Integer.class).vClass(CharSequence.class).create();
+    }
+
+    /**
+     * the datagram writer of one map, and the datagram reader of another, over the loopback interface
+     */
+    static class DatagramRoundTrip implements Closeable {
+
+        final VanillaSharedReplicatedHashMap<Integer, CharSequence> map1 = newMap((byte) 1);
+        final VanillaSharedReplicatedHashMap<Integer, CharSequence> map2 = newMap((byte) 2);
+        final Replica.ModificationIterator iterator = map1.acquireModificationIterator((byte) 2, NOP);
+        final VanillaPeerReplicationMetrics metrics = new VanillaPeerReplicationMetrics("udp", (byte) 2);
+        final UdpReplicator.UdpSocketChannelEntryWriter writer =
+                new UdpReplicator.UdpSocketChannelEntryWriter(ENTRY_SIZE, DATAGRAM_SIZE, map1, (byte) 1,
+                        new VanillaPeerReplicationMetrics("udp", (byte) 1));
+        final UdpReplicator.UdpSocketChannelEntryReader reader =
+                new UdpReplicator.UdpSocketChannelEntryReader(ENTRY_SIZE, DATAGRAM_SIZE, map2, (byte) 2,
+                        metrics);
+
+        final Selector selector = Selector.open();
+        final DatagramChannel receiver = DatagramChannel.open();
+        // receives the datagrams which are never read, as if lost on the way
+        final DatagramChannel nowhere = DatagramChannel.open();
+        final SelectionKey sent;
+        final SelectionKey lost;
+
+        DatagramRoundTrip() throws IOException {
+            receiver.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            nowhere.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            sent = sender(receiver);
+            lost = sender(nowhere);
+        }
+
+        private SelectionKey sender(DatagramChannel to) throws IOException {
+            final DatagramChannel sender = DatagramChannel.open();
+            sender.configureBlocking(false);
+            sender.connect(to.socket().getLocalSocketAddress());
+            return sender.register(selector, OP_WRITE);
+        }
+
+        /**
+         * @return the number of datagrams written, until there are no changed entries left
+         */
+        int write(SelectionKey key) throws IOException, InterruptedException {
+            int datagrams = 0;
+            while (writer.writeAll(key, iterator) > 0)
+                datagrams++;
+            return datagrams;
+        }
+
+        void read(int datagrams) throws IOException, InterruptedException {
+            for (int i = 0; i < datagrams; i++)
+                reader.readAll(receiver);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (SelectionKey key : new SelectionKey[]{sent, lost})
+                key.channel().close();
+            receiver.close();
+            nowhere.close();
+            selector.close();
+            map1.close();
+            map2.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSeveralEntriesInADatagram() throws Exception {
+        final DatagramRoundTrip roundTrip = new DatagramRoundTrip();
+        try {
+            for (int i = 0; i < 3; i++)
+                roundTrip.map1.put(i, "value" + i);
+
+            assertEquals(1, roundTrip.write(roundTrip.sent));
+            roundTrip.read(1);
+            assertEquals(3, roundTrip.metrics.getEntriesReceived());
+            for (int i = 0; i < 3; i++)
+                assertEquals("value" + i, roundTrip.map2.get(i).toString());
+        } finally {
+            roundTrip.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testEntryCarriedOverToTheNextDatagram() throws Exception {
+        final DatagramRoundTrip roundTrip = new DatagramRoundTrip();
+        try {
+            for (int i = 0; i < 20; i++)
+                roundTrip.map1.put(i, "value" + i);
+
+            final int datagrams = roundTrip.write(roundTrip.sent);
+            assertTrue(datagrams > 1);
+            roundTrip.read(datagrams);
+            assertEquals(20, roundTrip.metrics.getEntriesReceived());
+            assertEquals(0, roundTrip.metrics.getLostDatagrams());
+            for (int i = 0; i < 20; i++)
+                assertEquals("value" + i, roundTrip.map2.get(i).toString());
+        } finally {
+            roundTrip.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testEntryLargerThanTheDatagram() throws Exception {
+        final DatagramRoundTrip roundTrip = new DatagramRoundTrip();
+        try {
+            final String value = DeltaReplicationTest.value(1, 2, 3);
+            roundTrip.map1.put(1, value);
+
+            assertEquals(1, roundTrip.write(roundTrip.sent));
+            roundTrip.read(1);
+            assertEquals(value, roundTrip.map2.get(1).toString());
+        } finally {
+            roundTrip.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSkippedSequenceCountedAsLost() throws Exception {
+        final DatagramRoundTrip roundTrip = new DatagramRoundTrip();
+        try {
+            roundTrip.map1.put(1, "a");
+            assertEquals(1, roundTrip.write(roundTrip.sent));
+            roundTrip.read(1);
+
+            roundTrip.map1.put(2, "b");
+            assertEquals(1, roundTrip.write(roundTrip.lost));
+
+            roundTrip.map1.put(3, "c");
+            assertEquals(1, roundTrip.write(roundTrip.sent));
+            roundTrip.read(1);
+
+            assertEquals(1, roundTrip.metrics.getLostDatagrams());
+            assertEquals("a", roundTrip.map2.get(1).toString());
+            assertNull(roundTrip.map2.get(2));
+            assertEquals("c", roundTrip.map2.get(3).toString());
+        } finally {
+            roundTrip.close();
+        }
+    }
+
 
 }
 
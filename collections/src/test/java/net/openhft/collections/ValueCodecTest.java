@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.ByteBufferBytes;
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static net.openhft.collections.Builder.getPersistenceFile;
+import static org.junit.Assert.*;
+
+public class ValueCodecTest {
+
+    @Test
+    public void testLZ4RoundTrip() {
+        Random random = new Random(1);
+        for (int length : new int[]{0, 1, 12, 13, 100, 1000, 70000}) {
+            for (int alphabet : new int[]{2, 16, 256}) {
+                byte[] data = new byte[length];
+                for (int i = 0; i < length; i++)
+                    data[i] = (byte) random.nextInt(alphabet);
+                Bytes source = new ByteBufferBytes(ByteBuffer.wrap(data));
+                Bytes encoded = new ByteBufferBytes(
+                        ByteBuffer.allocate(LZ4ValueCodec.INSTANCE.maxEncodedSize(length)));
+                LZ4ValueCodec.INSTANCE.encode(source, encoded);
+                assertEquals(length, source.position());
+                encoded.flip();
+                Bytes decoded = new ByteBufferBytes(ByteBuffer.allocate(length));
+                LZ4ValueCodec.INSTANCE.decode(encoded, decoded, length);
+                assertEquals(length, decoded.position());
+                for (int i = 0; i < length; i++)
+                    assertEquals(data[i], decoded.readByte(i));
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMalformedData() {
+        Bytes encoded = new ByteBufferBytes(ByteBuffer.wrap(new byte[]{(byte) 0x10, 'a', 5, 0}));
+        LZ4ValueCodec.INSTANCE.decode(encoded, new ByteBufferBytes(ByteBuffer.allocate(100)), 100);
+    }
+
+    @Test
+    public void testLargeValuesAreCompressed() throws IOException {
+        File file = getPersistenceFile();
+        SharedHashMap<Integer, String> map = new SharedHashMapBuilder<Integer, String>()
+                .entries(1000)
+                .entrySize(256)
+                .valueCodec(LZ4ValueCodec.INSTANCE)
+                .file(file)
+                .kClass(Integer.class)
+                .vClass(String.class)
+                .create();
+
+        // about 20 KB, wouldn't fit 64 entries of 256 bytes uncompressed
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 20000; i++)
+            sb.append("{\"id\":").append(i).append(",\"name\":\"value\",\"active\":true},");
+        String large = sb.toString();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i % 2 == 0 ? large + i : "small" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? large + i : "small" + i, map.get(i));
+        }
+        // replace compressed value with uncompressed and vice versa
+        map.put(0, "small");
+        map.put(1, large);
+        assertEquals("small", map.get(0));
+        assertEquals(large, map.get(1));
+        map.close();
+
+        SharedHashMap<Integer, String> map2 = new SharedHashMapBuilder<Integer, String>()
+                .entries(1000)
+                .entrySize(256)
+                .valueCodec(LZ4ValueCodec.INSTANCE)
+                .file(file)
+                .kClass(Integer.class)
+                .vClass(String.class)
+                .create();
+        assertEquals(large, map2.get(1));
+        assertEquals(large + 2, map2.get(2));
+        map2.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testCodecMismatch() throws IOException {
+        File file = getPersistenceFile();
+        new SharedHashMapBuilder<Integer, String>()
+                .entries(1000)
+                .valueCodec(LZ4ValueCodec.INSTANCE)
+                .file(file)
+                .kClass(Integer.class)
+                .vClass(String.class)
+                .create()
+                .close();
+        new SharedHashMapBuilder<Integer, String>()
+                .entries(1000)
+                .file(file)
+                .kClass(Integer.class)
+                .vClass(String.class)
+                .create();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Higher Frequency Trading
+ * <p/>
+ * http://www.higherfrequencytrading.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static net.openhft.collections.Builder.getPersistenceFile;
+import static org.junit.Assert.*;
+
+public class ValueLogTest {
+
+    private static SharedHashMap<Integer, String> create(File file) throws IOException {
+        return new SharedHashMapBuilder<Integer, String>()
+                .entries(1000)
+                .entrySize(32)
+                .valueLogSize(1 << 20)
+                .valueLogThreshold(1024)
+                .file(file)
+                .kClass(Integer.class)
+                .vClass(String.class)
+                .create();
+    }
+
+    private static String value(int key, int round) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 5000)
+            sb.append(key).append('-').append(round).append(';');
+        return sb.toString();
+    }
+
+    @Test
+    public void testLargeValuesInLog() throws IOException {
+        File file = getPersistenceFile();
+        SharedHashMap<Integer, String> map = create(file);
+        // about 500 KB per round, the log is reused many times
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++)
+                map.put(i, value(i, round));
+            ((AbstractVanillaSharedHashMap) map).collectValueLog();
+        }
+        map.put(100, "small");
+        map.remove(0);
+        for (int i = 1; i < 100; i++)
+            assertEquals(value(i, 19), map.get(i));
+        assertEquals("small", map.get(100));
+        assertNull(map.get(0));
+        map.close();
+
+        SharedHashMap<Integer, String> map2 = create(file);
+        assertEquals(100, map2.size());
+        for (int i = 1; i < 100; i++)
+            assertEquals(value(i, 19), map2.get(i));
+        map2.close();
+        new File(file.getPath() + ".values").delete();
+    }
+
+    @Test
+    public void testGarbageCountedAndCollected() throws IOException {
+        File file = getPersistenceFile();
+        SharedHashMap<Integer, String> map = create(file);
+        ValueLog log = ((AbstractVanillaSharedHashMap) map).valueLog;
+        // less than half of the log, so not collected in the background
+        for (int i = 0; i < 90; i++)
+            map.put(i, value(i, 0));
+        assertEquals(0, log.garbageBytes());
+        long used = log.usedBytes();
+
+        for (int i = 0; i < 30; i++)
+            map.remove(i);
+        for (int i = 30; i < 40; i++)
+            map.put(i, "small");
+        long garbage = log.garbageBytes();
+        assertEquals(used * 40 / 90, garbage, used / 90);
+
+        assertTrue(log.collect((AbstractVanillaSharedHashMap) map));
+        assertEquals(0, log.garbageBytes());
+        assertEquals(used - garbage, log.usedBytes());
+        for (int i = 40; i < 90; i++)
+            assertEquals(value(i, 0), map.get(i));
+        map.close();
+        new File(file.getPath() + ".values").delete();
+    }
+}